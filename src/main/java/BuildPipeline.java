@@ -0,0 +1,278 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Lets GraphBuildingHandler hand the work of building the graph to other threads, so that
+ * parsing the file overlaps with everything done with what it parses. The work is split into
+ * two stages, each a thread that applies the batches given to it in order: the graph stage
+ * adds nodes, the edges of ways and turn restrictions, and the name stage cleans and indexes
+ * location names. Batches hold the parsed data itself, ids and coordinates in primitive arrays
+ * and the nds of all their ways packed into one, so handing an element over allocates
+ * nothing, and they pass through bounded queues, so the parser never runs far ahead.
+ *
+ * The stages share nothing: the graph stage alone touches the nodes, ways and edges of the
+ * GraphDB, and the name stage alone touches its locations and prefix index.
+ *
+ * @author Beiqian Liu
+ */
+public class BuildPipeline {
+    private static final int BATCH_SIZE = 1024;
+    private static final int QUEUE_BATCHES = 16;
+
+    private final Stage graph;
+    private final Stage names;
+    private GraphBatch graphBatch = new GraphBatch();
+    private NameBatch nameBatch = new NameBatch();
+
+    /** @param g The graph to build. */
+    BuildPipeline(GraphDB g) {
+        graph = new Stage("graph", g);
+        names = new Stage("names", g);
+    }
+
+    /** Adds a node to the graph, after everything given to the graph stage before. */
+    void node(long id, double lon, double lat) {
+        if (graphBatch.wayCount > 0) {
+            /* A batch adds its nodes before its ways, so a node after a way starts another. */
+            sendGraph();
+        }
+        GraphBatch b = graphBatch;
+        b.nodeIds[b.nodeCount] = id;
+        b.lons[b.nodeCount] = lon;
+        b.lats[b.nodeCount] = lat;
+        b.nodeCount++;
+        if (b.nodeCount == BATCH_SIZE) {
+            sendGraph();
+        }
+    }
+
+    /**
+     * Adds a way and its edges to the graph, as GraphDB.addWay, after everything given to the
+     * graph stage before.
+     * @param refs The way's nds are the first refCount of these.
+     * @param reversed Whether traffic flows against the order of the nds.
+     */
+    void way(long id, String name, long[] refs, int refCount, boolean reversed,
+             RoadClass roadClass, float speed, int flags) {
+        GraphBatch b = graphBatch;
+        if (b.ndCount + refCount > b.nds.length) {
+            b.nds = Arrays.copyOf(b.nds, Math.max(2 * b.nds.length, b.ndCount + refCount));
+        }
+        for (int i = 0; i < refCount; i++) {
+            b.nds[b.ndCount + i] = refs[reversed ? refCount - 1 - i : i];
+        }
+        b.ndCount += refCount;
+        b.wayIds[b.wayCount] = id;
+        b.wayNames[b.wayCount] = name;
+        b.roadClasses[b.wayCount] = roadClass;
+        b.speeds[b.wayCount] = speed;
+        b.flags[b.wayCount] = flags;
+        b.ndEnds[b.wayCount] = b.ndCount;
+        b.wayCount++;
+        if (b.wayCount == BATCH_SIZE) {
+            sendGraph();
+        }
+    }
+
+    /** Records a turn restriction, as GraphDB.addTurnRestriction. */
+    void turnRestriction(long fromWay, long via, long toWay, boolean only) {
+        GraphBatch b = graphBatch;
+        int i = 4 * b.restrictionCount;
+        b.restrictions[i] = fromWay;
+        b.restrictions[i + 1] = via;
+        b.restrictions[i + 2] = toWay;
+        b.restrictions[i + 3] = only ? 1 : 0;
+        b.restrictionCount++;
+        if (b.restrictionCount == BATCH_SIZE) {
+            sendGraph();
+        }
+    }
+
+    /** Adds a named node to the locations and its name to the prefix index. */
+    void location(GraphDB.Node n) {
+        NameBatch b = nameBatch;
+        b.locations[b.count++] = n;
+        if (b.count == BATCH_SIZE) {
+            names.put(b);
+            nameBatch = new NameBatch();
+        }
+    }
+
+    private void sendGraph() {
+        graph.put(graphBatch);
+        graphBatch = new GraphBatch();
+    }
+
+    /** Returns how long the graph stage spent applying batches, in nanoseconds. */
+    long graphNanos() {
+        return graph.busyNanos;
+    }
+
+    /** Returns how long the name stage spent applying batches, in nanoseconds. */
+    long namesNanos() {
+        return names.busyNanos;
+    }
+
+    /**
+     * Waits for both stages to apply everything given to them, then stops their threads.
+     * @throws IOException If a stage failed, wrapping its exception.
+     */
+    void finish() throws IOException {
+        sendGraph();
+        names.put(nameBatch);
+        nameBatch = new NameBatch();
+        graph.finish();
+        names.finish();
+        for (Stage stage : new Stage[]{graph, names}) {
+            if (stage.failure != null) {
+                throw new IOException("The " + stage.thread.getName()
+                    + " stage of the build failed", stage.failure);
+            }
+        }
+    }
+
+    /**
+     * Stops both stages without applying what was not yet given to them, for when the parse
+     * failed, and adds any failure of a stage to the parse's exception as suppressed, so that
+     * the cause of the parse failing is what is thrown.
+     */
+    void abort(Throwable cause) {
+        graphBatch = new GraphBatch();
+        nameBatch = new NameBatch();
+        for (Stage stage : new Stage[]{graph, names}) {
+            stage.finish();
+            if (stage.failure != null) {
+                cause.addSuppressed(new IOException("The " + stage.thread.getName()
+                    + " stage of the build failed", stage.failure));
+            }
+        }
+    }
+
+    /** Work for one stage, applied to the graph on that stage's thread. */
+    private interface Batch {
+        void applyTo(GraphDB g);
+    }
+
+    /**
+     * Nodes, ways and turn restrictions for the graph stage, in primitive arrays. The nodes
+     * are added first, then the ways, whose nds run from the end of the way before to ndEnds.
+     */
+    private static class GraphBatch implements Batch {
+        private final long[] nodeIds = new long[BATCH_SIZE];
+        private final double[] lons = new double[BATCH_SIZE];
+        private final double[] lats = new double[BATCH_SIZE];
+        private int nodeCount;
+        private final long[] wayIds = new long[BATCH_SIZE];
+        private final String[] wayNames = new String[BATCH_SIZE];
+        private final RoadClass[] roadClasses = new RoadClass[BATCH_SIZE];
+        private final float[] speeds = new float[BATCH_SIZE];
+        private final int[] flags = new int[BATCH_SIZE];
+        private final int[] ndEnds = new int[BATCH_SIZE];
+        private int wayCount;
+        private long[] nds = new long[8 * BATCH_SIZE];
+        private int ndCount;
+        /** {from way, via node, to way, only} of each restriction. */
+        private final long[] restrictions = new long[4 * BATCH_SIZE];
+        private int restrictionCount;
+
+        @Override
+        public void applyTo(GraphDB g) {
+            for (int i = 0; i < nodeCount; i++) {
+                g.addNode(new GraphDB.Node(nodeIds[i], lons[i], lats[i]));
+            }
+            int start = 0;
+            for (int i = 0; i < wayCount; i++) {
+                GraphDB.Way way = new GraphDB.Way(wayIds[i]);
+                way.name = wayNames[i];
+                g.addWay(way, nds, start, ndEnds[i], roadClasses[i], speeds[i], flags[i]);
+                start = ndEnds[i];
+            }
+            for (int i = 0; i < 4 * restrictionCount; i += 4) {
+                g.addTurnRestriction(restrictions[i], restrictions[i + 1], restrictions[i + 2],
+                    restrictions[i + 3] != 0);
+            }
+        }
+    }
+
+    /** Named nodes for the name stage. */
+    private static class NameBatch implements Batch {
+        private final GraphDB.Node[] locations = new GraphDB.Node[BATCH_SIZE];
+        private int count;
+
+        @Override
+        public void applyTo(GraphDB g) {
+            for (int i = 0; i < count; i++) {
+                g.addName(locations[i].location);
+                g.addLocation(locations[i]);
+            }
+        }
+    }
+
+    /** A thread that applies batches from a bounded queue. */
+    private static class Stage {
+        /** Marks the end of the batches in the queue. */
+        private static final Batch END = g -> { };
+
+        private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+        private final GraphDB g;
+        private final Thread thread;
+        private volatile Throwable failure;
+        private volatile long busyNanos;
+
+        Stage(String name, GraphDB g) {
+            this.g = g;
+            thread = new Thread(this::run, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /** Sends the end marker and waits for the thread to apply everything before it. */
+        void finish() {
+            put(END);
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void put(Batch batch) {
+            try {
+                queue.put(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while building the graph", e);
+            }
+        }
+
+        private void run() {
+            long busy = 0;
+            try {
+                for (Batch batch = queue.take(); batch != END; batch = queue.take()) {
+                    if (failure != null) {
+                        /* Keep draining so that the parser never blocks on a full queue. */
+                        continue;
+                    }
+                    long start = System.nanoTime();
+                    try {
+                        batch.applyTo(g);
+                    } catch (RuntimeException | Error e) {
+                        failure = e;
+                    }
+                    busy += System.nanoTime() - start;
+                }
+            } catch (InterruptedException e) {
+                failure = e;
+            }
+            busyNanos = busy;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A Shard holding some cells of a partitioned graph in memory. It copies the vertices of its
+ * cells out of the graph, plus the location of each vertex just across the boundary, so the
+ * graph itself can be dropped once the shard is built.
+ *
+ * @author Beiqian Liu
+ */
+public class CellShard implements Shard {
+    private final int[] cells;
+    /** The vertices of this shard's cells, and the neighbors outside them, by id. */
+    private final Map<Long, GraphDB.Node> nodes = new HashMap<>();
+    /** The cell of every vertex in nodes. */
+    private final Map<Long, Integer> cellOf = new HashMap<>();
+    /** The boundary vertices of each cell, in a fixed order. */
+    private final Map<Integer, List<Long>> boundaryIds = new HashMap<>();
+    private final Map<Integer, KdTree> trees = new HashMap<>();
+    private final Map<Integer, Boundary> boundaries = new ConcurrentHashMap<>();
+
+    /**
+     * Copies some cells of a partitioned graph.
+     * @param g The graph.
+     * @param partition The partition of g.
+     * @param cells The cells to hold.
+     */
+    public CellShard(GraphDB g, Partition partition, int... cells) {
+        this.cells = cells.clone();
+        Map<Integer, List<GraphDB.Node>> inCell = new HashMap<>();
+        for (int cell : cells) {
+            inCell.put(cell, new ArrayList<>());
+            boundaryIds.put(cell, new ArrayList<>());
+        }
+        for (long v : g.vertices()) {
+            int cell = partition.cell(v);
+            List<GraphDB.Node> list = inCell.get(cell);
+            if (list == null) {
+                continue;
+            }
+            GraphDB.Node n = g.node(v);
+            list.add(n);
+            nodes.put(v, n);
+            cellOf.put(v, cell);
+            boolean onBoundary = false;
+            for (long w : n.adj) {
+                int other = partition.cell(w);
+                if (other != cell) {
+                    onBoundary = true;
+                    nodes.putIfAbsent(w, g.node(w));
+                    cellOf.putIfAbsent(w, other);
+                }
+            }
+            if (onBoundary) {
+                boundaryIds.get(cell).add(v);
+            }
+        }
+        for (int cell : cells) {
+            Collections.sort(boundaryIds.get(cell));
+            KdTree tree = new KdTree();
+            tree.build(inCell.get(cell));
+            trees.put(cell, tree);
+        }
+    }
+
+    @Override
+    public int[] cells() {
+        return cells.clone();
+    }
+
+    @Override
+    public Closest closest(double lon, double lat) {
+        Closest best = null;
+        for (int cell : cells) {
+            for (GraphDB.Node n : trees.get(cell).nearest(lon, lat, 1)) {
+                double distance = GraphDB.distance(n.lon, n.lat, lon, lat);
+                if (best == null || distance < best.distance) {
+                    best = new Closest();
+                    best.id = n.id;
+                    best.cell = cell;
+                    best.distance = distance;
+                }
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public Boundary boundary(int cell) {
+        if (!trees.containsKey(cell)) {
+            throw new IllegalArgumentException("Cell " + cell + " is not in this shard");
+        }
+        return boundaries.computeIfAbsent(cell, this::computeBoundary);
+    }
+
+    /** Runs one search within the cell from every boundary vertex. */
+    private Boundary computeBoundary(int cell) {
+        List<Long> ids = boundaryIds.get(cell);
+        Boundary b = new Boundary();
+        b.cell = cell;
+        b.ids = new long[ids.size()];
+        b.table = new double[ids.size()][];
+        for (int i = 0; i < ids.size(); i++) {
+            b.ids[i] = ids.get(i);
+            Map<Long, Double> distTo = search(ids.get(i), null, new HashMap<>());
+            b.table[i] = new double[ids.size()];
+            for (int j = 0; j < ids.size(); j++) {
+                b.table[i][j] = distTo.getOrDefault(ids.get(j), Double.POSITIVE_INFINITY);
+            }
+        }
+        List<long[]> cut = new ArrayList<>();
+        for (long v : ids) {
+            for (long w : nodes.get(v).adj) {
+                if (cellOf.get(w) != cell) {
+                    cut.add(new long[]{v, w});
+                }
+            }
+        }
+        b.cutFrom = new long[cut.size()];
+        b.cutTo = new long[cut.size()];
+        b.cutLength = new double[cut.size()];
+        for (int k = 0; k < cut.size(); k++) {
+            b.cutFrom[k] = cut.get(k)[0];
+            b.cutTo[k] = cut.get(k)[1];
+            b.cutLength[k] = GraphDB.distance(nodes.get(b.cutFrom[k]), nodes.get(b.cutTo[k]));
+        }
+        return b;
+    }
+
+    @Override
+    public Map<Long, Double> boundaryDistances(long v) {
+        Map<Long, Double> distTo = search(v, null, new HashMap<>());
+        Map<Long, Double> result = new LinkedHashMap<>();
+        for (long b : boundaryIds.get(cellOf.get(v))) {
+            Double d = distTo.get(b);
+            if (d != null) {
+                result.put(b, d);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Path path(long from, long to) {
+        Map<Long, Long> edgeTo = new HashMap<>();
+        Map<Long, Double> distTo = search(from, to, edgeTo);
+        Path path = new Path();
+        if (!distTo.containsKey(to)) {
+            return path;
+        }
+        List<Long> ids = new ArrayList<>();
+        for (long v = to; v != from; v = edgeTo.get(v)) {
+            ids.add(v);
+        }
+        ids.add(from);
+        Collections.reverse(ids);
+        path.ids = new long[ids.size()];
+        path.lons = new double[ids.size()];
+        path.lats = new double[ids.size()];
+        for (int i = 0; i < ids.size(); i++) {
+            GraphDB.Node n = nodes.get(ids.get(i));
+            path.ids[i] = n.id;
+            path.lons[i] = n.lon;
+            path.lats[i] = n.lat;
+        }
+        path.length = distTo.get(to);
+        return path;
+    }
+
+    /**
+     * Dijkstra's algorithm from a vertex, never leaving its cell.
+     * @param from Where to start.
+     * @param to Where to stop, or null to reach every vertex of the cell.
+     * @param edgeTo Filled with the vertex each reached vertex was reached from.
+     * @return The distances to the vertices reached, which include to if it can be reached.
+     */
+    private Map<Long, Double> search(long from, Long to, Map<Long, Long> edgeTo) {
+        Integer cell = cellOf.get(from);
+        if (cell == null || !trees.containsKey(cell)) {
+            throw new IllegalArgumentException("Vertex " + from + " is not in this shard");
+        }
+        Map<Long, Double> distTo = new HashMap<>();
+        Map<Long, Double> settled = new HashMap<>();
+        PriorityQueue<SearchNode> pq = new PriorityQueue<>();
+        distTo.put(from, 0.0);
+        pq.add(new SearchNode(from, 0));
+        while (!pq.isEmpty()) {
+            SearchNode curr = pq.remove();
+            if (settled.containsKey(curr.id)) {
+                continue;
+            }
+            settled.put(curr.id, curr.distance);
+            if (to != null && curr.id == to) {
+                break;
+            }
+            GraphDB.Node n = nodes.get(curr.id);
+            for (long next : n.adj) {
+                if (!cell.equals(cellOf.get(next))) {
+                    continue;
+                }
+                double newDistTo = curr.distance + GraphDB.distance(n, nodes.get(next));
+                if (newDistTo < distTo.getOrDefault(next, Double.POSITIVE_INFINITY)) {
+                    distTo.put(next, newDistTo);
+                    edgeTo.put(next, curr.id);
+                    pq.add(new SearchNode(next, newDistTo));
+                }
+            }
+        }
+        return settled;
+    }
+
+    private static class SearchNode implements Comparable<SearchNode> {
+        private final long id;
+        private final double distance;
+
+        SearchNode(long id, double distance) {
+            this.id = id;
+            this.distance = distance;
+        }
+
+        @Override
+        public int compareTo(SearchNode o) {
+            return Double.compare(distance, o.distance);
+        }
+    }
+}
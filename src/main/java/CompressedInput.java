@@ -0,0 +1,180 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Transparently decompresses gzip and LZ4 compressed map data. The codec is detected from the
+ * first bytes of the input, so callers do not need to know how a file was stored.
+ *
+ * Compressed input is decompressed on a separate thread, which hands fixed size chunks to the
+ * reading thread through a bounded queue. Decompression and parsing then overlap instead of
+ * adding up, and the queue bound keeps a fast decompressor from running far ahead of a slow
+ * parser.
+ *
+ * @author Beiqian Liu
+ */
+public class CompressedInput {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    /** Number of decompressed chunks that may wait for the parser. */
+    private static final int QUEUE_CHUNKS = 16;
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    private CompressedInput() {
+    }
+
+    /**
+     * Returns a stream of the uncompressed contents of {@code in}. Gzip and LZ4 frame input is
+     * decompressed on a background thread; anything else is returned as is. The returned
+     * stream supports mark and reset.
+     * @param in The input, which must support mark and reset.
+     * @throws IOException If the first bytes cannot be read.
+     */
+    public static InputStream open(InputStream in) throws IOException {
+        byte[] head = new byte[4];
+        in.mark(head.length);
+        int length = 0;
+        while (length < head.length) {
+            int n = in.read(head, length, head.length - length);
+            if (n < 0) {
+                break;
+            }
+            length += n;
+        }
+        in.reset();
+
+        InputStream decompressed;
+        if (length >= 2 && ((head[0] & 0xff) | (head[1] & 0xff) << 8) == GZIP_MAGIC) {
+            decompressed = new GZIPInputStream(in, CHUNK_SIZE);
+        } else if (Lz4FrameInputStream.isLz4(head, length)) {
+            decompressed = new Lz4FrameInputStream(in);
+        } else {
+            return in;
+        }
+        return new BufferedInputStream(new AsyncInputStream(decompressed), CHUNK_SIZE);
+    }
+
+    /**
+     * Reads another stream on a background thread, a chunk at a time, through a bounded
+     * queue. An exception on the background thread is rethrown by the next read, wrapped in an
+     * IOException if it is not one.
+     */
+    static class AsyncInputStream extends InputStream {
+        /** Marks the end of the input in the queue. */
+        private static final byte[] END = new byte[0];
+
+        private final InputStream in;
+        private final BlockingQueue<byte[]> queue;
+        private final Thread producer;
+        private volatile IOException failure;
+        private byte[] chunk;
+        private int pos;
+        private boolean finished;
+
+        AsyncInputStream(InputStream in) {
+            this(in, CHUNK_SIZE, QUEUE_CHUNKS);
+        }
+
+        AsyncInputStream(InputStream in, int chunkSize, int queueChunks) {
+            this.in = in;
+            this.queue = new ArrayBlockingQueue<>(queueChunks);
+            this.producer = new Thread(() -> produce(chunkSize), "decompress");
+            producer.setDaemon(true);
+            producer.start();
+        }
+
+        private void produce(int chunkSize) {
+            boolean closed = false;
+            try {
+                while (true) {
+                    byte[] buffer = new byte[chunkSize];
+                    int length = 0;
+                    int n = 0;
+                    while (length < chunkSize && (n = in.read(buffer, length,
+                            chunkSize - length)) >= 0) {
+                        length += n;
+                    }
+                    if (length > 0) {
+                        queue.put(length == chunkSize ? buffer : Arrays.copyOf(buffer, length));
+                    }
+                    if (n < 0) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                closed = true;
+            } catch (IOException e) {
+                failure = e;
+            } catch (Throwable e) {
+                /* A decompressor that trips over a malformed frame may throw anything. */
+                failure = new IOException("Decompressing failed", e);
+            } finally {
+                if (!closed) {
+                    try {
+                        queue.put(END);
+                    } catch (InterruptedException e) {
+                        // Closed while waiting; nobody is left to read the end marker.
+                    }
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!ensureChunk()) {
+                return -1;
+            }
+            return chunk[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!ensureChunk()) {
+                return -1;
+            }
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return chunk == null ? 0 : chunk.length - pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            producer.interrupt();
+            in.close();
+        }
+
+        /** Takes the next chunk from the queue if the current one is used up. */
+        private boolean ensureChunk() throws IOException {
+            while (!finished && (chunk == null || pos == chunk.length)) {
+                try {
+                    chunk = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while decompressing");
+                }
+                pos = 0;
+                if (chunk == END) {
+                    finished = true;
+                    chunk = null;
+                }
+            }
+            if (finished && failure != null) {
+                throw failure;
+            }
+            return !finished;
+        }
+    }
+}
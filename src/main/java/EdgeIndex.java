@@ -0,0 +1,275 @@
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.IntPredicate;
+
+/**
+ * A spatial index over the edges of a graph, for snapping a point onto the closest point of
+ * any road instead of onto the closest vertex. Every edge is bucketed into the cells of a
+ * uniform grid that its bounding box overlaps, and a query searches rings of cells outward
+ * from the point until no edge in a further ring could be closer.
+ *
+ * Distances are measured on a plane around the query point, with longitudes scaled by the
+ * cosine of its latitude; over the length of a road that agrees with the great circle. The
+ * index is held in buffers, indexed by edge id like EdgeTable, so the same code serves a
+ * GraphDB's arrays and a MappedGraph's file.
+ *
+ * @author Beiqian Liu
+ */
+public class EdgeIndex {
+    /** Miles per degree of latitude, on the sphere GraphDB.distance measures on. */
+    static final double MILES_PER_DEGREE = Math.toRadians(3963);
+
+    /** The grid: the longitude and latitude of its corner, its cell size, columns and rows. */
+    private final double minLon;
+    private final double minLat;
+    private final double cell;
+    private final int columns;
+    private final int rows;
+    /** The edges in cell c are cellEdges[cellStart[c]] to cellEdges[cellStart[c + 1]]. */
+    private final IntBuffer cellStart;
+    private final IntBuffer cellEdges;
+    /** The endpoints of every edge as lon, lat, lon, lat; NaN for edges not indexed. */
+    private final DoubleBuffer segments;
+
+    /**
+     * Reads an index written by write.
+     * @param grid The five numbers describing the grid.
+     */
+    EdgeIndex(DoubleBuffer grid, IntBuffer cellStart, IntBuffer cellEdges,
+              DoubleBuffer segments) {
+        minLon = grid.get(0);
+        minLat = grid.get(1);
+        cell = grid.get(2);
+        columns = (int) grid.get(3);
+        rows = (int) grid.get(4);
+        this.cellStart = cellStart;
+        this.cellEdges = cellEdges;
+        this.segments = segments;
+    }
+
+    /**
+     * Builds an index of edges. The grid covers the edges with about one cell per edge.
+     * @param segments The endpoints of edge e at 4 * e to 4 * e + 3, as lon, lat, lon, lat,
+     *                 in the direction the edge is stored in; NaN for an edge to leave out.
+     */
+    static EdgeIndex build(double[] segments) {
+        int edgeCount = segments.length / 4;
+        double minLon = Double.POSITIVE_INFINITY;
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        int indexed = 0;
+        for (int e = 0; e < edgeCount; e++) {
+            if (Double.isNaN(segments[4 * e])) {
+                continue;
+            }
+            indexed += 1;
+            for (int i = 4 * e; i < 4 * e + 4; i += 2) {
+                minLon = Math.min(minLon, segments[i]);
+                maxLon = Math.max(maxLon, segments[i]);
+                minLat = Math.min(minLat, segments[i + 1]);
+                maxLat = Math.max(maxLat, segments[i + 1]);
+            }
+        }
+        if (indexed == 0) {
+            minLon = 0;
+            minLat = 0;
+            maxLon = 0;
+            maxLat = 0;
+        }
+        double width = maxLon - minLon;
+        double height = maxLat - minLat;
+        double cell = Math.max(Math.sqrt(width * height / Math.max(1, indexed)),
+            Math.max(width, height) / Math.max(1, indexed));
+        if (!(cell > 0)) {
+            cell = 1e-3;
+        }
+        int columns = (int) (width / cell) + 1;
+        int rows = (int) (height / cell) + 1;
+
+        /* Count the edges of every cell, then place them, so the cells end up in CSR form. */
+        int[] cellStart = new int[columns * rows + 1];
+        for (int pass = 0; pass < 2; pass++) {
+            int[] cellEdges = pass == 0 ? null : new int[cellStart[columns * rows]];
+            int[] next = pass == 0 ? null : cellStart.clone();
+            for (int e = 0; e < edgeCount; e++) {
+                if (Double.isNaN(segments[4 * e])) {
+                    continue;
+                }
+                int x0 = column(Math.min(segments[4 * e], segments[4 * e + 2]), minLon, cell,
+                    columns);
+                int x1 = column(Math.max(segments[4 * e], segments[4 * e + 2]), minLon, cell,
+                    columns);
+                int y0 = column(Math.min(segments[4 * e + 1], segments[4 * e + 3]), minLat,
+                    cell, rows);
+                int y1 = column(Math.max(segments[4 * e + 1], segments[4 * e + 3]), minLat,
+                    cell, rows);
+                for (int y = y0; y <= y1; y++) {
+                    for (int x = x0; x <= x1; x++) {
+                        if (pass == 0) {
+                            cellStart[y * columns + x + 1] += 1;
+                        } else {
+                            cellEdges[next[y * columns + x]++] = e;
+                        }
+                    }
+                }
+            }
+            if (pass == 0) {
+                for (int c = 0; c < columns * rows; c++) {
+                    cellStart[c + 1] += cellStart[c];
+                }
+            } else {
+                double[] grid = {minLon, minLat, cell, columns, rows};
+                return new EdgeIndex(DoubleBuffer.wrap(grid), IntBuffer.wrap(cellStart),
+                    IntBuffer.wrap(cellEdges), DoubleBuffer.wrap(segments));
+            }
+        }
+        throw new AssertionError();
+    }
+
+    /** Returns the column (or row) of the grid a coordinate falls in, clamped to the grid. */
+    private static int column(double coordinate, double min, double cell, int count) {
+        int c = (int) Math.floor((coordinate - min) / cell);
+        return Math.max(0, Math.min(count - 1, c));
+    }
+
+    /**
+     * Returns the edge passing closest to a point among those accept takes, or -1 if there is
+     * none.
+     * @param result Receives how far along the edge the closest point is, from 0 at the
+     *               vertex it leaves to 1 at the one it enters, and the squared distance to
+     *               it as project measures it.
+     */
+    int nearest(double lon, double lat, IntPredicate accept, double[] result) {
+        double cos = Math.cos(Math.toRadians(lat));
+        int cx = column(lon, minLon, cell, columns);
+        int cy = column(lat, minLat, cell, rows);
+        int best = -1;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        double bestFraction = 0;
+        double[] fraction = new double[1];
+        for (int r = 0; r <= Math.max(columns, rows); r++) {
+            /* Every point in ring r is at least r - 1 whole cells away along one axis. */
+            double bound = (r - 1) * cell * cos;
+            if (bound > 0 && bound * bound >= bestDistance) {
+                break;
+            }
+            for (int y = Math.max(0, cy - r); y <= Math.min(rows - 1, cy + r); y++) {
+                boolean edgeRow = y == cy - r || y == cy + r;
+                int step = edgeRow || r == 0 ? 1 : 2 * r;
+                for (int x = cx - r; x <= cx + r; x += step) {
+                    if (x < 0 || x >= columns) {
+                        continue;
+                    }
+                    int c = y * columns + x;
+                    for (int k = cellStart.get(c); k < cellStart.get(c + 1); k++) {
+                        int e = cellEdges.get(k);
+                        if (!accept.test(e)) {
+                            continue;
+                        }
+                        double d = project(lon, lat, cos, segments.get(4 * e),
+                            segments.get(4 * e + 1), segments.get(4 * e + 2),
+                            segments.get(4 * e + 3), fraction);
+                        if (d < bestDistance) {
+                            best = e;
+                            bestDistance = d;
+                            bestFraction = fraction[0];
+                        }
+                    }
+                }
+            }
+        }
+        result[0] = bestFraction;
+        result[1] = bestDistance;
+        return best;
+    }
+
+    /**
+     * Calls the visitor once with every edge accept takes that passes within a radius of a
+     * point, in no particular order.
+     * @param radius The radius in degrees of latitude, as project measures distances.
+     */
+    void within(double lon, double lat, double radius, IntPredicate accept,
+                EdgeVisitor visitor) {
+        double cos = Math.cos(Math.toRadians(lat));
+        int x0 = column(lon - radius / cos, minLon, cell, columns);
+        int x1 = column(lon + radius / cos, minLon, cell, columns);
+        int y0 = column(lat - radius, minLat, cell, rows);
+        int y1 = column(lat + radius, minLat, cell, rows);
+        Set<Integer> seen = new HashSet<>();
+        double[] fraction = new double[1];
+        for (int y = y0; y <= y1; y++) {
+            for (int x = x0; x <= x1; x++) {
+                int c = y * columns + x;
+                for (int k = cellStart.get(c); k < cellStart.get(c + 1); k++) {
+                    int e = cellEdges.get(k);
+                    if (!seen.add(e) || !accept.test(e)) {
+                        continue;
+                    }
+                    double d = project(lon, lat, cos, segments.get(4 * e),
+                        segments.get(4 * e + 1), segments.get(4 * e + 2),
+                        segments.get(4 * e + 3), fraction);
+                    if (d <= radius * radius) {
+                        visitor.visit(e, fraction[0], d);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Receives the edges near a point, see within. */
+    interface EdgeVisitor {
+        /**
+         * @param fraction How far along the edge its closest point to the query is, as
+         *                 nearest gives it.
+         * @param distance The squared distance to that point, as project measures it.
+         */
+        void visit(int edge, double fraction, double distance);
+    }
+
+    /**
+     * Returns the squared distance, in degrees of latitude, from a point to the closest point
+     * of a segment, on the plane around the point.
+     * @param cos The cosine of the point's latitude.
+     * @param fraction Receives how far along the segment the closest point is, from 0 to 1.
+     */
+    static double project(double lon, double lat, double cos, double lon1, double lat1,
+                          double lon2, double lat2, double[] fraction) {
+        double ax = (lon1 - lon) * cos;
+        double ay = lat1 - lat;
+        double dx = (lon2 - lon1) * cos;
+        double dy = lat2 - lat1;
+        double length2 = dx * dx + dy * dy;
+        double f = length2 == 0 ? 0 : Math.max(0, Math.min(1, -(ax * dx + ay * dy) / length2));
+        double px = ax + f * dx;
+        double py = ay + f * dy;
+        fraction[0] = f;
+        return px * px + py * py;
+    }
+
+    /** Returns the number of cells of the grid. */
+    int cellCount() {
+        return columns * rows;
+    }
+
+    /** Returns the number of edges in all cells together. */
+    int entryCount() {
+        return cellEdges.limit();
+    }
+
+    /** Returns the number of edge ids the index has segments for. */
+    int edgeCount() {
+        return segments.limit() / 4;
+    }
+
+    /** Writes the index into buffers of the lengths the counts above give, see MappedGraph. */
+    void write(DoubleBuffer grid, IntBuffer cellStartOut, IntBuffer cellEdgesOut,
+               DoubleBuffer segmentsOut) {
+        grid.put(minLon).put(minLat).put(cell).put(columns).put(rows);
+        cellStartOut.put(cellStart.duplicate());
+        cellEdgesOut.put(cellEdges.duplicate());
+        segmentsOut.put(segments.duplicate());
+    }
+}
@@ -0,0 +1,131 @@
+import java.util.Arrays;
+
+/**
+ * The attributes of every edge in a GraphDB, stored as parallel primitive arrays indexed by
+ * edge id rather than as an object per edge. An edge is one segment of a way between two
+ * consecutive nodes; it is stored once, in the direction the way is drawn, and both of its
+ * nodes refer to it.
+ *
+ * Edges are only ever appended. An edge that a change removes from the graph keeps its id and
+ * attributes; it is just no longer linked from its nodes. A change appends to a table made by
+ * extend, so the table readers of the graph use is never written.
+ *
+ * @author Beiqian Liu
+ */
+public class EdgeTable {
+    /** The edge may only be travelled in the direction it is stored in. */
+    static final int ONEWAY = 1;
+    /** The edge is part of a roundabout. */
+    static final int ROUNDABOUT = 2;
+
+    private int size;
+    /** The ids of the nodes the edge leaves and enters. */
+    private long[] froms = new long[16];
+    private long[] tos = new long[16];
+    /** The index of the edge's way in the GraphDB. */
+    private int[] ways = new int[16];
+    /** The ordinal of the edge's RoadClass. */
+    private byte[] classes = new byte[16];
+    /** The speed in miles per hour. */
+    private float[] speeds = new float[16];
+    private byte[] flags = new byte[16];
+    /**
+     * The cost per mile of the edge under every profile, forward then backward: the pace of
+     * travelling edge e under profile p in direction d (0 forward) is paces[2 * p + d][e].
+     */
+    private float[][] paces = new float[2 * Profile.COUNT][16];
+
+    /**
+     * Returns a table with the same edges that further edges can be added to without changing
+     * this one. The two share their arrays, but this table never reads past its size, and the
+     * new one writes past it or into copies once it outgrows them. A table may be extended
+     * again after a table extended from it is dropped unpublished, since nothing reads what
+     * that one wrote.
+     */
+    EdgeTable extend() {
+        EdgeTable table = new EdgeTable();
+        table.size = size;
+        table.froms = froms;
+        table.tos = tos;
+        table.ways = ways;
+        table.classes = classes;
+        table.speeds = speeds;
+        table.flags = flags;
+        table.paces = paces.clone();
+        return table;
+    }
+
+    /**
+     * Adds an edge and returns its id. Ids are assigned consecutively from 0.
+     * @param from The node the edge leaves.
+     * @param to The node the edge enters.
+     * @param way The index of the way the edge is part of.
+     * @param roadClass The class of the way.
+     * @param speed The speed in miles per hour.
+     * @param flags Any of ONEWAY and ROUNDABOUT.
+     */
+    int add(long from, long to, int way, RoadClass roadClass, float speed, int flags) {
+        if (size == ways.length) {
+            int capacity = 2 * size;
+            froms = Arrays.copyOf(froms, capacity);
+            tos = Arrays.copyOf(tos, capacity);
+            ways = Arrays.copyOf(ways, capacity);
+            classes = Arrays.copyOf(classes, capacity);
+            speeds = Arrays.copyOf(speeds, capacity);
+            this.flags = Arrays.copyOf(this.flags, capacity);
+            for (int i = 0; i < paces.length; i++) {
+                paces[i] = Arrays.copyOf(paces[i], capacity);
+            }
+        }
+        froms[size] = from;
+        tos[size] = to;
+        ways[size] = way;
+        classes[size] = (byte) roadClass.ordinal();
+        speeds[size] = speed;
+        this.flags[size] = (byte) flags;
+        for (Profile p : Profile.values()) {
+            paces[2 * p.ordinal()][size] = p.pace(roadClass, speed, flags, true);
+            paces[2 * p.ordinal() + 1][size] = p.pace(roadClass, speed, flags, false);
+        }
+        return size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    long from(int edge) {
+        return froms[edge];
+    }
+
+    long to(int edge) {
+        return tos[edge];
+    }
+
+    int way(int edge) {
+        return ways[edge];
+    }
+
+    RoadClass roadClass(int edge) {
+        return RoadClass.of(classes[edge]);
+    }
+
+    float speed(int edge) {
+        return speeds[edge];
+    }
+
+    boolean hasFlag(int edge, int flag) {
+        return (flags[edge] & flag) != 0;
+    }
+
+    /**
+     * Returns the cost per mile of travelling an edge under a profile, or infinity if the
+     * profile may not travel it that way.
+     * @param edgeEntry The edge as a node stores it: its id to travel it forward, or the
+     *                  complement of its id to travel it backward.
+     */
+    float pace(Profile profile, int edgeEntry) {
+        return edgeEntry >= 0 ? paces[2 * profile.ordinal()][edgeEntry]
+            : paces[2 * profile.ordinal() + 1][~edgeEntry];
+    }
+}
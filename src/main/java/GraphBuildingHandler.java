@@ -24,27 +24,104 @@ import java.util.*;
  *  @author Beiqian Liu, Alan Yao, Maurice Lee
  */
 public class GraphBuildingHandler extends DefaultHandler {
+    /** Tag keys the graph uses; all other tags are ignored. */
+    static final String[] USED_TAG_KEYS = {"highway", "maxspeed", "name", "oneway", "junction",
+        "type", "restriction"};
+    private static final double KPH_PER_MPH = 1.609344;
+
+    /** The OSM elements the handler cares about, so dispatch never compares strings twice. */
+    enum Element {
+        NODE, WAY, ND, TAG, RELATION, MEMBER, OTHER;
+
+        /** Returns the element for an XML element name. */
+        static Element of(String qName) {
+            switch (qName) {
+                case "node":
+                    return NODE;
+                case "way":
+                    return WAY;
+                case "nd":
+                    return ND;
+                case "tag":
+                    return TAG;
+                case "relation":
+                    return RELATION;
+                case "member":
+                    return MEMBER;
+                default:
+                    return OTHER;
+            }
+        }
+    }
+
+    /**
+     * Which of the two passes over the file a handler makes. SCAN only records the ids of the
+     * allowed highway ways and of the nodes on them, then BUILD materializes just those nodes
+     * and ways, plus named nodes for the locations, so far less is kept at any time than if
+     * every node were read into the graph.
+     */
+    enum Pass {
+        SCAN, BUILD
+    }
+
+    private Element activeState = Element.OTHER;
+    private final Pass pass;
+    private final LongHashSet routableNodes;
+    private final LongHashSet routableWays;
+    /** Where a BUILD pass sends the graph it reads. */
+    private final BuildPipeline pipeline;
+
     /**
-     * Only allow for non-service roads; this prevents going on pedestrian streets as much as
-     * possible. Note that in Berkeley, many of the campus roads are tagged as motor vehicle
-     * roads, but in practice we walk all over them with such impunity that we forget cars can
-     * actually drive on them.
+     * The node being read in a BUILD pass, and its location once a name tag shows it is one.
+     * The graph stage makes its own node for a vertex, so a named vertex is two nodes.
      */
-    private static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
-            ("motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
-                    "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
-                    "secondary_link", "tertiary_link"));
-    private String activeState = "";
-    private final GraphDB g;
-    private GraphDB.Node currNode;
-    private GraphDB.Way currWay;
+    private long pendingId;
+    private double pendingLon;
+    private double pendingLat;
+    private GraphDB.Node location;
 
     /**
-     * Create a new GraphBuildingHandler.
-     * @param g The graph to populate with the XML data.
+     * The way being read. Its edges can only be added once all of its nds and tags are known,
+     * since tags may come before, between or after the nds.
      */
-    public GraphBuildingHandler(GraphDB g) {
-        this.g = g;
+    private long wayId;
+    private long[] refs = new long[64];
+    private int refCount;
+    private RoadClass roadClass;
+    private String wayName;
+    private String maxspeed;
+    private String oneway;
+    private String junction;
+
+    /**
+     * The relation being read, which matters if it is a turn restriction: from one way, via
+     * one node, to one way. Restrictions via a way, or with several from or to ways, are
+     * ignored.
+     */
+    private String relationType;
+    private String restriction;
+    private long fromWay;
+    private long viaNode;
+    private long toWay;
+    private int fromCount;
+    private int viaCount;
+    private int toCount;
+
+    /**
+     * Create a handler for one pass of a two pass build. The SCAN handler fills the sets, which
+     * the BUILD handler then reads.
+     * @param pass The pass this handler performs.
+     * @param routableNodes The ids of the nodes on allowed highway ways.
+     * @param routableWays The ids of the allowed highway ways.
+     * @param pipeline The pipeline to build the graph on, or null for a SCAN pass. The caller
+     *                 must finish it once the file has been parsed.
+     */
+    GraphBuildingHandler(Pass pass, LongHashSet routableNodes,
+                         LongHashSet routableWays, BuildPipeline pipeline) {
+        this.pass = pass;
+        this.routableNodes = routableNodes;
+        this.routableWays = routableWays;
+        this.pipeline = pipeline;
     }
 
     /**
@@ -64,73 +141,178 @@ public class GraphBuildingHandler extends DefaultHandler {
     @Override
     public void startElement(String uri, String localName, String qName, Attributes attributes)
             throws SAXException {
-        if (qName.equals("node")) {
-            /* We encountered a new <node...> tag. */
-            activeState = "node";
-//            System.out.println("Node id: " + attributes.getValue("id"));
-//            System.out.println("Node lon: " + attributes.getValue("lon"));
-//            System.out.println("Node lat: " + attributes.getValue("lat"));
+        switch (Element.of(qName)) {
+            case NODE:
+                node(Long.parseLong(attributes.getValue("id")),
+                        Double.parseDouble(attributes.getValue("lon")),
+                        Double.parseDouble(attributes.getValue("lat")));
+                break;
+            case WAY:
+                way(Long.parseLong(attributes.getValue("id")));
+                break;
+            case ND:
+                nd(Long.parseLong(attributes.getValue("ref")));
+                break;
+            case TAG:
+                tag(attributes.getValue("k"), attributes.getValue("v"));
+                break;
+            case RELATION:
+                relation(Long.parseLong(attributes.getValue("id")));
+                break;
+            case MEMBER:
+                member(attributes.getValue("type"), Long.parseLong(attributes.getValue("ref")),
+                        attributes.getValue("role"));
+                break;
+            default:
+                break;
+        }
+    }
 
+    /**
+     * We encountered a new <node...> tag.
+     * @param id The id of the node.
+     * @param lon The longitude of the node.
+     * @param lat The latitude of the node.
+     */
+    void node(long id, double lon, double lat) {
+        activeState = Element.NODE;
+        if (pass == Pass.SCAN) {
+            return;
+        }
+        /* Most nodes are never routed over; only create a location if it turns out to be
+        named. */
+        location = null;
+        pendingId = id;
+        pendingLon = lon;
+        pendingLat = lat;
+        if (routableNodes.contains(id)) {
             /* Use the above information to save a "node" to a graph. */
-            long id = Long.parseLong(attributes.getValue("id"));
-            double lon = Double.parseDouble(attributes.getValue("lon"));
-            double lat = Double.parseDouble(attributes.getValue("lat"));
-            GraphDB.Node node = new GraphDB.Node(id, lon, lat);
-            g.addNode(node);
-            currNode = node;
-
-        } else if (qName.equals("way")) {
-            /* We encountered a new <way...> tag. */
-            activeState = "way";
-            long id = Long.parseLong(attributes.getValue("id"));
-            GraphDB.Way way = new GraphDB.Way(id);
-            g.addWay(way);
-            currWay = way;
-//            System.out.println("Beginning a way...");
-        } else if (activeState.equals("way") && qName.equals("nd")) {
-            /* While looking at a way, we found a <nd...> tag. */
-            //System.out.println("Id of a node in this way: " + attributes.getValue("ref"));
-
-            /* Use the above id to make connections between the nodes in this way */
-            /* Not all ways are valid. So, directly connecting the nodes here would be
-            cumbersome since you might have to remove the connections if you later see a tag that
-            makes this way invalid. Instead, think of keeping a list of possible connections and
-            remember whether this way is valid or not. */
-            long id = Long.parseLong(attributes.getValue("ref"));
-            Map<Long, GraphDB.Node> nodes = g.getNodes();
-            nodes.get(id).ways.add(currWay.id);
-            currWay.nds.add(id);
-
-        } else if (activeState.equals("way") && qName.equals("tag")) {
-            /* While looking at a way, we found a <tag...> tag. */
-            String k = attributes.getValue("k");
-            String v = attributes.getValue("v");
-            if (k.equals("maxspeed")) {
-//                System.out.println("Max Speed: " + v);
-
-            } else if (k.equals("highway")) {
-//                System.out.println("Highway type: " + v);
-                /* Figure out whether this way and its connections are valid. */
-                if (ALLOWED_HIGHWAY_TYPES.contains(v)) {
-                    for (int i = 0; i < currWay.nds.size() - 1; i++) {
-                        g.addEdge(currWay.nds.get(i), currWay.nds.get(i + 1));
-                    }
-                }
-            } else if (k.equals("name")) {
-//                System.out.println("Way Name: " + v);
-                currWay.name = v;
+            pipeline.node(id, lon, lat);
+        }
+    }
+
+    /**
+     * We encountered a new <way...> tag.
+     * @param id The id of the way.
+     */
+    void way(long id) {
+        if (pass == Pass.BUILD && !routableWays.contains(id)) {
+            activeState = Element.OTHER;
+            return;
+        }
+        activeState = Element.WAY;
+        wayId = id;
+        refCount = 0;
+        roadClass = null;
+        wayName = null;
+        maxspeed = null;
+        oneway = null;
+        junction = null;
+    }
+
+    /**
+     * We found a <nd...> tag. Only those inside a way mean anything.
+     * @param ref The id of the node referenced.
+     */
+    void nd(long ref) {
+        if (activeState != Element.WAY) {
+            return;
+        }
+        if (refCount == refs.length) {
+            refs = Arrays.copyOf(refs, 2 * refCount);
+        }
+        refs[refCount++] = ref;
+    }
+
+    /**
+     * We encountered a new <relation...> tag. Only turn restrictions are used, and only once
+     * the ways they refer to are in the graph.
+     * @param id The id of the relation.
+     */
+    void relation(long id) {
+        if (pass == Pass.SCAN) {
+            activeState = Element.OTHER;
+            return;
+        }
+        activeState = Element.RELATION;
+        relationType = null;
+        restriction = null;
+        fromCount = 0;
+        viaCount = 0;
+        toCount = 0;
+    }
+
+    /**
+     * We found a <member...> tag. Only those inside a relation mean anything.
+     * @param type The type of the member: node, way or relation.
+     * @param ref The id of the member.
+     * @param role The role of the member in the relation.
+     */
+    void member(String type, long ref, String role) {
+        if (activeState != Element.RELATION || role == null) {
+            return;
+        }
+        boolean isWay = "way".equals(type);
+        switch (role) {
+            case "from":
+                fromWay = ref;
+                fromCount += isWay ? 1 : 2;
+                break;
+            case "via":
+                viaNode = ref;
+                viaCount += "node".equals(type) ? 1 : 2;
+                break;
+            case "to":
+                toWay = ref;
+                toCount += isWay ? 1 : 2;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * We found a <tag...> tag, inside either a node, a way or a relation.
+     * @param k The key of the tag.
+     * @param v The value of the tag.
+     */
+    void tag(String k, String v) {
+        if (activeState == Element.WAY) {
+            /* While looking at a way, we found a <tag...> tag. Just remember it; the way is
+            only added once it ends. */
+            switch (k) {
+                case "highway":
+                    roadClass = RoadClass.of(v);
+                    break;
+                case "name":
+                    wayName = v;
+                    break;
+                case "maxspeed":
+                    maxspeed = v;
+                    break;
+                case "oneway":
+                    oneway = v;
+                    break;
+                case "junction":
+                    junction = v;
+                    break;
+                default:
+                    break;
+            }
+        } else if (activeState == Element.RELATION) {
+            if (k.equals("type")) {
+                relationType = v;
+            } else if (k.equals("restriction")) {
+                restriction = v;
             }
-//            System.out.println("Tag with k=" + k + ", v=" + v + ".");
-        } else if (activeState.equals("node") && qName.equals("tag") && attributes.getValue("k")
-                .equals("name")) {
+        } else if (activeState == Element.NODE && pass != Pass.SCAN && k.equals("name")) {
             /* While looking at a node, we found a <tag...> with k="name". */
             /* Create a location. */
-
-//            System.out.println("Node's name: " + attributes.getValue("v"));
-            String loc = attributes.getValue("v");
-            currNode.location = loc;
-            g.addName(loc);
-            g.addLocation(currNode);
+            if (location == null) {
+                location = new GraphDB.Node(pendingId, pendingLon, pendingLat);
+            }
+            location.location = v;
+            pipeline.location(location);
         }
     }
 
@@ -147,12 +329,110 @@ public class GraphBuildingHandler extends DefaultHandler {
      */
     @Override
     public void endElement(String uri, String localName, String qName) throws SAXException {
-        if (qName.equals("way")) {
-            /* We are done looking at a way. (We finished looking at the nodes, speeds, etc...)*/
-            /* Hint1: If you have stored the possible connections for this way, here's your
-            chance to actually connect the nodes together if the way is valid. */
-//            System.out.println("Finishing a way...");
+        end(Element.of(qName));
+    }
+
+    /**
+     * We are done looking at an element. A way that is an allowed highway is added to the graph
+     * here, with an edge between each pair of consecutive nodes.
+     * @param e The element that ended.
+     */
+    void end(Element e) {
+        if (e == Element.WAY && activeState == Element.WAY && roadClass != null) {
+            if (pass == Pass.SCAN) {
+                routableWays.add(wayId);
+                for (int i = 0; i < refCount; i++) {
+                    routableNodes.add(refs[i]);
+                }
+            } else {
+                addWay();
+            }
+        }
+        if (e == Element.RELATION && activeState == Element.RELATION) {
+            addTurnRestriction();
+        }
+        if (e == Element.NODE || e == Element.WAY || e == Element.RELATION) {
+            activeState = Element.OTHER;
+        }
+    }
+
+    /** Adds the relation that just ended to the graph if it is a usable turn restriction. */
+    private void addTurnRestriction() {
+        if (!"restriction".equals(relationType) || restriction == null || fromCount != 1
+                || viaCount != 1 || toCount != 1) {
+            return;
+        }
+        boolean only = restriction.startsWith("only_");
+        if (!only && !restriction.startsWith("no_")) {
+            return;
+        }
+        pipeline.turnRestriction(fromWay, viaNode, toWay, only);
+    }
+
+    /** Adds the way that just ended and its edges, in the direction traffic may flow. */
+    private void addWay() {
+        pipeline.way(wayId, wayName, refs, refCount, isReversed(oneway), roadClass,
+                speed(roadClass, maxspeed), flags(roadClass, oneway, junction));
+    }
+
+    /** Returns the speed of a way in miles per hour, from its maxspeed tag or its class. */
+    static float speed(RoadClass roadClass, String maxspeed) {
+        float parsed = parseSpeed(maxspeed);
+        return Float.isNaN(parsed) ? roadClass.speed : parsed;
+    }
+
+    /** Returns the EdgeTable flags of a way with the given class, oneway and junction tags. */
+    static int flags(RoadClass roadClass, String oneway, String junction) {
+        boolean roundabout = "roundabout".equals(junction);
+        int flags = roundabout ? EdgeTable.ROUNDABOUT : 0;
+        if ("yes".equals(oneway) || "true".equals(oneway) || "1".equals(oneway)
+                || isReversed(oneway)
+                || oneway == null && (roundabout || roadClass == RoadClass.MOTORWAY)) {
+            flags |= EdgeTable.ONEWAY;
+        }
+        return flags;
+    }
+
+    /** Returns whether a oneway tag says traffic flows against the order of the way's nds. */
+    static boolean isReversed(String oneway) {
+        return "-1".equals(oneway) || "reverse".equals(oneway);
+    }
+
+    /**
+     * Parses an OSM maxspeed value such as "25 mph" or "50" (km/h) into miles per hour.
+     * @return The speed, or NaN if the value is missing or symbolic, like "walk".
+     */
+    static float parseSpeed(String maxspeed) {
+        if (maxspeed == null) {
+            return Float.NaN;
+        }
+        String v = maxspeed.trim();
+        int semicolon = v.indexOf(';');
+        if (semicolon >= 0) {
+            v = v.substring(0, semicolon).trim();
+        }
+        int digits = 0;
+        while (digits < v.length()
+                && (Character.isDigit(v.charAt(digits)) || v.charAt(digits) == '.')) {
+            digits++;
+        }
+        if (digits == 0) {
+            return Float.NaN;
+        }
+        float speed;
+        try {
+            speed = Float.parseFloat(v.substring(0, digits));
+        } catch (NumberFormatException e) {
+            return Float.NaN;
+        }
+        String unit = v.substring(digits).trim();
+        if (unit.equals("mph")) {
+            return speed;
+        } else if (unit.isEmpty() || unit.equals("km/h") || unit.equals("kmh")
+                || unit.equals("kph")) {
+            return (float) (speed / KPH_PER_MPH);
         }
+        return Float.NaN;
     }
 
 }
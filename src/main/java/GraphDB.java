@@ -1,12 +1,18 @@
 import org.xml.sax.SAXException;
 
-import java.io.File;
+import java.io.BufferedInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.text.Normalizer;
+import java.util.regex.Pattern;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Predicate;
 
 /**
  * Graph for storing all of the intersection (vertex) and road (edge) information.
@@ -17,14 +23,91 @@ import java.util.*;
  *
  * @author Beiqian Liu, Alan Yao, Josh Hug
  */
-public class GraphDB {
-    /** Your instance variables for storing the graph. You should consider
-     * creating helper classes, e.g. Node, Edge, etc. */
-    private Map<Long, Node> nodes = new HashMap<>();
-    private Map<Long, Way> allWays = new HashMap<>();
-    private KdTree kdTree = new KdTree();
-    private Tries tries = new Tries();
-    private Map<String, Object> locations = new HashMap<>();
+public class GraphDB implements RoadGraph {
+    /**
+     * Your instance variables for storing the graph: the nodes the graph was built with.
+     * Changes applied later are kept in the overlay of version.
+     */
+    private final Map<Long, Node> nodes;
+    private final KdTree kdTree;
+    /** A spatial index over the edges the graph was built with, for snap. */
+    private EdgeIndex edgeIndex;
+    /** Names shared by more locations than this get their own spatial index. */
+    private static final int LOCATION_TREE_THRESHOLD = 16;
+    /** How long each stage of the build took, see getBuildNanos. */
+    private final Map<String, Long> buildNanos;
+    /** The turns the graph forbids, by edge id. */
+    private final TurnRestrictions turnRestrictions;
+    /**
+     * The restriction relations read while building, as {from way, via node, to way, only},
+     * until the graph is cleaned and they are resolved into turnRestrictions.
+     */
+    private List<long[]> restrictionRelations = new ArrayList<>();
+    /**
+     * Everything applying changes replaces. Each method reads it once, so that it sees one
+     * version of the graph; while the constructor runs, it holds the structures being built.
+     */
+    private volatile Version version;
+    /** The graph this is a snapshot of, or null if this is not a snapshot. */
+    private final GraphDB snapshotOf;
+    /**
+     * The live ways by OSM id and the named nodes by id, built on the first change. Only
+     * applyChanges uses them, and updates them once a change set is published.
+     */
+    private Map<Long, Way> waysById;
+    private Map<Long, Node> locationsById;
+    /** Everything cleanString throws away, including the accents split off by decomposition. */
+    private static final Pattern NON_LETTERS = Pattern.compile("[^a-zA-Z ]");
+    /** Runs of spaces, including those left where punctuation used to be. */
+    private static final Pattern SPACES = Pattern.compile("  +");
+
+    /**
+     * One version of the parts of a graph that changes replace, see applyChanges. Nothing a
+     * version holds is modified once it is published, so a reader that reads version once sees
+     * the overlay, the edges it links and the indexes over it as they were published together.
+     */
+    private static final class Version {
+        /** The changes applied since the graph was built, over the nodes it was built with. */
+        final GraphOverlay overlay;
+        /** The routable ways, by index. Edges refer to their way by this index. */
+        final List<Way> ways;
+        final EdgeTable edges;
+        final Map<String, List<Node>> locations;
+        /**
+         * Spatial indexes over the locations of common names, keyed like locations. These are
+         * kept apart from kdTree, which only holds the routable nodes that survive clean().
+         */
+        final Map<String, KdTree> locationTrees;
+        final PrefixIndex prefixIndex;
+        final PrefixCache prefixCache;
+        /** Shortest-path trees of hot route origins, for this version of the graph only. */
+        final PathTreeCache pathTreeCache;
+        /** A lower bound on distances within the graph, for the A* heuristic. */
+        final Equirectangular lowerBound;
+
+        Version(GraphOverlay overlay, List<Way> ways, EdgeTable edges,
+                Map<String, List<Node>> locations, Map<String, KdTree> locationTrees,
+                PrefixIndex prefixIndex, PrefixCache prefixCache, PathTreeCache pathTreeCache,
+                Equirectangular lowerBound) {
+            this.overlay = overlay;
+            this.ways = ways;
+            this.edges = edges;
+            this.locations = locations;
+            this.locationTrees = locationTrees;
+            this.prefixIndex = prefixIndex;
+            this.prefixCache = prefixCache;
+            this.pathTreeCache = pathTreeCache;
+            this.lowerBound = lowerBound;
+        }
+    }
+
+    /** The ways an OSM XML file can be read into a GraphDB. */
+    public enum Parser {
+        /** The JDK's SAX parser driving GraphBuildingHandler. */
+        SAX,
+        /** OsmXmlScanner, which parses the bytes itself and allocates far fewer Strings. */
+        SCANNER
+    }
 
     /**
      * Example constructor shows how to create and start an XML parser.
@@ -32,54 +115,588 @@ public class GraphDB {
      * @param dbPath Path to the XML file to be parsed.
      */
     public GraphDB(String dbPath) {
+        this(dbPath, Parser.SAX);
+    }
+
+    /**
+     * Builds the graph from an OSM XML or OSM PBF file. PBF files are recognized by their first
+     * bytes and always read with OsmPbfReader; XML files are read with the given parser. All
+     * readers feed the same GraphBuildingHandler, so they build the same graph. Either kind of
+     * file may be gzip or LZ4 compressed, see CompressedInput. The file is read twice: first to
+     * find the nodes on allowed highways, then to build just those and the named locations.
+     * @param dbPath Path to the XML or PBF file to be parsed.
+     * @param parser The parser to read an XML file with.
+     */
+    public GraphDB(String dbPath, Parser parser) {
+        this(dbPath, parser, null);
+    }
+
+    /**
+     * Builds the graph from a map file like the constructor does, but fails rather than
+     * returning the part of the graph read before the file turned out to be unreadable or
+     * malformed, for instance because it was truncated.
+     * @param dbPath Path to the XML or PBF file to be parsed.
+     * @param parser The parser to read an XML file with.
+     * @throws IOException If the file cannot be read, or a PBF file or the compression of
+     *                     any file is malformed.
+     * @throws SAXException If an XML file is malformed.
+     */
+    public static GraphDB load(String dbPath, Parser parser) throws IOException, SAXException {
+        List<Exception> failures = new ArrayList<>();
+        GraphDB g = new GraphDB(dbPath, parser, failures);
+        if (failures.isEmpty()) {
+            return g;
+        }
+        Exception e = failures.get(0);
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof SAXException) {
+            throw (SAXException) e;
+        }
+        throw new SAXException(e);
+    }
+
+    /**
+     * Builds the graph, see the public constructor.
+     * @param failures Where to add the exception reading the file failed with, or null to
+     *                 print it.
+     */
+    private GraphDB(String dbPath, Parser parser, List<Exception> failures) {
+        long start = System.nanoTime();
+        nodes = new HashMap<>();
+        kdTree = new KdTree();
+        version = new Version(GraphOverlay.EMPTY, new ArrayList<>(), new EdgeTable(),
+            new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), new PrefixIndex(), null, null,
+            null);
+        buildNanos = new LinkedHashMap<>();
+        snapshotOf = null;
+        BuildPipeline pipeline = new BuildPipeline(this);
         try {
-            File inputFile = new File(dbPath);
-            FileInputStream inputStream = new FileInputStream(inputFile);
-            // GZIPInputStream stream = new GZIPInputStream(inputStream);
-
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            SAXParser saxParser = factory.newSAXParser();
-            GraphBuildingHandler gbh = new GraphBuildingHandler(this);
-            saxParser.parse(inputStream, gbh);
+            /* Reading the file twice is cheaper than holding every node of it in memory. */
+            LongHashSet routableNodes = new LongHashSet();
+            LongHashSet routableWays = new LongHashSet();
+            try {
+                parse(dbPath, parser, new GraphBuildingHandler(
+                        GraphBuildingHandler.Pass.SCAN, routableNodes, routableWays, null));
+                start = recordStage("scan", start);
+                parse(dbPath, parser, new GraphBuildingHandler(
+                        GraphBuildingHandler.Pass.BUILD, routableNodes, routableWays, pipeline));
+            } catch (Throwable e) {
+                /* Stop the pipeline without letting its own failure hide the parse's. */
+                pipeline.abort(e);
+                throw e;
+            }
+            pipeline.finish();
         } catch (ParserConfigurationException | SAXException | IOException e) {
-            e.printStackTrace();
+            if (failures == null) {
+                e.printStackTrace();
+            } else {
+                failures.add(e);
+            }
         }
+        start = recordStage("build", start);
+        buildNanos.put("  linking", pipeline.graphNanos());
+        buildNanos.put("  naming", pipeline.namesNanos());
         clean();
-        for (long id : nodes.keySet()) {
-            kdTree.insert(nodes.get(id));
+        turnRestrictions = resolveTurnRestrictions();
+        double maxAbsLat = 0;
+        for (Node n : nodes.values()) {
+            maxAbsLat = Math.max(maxAbsLat, Math.abs(n.lat));
+        }
+        start = recordStage("clean", start);
+
+        /* The indexes only read the finished graph, so they can be built at the same time. */
+        Version built = version;
+        Map<String, Long> indexNanos = new ConcurrentHashMap<>();
+        ForkJoinTask.invokeAll(
+            timed(() -> kdTree.build(nodes.values()), "  kd tree", indexNanos),
+            timed(() -> edgeIndex = EdgeIndex.build(edgeSegments()), "  edge index",
+                indexNanos),
+            timed(built.prefixIndex::build, "  prefix index", indexNanos),
+            timed(this::buildLocationTrees, "  location trees", indexNanos));
+        recordStage("index", start);
+        for (String stage : new String[]{"  kd tree", "  edge index", "  prefix index",
+            "  location trees"}) {
+            buildNanos.put(stage, indexNanos.get(stage));
+        }
+        version = new Version(GraphOverlay.EMPTY, built.ways, built.edges,
+            Collections.unmodifiableMap(built.locations),
+            Collections.unmodifiableMap(built.locationTrees), built.prefixIndex,
+            new PrefixCache(built.prefixIndex), new PathTreeCache(),
+            Equirectangular.forLatitudes(maxAbsLat));
+    }
+
+    /** Creates a snapshot of g, see snapshot. */
+    private GraphDB(GraphDB g) {
+        nodes = g.nodes;
+        kdTree = g.kdTree;
+        edgeIndex = g.edgeIndex;
+        buildNanos = g.buildNanos;
+        turnRestrictions = g.turnRestrictions;
+        version = g.version;
+        snapshotOf = g;
+    }
+
+    /**
+     * Returns a read-only view of the graph as it is now, which changes applied later do not
+     * affect. Searches that read many nodes should run on a snapshot, so that they never see
+     * half of one version of the graph and half of another. Taking a snapshot is cheap; it
+     * shares everything with this graph.
+     */
+    public GraphDB snapshot() {
+        return snapshotOf == null ? new GraphDB(this) : this;
+    }
+
+    /**
+     * Applies an OSM change file to the graph while it is in use. Created and modified nodes
+     * and ways are added or replace the old ones, and deleted ones are removed, the same way
+     * building the graph from a file would have treated them.
+     *
+     * Nodes and ways the change touches are copied, never modified, and so are the lists of
+     * ways and locations. New edges go into a table extended from the current one, past the
+     * edges its readers see. The result is published as one new version of the graph at once,
+     * so readers see either none or all of a change without taking a lock, and a change file
+     * that fails part way leaves no trace. The spatial indexes and name indexes are updated for
+     * the changed nodes only. One limitation: a way can only use nodes that are in the graph
+     * or in the change, so a way changed to run over a node that was not on a road before
+     * loses that node. Change files with negative ids, those of objects not yet uploaded to
+     * OSM, are rejected, since searches give their own states negative ids.
+     * @param in The change file, which may be compressed like a map file.
+     * @return The number of nodes and ways created, modified or deleted.
+     * @throws IOException If the change file cannot be read or has negative ids.
+     */
+    public synchronized int applyChanges(InputStream in) throws IOException {
+        if (snapshotOf != null) {
+            throw new IllegalStateException("A snapshot of a graph cannot be changed");
+        }
+        List<OsmChangeReader.Change> changes;
+        try (InputStream input = CompressedInput.open(new BufferedInputStream(in))) {
+            changes = OsmChangeReader.read(input);
+        }
+        ChangeSet changeSet = new ChangeSet();
+        for (OsmChangeReader.Change change : changes) {
+            if (change.isWay) {
+                changeSet.way(change);
+            } else {
+                changeSet.node(change);
+            }
+        }
+        changeSet.publish();
+        return changes.size();
+    }
+
+    /**
+     * The work of one applyChanges call. It edits copies of the overlay's node map, of every
+     * node it changes and of the ways and locations, and adds edges to an extended table, so
+     * nothing a reader can see is modified until publish.
+     */
+    private class ChangeSet {
+        /** The version the changes are applied to. */
+        private final Version base = version;
+        private final Map<Long, Node> changed = new HashMap<>(base.overlay.nodes);
+        private final Set<Long> deleted = new HashSet<>(base.overlay.deleted);
+        /** The nodes copied or created by this change set, which are safe to modify. */
+        private final Set<Node> fresh = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final EdgeTable edges = base.edges.extend();
+        /** Copies of the ways and locations of base, made on the first change to each. */
+        private List<Way> ways;
+        private Map<String, List<Node>> locations;
+        /**
+         * The ways and named nodes by id that this change set adds, or removes with a null,
+         * ahead of waysById and locationsById.
+         */
+        private final Map<Long, Way> wayChanges = new HashMap<>();
+        private final Map<Long, Node> locationChanges = new HashMap<>();
+        /** How the number of locations of each name changed, for the prefix index. */
+        private final Map<String, Integer> nameChanges = new HashMap<>();
+        /** The location keys whose lists changed. */
+        private final Set<String> changedKeys = new HashSet<>();
+
+        /** Returns the current version of a node, or null if it is not in the graph. */
+        private Node current(long id) {
+            Node n = changed.get(id);
+            if (n != null || deleted.contains(id)) {
+                return n;
+            }
+            return nodes.get(id);
+        }
+
+        /** Returns a version of the node that may be modified, or null if there is none. */
+        private Node editable(long id) {
+            Node n = current(id);
+            if (n == null || fresh.contains(n)) {
+                return n;
+            }
+            Node copy = n.copy();
+            fresh.add(copy);
+            changed.put(id, copy);
+            return copy;
+        }
+
+        void node(OsmChangeReader.Change change) {
+            Node located = locationChanges.containsKey(change.id)
+                ? locationChanges.get(change.id) : locationsById().get(change.id);
+            if (located != null) {
+                removeLocation(located);
+            }
+            Node old = current(change.id);
+            if (change.action == OsmChangeReader.Action.DELETE) {
+                if (old != null) {
+                    for (int entry : Arrays.copyOf(old.edges, old.adj.size())) {
+                        unlink(Node.edgeId(entry));
+                    }
+                }
+                changed.remove(change.id);
+                deleted.add(change.id);
+                return;
+            }
+            Node n;
+            if (old == null) {
+                n = new Node(change.id, change.lon, change.lat);
+                fresh.add(n);
+                changed.put(n.id, n);
+                deleted.remove(n.id);
+            } else {
+                n = editable(change.id);
+                if (n.lon != change.lon || n.lat != change.lat) {
+                    n.lon = change.lon;
+                    n.lat = change.lat;
+                    remeasure(n);
+                }
+            }
+            String name = change.tags.get("name");
+            n.location = name == null ? "" : name;
+            if (name != null) {
+                addLocation(n);
+            }
         }
+
+        void way(OsmChangeReader.Change change) {
+            Way old = wayChanges.containsKey(change.id) ? wayChanges.get(change.id)
+                : waysById().get(change.id);
+            if (old != null) {
+                wayChanges.put(change.id, null);
+                for (int e = old.firstEdge; e < old.firstEdge + old.edgeCount; e++) {
+                    unlink(e);
+                }
+            }
+            RoadClass roadClass = RoadClass.of(change.tags.get("highway"));
+            if (change.action == OsmChangeReader.Action.DELETE || roadClass == null) {
+                return;
+            }
+            Way way = new Way(change.id);
+            way.name = change.tags.get("name");
+            if (ways == null) {
+                ways = new ArrayList<>(base.ways);
+            }
+            way.index = ways.size();
+            ways.add(way);
+            wayChanges.put(way.id, way);
+            String oneway = change.tags.get("oneway");
+            float speed = GraphBuildingHandler.speed(roadClass, change.tags.get("maxspeed"));
+            int flags = GraphBuildingHandler.flags(roadClass, oneway,
+                    change.tags.get("junction"));
+            boolean reversed = GraphBuildingHandler.isReversed(oneway);
+
+            way.firstEdge = edges.size();
+            long prev = 0;
+            boolean hasPrev = false;
+            for (int i = 0; i < change.nds.length; i++) {
+                long nd = change.nds[reversed ? change.nds.length - 1 - i : i];
+                if (current(nd) == null) {
+                    continue;
+                }
+                if (hasPrev) {
+                    int edge = edges.add(prev, nd, way.index, roadClass, speed, flags);
+                    Node from = editable(prev);
+                    Node to = editable(nd);
+                    double length = distance(from, to);
+                    from.link(nd, edge, length);
+                    to.link(prev, ~edge, length);
+                }
+                prev = nd;
+                hasPrev = true;
+            }
+            way.edgeCount = edges.size() - way.firstEdge;
+        }
+
+        /** Updates the lengths of the edges of a node that moved, at both of their ends. */
+        private void remeasure(Node n) {
+            for (int i = 0; i < n.adj.size(); i++) {
+                Node w = editable(n.adj.get(i));
+                double length = distance(n, w);
+                n.lengths[i] = length;
+                for (int j = 0; j < w.adj.size(); j++) {
+                    if (w.adj.get(j) == n.id) {
+                        w.lengths[j] = length;
+                    }
+                }
+            }
+        }
+
+        /** Removes an edge from both of its nodes. */
+        private void unlink(int edge) {
+            for (long id : new long[]{edges.from(edge), edges.to(edge)}) {
+                Node n = editable(id);
+                if (n != null) {
+                    n.unlink(edge);
+                }
+            }
+        }
+
+        /** Adds a location, replacing the list of its name rather than modifying it. */
+        private void addLocation(Node n) {
+            String key = cleanString(n.location);
+            List<Node> list = new ArrayList<>(
+                locations().getOrDefault(key, Collections.emptyList()));
+            list.add(n);
+            locations.put(key, list);
+            locationChanges.put(n.id, n);
+            nameChanges.merge(n.location, 1, Integer::sum);
+            changedKeys.add(key);
+        }
+
+        private void removeLocation(Node n) {
+            String key = cleanString(n.location);
+            List<Node> old = locations().get(key);
+            if (old != null) {
+                List<Node> list = new ArrayList<>(old);
+                list.removeIf(m -> m.id == n.id);
+                if (list.isEmpty()) {
+                    locations.remove(key);
+                } else {
+                    locations.put(key, list);
+                }
+            }
+            locationChanges.put(n.id, null);
+            nameChanges.merge(n.location, -1, Integer::sum);
+            changedKeys.add(key);
+        }
+
+        private Map<String, List<Node>> locations() {
+            if (locations == null) {
+                locations = new HashMap<>(base.locations);
+            }
+            return locations;
+        }
+
+        /** Makes the changes visible to readers, all in one write of version. */
+        void publish() {
+            Equirectangular bound = base.lowerBound;
+            for (Node n : changed.values()) {
+                bound = bound.including(n.lat);
+            }
+            Map<String, List<Node>> located = base.locations;
+            Map<String, KdTree> trees = base.locationTrees;
+            if (locations != null) {
+                located = Collections.unmodifiableMap(locations);
+                Map<String, KdTree> copy = new HashMap<>(trees);
+                for (String key : changedKeys) {
+                    List<Node> matches = locations.get(key);
+                    if (matches != null && matches.size() > LOCATION_TREE_THRESHOLD) {
+                        KdTree tree = new KdTree();
+                        tree.build(matches);
+                        copy.put(key, tree);
+                    } else {
+                        copy.remove(key);
+                    }
+                }
+                trees = Collections.unmodifiableMap(copy);
+            }
+            PrefixIndex index = base.prefixIndex;
+            PrefixCache cache = base.prefixCache;
+            nameChanges.values().removeIf(change -> change == 0);
+            if (!nameChanges.isEmpty()) {
+                index = index.withChanges(nameChanges);
+                cache = new PrefixCache(index);
+            }
+            version = new Version(new GraphOverlay(changed, deleted),
+                ways == null ? base.ways : ways, edges, located, trees, index, cache,
+                new PathTreeCache(), bound);
+
+            for (Map.Entry<Long, Way> e : wayChanges.entrySet()) {
+                if (e.getValue() == null) {
+                    waysById().remove(e.getKey());
+                } else {
+                    waysById().put(e.getKey(), e.getValue());
+                }
+            }
+            for (Map.Entry<Long, Node> e : locationChanges.entrySet()) {
+                if (e.getValue() == null) {
+                    locationsById().remove(e.getKey());
+                } else {
+                    locationsById().put(e.getKey(), e.getValue());
+                }
+            }
+        }
+    }
+
+    /** Returns the live ways by OSM id, building the map on first use. */
+    private Map<Long, Way> waysById() {
+        if (waysById == null) {
+            waysById = new HashMap<>();
+            for (Way way : version.ways) {
+                waysById.put(way.id, way);
+            }
+        }
+        return waysById;
     }
 
-    public Tries getTries() {
-        return tries;
+    /** Returns the named nodes by id, building the map on first use. */
+    private Map<Long, Node> locationsById() {
+        if (locationsById == null) {
+            locationsById = new HashMap<>();
+            for (List<Node> located : version.locations.values()) {
+                for (Node n : located) {
+                    locationsById.put(n.id, n);
+                }
+            }
+        }
+        return locationsById;
+    }
+
+    /** Records the time since start as the time of a stage, and returns the current time. */
+    private long recordStage(String stage, long start) {
+        long now = System.nanoTime();
+        buildNanos.put(stage, now - start);
+        return now;
+    }
+
+    /** Wraps the task in a ForkJoinTask that records how long it took in timings. */
+    private static ForkJoinTask<?> timed(Runnable task, String stage, Map<String, Long> timings) {
+        return ForkJoinTask.adapt(() -> {
+            long start = System.nanoTime();
+            task.run();
+            timings.put(stage, System.nanoTime() - start);
+        });
+    }
+
+    /**
+     * Returns how long each stage of building the graph took, in nanoseconds, in the order the
+     * stages started. Stages indented by two spaces ran within the stage before them, at the
+     * same time as each other.
+     */
+    public Map<String, Long> getBuildNanos() {
+        return new LinkedHashMap<>(buildNanos);
+    }
+
+    /** Returns the build timings as one line per stage, for logging. */
+    public String buildReport() {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, Long> e : getBuildNanos().entrySet()) {
+            report.append(String.format("%-18s %9.1f ms%n", e.getKey(), e.getValue() / 1e6));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Feeds the whole file at dbPath to the handler, picking the reader by the file's first
+     * bytes after decompressing it.
+     */
+    private static void parse(String dbPath, Parser parser, GraphBuildingHandler gbh)
+            throws ParserConfigurationException, SAXException, IOException {
+        try (InputStream file = new BufferedInputStream(new FileInputStream(dbPath));
+             InputStream inputStream = CompressedInput.open(file)) {
+            byte[] head = new byte[16];
+            inputStream.mark(head.length);
+            int headLength = inputStream.read(head);
+            inputStream.reset();
+            if (OsmPbfReader.isPbf(head, headLength)) {
+                new OsmPbfReader(inputStream, gbh).read();
+            } else if (parser == Parser.SCANNER) {
+                new OsmXmlScanner(inputStream, gbh).scan();
+            } else {
+                SAXParserFactory factory = SAXParserFactory.newInstance();
+                SAXParser saxParser = factory.newSAXParser();
+                saxParser.parse(inputStream, gbh);
+            }
+        }
+    }
+
+    /**
+     * Builds a spatial index for every name with more than LOCATION_TREE_THRESHOLD locations.
+     */
+    private void buildLocationTrees() {
+        Version built = version;
+        for (Map.Entry<String, List<Node>> e : built.locations.entrySet()) {
+            List<Node> matches = e.getValue();
+            if (matches.size() > LOCATION_TREE_THRESHOLD) {
+                KdTree tree = new KdTree();
+                tree.build(matches);
+                built.locationTrees.put(e.getKey(), tree);
+            }
+        }
+    }
+
+    /**
+     * Returns the locations whose cleaned name matches the cleaned {@code name} that are
+     * closest to the given point, nearest first.
+     * @param name The name of the locations.
+     * @param lon The longitude to rank by.
+     * @param lat The latitude to rank by.
+     * @param limit The maximum number of locations to return.
+     * @return Up to limit locations ordered by great-circle distance from (lon, lat).
+     */
+    List<Node> nearestLocations(String name, double lon, double lat, int limit) {
+        String key = cleanString(name);
+        Version ver = version;
+        KdTree tree = ver.locationTrees.get(key);
+        if (tree != null) {
+            return tree.nearest(lon, lat, limit);
+        }
+        List<Node> matches = new ArrayList<>();
+        List<Node> located = ver.locations.get(key);
+        if (located != null) {
+            matches.addAll(located);
+        }
+        matches.sort(Comparator.comparingDouble(n -> distance(lon, lat, n.lon, n.lat)));
+        return matches.subList(0, Math.min(limit, matches.size()));
+    }
+
+    /** Returns the current prefix index. Applying changes replaces it with a new one. */
+    public PrefixIndex getPrefixIndex() {
+        return version.prefixIndex;
+    }
+
+    public PrefixCache getPrefixCache() {
+        return version.prefixCache;
+    }
+
+    /** Returns the cache of shortest-path trees. Applying changes replaces it with a new one. */
+    public PathTreeCache getPathTreeCache() {
+        return version.pathTreeCache;
     }
 
     public void addName(String s) {
-        tries.add(s);
+        version.prefixIndex.add(s);
     }
 
     public void addLocation(Node n) {
-        String loc = n.location.toLowerCase();
-        if (locations.containsKey(loc)) {
-            ((ArrayList) locations.get(loc)).add(n);
-        } else {
-            List<Node> nodes = new ArrayList<>();
-            nodes.add(n);
-            locations.put(loc, nodes);
-        }
+        String loc = cleanString(n.location);
+        version.locations.computeIfAbsent(loc, k -> new ArrayList<>()).add(n);
     }
 
-    public Map<String, Object> getLocations() {
-        return locations;
+    /**
+     * Returns the locations keyed by the cleaned form of their names.
+     * @see #cleanString
+     */
+    public Map<String, List<Node>> getLocations() {
+        return version.locations;
     }
 
     /**
-     * Helper to process strings into their "cleaned" form, ignoring punctuation and capitalization.
+     * Helper to process strings into their "cleaned" form, ignoring punctuation, accents and
+     * capitalization. Every name that is indexed or looked up goes through this one method, so
+     * "st marys" and "St. Mary's" clean to the same key.
      * @param s Input string.
-     * @return Cleaned string.
+     * @return Cleaned string, with accents stripped (an accented "e" becomes "e"), anything other
+     * than letters and spaces removed, runs of spaces collapsed and leading and trailing spaces
+     * dropped.
      */
     static String cleanString(String s) {
-        return s.replaceAll("[^a-zA-Z ]", "").toLowerCase();
+        String decomposed = Normalizer.normalize(s, Normalizer.Form.NFD);
+        String letters = NON_LETTERS.matcher(decomposed).replaceAll("");
+        return SPACES.matcher(letters).replaceAll(" ").trim().toLowerCase();
     }
 
     /**
@@ -101,12 +718,20 @@ public class GraphDB {
      * Returns an iterable of all vertex IDs in the graph.
      * @return An iterable of id's of all vertices in the graph.
      */
-    Iterable<Long> vertices() {
+    public Iterable<Long> vertices() {
         //YOUR CODE HERE, this currently returns only an empty list.
+        return vertices(version.overlay);
+    }
+
+    /** Returns the ids of all vertices in the graph with the given overlay. */
+    private List<Long> vertices(GraphOverlay o) {
         ArrayList<Long> IDs = new ArrayList<>();
         for (long id : nodes.keySet()) {
-            IDs.add(id);
+            if (!o.hides(id)) {
+                IDs.add(id);
+            }
         }
+        IDs.addAll(o.vertices);
         return IDs;
     }
 
@@ -115,8 +740,139 @@ public class GraphDB {
      * @param v The id of the vertex we are looking adjacent to.
      * @return An iterable of the ids of the neighbors of v.
      */
-    Iterable<Long> adjacent(long v) {
-        return nodes.get(v).adj;
+    public Iterable<Long> adjacent(long v) {
+        return node(v).adj;
+    }
+
+    @Override
+    public void forEachNeighbor(long v, Profile profile, NeighborVisitor visitor) {
+        Version ver = version;
+        Node n = node(ver.overlay, v);
+        for (int i = 0; i < n.adj.size(); i++) {
+            float pace = ver.edges.pace(profile, n.edges[i]);
+            if (pace < Float.POSITIVE_INFINITY) {
+                Node w = node(ver.overlay, n.adj.get(i));
+                visitor.visit(w.id, n.edges[i], n.lengths[i] * pace, w.lon, w.lat);
+            }
+        }
+    }
+
+    @Override
+    public void forEachPredecessor(long v, Profile profile, NeighborVisitor visitor) {
+        Version ver = version;
+        Node n = node(ver.overlay, v);
+        for (int i = 0; i < n.adj.size(); i++) {
+            float pace = ver.edges.pace(profile, ~n.edges[i]);
+            if (pace < Float.POSITIVE_INFINITY) {
+                Node w = node(ver.overlay, n.adj.get(i));
+                visitor.visit(w.id, ~n.edges[i], n.lengths[i] * pace, w.lon, w.lat);
+            }
+        }
+    }
+
+    /** Returns whether the profile may travel any edge of a node, in either direction. */
+    private static boolean accessible(EdgeTable edges, Node n, Profile profile) {
+        for (int i = 0; i < n.adj.size(); i++) {
+            if (edges.pace(profile, n.edges[i]) < Float.POSITIVE_INFINITY
+                    || edges.pace(profile, ~n.edges[i]) < Float.POSITIVE_INFINITY) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Equirectangular lowerBound() {
+        return version.lowerBound;
+    }
+
+    /**
+     * {@inheritDoc} Restrictions are resolved to edges when the graph is built. Changes do not
+     * update them: a turn between edges a change replaces is no longer forbidden.
+     */
+    @Override
+    public TurnRestrictions turnRestrictions() {
+        return turnRestrictions;
+    }
+
+    /**
+     * Records a turn restriction relation, to be resolved once every way has been added.
+     * @param fromWay The id of the way the turn comes from.
+     * @param via The id of the node the turn is made at.
+     * @param toWay The id of the way the turn goes to.
+     * @param only Whether the turn is the only one allowed from fromWay at via, as in
+     *             only_straight_on, rather than forbidden, as in no_left_turn.
+     */
+    void addTurnRestriction(long fromWay, long via, long toWay, boolean only) {
+        restrictionRelations.add(new long[]{fromWay, via, toWay, only ? 1 : 0});
+    }
+
+    /**
+     * Resolves the restriction relations into forbidden turns between edges at their via
+     * nodes. A relation whose ways or node are not in the graph, or do not meet, is ignored.
+     */
+    private TurnRestrictions resolveTurnRestrictions() {
+        List<long[]> relations = restrictionRelations;
+        restrictionRelations = null;
+        if (relations.isEmpty()) {
+            return TurnRestrictions.NONE;
+        }
+        Map<Long, Integer> wayIndex = new HashMap<>();
+        for (long[] r : relations) {
+            wayIndex.put(r[0], -1);
+            wayIndex.put(r[2], -1);
+        }
+        Version built = version;
+        for (Way way : built.ways) {
+            wayIndex.replace(way.id, way.index);
+        }
+        TurnRestrictions.Builder builder = new TurnRestrictions.Builder();
+        for (long[] r : relations) {
+            int from = wayIndex.get(r[0]);
+            int to = wayIndex.get(r[2]);
+            Node via = nodes.get(r[1]);
+            if (from < 0 || to < 0 || via == null) {
+                continue;
+            }
+            boolean only = r[3] != 0;
+            for (int i = 0; i < via.adj.size(); i++) {
+                int in = Node.edgeId(via.edges[i]);
+                if (built.edges.way(in) != from) {
+                    continue;
+                }
+                for (int j = 0; j < via.adj.size(); j++) {
+                    int out = Node.edgeId(via.edges[j]);
+                    /* A restriction from a way back onto itself, like no_u_turn, only forbids
+                    turning back along the same edge, not carrying on along the way. */
+                    boolean onto = from == to ? out == in : built.edges.way(out) == to;
+                    if (onto != only) {
+                        builder.forbid(in, out);
+                    }
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the node with the given id, including changes applied since the graph was built,
+     * or null if there is no such node. Besides the vertices this finds the nodes that lost
+     * all their edges to a change, but not named nodes off the roads.
+     */
+    Node node(long id) {
+        return node(version.overlay, id);
+    }
+
+    /** Returns the node with the given id in the graph with the given overlay, as above. */
+    private Node node(GraphOverlay o, long id) {
+        if (o.isEmpty()) {
+            return nodes.get(id);
+        }
+        Node n = o.nodes.get(id);
+        if (n != null || o.deleted.contains(id)) {
+            return n;
+        }
+        return nodes.get(id);
     }
 
     /**
@@ -127,7 +883,7 @@ public class GraphDB {
      * @param w The id of the second vertex.
      * @return The great-circle distance between the two locations from the graph.
      */
-    double distance(long v, long w) {
+    public double distance(long v, long w) {
         return distance(lon(v), lat(v), lon(w), lat(w));
     }
     static double distance(Node n1, Node n2) {
@@ -179,9 +935,159 @@ public class GraphDB {
      * @param lat The target latitude.
      * @return The id of the node in the graph closest to the target.
      */
-    long closest(double lon, double lat) {
-        Node goal = new Node(lon, lat);
-        return kdTree.nearest(kdTree.root, goal, kdTree.root).point.id;
+    public long closest(double lon, double lat) {
+        GraphOverlay o = version.overlay;
+        if (o.isEmpty()) {
+            Node goal = new Node(lon, lat);
+            return kdTree.nearest(kdTree.root, goal, kdTree.root).point.id;
+        }
+        return closest(o, lon, lat, n -> true);
+    }
+
+    @Override
+    public long closest(double lon, double lat, Profile profile) {
+        if (profile == Profile.DISTANCE) {
+            return closest(lon, lat);
+        }
+        Version ver = version;
+        return closest(ver.overlay, lon, lat, n -> accessible(ver.edges, n, profile));
+    }
+
+    /**
+     * Returns the closest vertex of the graph with the given overlay that passes the filter, or
+     * -1 if none does.
+     */
+    private long closest(GraphOverlay o, double lon, double lat, Predicate<Node> filter) {
+        /* Skip the built nodes a change replaced; the replacements are in the overlay's tree. */
+        List<Node> built = kdTree.nearest(lon, lat, 1, n -> !o.hides(n.id) && filter.test(n));
+        List<Node> changed = o.tree.nearest(lon, lat, 1, filter);
+        if (changed.isEmpty() || !built.isEmpty() && distance(lon, lat, built.get(0).lon,
+                built.get(0).lat) <= distance(lon, lat, changed.get(0).lon, changed.get(0).lat)) {
+            return built.isEmpty() ? -1 : built.get(0).id;
+        }
+        return changed.get(0).id;
+    }
+
+    /**
+     * {@inheritDoc} Edges at nodes that changes replaced are not in the index, so they are
+     * looked at one by one; changes are small next to the graph.
+     */
+    @Override
+    public Snap snap(double lon, double lat, Profile profile) {
+        Version ver = version;
+        GraphOverlay o = ver.overlay;
+        EdgeTable edges = ver.edges;
+        double[] result = new double[2];
+        int edge = edgeIndex.nearest(lon, lat, e -> usable(edges, e, profile)
+            && (o.isEmpty() || !o.hides(edges.from(e)) && !o.hides(edges.to(e))), result);
+        Snap best = edge < 0 ? null : snap(edges, edge, nodes.get(edges.from(edge)),
+            nodes.get(edges.to(edge)), result[0], profile);
+        double bestDistance = result[1];
+        double cos = Math.cos(Math.toRadians(lat));
+        for (long v : o.vertices) {
+            Node n = o.nodes.get(v);
+            for (int i = 0; i < n.adj.size(); i++) {
+                int e = Node.edgeId(n.edges[i]);
+                if (!usable(edges, e, profile)) {
+                    continue;
+                }
+                Node from = node(o, edges.from(e));
+                Node to = node(o, edges.to(e));
+                double d = EdgeIndex.project(lon, lat, cos, from.lon, from.lat, to.lon, to.lat,
+                    result);
+                if (d < bestDistance) {
+                    best = snap(edges, e, from, to, result[0], profile);
+                    bestDistance = d;
+                }
+            }
+        }
+        if (best != null) {
+            best.distance = distance(lon, lat, best.lon, best.lat);
+        }
+        return best;
+    }
+
+    /** {@inheritDoc} Edges at nodes that changes replaced are looked at one by one, as in snap. */
+    @Override
+    public List<Snap> snapsWithin(double lon, double lat, double radius, Profile profile) {
+        Version ver = version;
+        GraphOverlay o = ver.overlay;
+        EdgeTable edges = ver.edges;
+        double r = radius / EdgeIndex.MILES_PER_DEGREE;
+        List<Snap> snaps = new ArrayList<>();
+        edgeIndex.within(lon, lat, r, e -> usable(edges, e, profile)
+            && (o.isEmpty() || !o.hides(edges.from(e)) && !o.hides(edges.to(e))),
+            (e, fraction, d) -> snaps.add(snap(edges, e, nodes.get(edges.from(e)),
+                nodes.get(edges.to(e)), fraction, profile)));
+        double cos = Math.cos(Math.toRadians(lat));
+        double[] fraction = new double[1];
+        Set<Integer> seen = new HashSet<>();
+        for (long v : o.vertices) {
+            Node n = o.nodes.get(v);
+            for (int i = 0; i < n.adj.size(); i++) {
+                int e = Node.edgeId(n.edges[i]);
+                if (!seen.add(e) || !usable(edges, e, profile)) {
+                    continue;
+                }
+                Node from = node(o, edges.from(e));
+                Node to = node(o, edges.to(e));
+                double d = EdgeIndex.project(lon, lat, cos, from.lon, from.lat, to.lon, to.lat,
+                    fraction);
+                if (d <= r * r) {
+                    snaps.add(snap(edges, e, from, to, fraction[0], profile));
+                }
+            }
+        }
+        for (Snap snap : snaps) {
+            snap.distance = distance(lon, lat, snap.lon, snap.lat);
+        }
+        snaps.sort(Comparator.comparingDouble(snap -> snap.distance));
+        return snaps;
+    }
+
+    /** Returns whether the profile may travel an edge in either direction. */
+    private static boolean usable(EdgeTable edges, int edge, Profile profile) {
+        return edges.pace(profile, edge) < Float.POSITIVE_INFINITY
+            || edges.pace(profile, ~edge) < Float.POSITIVE_INFINITY;
+    }
+
+    private static Snap snap(EdgeTable edges, int edge, Node from, Node to, double fraction,
+                             Profile profile) {
+        Snap snap = new Snap();
+        snap.edge = edge;
+        snap.from = from.id;
+        snap.to = to.id;
+        snap.fraction = fraction;
+        snap.lon = from.lon + fraction * (to.lon - from.lon);
+        snap.lat = from.lat + fraction * (to.lat - from.lat);
+        snap.length = distance(from, to);
+        snap.forwardPace = edges.pace(profile, edge);
+        snap.backwardPace = edges.pace(profile, ~edge);
+        return snap;
+    }
+
+    /**
+     * Returns the endpoints of every edge as EdgeIndex.build takes them, with NaN for the
+     * edges changes have removed.
+     */
+    double[] edgeSegments() {
+        Version ver = version;
+        double[] segments = new double[4 * ver.edges.size()];
+        Arrays.fill(segments, Double.NaN);
+        for (long v : vertices(ver.overlay)) {
+            Node n = node(ver.overlay, v);
+            for (int i = 0; i < n.adj.size(); i++) {
+                int e = n.edges[i];
+                if (e >= 0) {
+                    Node w = node(ver.overlay, n.adj.get(i));
+                    segments[4 * e] = n.lon;
+                    segments[4 * e + 1] = n.lat;
+                    segments[4 * e + 2] = w.lon;
+                    segments[4 * e + 3] = w.lat;
+                }
+            }
+        }
+        return segments;
     }
 
     /**
@@ -189,8 +1095,8 @@ public class GraphDB {
      * @param v The id of the vertex.
      * @return The longitude of the vertex.
      */
-    double lon(long v) {
-        return nodes.get(v).lon;
+    public double lon(long v) {
+        return node(v).lon;
     }
 
     /**
@@ -198,30 +1104,107 @@ public class GraphDB {
      * @param v The id of the vertex.
      * @return The latitude of the vertex.
      */
-    double lat(long v) {
-        return nodes.get(v).lat;
+    public double lat(long v) {
+        return node(v).lat;
     }
 
     void addNode(Node n) {
         nodes.put(n.id, n);
     }
 
-    void addEdge(long n1, long n2) {
-        nodes.get(n1).adj.add(n2);
-        nodes.get(n2).adj.add(n1);
+    /**
+     * Adds a way and an edge between each pair of consecutive nodes of it. Nodes that are not
+     * in the graph are skipped; extracts clip ways at their border, leaving refs to nodes
+     * outside the file.
+     * @param way The way, which gets its index here.
+     * @param nds The ids of the way's nodes, in the direction traffic may flow, are those
+     *            from start up to but not including end.
+     * @param roadClass The class of the way.
+     * @param speed The speed in miles per hour.
+     * @param flags Any of EdgeTable.ONEWAY and EdgeTable.ROUNDABOUT.
+     */
+    void addWay(Way way, long[] nds, int start, int end, RoadClass roadClass, float speed,
+                int flags) {
+        EdgeTable edges = version.edges;
+        addWay(way);
+        way.firstEdge = edges.size();
+        long prev = 0;
+        boolean hasPrev = false;
+        for (int i = start; i < end; i++) {
+            long nd = nds[i];
+            if (!nodes.containsKey(nd)) {
+                continue;
+            }
+            if (hasPrev) {
+                addEdge(prev, nd, way.index, roadClass, speed, flags);
+            }
+            prev = nd;
+            hasPrev = true;
+        }
+        way.edgeCount = edges.size() - way.firstEdge;
+    }
+
+    /**
+     * Adds an edge between two nodes, which both must already be in the graph, and returns its
+     * id in the EdgeTable.
+     * @param from The node the way reaches first.
+     * @param to The node the way reaches next.
+     * @param way The index of the way the edge is part of.
+     * @param roadClass The class of the way.
+     * @param speed The speed in miles per hour.
+     * @param flags Any of EdgeTable.ONEWAY and EdgeTable.ROUNDABOUT.
+     */
+    int addEdge(long from, long to, int way, RoadClass roadClass, float speed, int flags) {
+        int edge = version.edges.add(from, to, way, roadClass, speed, flags);
+        Node fromNode = nodes.get(from);
+        Node toNode = nodes.get(to);
+        double length = distance(fromNode, toNode);
+        fromNode.link(to, edge, length);
+        toNode.link(from, ~edge, length);
+        return edge;
+    }
+
+    /**
+     * Returns the id of the first edge between v and w, or -1 if they are not adjacent. This
+     * only scans the few neighbors of v.
+     */
+    int edge(long v, long w) {
+        return edge(node(v), w);
+    }
+
+    private static int edge(Node node, long w) {
+        for (int i = 0; i < node.adj.size(); i++) {
+            if (node.adj.get(i) == w) {
+                return Node.edgeId(node.edges[i]);
+            }
+        }
+        return -1;
+    }
+
+    public EdgeTable getEdges() {
+        return version.edges;
     }
 
     void removeNode(Node n) {
         nodes.remove(n.id);
     }
 
+    private static final int[] NO_EDGES = new int[0];
+    private static final double[] NO_LENGTHS = new double[0];
+
     static class Node {
         long id;
         double lon;
         double lat;
         String location = "";
         ArrayList<Long> adj = new ArrayList<>();
-        ArrayList<Long> ways = new ArrayList<>();
+        /**
+         * The edge to each node in adj, at the same position: the edge id if the edge leaves
+         * this node in the direction of its way, or its complement (~id) if it enters it.
+         */
+        int[] edges = NO_EDGES;
+        /** The length in miles of the edge to each node in adj, at the same position. */
+        double[] lengths = NO_LENGTHS;
 
         double priority;
 
@@ -234,6 +1217,47 @@ public class GraphDB {
             this.lon = lon;
             this.lat = lat;
         }
+
+        /** Adds w to adj, reached by the given edge entry of the given length. */
+        void link(long w, int edgeEntry, double length) {
+            int i = adj.size();
+            adj.add(w);
+            if (i == edges.length) {
+                edges = Arrays.copyOf(edges, Math.max(4, 2 * i));
+                lengths = Arrays.copyOf(lengths, edges.length);
+            }
+            edges[i] = edgeEntry;
+            lengths[i] = length;
+        }
+
+        /** Returns a copy of this node that shares nothing with it. */
+        Node copy() {
+            Node n = new Node(id, lon, lat);
+            n.location = location;
+            n.adj = new ArrayList<>(adj);
+            n.edges = Arrays.copyOf(edges, adj.size());
+            n.lengths = Arrays.copyOf(lengths, adj.size());
+            return n;
+        }
+
+        /** Removes the links made by the given edge. */
+        void unlink(int edge) {
+            int kept = 0;
+            for (int i = 0; i < adj.size(); i++) {
+                if (edgeId(edges[i]) != edge) {
+                    adj.set(kept, adj.get(i));
+                    edges[kept] = edges[i];
+                    lengths[kept] = lengths[i];
+                    kept++;
+                }
+            }
+            adj.subList(kept, adj.size()).clear();
+        }
+
+        /** Returns the edge id of an entry of edges, whichever direction it is stored in. */
+        static int edgeId(int edgeEntry) {
+            return edgeEntry < 0 ? ~edgeEntry : edgeEntry;
+        }
     }
 
     private class nodeComparator implements Comparator<Long> {
@@ -255,6 +1279,10 @@ public class GraphDB {
         return new nodeComparator();
     }
 
+    /**
+     * Returns the nodes the graph was built with, by id. Changes applied since are not
+     * included; use node, vertices and adjacent to see them.
+     */
     public Map<Long, Node> getNodes() {
         return nodes;
     }
@@ -262,34 +1290,45 @@ public class GraphDB {
 
     static class Way {
         long id;
-        ArrayList<Long> nds;
+        /** The position of the way in the graph's list of ways. */
+        int index;
         String name;
+        /** The way's edges are the edgeCount consecutive ids starting at firstEdge. */
+        int firstEdge;
+        int edgeCount;
 
         Way(long id) {
             this.id = id;
-            nds = new ArrayList<>();
         }
     }
 
     public void addWay(Way way) {
-        allWays.put(way.id, way);
+        List<Way> ways = version.ways;
+        way.index = ways.size();
+        ways.add(way);
     }
 
+    /**
+     * Returns the name of the way that connects v and w, "unknown road" if it has none, or null
+     * if v and w are not adjacent.
+     */
     public String getWayName(long v, long w) {
-        Node vNode = nodes.get(v);
-        Node wNode = nodes.get(w);
-        for (long id1 : vNode.ways) {
-            for (long id2: wNode.ways) {
-                if (id1 == id2) {
-                    String wayName = allWays.get(id1).name;
-                    if (wayName == null) {
-                        return "unknown road";
-                    } else {
-                        return wayName;
-                    }
-                }
-            }
+        return getWayName(node(v), w);
+    }
+
+    /** Returns the name of the way between a node and an adjacent vertex, as above. */
+    String getWayName(Node v, long w) {
+        int edge = edge(v, w);
+        if (edge < 0) {
+            return null;
         }
-        return null;
+        String wayName = edgeName(edge);
+        return wayName == null ? "unknown road" : wayName;
+    }
+
+    /** Returns the name of the way an edge belongs to, or null if it has none. */
+    String edgeName(int edge) {
+        Version ver = version;
+        return ver.ways.get(ver.edges.way(edge)).name;
     }
 }
@@ -0,0 +1,54 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The changes applied to a GraphDB since it was built, layered over the nodes it was built
+ * with. An overlay never changes once a GraphDB publishes it; applying more changes publishes a
+ * new overlay instead. Readers therefore never need a lock: whichever overlay they read, they
+ * see a complete and consistent graph.
+ *
+ * @author Beiqian Liu
+ */
+class GraphOverlay {
+    static final GraphOverlay EMPTY = new GraphOverlay(Collections.emptyMap(),
+            Collections.emptySet());
+
+    /**
+     * The nodes that replace or add to the nodes the graph was built with. A node here may
+     * have no adjacent nodes, in which case it is not a vertex of the graph.
+     */
+    final Map<Long, GraphDB.Node> nodes;
+    /** The ids of the nodes deleted from the graph. */
+    final Set<Long> deleted;
+    /** A spatial index over the nodes here that are vertices. */
+    final KdTree tree = new KdTree();
+    /** The ids of the nodes here that are vertices. */
+    final Set<Long> vertices = new HashSet<>();
+
+    /** Create an overlay, taking ownership of the given map and set. */
+    GraphOverlay(Map<Long, GraphDB.Node> nodes, Set<Long> deleted) {
+        this.nodes = nodes;
+        this.deleted = deleted;
+        List<GraphDB.Node> routable = new ArrayList<>();
+        for (GraphDB.Node n : nodes.values()) {
+            if (!n.adj.isEmpty()) {
+                routable.add(n);
+                vertices.add(n.id);
+            }
+        }
+        tree.build(routable);
+    }
+
+    boolean isEmpty() {
+        return nodes.isEmpty() && deleted.isEmpty();
+    }
+
+    /** Returns whether the overlay replaces or deletes the node the graph was built with. */
+    boolean hides(long id) {
+        return nodes.containsKey(id) || deleted.contains(id);
+    }
+}
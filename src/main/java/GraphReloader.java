@@ -0,0 +1,147 @@
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Holds the graph the server answers requests with, and replaces it with a freshly built one
+ * without stopping the server. The new graph is built on a background thread while requests
+ * keep using the old one, and is then swapped in through a single volatile write.
+ *
+ * Requests that started on the old graph finish on it, as long as they read {@link #get} once
+ * and keep using what it returned. Nothing else refers to the old graph after the swap, so it
+ * is garbage collected once the last of those requests is done.
+ *
+ * A file that cannot be read or is malformed, for instance truncated, leaves the old graph in
+ * place and is reported as the last error. Change files applied through {@link #applyChanges}
+ * are kept, and are applied again, in order, to a graph rebuilt from the same file before it
+ * is swapped in, including those applied while the reload was running. A reload from another
+ * file starts a new list: that file is taken to be a newer extract that already has them.
+ *
+ * @author Beiqian Liu
+ */
+public class GraphReloader {
+    private final GraphDB.Parser parser;
+    private volatile GraphDB graph;
+    private volatile String path;
+    private final AtomicBoolean reloading = new AtomicBoolean();
+    private volatile int reloads;
+    private volatile String lastError;
+    /** The change files applied since the graph was built from path, oldest first. */
+    private final List<byte[]> changes = new ArrayList<>();
+
+    /**
+     * Create a reloader serving a graph that was already built.
+     * @param graph The graph to serve until the first reload.
+     * @param path The map file the graph was built from.
+     * @param parser The parser to read map files with.
+     */
+    public GraphReloader(GraphDB graph, String path, GraphDB.Parser parser) {
+        this.graph = graph;
+        this.path = path;
+        this.parser = parser;
+    }
+
+    /** Returns the graph to answer a request with. */
+    public GraphDB get() {
+        return graph;
+    }
+
+    /**
+     * Starts building a new graph from a map file in the background, and swaps it in once it
+     * is built. Does nothing if a reload is already running.
+     * @param newPath The map file to build from, or null to read the current one again.
+     * @return Whether a reload was started.
+     */
+    public boolean reload(String newPath) {
+        if (!reloading.compareAndSet(false, true)) {
+            return false;
+        }
+        String source = newPath == null ? path : newPath;
+        Thread builder = new Thread(() -> {
+            try {
+                build(source);
+            } finally {
+                reloading.set(false);
+            }
+        }, "graph reload");
+        builder.setDaemon(true);
+        builder.start();
+        return true;
+    }
+
+    /**
+     * Applies an OSM change file to the graph being served, see GraphDB.applyChanges, and
+     * keeps it to apply again after a reload.
+     * @param change The change file, which may be compressed like a map file.
+     * @return The number of nodes and ways created, modified or deleted.
+     * @throws IOException If the change file cannot be read; it is then not kept.
+     */
+    public int applyChanges(byte[] change) throws IOException {
+        synchronized (changes) {
+            int applied = graph.applyChanges(new ByteArrayInputStream(change));
+            changes.add(change);
+            return applied;
+        }
+    }
+
+    /**
+     * Builds a graph from the file and swaps it in. A file that cannot be read leaves the
+     * current graph in place: building from it would only give an empty graph.
+     */
+    private void build(String source) {
+        if (!new File(source).canRead()) {
+            lastError = "Cannot read " + source;
+            return;
+        }
+        try {
+            GraphDB fresh = GraphDB.load(source, parser);
+            if (fresh.getNodes().isEmpty()) {
+                lastError = "No roads were read from " + source;
+                return;
+            }
+            /* Changes wait while the kept ones are applied, so none is missed by the swap. */
+            synchronized (changes) {
+                if (source.equals(path)) {
+                    for (byte[] change : changes) {
+                        fresh.applyChanges(new ByteArrayInputStream(change));
+                    }
+                } else {
+                    changes.clear();
+                }
+                graph = fresh;
+                path = source;
+            }
+            reloads += 1;
+            lastError = null;
+            System.out.print("Graph reloaded from " + source + ":\n" + fresh.buildReport());
+        } catch (IOException | SAXException | RuntimeException | OutOfMemoryError e) {
+            e.printStackTrace();
+            lastError = e.toString();
+        }
+    }
+
+    /** Returns whether a reload is running. */
+    public boolean isReloading() {
+        return reloading.get();
+    }
+
+    /** Returns the state of the reloader, for the admin endpoint. */
+    public Map<String, Object> status() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("path", path);
+        status.put("reloading", reloading.get());
+        status.put("reloads", reloads);
+        status.put("last_error", lastError);
+        synchronized (changes) {
+            status.put("changes", changes.size());
+        }
+        return status;
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of dense int indices by a double priority, that can lower the priority of
+ * an index already in it. A search keeps one entry per state this way, where a PriorityQueue
+ * takes a new object, and leaves the old one behind, every time a state gets cheaper.
+ *
+ * @author Beiqian Liu
+ */
+public class IndexedHeap {
+    private static final int MIN_CAPACITY = 16;
+    /** The position of an index that is not in the heap. */
+    private static final int ABSENT = -1;
+
+    /** The indices in heap order, and the priority of each, at the same position. */
+    private int[] heap = new int[MIN_CAPACITY];
+    private double[] priorities = new double[MIN_CAPACITY];
+    /** The position in heap of every index, or ABSENT. */
+    private int[] positions = new int[0];
+    private int size;
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Returns the lowest priority in the heap, which must not be empty. */
+    public double peekPriority() {
+        return priorities[0];
+    }
+
+    /**
+     * Adds an index with a priority, or lowers its priority if it is in the heap already. A
+     * priority higher than the one it has is ignored.
+     */
+    public void push(int index, double priority) {
+        if (index >= positions.length) {
+            int old = positions.length;
+            positions = Arrays.copyOf(positions, Math.max(MIN_CAPACITY,
+                Math.max(index + 1, 2 * old)));
+            Arrays.fill(positions, old, positions.length, ABSENT);
+        }
+        int at = positions[index];
+        if (at == ABSENT) {
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, 2 * size);
+                priorities = Arrays.copyOf(priorities, heap.length);
+            }
+            at = size++;
+        } else if (priority >= priorities[at]) {
+            return;
+        }
+        siftUp(at, index, priority);
+    }
+
+    /** Removes and returns the index with the lowest priority; the heap must not be empty. */
+    public int pop() {
+        int top = heap[0];
+        positions[top] = ABSENT;
+        size--;
+        if (size > 0) {
+            siftDown(0, heap[size], priorities[size]);
+        }
+        return top;
+    }
+
+    private void siftUp(int at, int index, double priority) {
+        while (at > 0) {
+            int parent = (at - 1) >>> 1;
+            if (priorities[parent] <= priority) {
+                break;
+            }
+            place(at, heap[parent], priorities[parent]);
+            at = parent;
+        }
+        place(at, index, priority);
+    }
+
+    private void siftDown(int at, int index, double priority) {
+        while (true) {
+            int child = 2 * at + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && priorities[child + 1] < priorities[child]) {
+                child++;
+            }
+            if (priorities[child] >= priority) {
+                break;
+            }
+            place(at, heap[child], priorities[child]);
+            at = child;
+        }
+        place(at, index, priority);
+    }
+
+    private void place(int at, int index, double priority) {
+        heap[at] = index;
+        priorities[at] = priority;
+        positions[index] = at;
+    }
+}
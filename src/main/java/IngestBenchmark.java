@@ -0,0 +1,67 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+/**
+ * This class provides a main method for comparing how long the different parsers take to
+ * build a GraphDB from the same OSM file, and how much heap they need while doing so. Each
+ * parser builds the graph a few times to warm up the JIT, then the best of the timed runs is
+ * reported, followed by the stage timings of the last run.
+ * Usage: java IngestBenchmark [path to OSM file] [timed runs per parser]
+ */
+public class IngestBenchmark {
+    private static final String OSM_DB_PATH = "data/berkeley-2018.osm.xml";
+    private static final int WARMUP_RUNS = 2;
+    private static final int TIMED_RUNS = 5;
+
+    public static void main(String[] args) {
+        String path = args.length > 0 ? args[0] : OSM_DB_PATH;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : TIMED_RUNS;
+
+        for (GraphDB.Parser parser : GraphDB.Parser.values()) {
+            long best = Long.MAX_VALUE;
+            long peak = Long.MAX_VALUE;
+            int vertices = 0;
+            String report = "";
+            for (int i = 0; i < WARMUP_RUNS + runs; i++) {
+                resetPeakHeap();
+                long start = System.nanoTime();
+                GraphDB g = new GraphDB(path, parser);
+                long elapsed = System.nanoTime() - start;
+                if (i >= WARMUP_RUNS) {
+                    best = Math.min(best, elapsed);
+                    peak = Math.min(peak, peakHeap());
+                }
+                vertices = g.getNodes().size();
+                report = g.buildReport();
+            }
+            System.out.println(String.format("%-8s %8.1f ms  %8.1f MB peak heap  (%d vertices)",
+                    parser, best / 1e6, peak / 1e6, vertices));
+            System.out.print(report);
+        }
+    }
+
+    /** Collects garbage and starts measuring peak heap use from the current live heap. */
+    private static void resetPeakHeap() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Returns the sum of the heap pools' peak use since the last reset. The pools peak at
+     * different times, so this overestimates a little, but it is comparable between runs.
+     */
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
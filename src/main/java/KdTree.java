@@ -1,4 +1,19 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+
 public class KdTree {
+    /** Subtrees with more points than this are built in parallel. */
+    private static final int PARALLEL_THRESHOLD = 8192;
+    private static final Comparator<GraphDB.Node> BY_LON = Comparator.comparingDouble(n -> n.lon);
+    private static final Comparator<GraphDB.Node> BY_LAT = Comparator.comparingDouble(n -> n.lat);
+
     public KdNode root = null;
     private int size;
 
@@ -18,6 +33,70 @@ public class KdTree {
         root = insertHelper(root, n, 0);
     }
 
+    /**
+     * Replaces the contents of the tree with the given points, splitting at the median at every
+     * level so that the tree is balanced however the points are ordered. Large subtrees are
+     * built in parallel on the common fork/join pool.
+     * @param points The points to build the tree from.
+     */
+    public void build(Collection<GraphDB.Node> points) {
+        GraphDB.Node[] array = points.toArray(new GraphDB.Node[0]);
+        size = array.length;
+        root = new BuildTask(array, 0, array.length, 0).invoke();
+    }
+
+    /** Builds the subtree of the points in [lo, hi) at the given level. */
+    private class BuildTask extends RecursiveTask<KdNode> {
+        private static final long serialVersionUID = 1L;
+
+        private final GraphDB.Node[] points;
+        private final int lo;
+        private final int hi;
+        private final int level;
+
+        BuildTask(GraphDB.Node[] points, int lo, int hi, int level) {
+            this.points = points;
+            this.lo = lo;
+            this.hi = hi;
+            this.level = level;
+        }
+
+        @Override
+        protected KdNode compute() {
+            if (lo >= hi) {
+                return null;
+            }
+            boolean byLon = level % 2 == 0;
+            Arrays.sort(points, lo, hi, byLon ? BY_LON : BY_LAT);
+            /* insert sends ties to the right, so the split is the first of equal medians. */
+            int mid = (lo + hi) >>> 1;
+            while (mid > lo && coordinate(points[mid - 1], byLon)
+                    == coordinate(points[mid], byLon)) {
+                mid--;
+            }
+            KdNode k = new KdNode(points[mid], level);
+            BuildTask left = new BuildTask(points, lo, mid, level + 1);
+            BuildTask right = new BuildTask(points, mid + 1, hi, level + 1);
+            if (hi - lo > PARALLEL_THRESHOLD) {
+                left.fork();
+                k.rightChild = right.compute();
+                k.leftChild = left.join();
+            } else {
+                k.leftChild = left.compute();
+                k.rightChild = right.compute();
+            }
+            return k;
+        }
+    }
+
+    private static double coordinate(GraphDB.Node n, boolean lon) {
+        return lon ? n.lon : n.lat;
+    }
+
+    public int size() {
+        return size;
+    }
+
     private KdNode insertHelper(KdNode root, GraphDB.Node n, int lev) {
         if (root == null) {
             size += 1;
@@ -63,4 +142,75 @@ public class KdTree {
         return best;
     }
 
+    /**
+     * Returns the k points closest to the given longitude and latitude, nearest first.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @param k The maximum number of points to return.
+     * @return Up to k points ordered by great-circle distance from the target.
+     */
+    public List<GraphDB.Node> nearest(double lon, double lat, int k) {
+        return nearest(lon, lat, k, n -> true);
+    }
+
+    /**
+     * Returns the k accepted points closest to the given longitude and latitude, nearest first.
+     * @param accept Which points may be returned; the others are skipped.
+     */
+    public List<GraphDB.Node> nearest(double lon, double lat, int k,
+                                      Predicate<GraphDB.Node> accept) {
+        /* Max-heap of the best points so far; the head is the farthest of them. */
+        PriorityQueue<Neighbor> best = new PriorityQueue<>(
+                (a, b) -> Double.compare(b.distance, a.distance));
+        if (k > 0) {
+            nearestHelper(root, lon, lat, k, accept, best);
+        }
+        List<GraphDB.Node> results = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            results.add(best.poll().point);
+        }
+        Collections.reverse(results);
+        return results;
+    }
+
+    private void nearestHelper(KdNode k, double lon, double lat, int limit,
+                               Predicate<GraphDB.Node> accept, PriorityQueue<Neighbor> best) {
+        if (k == null) {
+            return;
+        }
+        double dist = GraphDB.distance(k.point.lon, k.point.lat, lon, lat);
+        if (!accept.test(k.point)) {
+            dist = Double.POSITIVE_INFINITY;
+        } else if (best.size() < limit) {
+            best.add(new Neighbor(k.point, dist));
+        } else if (dist < best.peek().distance) {
+            best.poll();
+            best.add(new Neighbor(k.point, dist));
+        }
+
+        /* Distance from the target to the splitting line of k, in miles. */
+        double toSplit;
+        boolean goLeft;
+        if (k.level % 2 == 0) {
+            toSplit = GraphDB.distance(k.point.lon, lat, lon, lat);
+            goLeft = k.point.lon > lon;
+        } else {
+            toSplit = GraphDB.distance(lon, k.point.lat, lon, lat);
+            goLeft = k.point.lat > lat;
+        }
+        nearestHelper(goLeft ? k.leftChild : k.rightChild, lon, lat, limit, accept, best);
+        if (best.size() < limit || toSplit < best.peek().distance) {
+            nearestHelper(goLeft ? k.rightChild : k.leftChild, lon, lat, limit, accept, best);
+        }
+    }
+
+    private static class Neighbor {
+        private final GraphDB.Node point;
+        private final double distance;
+
+        Neighbor(GraphDB.Node point, double distance) {
+            this.point = point;
+            this.distance = distance;
+        }
+    }
 }
@@ -0,0 +1,109 @@
+import java.util.Arrays;
+
+/**
+ * A set of longs stored in a single open addressing array, for the millions of OSM ids that
+ * ingest has to remember. A HashSet of Longs costs a boxed Long and a map entry per id, well
+ * over 50 bytes; this costs 8 to 16.
+ *
+ * @author Beiqian Liu
+ */
+public class LongHashSet {
+    private static final int MIN_CAPACITY = 16;
+    /** Marks an empty slot. The id 0 itself is tracked separately in hasEmpty. */
+    private static final long EMPTY = 0;
+
+    private long[] slots;
+    private int size;
+    private boolean hasEmpty;
+
+    public LongHashSet() {
+        slots = new long[MIN_CAPACITY];
+    }
+
+    /**
+     * Adds v to the set.
+     * @return Whether v was not already in the set.
+     */
+    public boolean add(long v) {
+        if (v == EMPTY) {
+            boolean added = !hasEmpty;
+            hasEmpty = true;
+            return added;
+        }
+        int mask = slots.length - 1;
+        int i = hash(v) & mask;
+        while (slots[i] != EMPTY) {
+            if (slots[i] == v) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        slots[i] = v;
+        size++;
+        if (2 * size > slots.length) {
+            grow();
+        }
+        return true;
+    }
+
+    public boolean contains(long v) {
+        if (v == EMPTY) {
+            return hasEmpty;
+        }
+        int mask = slots.length - 1;
+        int i = hash(v) & mask;
+        while (slots[i] != EMPTY) {
+            if (slots[i] == v) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return hasEmpty ? size + 1 : size;
+    }
+
+    /** Doubles the table once it is half full, which keeps probe sequences short. */
+    private void grow() {
+        long[] old = slots;
+        slots = new long[old.length * 2];
+        int mask = slots.length - 1;
+        for (long v : old) {
+            if (v != EMPTY) {
+                int i = hash(v) & mask;
+                while (slots[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = v;
+            }
+        }
+    }
+
+    /** The MurmurHash3 finalizer; OSM ids are dense, so their low bits need mixing. */
+    private static int hash(long v) {
+        v ^= v >>> 33;
+        v *= 0xff51afd7ed558ccdL;
+        v ^= v >>> 33;
+        v *= 0xc4ceb9fe1a85ec53L;
+        v ^= v >>> 33;
+        return (int) v;
+    }
+
+    @Override
+    public String toString() {
+        long[] values = new long[size()];
+        int n = 0;
+        if (hasEmpty) {
+            values[n++] = EMPTY;
+        }
+        for (long v : slots) {
+            if (v != EMPTY) {
+                values[n++] = v;
+            }
+        }
+        Arrays.sort(values);
+        return Arrays.toString(values);
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * A map from longs to ints stored in open addressing arrays, like LongHashSet. Searches use it
+ * to give the vertices they reach dense indices into arrays of their own, instead of boxing an
+ * id and a value into a HashMap entry for every vertex.
+ *
+ * @author Beiqian Liu
+ */
+public class LongIntMap {
+    private static final int MIN_CAPACITY = 16;
+    /** Marks an empty slot. The key 0 itself is tracked separately in hasEmpty. */
+    private static final long EMPTY = 0;
+    /** What get returns for a key that is not in the map. */
+    public static final int MISSING = -1;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+    private boolean hasEmpty;
+    private int emptyValue;
+
+    public LongIntMap() {
+        keys = new long[MIN_CAPACITY];
+        values = new int[MIN_CAPACITY];
+    }
+
+    /** Returns the value of key, or MISSING if it has none. */
+    public int get(long key) {
+        if (key == EMPTY) {
+            return hasEmpty ? emptyValue : MISSING;
+        }
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return MISSING;
+    }
+
+    /** Sets the value of key, replacing any value it had. */
+    public void put(long key, int value) {
+        if (key == EMPTY) {
+            if (!hasEmpty) {
+                size++;
+            }
+            hasEmpty = true;
+            emptyValue = value;
+            return;
+        }
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        if (2 * size > keys.length) {
+            grow();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Doubles the table once it is half full, which keeps probe sequences short. */
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[keys.length];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != EMPTY) {
+                int i = hash(oldKeys[j]) & mask;
+                while (keys[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    /** The MurmurHash3 finalizer, as in LongHashSet. */
+    private static int hash(long v) {
+        v ^= v >>> 33;
+        v *= 0xff51afd7ed558ccdL;
+        v ^= v >>> 33;
+        v *= 0xc4ceb9fe1a85ec53L;
+        v ^= v >>> 33;
+        return (int) v;
+    }
+}
@@ -0,0 +1,122 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This class provides a main method for measuring how many GPS points per second MapMatcher
+ * matches, and how many of them it puts on the road they were recorded on. Traces are made
+ * by driving the cheapest route between random vertices, recording a point every SPACING with
+ * normal noise of deviation NOISE, and a match is right if it is within ON_ROAD of an edge of
+ * the route. The traces are matched a few times to warm up the JIT, then the best of the
+ * timed runs is reported.
+ * Usage: java MapMatchBenchmark [path to OSM file] [number of traces]
+ */
+public class MapMatchBenchmark {
+    private static final String OSM_DB_PATH = "data/berkeley-2018.osm.xml";
+    private static final int TRACES = 200;
+    private static final int WARMUP_RUNS = 3;
+    private static final int TIMED_RUNS = 5;
+    /** Meters between points, and the deviation of their noise in meters. */
+    private static final double SPACING = 25;
+    private static final double NOISE = 5;
+    /** Meters from the route a match may be and still be right. */
+    private static final double ON_ROAD = 1;
+    private static final long SEED = 48;
+
+    public static void main(String[] args) {
+        String path = args.length > 0 ? args[0] : OSM_DB_PATH;
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : TRACES;
+        GraphDB g = new GraphDB(path);
+        List<Long> vertices = new ArrayList<>();
+        for (long v : g.vertices()) {
+            vertices.add(v);
+        }
+
+        Random random = new Random(SEED);
+        List<List<double[]>> traces = new ArrayList<>();
+        List<List<Long>> routes = new ArrayList<>();
+        int points = 0;
+        while (traces.size() < count) {
+            long st = vertices.get(random.nextInt(vertices.size()));
+            long dest = vertices.get(random.nextInt(vertices.size()));
+            List<Long> route = Router.shortestPath(g, g.lon(st), g.lat(st), g.lon(dest),
+                g.lat(dest), Profile.CAR);
+            List<double[]> trace = trace(g, route, SPACING, NOISE, random);
+            if (trace.size() < 2) {
+                continue;
+            }
+            traces.add(trace);
+            routes.add(route);
+            points += trace.size();
+        }
+
+        long best = Long.MAX_VALUE;
+        int matched = 0;
+        int correct = 0;
+        for (int i = 0; i < WARMUP_RUNS + TIMED_RUNS; i++) {
+            matched = 0;
+            correct = 0;
+            long start = System.nanoTime();
+            for (int t = 0; t < traces.size(); t++) {
+                for (MapMatcher.Match m : MapMatcher.match(g, Profile.CAR, traces.get(t))) {
+                    matched += 1;
+                    if (onRoute(g, m.snap, routes.get(t))) {
+                        correct += 1;
+                    }
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            if (i >= WARMUP_RUNS) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        System.out.println(String.format("%d traces, %d points: %8.1f ms  %10.0f points/s",
+                traces.size(), points, best / 1e6, points / (best / 1e9)));
+        System.out.println(String.format("matched %.1f%% of points, %.1f%% onto the route",
+                100.0 * matched / points, 100.0 * correct / points));
+    }
+
+    /**
+     * Returns a trace recorded along a path, a point every spacing meters from its start, each
+     * moved by normal noise of the given deviation in meters.
+     */
+    static List<double[]> trace(RoadGraph g, List<Long> path, double spacing, double noise,
+                                Random random) {
+        double step = spacing / 1609.344;
+        double sigma = noise / 1609.344 / EdgeIndex.MILES_PER_DEGREE;
+        List<double[]> trace = new ArrayList<>();
+        double next = 0;
+        double travelled = 0;
+        for (int i = 0; i + 1 < path.size(); i++) {
+            long v = path.get(i);
+            long w = path.get(i + 1);
+            double length = g.distance(v, w);
+            for (; next < travelled + length; next += step) {
+                double f = (next - travelled) / length;
+                double lat = g.lat(v) + f * (g.lat(w) - g.lat(v));
+                double lon = g.lon(v) + f * (g.lon(w) - g.lon(v));
+                double cos = Math.cos(Math.toRadians(lat));
+                trace.add(new double[]{lon + random.nextGaussian() * sigma / cos,
+                    lat + random.nextGaussian() * sigma});
+            }
+            travelled += length;
+        }
+        return trace;
+    }
+
+    /** Returns whether a snap is within ON_ROAD of an edge of a path. */
+    static boolean onRoute(RoadGraph g, RoadGraph.Snap snap, List<Long> path) {
+        double cos = Math.cos(Math.toRadians(snap.lat));
+        double[] fraction = new double[1];
+        for (int i = 0; i + 1 < path.size(); i++) {
+            long v = path.get(i);
+            long w = path.get(i + 1);
+            double d = EdgeIndex.project(snap.lon, snap.lat, cos, g.lon(v), g.lat(v), g.lon(w),
+                g.lat(w), fraction);
+            if (Math.sqrt(d) * EdgeIndex.MILES_PER_DEGREE * 1609.344 <= ON_ROAD) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,375 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Matches GPS traces onto the road graph with a hidden Markov model, after Newson and Krumm,
+ * "Hidden Markov Map Matching Through Noise and Sparseness". The hidden states of a point
+ * are its snaps onto the roads within RADIUS of it. A snap is likelier the closer it is to the
+ * point, GPS error being normal with deviation SIGMA, and a move between the snaps of two
+ * points is likelier the closer the road distance between them is to the straight one. The
+ * road distances come from one search per snap of the earlier point, bounded to a few times
+ * the straight distance, and Viterbi picks the likeliest sequence of snaps.
+ *
+ * Points are added one at a time and matches are handed to a consumer as soon as they are
+ * certain: once every snap still possible for the latest point descends from the same snap of
+ * an earlier one, no later point can change the matches up to there. When no road connects
+ * two points within the bound, say after a gap in the trace, the match so far is finished and
+ * a new one starts.
+ *
+ * @author Beiqian Liu
+ */
+public class MapMatcher {
+    private static final double METERS_PER_MILE = 1609.344;
+    /** The deviation of GPS error, in miles. */
+    private static final double SIGMA = 10 / METERS_PER_MILE;
+    /** How much longer a route may be than the straight line and be e times less likely. */
+    private static final double BETA = 10 / METERS_PER_MILE;
+    /** How far from a point roads are taken as its snaps, in miles. */
+    private static final double RADIUS = 50 / METERS_PER_MILE;
+    /** The most snaps of a point kept, nearest first. */
+    private static final int MAX_CANDIDATES = 8;
+    /** A search between points gives up beyond DETOUR times their distance, plus SLACK. */
+    private static final double DETOUR = 2;
+    private static final double SLACK = 100 / METERS_PER_MILE;
+    /** A step back along an edge that may only be travelled forward, taken as GPS error. */
+    private static final double JITTER = 2 * SIGMA;
+
+    private final RoadGraph g;
+    private final Profile profile;
+    private final Consumer<Match> sink;
+    /** The steps not matched yet, oldest first, and the step added last. */
+    private final List<Step> steps = new ArrayList<>();
+    private Step previous;
+    /** The number of points added. */
+    private int points;
+
+    /**
+     * @param profile The profile the trace was travelled under, e.g. CAR so that one-way
+     *                streets are followed the right way.
+     * @param sink Receives the match of every point, in order, as soon as it is certain.
+     */
+    public MapMatcher(RoadGraph g, Profile profile, Consumer<Match> sink) {
+        this.g = g;
+        this.profile = profile;
+        this.sink = sink;
+    }
+
+    /**
+     * Returns the matches of a whole trace.
+     * @param trace The points of the trace as {lon, lat}, in the order they were recorded.
+     */
+    public static List<Match> match(RoadGraph g, Profile profile, List<double[]> trace) {
+        List<Match> matches = new ArrayList<>();
+        MapMatcher matcher = new MapMatcher(g, profile, matches::add);
+        for (double[] point : trace) {
+            matcher.add(point[0], point[1]);
+        }
+        matcher.finish();
+        return matches;
+    }
+
+    /**
+     * Adds the next point of the trace, handing the consumer the matches this makes certain.
+     * A point with no road within RADIUS is not matched at all.
+     */
+    public void add(double lon, double lat) {
+        int point = points++;
+        List<RoadGraph.Snap> candidates = g.snapsWithin(lon, lat, RADIUS, profile);
+        if (candidates.isEmpty()) {
+            return;
+        }
+        if (candidates.size() > MAX_CANDIDATES) {
+            candidates = new ArrayList<>(candidates.subList(0, MAX_CANDIDATES));
+        }
+        Step step = new Step(point, lon, lat, candidates);
+        if (previous != null && !step.follow(previous)) {
+            finish();
+        }
+        steps.add(step);
+        previous = step;
+        emitCertain();
+    }
+
+    /**
+     * Matches every point added so far by the likeliest snaps of the latest one, so the next
+     * point starts a new match.
+     */
+    public void finish() {
+        if (!steps.isEmpty()) {
+            Step last = steps.get(steps.size() - 1);
+            int best = 0;
+            for (int c = 1; c < last.score.length; c++) {
+                if (last.score[c] > last.score[best]) {
+                    best = c;
+                }
+            }
+            emit(steps.size() - 1, best);
+        }
+        previous = null;
+    }
+
+    /** Emits the steps up to the latest one every live snap of the last step descends from. */
+    private void emitCertain() {
+        int k = steps.size() - 1;
+        Set<Integer> live = new HashSet<>();
+        for (int c = 0; c < steps.get(k).score.length; c++) {
+            if (steps.get(k).score[c] > Double.NEGATIVE_INFINITY) {
+                live.add(c);
+            }
+        }
+        for (; live.size() > 1 && k > 0; k--) {
+            Set<Integer> parents = new HashSet<>();
+            for (int c : live) {
+                parents.add(steps.get(k).back[c]);
+            }
+            live = parents;
+        }
+        if (live.size() == 1) {
+            emit(k, live.iterator().next());
+        }
+    }
+
+    /** Emits the steps up to k, following the back pointers of snap c of step k. */
+    private void emit(int k, int c) {
+        int[] chosen = new int[k + 1];
+        for (int s = k; s >= 0; s--) {
+            chosen[s] = c;
+            c = steps.get(s).back[c];
+        }
+        for (int s = 0; s <= k; s++) {
+            sink.accept(steps.get(s).match(chosen[s]));
+        }
+        /* Step k stays the predecessor of the next point, through its chosen snap only. */
+        Step last = steps.get(k);
+        for (int i = 0; i < last.score.length; i++) {
+            if (i != chosen[k]) {
+                last.score[i] = Double.NEGATIVE_INFINITY;
+            }
+        }
+        steps.subList(0, k + 1).clear();
+    }
+
+    /** The match of one point of a trace. */
+    public static class Match {
+        /** The index of the point among those added. */
+        public final int point;
+        /** Where the point lies on the road. */
+        public final RoadGraph.Snap snap;
+        /**
+         * Whether a route joins the previous match to this one. The first match, and the first
+         * after a gap no route crosses, are not connected.
+         */
+        public final boolean connected;
+        /**
+         * The vertices the route passes from the previous match to this one, leaving the edge
+         * of one and entering the edge of the other; empty if both are on one edge.
+         */
+        public final List<Long> vertices;
+        /** The length of the route in miles. */
+        public final double distance;
+
+        Match(int point, RoadGraph.Snap snap, boolean connected, List<Long> vertices,
+              double distance) {
+            this.point = point;
+            this.snap = snap;
+            this.connected = connected;
+            this.vertices = vertices;
+            this.distance = distance;
+        }
+    }
+
+    /**
+     * One point of the trace as Viterbi sees it: for each of its snaps, the log likelihood of
+     * the likeliest sequence of snaps ending there, the snap of the step before on it, and the
+     * route from that snap.
+     */
+    private class Step {
+        private final int point;
+        private final double lon;
+        private final double lat;
+        private final List<RoadGraph.Snap> candidates;
+        private final double[] score;
+        /** The snap of the step before, or -1 if this step starts a match. */
+        private final int[] back;
+        private final List<List<Long>> routes;
+        private final double[] distance;
+
+        /** Makes a step that starts a match. */
+        Step(int point, double lon, double lat, List<RoadGraph.Snap> candidates) {
+            this.point = point;
+            this.lon = lon;
+            this.lat = lat;
+            this.candidates = candidates;
+            int n = candidates.size();
+            score = new double[n];
+            back = new int[n];
+            routes = new ArrayList<>(Collections.nCopies(n, Collections.emptyList()));
+            distance = new double[n];
+            Arrays.fill(back, -1);
+            for (int c = 0; c < n; c++) {
+                score[c] = emission(c);
+            }
+        }
+
+        private double emission(int c) {
+            double d = candidates.get(c).distance / SIGMA;
+            return -0.5 * d * d;
+        }
+
+        /**
+         * Scores the snaps as successors of the step before. Returns false, leaving the step
+         * one that starts a match, if no route within the bound reaches any of them.
+         */
+        boolean follow(Step before) {
+            double straight = GraphDB.distance(before.lon, before.lat, lon, lat);
+            double limit = DETOUR * straight + SLACK;
+            double[] next = new double[score.length];
+            Arrays.fill(next, Double.NEGATIVE_INFINITY);
+            for (int i = 0; i < before.score.length; i++) {
+                if (before.score[i] == Double.NEGATIVE_INFINITY) {
+                    continue;
+                }
+                Reach reach = new Reach(before.candidates.get(i), limit);
+                for (int c = 0; c < score.length; c++) {
+                    double d = reach.distanceTo(candidates.get(c));
+                    double s = before.score[i] - Math.abs(d - straight) / BETA;
+                    if (s > next[c]) {
+                        next[c] = s;
+                        back[c] = i;
+                        distance[c] = d;
+                        routes.set(c, reach.route());
+                    }
+                }
+            }
+            boolean reached = false;
+            for (int c = 0; c < score.length; c++) {
+                reached |= next[c] > Double.NEGATIVE_INFINITY;
+            }
+            if (!reached) {
+                Arrays.fill(back, -1);
+                return false;
+            }
+            for (int c = 0; c < score.length; c++) {
+                score[c] = next[c] + emission(c);
+            }
+            return true;
+        }
+
+        Match match(int c) {
+            return new Match(point, candidates.get(c), back[c] >= 0, routes.get(c), distance[c]);
+        }
+    }
+
+    /** The road distances from a snap to the vertices within a bound, by Dijkstra's. */
+    private class Reach {
+        private final RoadGraph.Snap origin;
+        private final Map<Long, Double> distTo = new HashMap<>();
+        private final Map<Long, Long> edgeTo = new HashMap<>();
+        /** The vertex the last distanceTo entered the snap's edge at, or null if none. */
+        private Long entry;
+
+        Reach(RoadGraph.Snap origin, double limit) {
+            this.origin = origin;
+            PriorityQueue<Entry> pq = new PriorityQueue<>();
+            seed(pq, origin.to, (1 - origin.fraction) * origin.length, origin.forwardPace);
+            seed(pq, origin.from, origin.fraction * origin.length, origin.backwardPace);
+            Set<Long> marked = new HashSet<>();
+            while (!pq.isEmpty()) {
+                Entry e = pq.remove();
+                if (e.dist > limit) {
+                    break;
+                }
+                if (!marked.add(e.vertex)) {
+                    continue;
+                }
+                long v = e.vertex;
+                double vLon = g.lon(v);
+                double vLat = g.lat(v);
+                g.forEachNeighbor(v, profile, (w, edge, cost, lon, lat) -> {
+                    double d = e.dist + GraphDB.distance(vLon, vLat, lon, lat);
+                    if (d < distTo.getOrDefault(w, Double.POSITIVE_INFINITY)) {
+                        distTo.put(w, d);
+                        edgeTo.put(w, v);
+                        pq.add(new Entry(w, d));
+                    }
+                });
+            }
+        }
+
+        /** Starts at an end of the origin's edge, if the pace lets the origin reach it. */
+        private void seed(PriorityQueue<Entry> pq, long v, double dist, double pace) {
+            if ((dist == 0 || pace < Double.POSITIVE_INFINITY)
+                    && dist < distTo.getOrDefault(v, Double.POSITIVE_INFINITY)) {
+                distTo.put(v, dist);
+                edgeTo.remove(v);
+                pq.add(new Entry(v, dist));
+            }
+        }
+
+        /** Returns the road distance from the origin to a snap, or infinity beyond the bound. */
+        double distanceTo(RoadGraph.Snap to) {
+            double best = Double.POSITIVE_INFINITY;
+            entry = null;
+            if (to.edge == origin.edge) {
+                double along = (to.fraction - origin.fraction) * to.length;
+                double pace = along >= 0 ? to.forwardPace : to.backwardPace;
+                if (along == 0 || pace < Double.POSITIVE_INFINITY) {
+                    best = Math.abs(along);
+                } else if (-along <= JITTER) {
+                    best = 0;
+                }
+            }
+            double viaFrom = to.fraction == 0 || to.forwardPace < Double.POSITIVE_INFINITY
+                ? distTo.getOrDefault(to.from, Double.POSITIVE_INFINITY)
+                    + to.fraction * to.length : Double.POSITIVE_INFINITY;
+            if (viaFrom < best) {
+                best = viaFrom;
+                entry = to.from;
+            }
+            double viaTo = to.fraction == 1 || to.backwardPace < Double.POSITIVE_INFINITY
+                ? distTo.getOrDefault(to.to, Double.POSITIVE_INFINITY)
+                    + (1 - to.fraction) * to.length : Double.POSITIVE_INFINITY;
+            if (viaTo < best) {
+                best = viaTo;
+                entry = to.to;
+            }
+            return best;
+        }
+
+        /** Returns the vertices of the route the last distanceTo measured. */
+        List<Long> route() {
+            if (entry == null) {
+                return Collections.emptyList();
+            }
+            VertexPath path = new VertexPath();
+            for (Long v = entry; v != null; v = edgeTo.get(v)) {
+                path.add(v);
+            }
+            path.reverse();
+            return path.asList();
+        }
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        private final long vertex;
+        private final double dist;
+
+        Entry(long vertex, double dist) {
+            this.vertex = vertex;
+            this.dist = dist;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            return Double.compare(dist, o.dist);
+        }
+    }
+}
@@ -4,6 +4,10 @@ import java.awt.BasicStroke;
 import java.awt.Color;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
@@ -60,11 +64,24 @@ public class MapServer {
      * Each route request to the server will have the following parameters
      * as keys in the params map.<br>
      * start_lat : start point latitude,<br> start_lon : start point longitude,<br>
-     * end_lat : end point latitude, <br>end_lon : end point longitude.
+     * end_lat : end point latitude, <br>end_lon : end point longitude.<br>
+     * It may also have profile : distance (the default), car, bike or walk, to find the
+     * shortest route or the quickest one for that way of travelling.
      **/
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
         "end_lat", "end_lon"};
 
+    /**
+     * A full search request may rank its results by distance from a point, given either as
+     * lon : longitude, lat : latitude, <br>
+     * or as the center of the viewport ullon, ullat, lrlon, lrlat.
+     **/
+    private static final String[] SEARCH_POINT_PARAMS = {"lon", "lat"};
+    private static final String[] SEARCH_VIEWPORT_PARAMS = {"ullon", "ullat", "lrlon", "lrlat"};
+
+    /** Time a fuzzy autocomplete lookup may take before it returns what it has found. */
+    private static final long FUZZY_BUDGET_NANOS = 20_000_000L;
+
     /**
      * The result of rastering must be a map containing all of the
      * fields listed in the comments for getMapRaster in Rasterer.java.
@@ -73,8 +90,13 @@ public class MapServer {
         "raster_ul_lat", "raster_lr_lon", "raster_lr_lat", "depth", "query_success"};
 
     private static Rasterer rasterer;
-    private static GraphDB graph;
-    private static List<Long> route = new LinkedList<>();
+    /** Serves the current graph; read it once per request, since a reload may replace it. */
+    private static GraphReloader graphs;
+    /**
+     * The current route, or null if there is none. A route request replaces it whole, so read
+     * it once per request to see one route.
+     */
+    private static volatile CurrentRoute route;
     /* Define any static variables here. Do not define any instance variables of MapServer. */
 
 
@@ -84,7 +106,9 @@ public class MapServer {
      * This is for testing purposes, and you may fail tests otherwise.
      **/
     public static void initialize() {
-        graph = new GraphDB(OSM_DB_PATH);
+        GraphDB graph = new GraphDB(OSM_DB_PATH, GraphDB.Parser.SCANNER);
+        System.out.print("Graph built:\n" + graph.buildReport());
+        graphs = new GraphReloader(graph, OSM_DB_PATH, GraphDB.Parser.SCANNER);
         rasterer = new Rasterer();
     }
 
@@ -122,19 +146,43 @@ public class MapServer {
             return gson.toJson(rasteredImgParams);
         });
 
-        /* Define the routing endpoint for HTTP GET requests. */
+        /* Define the routing endpoint for HTTP GET requests. The answer, with the route in
+         * the compact form RouteWriter describes, is written straight to the response. */
         get("/route", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            route = Router.shortestPath(graph, params.get("start_lon"), params.get("start_lat"),
-                    params.get("end_lon"), params.get("end_lat"));
-            String directions = getDirectionsText();
-            Map<String, Object> routeParams = new HashMap<>();
-            routeParams.put("routing_success", !route.isEmpty());
-            routeParams.put("directions_success", directions.length() > 0);
-            routeParams.put("directions", directions);
+            Profile profile = getProfile(req);
+            GraphDB g = graphs.get().snapshot();
+            Router.Route found = Router.route(g, params.get("start_lon"),
+                    params.get("start_lat"), params.get("end_lon"), params.get("end_lat"),
+                    profile);
+            route = found.found() ? new CurrentRoute(g, found) : null;
+            List<Router.NavigationDirection> directions =
+                    Router.routeDirections(g, found.vertices);
+            res.type("application/json");
+            Writer out = new BufferedWriter(new OutputStreamWriter(
+                    res.raw().getOutputStream(), StandardCharsets.UTF_8));
+            new RouteWriter(out).write(g, found, directions);
+            out.flush();
+            return "";
+        });
+
+        /* Define the API endpoint for the geometry of the current route, simplified for the
+         * optional depth parameter and encoded as a polyline. */
+        get("/route_geometry", (req, res) -> {
+            int depth = getDepth(req);
+            Map<String, Object> geometry = new HashMap<>();
+            double[][] points = routePoints();
+            geometry.put("routing_success", points != null);
+            geometry.put("depth", depth);
+            if (points != null) {
+                int[] kept = Polyline.simplify(points[0], points[1], depth);
+                geometry.put("polyline", Polyline.encode(points[0], points[1], kept));
+                geometry.put("points", kept.length);
+                geometry.put("route_points", points[0].length);
+            }
             Gson gson = new Gson();
-            return gson.toJson(routeParams);
+            return gson.toJson(geometry);
         });
 
         /* Define the API endpoint for clearing the current route. */
@@ -149,9 +197,27 @@ public class MapServer {
             String term = req.queryParams("term");
             Gson gson = new Gson();
             /* Search for actual location data. */
-            if (reqParams.contains("full")) {
+            if (reqParams.contains("full") && reqParams.contains("lon")
+                    && reqParams.contains("lat")) {
+                /* Rank the locations by distance from a point. */
+                HashMap<String, Double> point = getRequestParams(req, SEARCH_POINT_PARAMS);
+                List<Map<String, Object>> data = getLocations(term, point.get("lon"),
+                        point.get("lat"), getLimitOrAll(req));
+                return gson.toJson(data);
+            } else if (reqParams.contains("full") && reqParams.contains("ullon")) {
+                /* Rank the locations by distance from the center of the viewport. */
+                HashMap<String, Double> box = getRequestParams(req, SEARCH_VIEWPORT_PARAMS);
+                List<Map<String, Object>> data = getLocations(term,
+                        (box.get("ullon") + box.get("lrlon")) / 2,
+                        (box.get("ullat") + box.get("lrlat")) / 2, getLimitOrAll(req));
+                return gson.toJson(data);
+            } else if (reqParams.contains("full")) {
                 List<Map<String, Object>> data = getLocations(term);
                 return gson.toJson(data);
+            } else if (reqParams.contains("limit")) {
+                /* Search for the most popular prefix matching strings. */
+                List<String> matches = getLocationsByPrefix(term, getLimit(req));
+                return gson.toJson(matches);
             } else {
                 /* Search for prefix matching strings. */
                 List<String> matches = getLocationsByPrefix(term);
@@ -159,6 +225,57 @@ public class MapServer {
             }
         });
 
+        /* Define the API endpoint for the autocomplete cache counters. */
+        get("/search_stats", (req, res) -> {
+            Gson gson = new Gson();
+            return gson.toJson(graphs.get().getPrefixCache().stats());
+        });
+
+        /* Define the API endpoint for the shortest-path tree cache counters. */
+        get("/route_stats", (req, res) -> {
+            Gson gson = new Gson();
+            return gson.toJson(graphs.get().getPathTreeCache().stats());
+        });
+
+        /* The admin endpoints change what the server serves, so only allow them locally. */
+        before("/admin/*", (req, res) -> {
+            if (!isLocal(req.ip())) {
+                halt(HALT_RESPONSE, "Admin requests are only accepted from this machine.");
+            }
+        });
+
+        /* Define the API endpoint for rebuilding the graph, from the optional path parameter
+         * or else from the file it was last built from. Requests keep being answered with the
+         * old graph until the new one is built. */
+        post("/admin/reload", (req, res) -> {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("started", graphs.reload(req.queryParams("path")));
+            status.putAll(graphs.status());
+            Gson gson = new Gson();
+            return gson.toJson(status);
+        });
+
+        get("/admin/status", (req, res) -> {
+            Gson gson = new Gson();
+            return gson.toJson(graphs.status());
+        });
+
+        /* Define the API endpoint for applying an OSM change file, posted as the body, to the
+         * graph being served. The change is kept and applied again after a reload from the
+         * same file, see GraphReloader. */
+        post("/admin/changes", (req, res) -> {
+            int applied = 0;
+            try {
+                applied = graphs.applyChanges(req.bodyAsBytes());
+            } catch (IOException e) {
+                halt(HALT_RESPONSE, "Invalid change file - " + e.getMessage());
+            }
+            Map<String, Object> result = new HashMap<>();
+            result.put("applied", applied);
+            Gson gson = new Gson();
+            return gson.toJson(result);
+        });
+
         /* Define map application redirect */
         get("/", (request, response) -> {
             response.redirect("/map.html", 301);
@@ -166,6 +283,11 @@ public class MapServer {
         });
     }
 
+    /** Returns whether a request came from this machine. */
+    private static boolean isLocal(String ip) {
+        return ip.equals("127.0.0.1") || ip.equals("::1") || ip.equals("0:0:0:0:0:0:0:1");
+    }
+
     /**
      * Validate & return a parameter map of the required request parameters.
      * Requires that all input parameters are doubles.
@@ -192,6 +314,64 @@ public class MapServer {
         return params;
     }
 
+    /** Returns the Profile named by the "profile" parameter of a request, or DISTANCE. */
+    private static Profile getProfile(spark.Request req) {
+        String name = req.queryParams("profile");
+        if (name == null) {
+            return Profile.DISTANCE;
+        }
+        try {
+            return Profile.of(name);
+        } catch (IllegalArgumentException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - unknown profile " + name + ".");
+            return null;
+        }
+    }
+
+    /**
+     * Parses the optional non-negative integer "limit" parameter of a request.
+     * @param req HTTP Request.
+     * @return The requested limit.
+     */
+    private static int getLimit(spark.Request req) {
+        int limit = 0;
+        try {
+            limit = Integer.parseInt(req.queryParams("limit"));
+        } catch (NumberFormatException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - provide an integer limit.");
+        }
+        if (limit < 0) {
+            halt(HALT_RESPONSE, "Incorrect parameters - limit must not be negative.");
+        }
+        return limit;
+    }
+
+    /**
+     * Parses the optional "depth" parameter of a request, a depth of the tiles that defaults
+     * to the deepest.
+     */
+    private static int getDepth(spark.Request req) {
+        if (!req.queryParams().contains("depth")) {
+            return Rasterer.maxDepth();
+        }
+        int depth = 0;
+        try {
+            depth = Integer.parseInt(req.queryParams("depth"));
+        } catch (NumberFormatException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - provide an integer depth.");
+        }
+        if (depth < 0 || depth > Rasterer.maxDepth()) {
+            halt(HALT_RESPONSE, "Incorrect parameters - depth must be from 0 to "
+                    + Rasterer.maxDepth() + ".");
+        }
+        return depth;
+    }
+
+    /** Returns the "limit" parameter of a request, or no limit if it has none. */
+    private static int getLimitOrAll(spark.Request req) {
+        return req.queryParams().contains("limit") ? getLimit(req) : Integer.MAX_VALUE;
+    }
+
     /**
      * Writes the images corresponding to rasteredImgParams to the output stream.
      * In Spring 2016, students had to do this on their own, but in 2017,
@@ -227,18 +407,23 @@ public class MapServer {
 
         final double wdpp = (lrlon - ullon) / img.getWidth();
         final double hdpp = (ullat - lrlat) / img.getHeight();
-        if (route != null && !route.isEmpty()) {
+        double[][] points = routePoints();
+        if (points != null) {
             Graphics2D g2d = (Graphics2D) graphic;
             g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
             g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
                     BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-            route.stream().reduce((v, w) -> {
-                g2d.drawLine((int) ((graph.lon(v) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(v)) * (1 / hdpp)),
-                             (int) ((graph.lon(w) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(w)) * (1 / hdpp)));
-                return w;
-            });
+            /* Points closer to the line than a pixel at this depth would not show. */
+            int[] kept = Polyline.simplify(points[0], points[1],
+                    (int) rasteredImageParams.get("depth"));
+            for (int i = 0; i + 1 < kept.length; i++) {
+                int v = kept[i];
+                int w = kept[i + 1];
+                g2d.drawLine((int) ((points[0][v] - ullon) * (1 / wdpp)),
+                             (int) ((ullat - points[1][v]) * (1 / hdpp)),
+                             (int) ((points[0][w] - ullon) * (1 / wdpp)),
+                             (int) ((ullat - points[1][w]) * (1 / hdpp)));
+            }
         }
 
         rasteredImageParams.put("raster_width", img.getWidth());
@@ -252,6 +437,49 @@ public class MapServer {
 
     }
 
+    /**
+     * Returns the longitudes and latitudes of the points of the current route, or null if
+     * there is none. The route runs from its start point, through its vertices, to its end
+     * point.
+     */
+    private static double[][] routePoints() {
+        CurrentRoute current = route;
+        if (current == null) {
+            return null;
+        }
+        List<Long> vertices = current.vertices;
+        double[] lons = new double[vertices.size() + 2];
+        double[] lats = new double[vertices.size() + 2];
+        lons[0] = current.start.lon;
+        lats[0] = current.start.lat;
+        int i = 1;
+        for (long v : vertices) {
+            lons[i] = current.graph.lon(v);
+            lats[i] = current.graph.lat(v);
+            i += 1;
+        }
+        lons[i] = current.end.lon;
+        lats[i] = current.end.lat;
+        return new double[][]{lons, lats};
+    }
+
+    /** A route that was found, with everything needed to draw it. */
+    private static class CurrentRoute {
+        /** The snapshot of the graph the route was found on, which still has all its nodes. */
+        final GraphDB graph;
+        final List<Long> vertices;
+        /** The points on the roads the route starts and ends at. */
+        final RoadGraph.Snap start;
+        final RoadGraph.Snap end;
+
+        CurrentRoute(GraphDB graph, Router.Route found) {
+            this.graph = graph;
+            this.vertices = Collections.unmodifiableList(found.vertices);
+            this.start = found.start;
+            this.end = found.end;
+        }
+    }
+
     private static BufferedImage getImage(String imgPath) {
         BufferedImage tileImg = null;
         if (tileImg == null) {
@@ -269,24 +497,55 @@ public class MapServer {
      * Clear the current found route, if it exists.
      */
     public static void clearRoute() {
-        route = new LinkedList<Long>();
+        route = null;
     }
 
     /**
-     * In linear time, collect all the names of OSM locations that prefix-match the query string.
+     * Collect all the names of OSM locations that prefix-match the query string, in time
+     * logarithmic in the number of names plus the number of matches.
      * @param prefix Prefix string to be searched for. Could be any case, with our without
      *               punctuation.
      * @return A <code>List</code> of the full names of locations whose cleaned name matches the
      * cleaned <code>prefix</code>.
      */
     public static List<String> getLocationsByPrefix(String prefix) {
-        prefix = prefix.toLowerCase();
+        return graphs.get().getPrefixCache().withPrefix(prefix);
+    }
 
-        Tries tries = graph.getTries();
-        List<String> results = tries.withPrefix(prefix);
+    /**
+     * Collect at most <code>limit</code> names of OSM locations that prefix-match the query
+     * string, most popular first. Popularity is the number of locations sharing a name. The cost
+     * depends on <code>limit</code>, not on how many names share the prefix. If nothing
+     * matches, names starting within a couple of typos of the prefix are suggested instead.
+     * @param prefix Prefix string to be searched for. Could be any case, with our without
+     *               punctuation.
+     * @param limit Maximum number of names to return.
+     * @return A <code>List</code> of the full names of the best matching locations.
+     */
+    public static List<String> getLocationsByPrefix(String prefix, int limit) {
+        GraphDB graph = graphs.get();
+        List<String> results = graph.getPrefixCache().topK(prefix, limit);
+        int maxEdits = fuzzyEdits(prefix);
+        if (results.isEmpty() && maxEdits > 0) {
+            results = graph.getPrefixIndex().fuzzy(prefix, maxEdits, limit, FUZZY_BUDGET_NANOS);
+        }
         return results;
     }
 
+    /**
+     * Returns how many typos a fuzzy lookup tolerates for a prefix: none for very short
+     * prefixes, where almost every name would be within reach, and at most two.
+     */
+    private static int fuzzyEdits(String prefix) {
+        int length = GraphDB.cleanString(prefix).length();
+        if (length < 4) {
+            return 0;
+        } else if (length < 8) {
+            return 1;
+        }
+        return 2;
+    }
+
     /**
      * Collect all locations that match a cleaned <code>locationName</code>, and return
      * information about each node that matches.
@@ -300,25 +559,48 @@ public class MapServer {
      * "id" : Number, The id of the node. <br>
      */
     public static List<Map<String, Object>> getLocations(String locationName) {
-        locationName = locationName.toLowerCase();
+        locationName = GraphDB.cleanString(locationName);
         List<Map<String, Object>> results = new LinkedList<>();
-        Map<String, Object> locations = graph.getLocations();
-
-        if (locations.containsKey(locationName)) {
-            List<GraphDB.Node> nodes = (ArrayList) locations.get(locationName);
+        List<GraphDB.Node> nodes = graphs.get().getLocations().get(locationName);
+        if (nodes != null) {
             for (GraphDB.Node n : nodes) {
-                Map<String, Object> node = new HashMap<>();
-                node.put("lat", n.lat);
-                node.put("lon", n.lon);
-                node.put("name", n.location);
-                node.put("id", n.id);
-                results.add(node);
+                results.add(locationParams(n));
             }
         }
-        
+
         return results;
     }
 
+    /**
+     * Collect the locations that match a cleaned <code>locationName</code> closest to a point,
+     * nearest first. Only the returned locations are looked at one by one, so common names
+     * cost no more than rare ones.
+     * @param locationName A full name of a location searched for.
+     * @param lon The longitude to rank by.
+     * @param lat The latitude to rank by.
+     * @param limit The maximum number of locations to return.
+     * @return A list of at most <code>limit</code> locations, in the format described by
+     * {@link #getLocations(String)}.
+     */
+    public static List<Map<String, Object>> getLocations(String locationName, double lon,
+                                                         double lat, int limit) {
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (GraphDB.Node n : graphs.get().nearestLocations(locationName, lon, lat, limit)) {
+            results.add(locationParams(n));
+        }
+        return results;
+    }
+
+    /** Returns the Json parameters of a location, as specified in getLocations. */
+    private static Map<String, Object> locationParams(GraphDB.Node n) {
+        Map<String, Object> node = new HashMap<>();
+        node.put("lat", n.lat);
+        node.put("lon", n.lon);
+        node.put("name", n.location);
+        node.put("id", n.id);
+        return node;
+    }
+
     /**
      * Validates that Rasterer has returned a result that can be rendered.
      * @param rip : Parameters provided by the rasterer
@@ -339,22 +621,4 @@ public class MapServer {
         }
         return true;
     }
-
-    /**
-     * Takes the route of this MapServer and converts it into an HTML friendly
-     * String to be passed to the frontend.
-     */
-    private static String getDirectionsText() {
-        List<Router.NavigationDirection> directions = Router.routeDirections(graph, route);
-        if (directions == null || directions.isEmpty()) {
-          return "";
-        }
-        StringBuilder sb = new StringBuilder();
-        int step = 1;
-        for (Router.NavigationDirection d: directions) {
-            sb.append(String.format("%d. %s <br>", step, d));
-            step += 1;
-        }
-        return sb.toString();
-    }
 }
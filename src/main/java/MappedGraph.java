@@ -0,0 +1,596 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A road graph stored in a memory-mapped file instead of on the heap. The coordinates,
+ * adjacency lists and edge attributes are flat arrays in the file, read in place through
+ * buffers, so the heap only holds the few objects a request creates and a graph of any size
+ * adds nothing to garbage collection. Every process that opens the same file shares one copy
+ * of it in the page cache.
+ *
+ * A file is written once from a GraphDB by {@link #write}, and opened by {@link #open}. The
+ * vertices are stored in the order of a balanced kd-tree: the middle vertex of every range
+ * splits the rest of the range, by longitude at even depths and by latitude at odd ones. That
+ * makes the vertex arrays their own spatial index, which closest searches without building
+ * anything. Edge lengths are stored with the adjacency, the pace of every edge under every
+ * Profile, the TurnRestrictions and an EdgeIndex with the edge attributes, and the latitude
+ * range with the header, so a search reads everything it needs from the arrays. Each section
+ * of the file is mapped on its own and so may hold up to 2 GB, e.g. 268 million coordinates.
+ *
+ * @author Beiqian Liu
+ */
+public class MappedGraph implements RoadGraph {
+    private static final int MAGIC = 0x424d4731;
+    private static final int VERSION = 5;
+    private static final int SECTIONS = 23;
+    /** Six ints, the lower bound's latitude, and the offset and length of every section. */
+    private static final int HEADER_SIZE = 6 * 4 + 8 + SECTIONS * 2 * 8;
+
+    /* The sections of the file, in order. */
+    private static final int IDS = 0;
+    private static final int LONS = 1;
+    private static final int LATS = 2;
+    private static final int ADJ_START = 3;
+    private static final int ADJ_TARGET = 4;
+    private static final int ADJ_EDGE = 5;
+    private static final int SORTED_IDS = 6;
+    private static final int SORTED_INDEX = 7;
+    private static final int EDGE_CLASS = 8;
+    private static final int EDGE_SPEED = 9;
+    private static final int EDGE_FLAGS = 10;
+    private static final int EDGE_NAME = 11;
+    private static final int NAME_START = 12;
+    private static final int NAME_BYTES = 13;
+    private static final int ADJ_LENGTH = 14;
+    private static final int EDGE_PACE = 15;
+    private static final int RESTRICTED_FROM = 16;
+    private static final int FORBIDDEN_TURNS = 17;
+    private static final int EDGE_ENDS = 18;
+    private static final int INDEX_GRID = 19;
+    private static final int INDEX_CELL_START = 20;
+    private static final int INDEX_CELL_EDGES = 21;
+    private static final int INDEX_SEGMENTS = 22;
+
+    private final int size;
+    /** Vertex ids, coordinates and adjacency in kd-tree order, by vertex index. */
+    private final LongBuffer ids;
+    private final DoubleBuffer lons;
+    private final DoubleBuffer lats;
+    /** The neighbors of vertex i are adjTarget[adjStart[i]] to adjTarget[adjStart[i + 1]]. */
+    private final IntBuffer adjStart;
+    private final IntBuffer adjTarget;
+    /** The edge of each neighbor, stored like GraphDB.Node.edges, and its length. */
+    private final IntBuffer adjEdge;
+    private final DoubleBuffer adjLength;
+    /** The ids in ascending order with the index of each, for looking vertices up by id. */
+    private final LongBuffer sortedIds;
+    private final IntBuffer sortedIndex;
+    private final ByteBuffer edgeClass;
+    private final FloatBuffer edgeSpeed;
+    private final ByteBuffer edgeFlags;
+    private final IntBuffer edgeName;
+    /** The paces of every edge, laid out like EdgeTable's: one array per profile and direction. */
+    private final FloatBuffer edgePace;
+    private final int edgeCount;
+    private final IntBuffer nameStart;
+    private final ByteBuffer nameBytes;
+    private final Equirectangular lowerBound;
+    private final TurnRestrictions turnRestrictions;
+    /** The ids of the vertices every edge leaves and enters, by edge id, and an index of them. */
+    private final LongBuffer edgeEnds;
+    private final EdgeIndex edgeIndex;
+
+    private MappedGraph(FileChannel channel) throws IOException {
+        ByteBuffer header = map(channel, 0, HEADER_SIZE);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a mapped graph file");
+        }
+        if (header.getInt() != VERSION) {
+            throw new IOException("Unsupported mapped graph version");
+        }
+        size = header.getInt();
+        header.getInt();
+        edgeCount = header.getInt();
+        header.position(6 * 4);
+        lowerBound = Equirectangular.forLatitudes(header.getDouble());
+        ByteBuffer[] sections = new ByteBuffer[SECTIONS];
+        for (int i = 0; i < SECTIONS; i++) {
+            sections[i] = map(channel, header.getLong(), header.getLong());
+        }
+        ids = sections[IDS].asLongBuffer();
+        lons = sections[LONS].asDoubleBuffer();
+        lats = sections[LATS].asDoubleBuffer();
+        adjStart = sections[ADJ_START].asIntBuffer();
+        adjTarget = sections[ADJ_TARGET].asIntBuffer();
+        adjEdge = sections[ADJ_EDGE].asIntBuffer();
+        adjLength = sections[ADJ_LENGTH].asDoubleBuffer();
+        sortedIds = sections[SORTED_IDS].asLongBuffer();
+        sortedIndex = sections[SORTED_INDEX].asIntBuffer();
+        edgeClass = sections[EDGE_CLASS];
+        edgeSpeed = sections[EDGE_SPEED].asFloatBuffer();
+        edgeFlags = sections[EDGE_FLAGS];
+        edgeName = sections[EDGE_NAME].asIntBuffer();
+        edgePace = sections[EDGE_PACE].asFloatBuffer();
+        turnRestrictions = new TurnRestrictions(sections[RESTRICTED_FROM].asIntBuffer(),
+            sections[FORBIDDEN_TURNS].asLongBuffer());
+        edgeEnds = sections[EDGE_ENDS].asLongBuffer();
+        edgeIndex = new EdgeIndex(sections[INDEX_GRID].asDoubleBuffer(),
+            sections[INDEX_CELL_START].asIntBuffer(), sections[INDEX_CELL_EDGES].asIntBuffer(),
+            sections[INDEX_SEGMENTS].asDoubleBuffer());
+        nameStart = sections[NAME_START].asIntBuffer();
+        nameBytes = sections[NAME_BYTES];
+    }
+
+    /**
+     * Maps a graph file written by write. The mapping stays valid after the file is closed.
+     * @throws IOException If the file cannot be read or is not a graph file.
+     */
+    public static MappedGraph open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return new MappedGraph(raf.getChannel());
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long length)
+            throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, length)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** Returns the number of vertices. */
+    public int size() {
+        return size;
+    }
+
+    /** Returns the index of a vertex, or -1 if there is no vertex with that id. */
+    private int index(long id) {
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long midId = sortedIds.get(mid);
+            if (midId < id) {
+                lo = mid + 1;
+            } else if (midId > id) {
+                hi = mid - 1;
+            } else {
+                return sortedIndex.get(mid);
+            }
+        }
+        return -1;
+    }
+
+    private int vertex(long id) {
+        int i = index(id);
+        if (i < 0) {
+            throw new IllegalArgumentException("No vertex " + id);
+        }
+        return i;
+    }
+
+    @Override
+    public Iterable<Long> vertices() {
+        return () -> new Iterator<Long>() {
+            private int i = 0;
+
+            @Override
+            public boolean hasNext() {
+                return i < size;
+            }
+
+            @Override
+            public Long next() {
+                if (i == size) {
+                    throw new NoSuchElementException();
+                }
+                return ids.get(i++);
+            }
+        };
+    }
+
+    @Override
+    public Iterable<Long> adjacent(long v) {
+        int i = vertex(v);
+        int from = adjStart.get(i);
+        int to = adjStart.get(i + 1);
+        List<Long> adj = new ArrayList<>(to - from);
+        for (int j = from; j < to; j++) {
+            adj.add(ids.get(adjTarget.get(j)));
+        }
+        return adj;
+    }
+
+    @Override
+    public void forEachNeighbor(long v, Profile profile, NeighborVisitor visitor) {
+        int i = vertex(v);
+        for (int j = adjStart.get(i); j < adjStart.get(i + 1); j++) {
+            float pace = pace(profile, adjEdge.get(j));
+            if (pace < Float.POSITIVE_INFINITY) {
+                int w = adjTarget.get(j);
+                visitor.visit(ids.get(w), adjEdge.get(j), adjLength.get(j) * pace, lons.get(w),
+                        lats.get(w));
+            }
+        }
+    }
+
+    @Override
+    public void forEachPredecessor(long v, Profile profile, NeighborVisitor visitor) {
+        int i = vertex(v);
+        for (int j = adjStart.get(i); j < adjStart.get(i + 1); j++) {
+            float pace = pace(profile, ~adjEdge.get(j));
+            if (pace < Float.POSITIVE_INFINITY) {
+                int w = adjTarget.get(j);
+                visitor.visit(ids.get(w), ~adjEdge.get(j), adjLength.get(j) * pace, lons.get(w),
+                        lats.get(w));
+            }
+        }
+    }
+
+    /** Returns the pace of an edge entry under a profile, like EdgeTable.pace. */
+    private float pace(Profile profile, int edgeEntry) {
+        return edgeEntry >= 0 ? edgePace.get(2 * profile.ordinal() * edgeCount + edgeEntry)
+            : edgePace.get((2 * profile.ordinal() + 1) * edgeCount + ~edgeEntry);
+    }
+
+    /** Returns whether the profile may travel any edge of vertex i, in either direction. */
+    private boolean accessible(int i, Profile profile) {
+        for (int j = adjStart.get(i); j < adjStart.get(i + 1); j++) {
+            int entry = adjEdge.get(j);
+            if (pace(profile, entry) < Float.POSITIVE_INFINITY
+                    || pace(profile, ~entry) < Float.POSITIVE_INFINITY) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Equirectangular lowerBound() {
+        return lowerBound;
+    }
+
+    @Override
+    public TurnRestrictions turnRestrictions() {
+        return turnRestrictions;
+    }
+
+    @Override
+    public double lon(long v) {
+        return lons.get(vertex(v));
+    }
+
+    @Override
+    public double lat(long v) {
+        return lats.get(vertex(v));
+    }
+
+    @Override
+    public long closest(double lon, double lat) {
+        return closest(lon, lat, Profile.DISTANCE);
+    }
+
+    @Override
+    public long closest(double lon, double lat, Profile profile) {
+        double[] best = {-1, Double.POSITIVE_INFINITY};
+        nearest(0, size, 0, lon, lat, profile, best);
+        return best[0] < 0 ? -1 : ids.get((int) best[0]);
+    }
+
+    @Override
+    public Snap snap(double lon, double lat, Profile profile) {
+        double[] result = new double[2];
+        int edge = edgeIndex.nearest(lon, lat, e -> pace(profile, e) < Float.POSITIVE_INFINITY
+            || pace(profile, ~e) < Float.POSITIVE_INFINITY, result);
+        return edge < 0 ? null : snap(lon, lat, edge, result[0], profile);
+    }
+
+    @Override
+    public List<Snap> snapsWithin(double lon, double lat, double radius, Profile profile) {
+        List<Snap> snaps = new ArrayList<>();
+        edgeIndex.within(lon, lat, radius / EdgeIndex.MILES_PER_DEGREE,
+            e -> pace(profile, e) < Float.POSITIVE_INFINITY
+                || pace(profile, ~e) < Float.POSITIVE_INFINITY,
+            (e, fraction, d) -> snaps.add(snap(lon, lat, e, fraction, profile)));
+        snaps.sort(Comparator.comparingDouble(snap -> snap.distance));
+        return snaps;
+    }
+
+    /** Returns the point a fraction along an edge as the snap of the given location. */
+    private Snap snap(double lon, double lat, int edge, double fraction, Profile profile) {
+        int i = vertex(edgeEnds.get(2 * edge));
+        int j = vertex(edgeEnds.get(2 * edge + 1));
+        Snap snap = new Snap();
+        snap.edge = edge;
+        snap.from = ids.get(i);
+        snap.to = ids.get(j);
+        snap.fraction = fraction;
+        snap.lon = lons.get(i) + fraction * (lons.get(j) - lons.get(i));
+        snap.lat = lats.get(i) + fraction * (lats.get(j) - lats.get(i));
+        snap.length = GraphDB.distance(lons.get(i), lats.get(i), lons.get(j), lats.get(j));
+        snap.forwardPace = pace(profile, edge);
+        snap.backwardPace = pace(profile, ~edge);
+        snap.distance = GraphDB.distance(lon, lat, snap.lon, snap.lat);
+        return snap;
+    }
+
+    /**
+     * Searches the kd-tree over the vertices lo to hi for the vertex closest to the target
+     * that the profile may use. best holds the index of the closest vertex found so far and
+     * its distance.
+     */
+    private void nearest(int lo, int hi, int depth, double lon, double lat, Profile profile,
+                         double[] best) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        double midLon = lons.get(mid);
+        double midLat = lats.get(mid);
+        double dist = GraphDB.distance(midLon, midLat, lon, lat);
+        if (dist < best[1] && (profile == Profile.DISTANCE || accessible(mid, profile))) {
+            best[0] = mid;
+            best[1] = dist;
+        }
+        double toSplit;
+        boolean goLeft;
+        if (depth % 2 == 0) {
+            toSplit = GraphDB.distance(midLon, lat, lon, lat);
+            goLeft = lon < midLon;
+        } else {
+            toSplit = GraphDB.distance(lon, midLat, lon, lat);
+            goLeft = lat < midLat;
+        }
+        if (goLeft) {
+            nearest(lo, mid, depth + 1, lon, lat, profile, best);
+        } else {
+            nearest(mid + 1, hi, depth + 1, lon, lat, profile, best);
+        }
+        if (toSplit < best[1]) {
+            if (goLeft) {
+                nearest(mid + 1, hi, depth + 1, lon, lat, profile, best);
+            } else {
+                nearest(lo, mid, depth + 1, lon, lat, profile, best);
+            }
+        }
+    }
+
+    /**
+     * Returns the id of the first edge between v and w, or -1 if they are not adjacent. Edge
+     * ids are those of the GraphDB the file was written from.
+     */
+    public int edge(long v, long w) {
+        int i = vertex(v);
+        int target = index(w);
+        for (int j = adjStart.get(i); j < adjStart.get(i + 1); j++) {
+            if (adjTarget.get(j) == target) {
+                return GraphDB.Node.edgeId(adjEdge.get(j));
+            }
+        }
+        return -1;
+    }
+
+    public RoadClass roadClass(int edge) {
+        return RoadClass.of(edgeClass.get(edge));
+    }
+
+    public float speed(int edge) {
+        return edgeSpeed.get(edge);
+    }
+
+    public boolean hasFlag(int edge, int flag) {
+        return (edgeFlags.get(edge) & flag) != 0;
+    }
+
+    /** Returns the name of the way between two adjacent vertices, like GraphDB does. */
+    public String getWayName(long v, long w) {
+        int edge = edge(v, w);
+        if (edge < 0) {
+            return null;
+        }
+        int name = edgeName.get(edge);
+        if (name < 0) {
+            return "unknown road";
+        }
+        int start = nameStart.get(name);
+        byte[] bytes = new byte[nameStart.get(name + 1) - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = nameBytes.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the vertices, edges and way names of a graph to a file that open can map,
+     * replacing the file if it exists.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(GraphDB g, File file) throws IOException {
+        List<GraphDB.Node> list = new ArrayList<>();
+        for (long v : g.vertices()) {
+            list.add(g.node(v));
+        }
+        GraphDB.Node[] vertices = list.toArray(new GraphDB.Node[0]);
+        kdOrder(vertices, 0, vertices.length, 0);
+        int n = vertices.length;
+        Map<Long, Integer> indexOf = new HashMap<>();
+        int adjCount = 0;
+        for (int i = 0; i < n; i++) {
+            indexOf.put(vertices[i].id, i);
+            adjCount += vertices[i].adj.size();
+        }
+        Integer[] byId = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            byId[i] = i;
+        }
+        Arrays.sort(byId, Comparator.comparingLong(i -> vertices[i].id));
+
+        EdgeTable edges = g.getEdges();
+        int edgeCount = edges.size();
+        Map<String, Integer> nameIndex = new HashMap<>();
+        List<byte[]> names = new ArrayList<>();
+        int nameLength = 0;
+        int[] edgeNames = new int[edgeCount];
+        for (int e = 0; e < edgeCount; e++) {
+            String name = g.edgeName(e);
+            if (name == null) {
+                edgeNames[e] = -1;
+                continue;
+            }
+            Integer index = nameIndex.get(name);
+            if (index == null) {
+                index = names.size();
+                nameIndex.put(name, index);
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                names.add(bytes);
+                nameLength += bytes.length;
+            }
+            edgeNames[e] = index;
+        }
+
+        long[] lengths = new long[SECTIONS];
+        lengths[IDS] = 8L * n;
+        lengths[LONS] = 8L * n;
+        lengths[LATS] = 8L * n;
+        lengths[ADJ_START] = 4L * (n + 1);
+        lengths[ADJ_TARGET] = 4L * adjCount;
+        lengths[ADJ_EDGE] = 4L * adjCount;
+        lengths[SORTED_IDS] = 8L * n;
+        lengths[SORTED_INDEX] = 4L * n;
+        lengths[EDGE_CLASS] = edgeCount;
+        lengths[EDGE_SPEED] = 4L * edgeCount;
+        lengths[EDGE_FLAGS] = edgeCount;
+        lengths[EDGE_NAME] = 4L * edgeCount;
+        lengths[NAME_START] = 4L * (names.size() + 1);
+        lengths[NAME_BYTES] = nameLength;
+        lengths[ADJ_LENGTH] = 8L * adjCount;
+        lengths[EDGE_PACE] = 4L * 2 * Profile.COUNT * edgeCount;
+        TurnRestrictions restrictions = g.turnRestrictions();
+        lengths[RESTRICTED_FROM] = 4L * restrictions.fromCount();
+        lengths[FORBIDDEN_TURNS] = 8L * restrictions.size();
+        EdgeIndex index = EdgeIndex.build(g.edgeSegments());
+        lengths[EDGE_ENDS] = 8L * 2 * edgeCount;
+        lengths[INDEX_GRID] = 8L * 5;
+        lengths[INDEX_CELL_START] = 4L * (index.cellCount() + 1);
+        lengths[INDEX_CELL_EDGES] = 4L * index.entryCount();
+        lengths[INDEX_SEGMENTS] = 8L * 4 * index.edgeCount();
+        long[] offsets = new long[SECTIONS];
+        long end = HEADER_SIZE;
+        for (int i = 0; i < SECTIONS; i++) {
+            /* Keep every section 8 byte aligned. */
+            offsets[i] = (end + 7) & ~7L;
+            end = offsets[i] + lengths[i];
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.setLength(end);
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = writable(channel, 0, HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(adjCount).putInt(edgeCount)
+                .putInt(names.size());
+            header.putDouble(g.lowerBound().maxAbsLat());
+            ByteBuffer[] s = new ByteBuffer[SECTIONS];
+            for (int i = 0; i < SECTIONS; i++) {
+                header.putLong(offsets[i]).putLong(lengths[i]);
+                s[i] = writable(channel, offsets[i], lengths[i]);
+            }
+
+            int adj = 0;
+            for (int i = 0; i < n; i++) {
+                GraphDB.Node v = vertices[i];
+                s[IDS].putLong(v.id);
+                s[LONS].putDouble(v.lon);
+                s[LATS].putDouble(v.lat);
+                s[ADJ_START].putInt(adj);
+                for (int j = 0; j < v.adj.size(); j++) {
+                    s[ADJ_TARGET].putInt(indexOf.get(v.adj.get(j)));
+                    s[ADJ_EDGE].putInt(v.edges[j]);
+                    s[ADJ_LENGTH].putDouble(v.lengths[j]);
+                }
+                adj += v.adj.size();
+            }
+            s[ADJ_START].putInt(adj);
+            for (int i : byId) {
+                s[SORTED_IDS].putLong(vertices[i].id);
+                s[SORTED_INDEX].putInt(i);
+            }
+            for (int e = 0; e < edgeCount; e++) {
+                s[EDGE_CLASS].put((byte) edges.roadClass(e).ordinal());
+                s[EDGE_SPEED].putFloat(edges.speed(e));
+                s[EDGE_FLAGS].put((byte) ((edges.hasFlag(e, EdgeTable.ONEWAY)
+                    ? EdgeTable.ONEWAY : 0) | (edges.hasFlag(e, EdgeTable.ROUNDABOUT)
+                    ? EdgeTable.ROUNDABOUT : 0)));
+                s[EDGE_NAME].putInt(edgeNames[e]);
+            }
+            for (Profile p : Profile.values()) {
+                for (int e = 0; e < edgeCount; e++) {
+                    s[EDGE_PACE].putFloat(edges.pace(p, e));
+                }
+                for (int e = 0; e < edgeCount; e++) {
+                    s[EDGE_PACE].putFloat(edges.pace(p, ~e));
+                }
+            }
+            restrictions.writeFroms(s[RESTRICTED_FROM].asIntBuffer());
+            restrictions.writeTurns(s[FORBIDDEN_TURNS].asLongBuffer());
+            for (int e = 0; e < edgeCount; e++) {
+                s[EDGE_ENDS].putLong(edges.from(e)).putLong(edges.to(e));
+            }
+            index.write(s[INDEX_GRID].asDoubleBuffer(), s[INDEX_CELL_START].asIntBuffer(),
+                s[INDEX_CELL_EDGES].asIntBuffer(), s[INDEX_SEGMENTS].asDoubleBuffer());
+            int offset = 0;
+            for (byte[] name : names) {
+                s[NAME_START].putInt(offset);
+                s[NAME_BYTES].put(name);
+                offset += name.length;
+            }
+            s[NAME_START].putInt(offset);
+        }
+    }
+
+    private static ByteBuffer writable(FileChannel channel, long position, long length)
+            throws IOException {
+        return channel.map(FileChannel.MapMode.READ_WRITE, position, length)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** Arranges the vertices lo to hi in the order nearest expects. */
+    private static void kdOrder(GraphDB.Node[] vertices, int lo, int hi, int depth) {
+        if (hi - lo <= 1) {
+            return;
+        }
+        Arrays.sort(vertices, lo, hi, depth % 2 == 0
+            ? Comparator.<GraphDB.Node>comparingDouble(v -> v.lon)
+            : Comparator.<GraphDB.Node>comparingDouble(v -> v.lat));
+        int mid = (lo + hi) >>> 1;
+        kdOrder(vertices, lo, mid, depth + 1);
+        kdOrder(vertices, mid + 1, hi, depth + 1);
+    }
+
+    /**
+     * Converts a map file into a graph file.
+     * @param args The map file to read and the graph file to write.
+     */
+    public static void main(String[] args) throws IOException {
+        GraphDB g = new GraphDB(args[0], GraphDB.Parser.SCANNER);
+        write(g, new File(args[1]));
+        MappedGraph mapped = open(new File(args[1]));
+        System.out.println("Wrote " + mapped.size() + " vertices to " + args[1]);
+    }
+}
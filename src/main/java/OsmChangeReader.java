@@ -0,0 +1,144 @@
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads OSM change files (.osc), the format OSM publishes its minutely, hourly and daily diffs
+ * in. See the <a href="https://wiki.openstreetmap.org/wiki/OsmChange">OsmChange
+ * documentation</a>. A change file lists create, modify and delete blocks; modified elements
+ * are given in full, with all of their tags and nds, not as a difference.
+ *
+ * Relations are skipped, as they are when a whole file is parsed. Elements with negative ids,
+ * which editors give to objects not yet uploaded to OSM, are rejected: searches use negative
+ * ids for states of their own, so they would clash with those, and such a file is not a diff
+ * OSM published anyway.
+ *
+ * @author Beiqian Liu
+ */
+public class OsmChangeReader extends DefaultHandler {
+    enum Action {
+        CREATE, MODIFY, DELETE
+    }
+
+    /** One created, modified or deleted node or way. */
+    static class Change {
+        final Action action;
+        final boolean isWay;
+        final long id;
+        double lon;
+        double lat;
+        final Map<String, String> tags = new HashMap<>();
+        long[] nds = new long[0];
+
+        Change(Action action, boolean isWay, long id) {
+            this.action = action;
+            this.isWay = isWay;
+            this.id = id;
+        }
+    }
+
+    private final List<Change> changes = new ArrayList<>();
+    private Action action;
+    private Change current;
+    private long[] nds = new long[64];
+    private int ndCount;
+
+    /**
+     * Reads a whole change file.
+     * @return The changes, in the order the file lists them.
+     * @throws IOException If the input cannot be read or is not a valid change file.
+     */
+    static List<Change> read(InputStream in) throws IOException {
+        OsmChangeReader reader = new OsmChangeReader();
+        try {
+            SAXParserFactory.newInstance().newSAXParser().parse(in, reader);
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Invalid OSM change file", e);
+        }
+        return reader.changes;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes)
+            throws SAXException {
+        switch (qName) {
+            case "create":
+                action = Action.CREATE;
+                break;
+            case "modify":
+                action = Action.MODIFY;
+                break;
+            case "delete":
+                action = Action.DELETE;
+                break;
+            case "node":
+            case "way":
+                if (action == null) {
+                    throw new SAXException(qName + " outside of create, modify or delete");
+                }
+                current = new Change(action, qName.equals("way"),
+                        id(attributes.getValue("id")));
+                ndCount = 0;
+                if (!current.isWay && attributes.getValue("lat") != null) {
+                    current.lon = Double.parseDouble(attributes.getValue("lon"));
+                    current.lat = Double.parseDouble(attributes.getValue("lat"));
+                }
+                break;
+            case "nd":
+                if (current != null) {
+                    if (ndCount == nds.length) {
+                        nds = Arrays.copyOf(nds, 2 * ndCount);
+                    }
+                    nds[ndCount++] = id(attributes.getValue("ref"));
+                }
+                break;
+            case "tag":
+                if (current != null) {
+                    current.tags.put(attributes.getValue("k"), attributes.getValue("v"));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /** Parses an id, which must not be negative. */
+    private static long id(String value) throws SAXException {
+        long id = Long.parseLong(value);
+        if (id < 0) {
+            throw new SAXException("Negative id " + id + " of an object not uploaded to OSM");
+        }
+        return id;
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        switch (qName) {
+            case "create":
+            case "modify":
+            case "delete":
+                action = null;
+                break;
+            case "node":
+            case "way":
+                if (current != null) {
+                    current.nds = Arrays.copyOf(nds, ndCount);
+                    changes.add(current);
+                    current = null;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,663 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads OSM PBF files, the protocol buffer format real extracts are distributed in, and feeds
+ * them to a GraphBuildingHandler with the same node, way, nd, tag, relation, member and end
+ * calls the XML parsers make. See the
+ * <a href="https://wiki.openstreetmap.org/wiki/PBF_Format">PBF format documentation</a>.
+ *
+ * A PBF file is a sequence of independent blobs, each a zlib compressed block of nodes, ways
+ * or relations. Blobs are read in order on the calling thread, then inflated and decoded on a
+ * pool of worker threads, and the decoded blocks are handed to the handler in file order, so
+ * the handler itself never needs to be thread safe. Protocol buffers are decoded by hand; only
+ * the fields the graph needs are looked at.
+ *
+ * @author Beiqian Liu
+ */
+public class OsmPbfReader {
+    /** Blobs bigger than this are invalid according to the format. */
+    private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    /** Features a file may require that this reader understands. */
+    private static final String[] SUPPORTED_FEATURES = {"OsmSchema-V0.6", "DenseNodes"};
+
+    private final InputStream in;
+    private final GraphBuildingHandler handler;
+    private final int threads;
+
+    /**
+     * Create a reader that feeds the PBF data read from {@code in} to {@code handler}, decoding
+     * on as many threads as there are processors.
+     * @param in The input to read. It is not closed by the reader.
+     * @param handler The handler to call for every element.
+     */
+    public OsmPbfReader(InputStream in, GraphBuildingHandler handler) {
+        this(in, handler, Runtime.getRuntime().availableProcessors());
+    }
+
+    public OsmPbfReader(InputStream in, GraphBuildingHandler handler, int threads) {
+        this.in = in;
+        this.handler = handler;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Returns whether the given first bytes of a file look like OSM PBF: a 4 byte length
+     * followed by a BlobHeader whose type is "OSMHeader".
+     */
+    static boolean isPbf(byte[] head, int length) {
+        byte[] type = "OSMHeader".getBytes(StandardCharsets.US_ASCII);
+        if (length < 6 + type.length || head[4] != 0x0a || head[5] != type.length) {
+            return false;
+        }
+        for (int i = 0; i < type.length; i++) {
+            if (head[6 + i] != type[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the whole input, calling the handler for every node and way.
+     * @throws IOException If the input cannot be read or is not valid PBF.
+     */
+    public void read() throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "pbf-decoder");
+            t.setDaemon(true);
+            return t;
+        });
+        Queue<Future<Block>> pending = new ArrayDeque<>();
+        try {
+            byte[] blob;
+            while ((blob = nextBlob(data)) != null) {
+                final byte[] b = blob;
+                pending.add(pool.submit(() -> decodeBlock(inflate(b))));
+                /* Bound the memory held by decoded blocks waiting for the handler. */
+                if (pending.size() >= 2 * threads) {
+                    await(pending.remove()).apply(handler);
+                }
+            }
+            while (!pending.isEmpty()) {
+                await(pending.remove()).apply(handler);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static Block await(Future<Block> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding PBF", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Could not decode PBF block", e.getCause());
+        }
+    }
+
+    /**
+     * Returns the next OSMData blob, still compressed, or null at the end of the input. The
+     * OSMHeader blob is checked for features this reader does not support and not returned.
+     */
+    private byte[] nextBlob(DataInputStream data) throws IOException {
+        while (true) {
+            int headerSize;
+            try {
+                headerSize = data.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            if (headerSize < 0 || headerSize > MAX_HEADER_SIZE) {
+                throw new IOException("Invalid PBF blob header size " + headerSize);
+            }
+            byte[] header = new byte[headerSize];
+            data.readFully(header);
+            String type = null;
+            int dataSize = -1;
+            Message m = new Message(header, 0, headerSize);
+            while (m.next()) {
+                if (m.field == 1) {
+                    type = m.string();
+                } else if (m.field == 3) {
+                    dataSize = (int) m.varint;
+                }
+            }
+            if (dataSize < 0 || dataSize > MAX_BLOB_SIZE) {
+                throw new IOException("Invalid PBF blob size " + dataSize);
+            }
+            byte[] blob = new byte[dataSize];
+            data.readFully(blob);
+            if ("OSMHeader".equals(type)) {
+                checkHeader(inflate(blob));
+            } else if ("OSMData".equals(type)) {
+                return blob;
+            }
+            /* Blobs of unknown types must be skipped. */
+        }
+    }
+
+    private static void checkHeader(byte[] block) throws IOException {
+        Message m = new Message(block, 0, block.length);
+        while (m.next()) {
+            if (m.field == 4) {
+                String feature = m.string();
+                if (!Arrays.asList(SUPPORTED_FEATURES).contains(feature)) {
+                    throw new IOException("Unsupported PBF feature " + feature);
+                }
+            }
+        }
+    }
+
+    /** Returns the uncompressed contents of a Blob message. */
+    private static byte[] inflate(byte[] blob) throws IOException {
+        Message m = new Message(blob, 0, blob.length);
+        int rawSize = -1;
+        byte[] raw = null;
+        int zlibStart = -1;
+        int zlibEnd = -1;
+        while (m.next()) {
+            if (m.field == 1) {
+                raw = Arrays.copyOfRange(blob, m.start, m.end);
+            } else if (m.field == 2) {
+                rawSize = (int) m.varint;
+            } else if (m.field == 3) {
+                zlibStart = m.start;
+                zlibEnd = m.end;
+            } else if (m.wireType == 2) {
+                throw new IOException("Unsupported PBF compression, field " + m.field);
+            }
+        }
+        if (raw != null) {
+            return raw;
+        }
+        if (zlibStart < 0 || rawSize < 0 || rawSize > MAX_BLOB_SIZE) {
+            throw new IOException("PBF blob has no data");
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(blob, zlibStart, zlibEnd - zlibStart);
+            byte[] out = new byte[rawSize];
+            int n = 0;
+            while (n < rawSize && !inflater.finished()) {
+                int read = inflater.inflate(out, n, rawSize - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != rawSize) {
+                throw new IOException("PBF blob is shorter than its declared size");
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt zlib data in PBF blob", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** Decodes a PrimitiveBlock into the nodes and ways it holds. */
+    private static Block decodeBlock(byte[] data) throws IOException {
+        Message m = new Message(data, 0, data.length);
+        String[] strings = new String[0];
+        long granularity = 100;
+        long latOffset = 0;
+        long lonOffset = 0;
+        /* Groups can only be decoded once the string table and granularity are known. */
+        int[] groups = new int[8];
+        int numGroups = 0;
+        while (m.next()) {
+            switch (m.field) {
+                case 1:
+                    strings = decodeStrings(data, m.start, m.end);
+                    break;
+                case 2:
+                    if (numGroups + 2 > groups.length) {
+                        groups = Arrays.copyOf(groups, groups.length * 2);
+                    }
+                    groups[numGroups++] = m.start;
+                    groups[numGroups++] = m.end;
+                    break;
+                case 17:
+                    granularity = m.varint;
+                    break;
+                case 19:
+                    latOffset = m.varint;
+                    break;
+                case 20:
+                    lonOffset = m.varint;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        Block block = new Block(strings, granularity, latOffset, lonOffset);
+        for (int i = 0; i < numGroups; i += 2) {
+            Message g = new Message(data, groups[i], groups[i + 1]);
+            while (g.next()) {
+                if (g.field == 1) {
+                    block.decodeNode(new Message(data, g.start, g.end));
+                } else if (g.field == 2) {
+                    block.decodeDense(new Message(data, g.start, g.end));
+                } else if (g.field == 3) {
+                    block.decodeWay(new Message(data, g.start, g.end));
+                } else if (g.field == 4) {
+                    block.decodeRelation(new Message(data, g.start, g.end));
+                }
+            }
+        }
+        return block;
+    }
+
+    private static String[] decodeStrings(byte[] data, int start, int end) throws IOException {
+        Message m = new Message(data, start, end);
+        String[] strings = new String[16];
+        int n = 0;
+        while (m.next()) {
+            if (m.field == 1) {
+                if (n == strings.length) {
+                    strings = Arrays.copyOf(strings, n * 2);
+                }
+                strings[n++] = m.string();
+            }
+        }
+        return Arrays.copyOf(strings, n);
+    }
+
+    /**
+     * The nodes and ways of one decoded PrimitiveBlock, in primitive arrays, ready to be
+     * replayed to a handler. Nodes come before ways, and ways before relations, as they do in
+     * every PBF block. Relations are few, so they are kept as objects.
+     */
+    private static class Block {
+        private final String[] strings;
+        private final long granularity;
+        private final long latOffset;
+        private final long lonOffset;
+
+        private long[] nodeIds = new long[256];
+        private double[] lons = new double[256];
+        private double[] lats = new double[256];
+        /** Tags of node i are nodeTags[nodeTagStart[i] .. nodeTagStart[i + 1]), as pairs. */
+        private int[] nodeTagStart = new int[257];
+        private int numNodes = 0;
+        private int[] nodeTags = new int[64];
+        private int numNodeTags = 0;
+
+        private long[] wayIds = new long[16];
+        /** Refs of way i are refs[wayRefStart[i] .. wayRefStart[i + 1]). */
+        private int[] wayRefStart = new int[17];
+        private long[] refs = new long[256];
+        private int numRefs = 0;
+        /** Tags of way i are wayTags[wayTagStart[i] .. wayTagStart[i + 1]), as pairs. */
+        private int[] wayTagStart = new int[17];
+        private int[] wayTags = new int[64];
+        private int numWayTags = 0;
+        private int numWays = 0;
+
+        private final List<Relation> relations = new ArrayList<>();
+
+        Block(String[] strings, long granularity, long latOffset, long lonOffset) {
+            this.strings = strings;
+            this.granularity = granularity;
+            this.latOffset = latOffset;
+            this.lonOffset = lonOffset;
+        }
+
+        /**
+         * Converts a coordinate in units of granularity nanodegrees to degrees. Dividing the
+         * exact integer by 1e9 rounds the same way as parsing the decimal string in XML does.
+         */
+        private double coordinate(long offset, long value) {
+            return (offset + granularity * value) / 1e9;
+        }
+
+        void decodeNode(Message m) throws IOException {
+            long id = 0;
+            long lat = 0;
+            long lon = 0;
+            int[] keys = new int[0];
+            int[] vals = new int[0];
+            while (m.next()) {
+                if (m.field == 1) {
+                    id = Message.zigzag(m.varint);
+                } else if (m.field == 2) {
+                    keys = m.packedInts();
+                } else if (m.field == 3) {
+                    vals = m.packedInts();
+                } else if (m.field == 8) {
+                    lat = Message.zigzag(m.varint);
+                } else if (m.field == 9) {
+                    lon = Message.zigzag(m.varint);
+                }
+            }
+            addNode(id, coordinate(lonOffset, lon), coordinate(latOffset, lat));
+            for (int i = 0; i < Math.min(keys.length, vals.length); i++) {
+                addNodeTag(keys[i], vals[i]);
+            }
+        }
+
+        void decodeDense(Message m) throws IOException {
+            byte[] data = m.data;
+            int idStart = 0, idEnd = 0, latStart = 0, latEnd = 0, lonStart = 0, lonEnd = 0;
+            int kvStart = 0, kvEnd = 0;
+            while (m.next()) {
+                if (m.field == 1) {
+                    idStart = m.start;
+                    idEnd = m.end;
+                } else if (m.field == 8) {
+                    latStart = m.start;
+                    latEnd = m.end;
+                } else if (m.field == 9) {
+                    lonStart = m.start;
+                    lonEnd = m.end;
+                } else if (m.field == 10) {
+                    kvStart = m.start;
+                    kvEnd = m.end;
+                }
+            }
+            Message ids = new Message(data, idStart, idEnd);
+            Message lats = new Message(data, latStart, latEnd);
+            Message lonsIn = new Message(data, lonStart, lonEnd);
+            Message keysVals = new Message(data, kvStart, kvEnd);
+            long id = 0;
+            long lat = 0;
+            long lon = 0;
+            while (ids.hasMore()) {
+                /* Ids and coordinates are delta coded against the previous node. */
+                id += Message.zigzag(ids.readVarint());
+                lat += Message.zigzag(lats.readVarint());
+                lon += Message.zigzag(lonsIn.readVarint());
+                addNode(id, coordinate(lonOffset, lon), coordinate(latOffset, lat));
+                /* Each node's tags are key, value string indexes ended by a 0. */
+                while (keysVals.hasMore()) {
+                    int k = (int) keysVals.readVarint();
+                    if (k == 0) {
+                        break;
+                    }
+                    addNodeTag(k, (int) keysVals.readVarint());
+                }
+            }
+        }
+
+        void decodeWay(Message m) throws IOException {
+            long id = 0;
+            int[] keys = new int[0];
+            int[] vals = new int[0];
+            int refStart = 0;
+            int refEnd = 0;
+            while (m.next()) {
+                if (m.field == 1) {
+                    id = m.varint;
+                } else if (m.field == 2) {
+                    keys = m.packedInts();
+                } else if (m.field == 3) {
+                    vals = m.packedInts();
+                } else if (m.field == 8) {
+                    refStart = m.start;
+                    refEnd = m.end;
+                }
+            }
+            if (numWays + 1 == wayIds.length) {
+                wayIds = Arrays.copyOf(wayIds, wayIds.length * 2);
+                wayRefStart = Arrays.copyOf(wayRefStart, wayIds.length + 1);
+                wayTagStart = Arrays.copyOf(wayTagStart, wayIds.length + 1);
+            }
+            wayIds[numWays] = id;
+            Message r = new Message(m.data, refStart, refEnd);
+            long ref = 0;
+            while (r.hasMore()) {
+                ref += Message.zigzag(r.readVarint());
+                if (numRefs == refs.length) {
+                    refs = Arrays.copyOf(refs, refs.length * 2);
+                }
+                refs[numRefs++] = ref;
+            }
+            for (int i = 0; i < Math.min(keys.length, vals.length); i++) {
+                if (numWayTags + 2 > wayTags.length) {
+                    wayTags = Arrays.copyOf(wayTags, wayTags.length * 2);
+                }
+                wayTags[numWayTags++] = keys[i];
+                wayTags[numWayTags++] = vals[i];
+            }
+            numWays += 1;
+            wayRefStart[numWays] = numRefs;
+            wayTagStart[numWays] = numWayTags;
+        }
+
+        void decodeRelation(Message m) throws IOException {
+            Relation r = new Relation();
+            while (m.next()) {
+                if (m.field == 1) {
+                    r.id = m.varint;
+                } else if (m.field == 2) {
+                    r.keys = m.packedInts();
+                } else if (m.field == 3) {
+                    r.vals = m.packedInts();
+                } else if (m.field == 8) {
+                    r.roles = m.packedInts();
+                } else if (m.field == 9) {
+                    /* Member ids are delta coded against the previous member. */
+                    Message ids = new Message(m.data, m.start, m.end);
+                    long[] memberIds = new long[8];
+                    int n = 0;
+                    long id = 0;
+                    while (ids.hasMore()) {
+                        id += Message.zigzag(ids.readVarint());
+                        if (n == memberIds.length) {
+                            memberIds = Arrays.copyOf(memberIds, n * 2);
+                        }
+                        memberIds[n++] = id;
+                    }
+                    r.memberIds = Arrays.copyOf(memberIds, n);
+                } else if (m.field == 10) {
+                    r.types = m.packedInts();
+                }
+            }
+            relations.add(r);
+        }
+
+        private void addNode(long id, double lon, double lat) {
+            if (numNodes + 1 == nodeIds.length) {
+                nodeIds = Arrays.copyOf(nodeIds, nodeIds.length * 2);
+                lons = Arrays.copyOf(lons, nodeIds.length);
+                lats = Arrays.copyOf(lats, nodeIds.length);
+                nodeTagStart = Arrays.copyOf(nodeTagStart, nodeIds.length + 1);
+            }
+            nodeIds[numNodes] = id;
+            lons[numNodes] = lon;
+            lats[numNodes] = lat;
+            numNodes += 1;
+            nodeTagStart[numNodes] = numNodeTags;
+        }
+
+        private void addNodeTag(int k, int v) {
+            if (numNodeTags + 2 > nodeTags.length) {
+                nodeTags = Arrays.copyOf(nodeTags, nodeTags.length * 2);
+            }
+            nodeTags[numNodeTags++] = k;
+            nodeTags[numNodeTags++] = v;
+            nodeTagStart[numNodes] = numNodeTags;
+        }
+
+        /** Replays the block to the handler. */
+        void apply(GraphBuildingHandler handler) throws IOException {
+            for (int i = 0; i < numNodes; i++) {
+                handler.node(nodeIds[i], lons[i], lats[i]);
+                for (int t = nodeTagStart[i]; t < nodeTagStart[i + 1]; t += 2) {
+                    handler.tag(string(nodeTags[t]), string(nodeTags[t + 1]));
+                }
+                handler.end(GraphBuildingHandler.Element.NODE);
+            }
+            for (int i = 0; i < numWays; i++) {
+                handler.way(wayIds[i]);
+                for (int r = wayRefStart[i]; r < wayRefStart[i + 1]; r++) {
+                    handler.nd(refs[r]);
+                }
+                for (int t = wayTagStart[i]; t < wayTagStart[i + 1]; t += 2) {
+                    handler.tag(string(wayTags[t]), string(wayTags[t + 1]));
+                }
+                handler.end(GraphBuildingHandler.Element.WAY);
+            }
+            for (Relation r : relations) {
+                handler.relation(r.id);
+                int members = Math.min(r.memberIds.length, Math.min(r.roles.length,
+                    r.types.length));
+                for (int i = 0; i < members; i++) {
+                    handler.member(MEMBER_TYPES[Math.min(r.types[i], 3)], r.memberIds[i],
+                            string(r.roles[i]));
+                }
+                for (int t = 0; t < Math.min(r.keys.length, r.vals.length); t++) {
+                    handler.tag(string(r.keys[t]), string(r.vals[t]));
+                }
+                handler.end(GraphBuildingHandler.Element.RELATION);
+            }
+        }
+
+        private String string(int index) throws IOException {
+            if (index < 0 || index >= strings.length) {
+                throw new IOException("PBF string index out of range: " + index);
+            }
+            return strings[index];
+        }
+    }
+
+    /** The type of a relation member, as XML names it, by the PBF MemberType enum. */
+    private static final String[] MEMBER_TYPES = {"node", "way", "relation", "unknown"};
+
+    /** A relation of a Block, with string table indexes for its tags and roles. */
+    private static class Relation {
+        private long id;
+        private int[] keys = new int[0];
+        private int[] vals = new int[0];
+        private int[] roles = new int[0];
+        private long[] memberIds = new long[0];
+        private int[] types = new int[0];
+    }
+
+    /**
+     * Cursor over the fields of one protocol buffer message in data[start, end). After next()
+     * returns true, field and wireType describe the current field; a varint field's value is
+     * in varint, and a length delimited field's contents are data[start, end).
+     */
+    private static class Message {
+        private final byte[] data;
+        private int pos;
+        private final int limit;
+        int field;
+        int wireType;
+        long varint;
+        int start;
+        int end;
+
+        Message(byte[] data, int start, int end) {
+            this.data = data;
+            this.pos = start;
+            this.limit = end;
+        }
+
+        boolean hasMore() {
+            return pos < limit;
+        }
+
+        /** Moves to the next field, returning false at the end of the message. */
+        boolean next() throws IOException {
+            if (pos >= limit) {
+                return false;
+            }
+            long key = readVarint();
+            field = (int) (key >>> 3);
+            wireType = (int) (key & 7);
+            switch (wireType) {
+                case 0:
+                    varint = readVarint();
+                    break;
+                case 1:
+                    start = pos;
+                    pos += 8;
+                    end = pos;
+                    break;
+                case 2:
+                    long length = readVarint();
+                    if (length < 0 || length > limit - pos) {
+                        throw new IOException("Truncated PBF message");
+                    }
+                    start = pos;
+                    pos += (int) length;
+                    end = pos;
+                    break;
+                case 5:
+                    start = pos;
+                    pos += 4;
+                    end = pos;
+                    break;
+                default:
+                    throw new IOException("Unsupported protocol buffer wire type " + wireType);
+            }
+            if (pos > limit) {
+                throw new IOException("Truncated PBF message");
+            }
+            return true;
+        }
+
+        String string() {
+            return new String(data, start, end - start, StandardCharsets.UTF_8);
+        }
+
+        /** Decodes the current packed field as unsigned 32 bit varints. */
+        int[] packedInts() throws IOException {
+            Message packed = new Message(data, start, end);
+            int[] values = new int[8];
+            int n = 0;
+            while (packed.hasMore()) {
+                if (n == values.length) {
+                    values = Arrays.copyOf(values, n * 2);
+                }
+                values[n++] = (int) packed.readVarint();
+            }
+            return Arrays.copyOf(values, n);
+        }
+
+        long readVarint() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= limit) {
+                    throw new IOException("Truncated varint in PBF message");
+                }
+                byte b = data[pos++];
+                result |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Malformed varint in PBF message");
+        }
+
+        static long zigzag(long n) {
+            return (n >>> 1) ^ -(n & 1);
+        }
+    }
+}
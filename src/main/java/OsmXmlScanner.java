@@ -0,0 +1,548 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streaming OSM XML reader that works directly on bytes, as a faster alternative to running
+ * GraphBuildingHandler under a SAX parser. Element names are matched byte by byte onto
+ * GraphBuildingHandler.Element, ids and coordinates are parsed straight out of the input
+ * buffer, and Strings are only created for the values of tags the handler actually uses. The
+ * member types and roles the handler tells apart are matched onto constants the same way.
+ * The handler receives the same node, way, nd, tag, relation, member and end calls it gets
+ * from SAX, so both paths build the same GraphDB.
+ *
+ * Only the subset of XML found in OSM files is understood: elements, attributes in single or
+ * double quotes, the predefined and numeric character references, comments, and processing
+ * instructions or declarations, which are skipped.
+ *
+ * @author Beiqian Liu
+ */
+public class OsmXmlScanner {
+    private static final int BUFFER_SIZE = 1 << 16;
+    /** Powers of ten that are exact as doubles, for parsing decimal coordinates. */
+    private static final double[] POWERS_OF_TEN = new double[23];
+    private static final byte[] NODE = bytes("node");
+    private static final byte[] WAY = bytes("way");
+    private static final byte[] ND = bytes("nd");
+    private static final byte[] TAG = bytes("tag");
+    private static final byte[] RELATION = bytes("relation");
+    private static final byte[] MEMBER = bytes("member");
+    private static final byte[] ID = bytes("id");
+    private static final byte[] LON = bytes("lon");
+    private static final byte[] LAT = bytes("lat");
+    private static final byte[] REF = bytes("ref");
+    private static final byte[] TYPE = bytes("type");
+    private static final byte[] ROLE = bytes("role");
+    private static final byte[] K = bytes("k");
+    private static final byte[] V = bytes("v");
+    private static final byte[][] USED_TAG_KEYS = bytes(GraphBuildingHandler.USED_TAG_KEYS);
+    /** The member types and roles GraphBuildingHandler.member tells apart. */
+    private static final String[] MEMBER_TYPES = {"node", "way", "relation"};
+    private static final String[] MEMBER_ROLES = {"from", "via", "to"};
+    private static final byte[][] MEMBER_TYPE_BYTES = bytes(MEMBER_TYPES);
+    private static final byte[][] MEMBER_ROLE_BYTES = bytes(MEMBER_ROLES);
+    /** Stands for every member type or role the handler treats alike. */
+    private static final String OTHER = "other";
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final InputStream in;
+    private final GraphBuildingHandler handler;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+
+    /** The byte that ended the last element name read. */
+    private int last;
+    /** Elements started and not yet ended. */
+    private int depth;
+    /** Bytes of the element or attribute name being read. */
+    private byte[] name = new byte[64];
+    private int nameLength;
+    /** Bytes of the attribute value being read, with character references decoded. */
+    private byte[] value = new byte[256];
+    private int valueLength;
+    /**
+     * Bytes of the v attribute of the current tag, kept until the tag ends since its k may
+     * come after it; tagValueLength is -1 if it had none.
+     */
+    private byte[] tagValue = new byte[256];
+    private int tagValueLength;
+
+    /**
+     * Attributes of the current start tag that the handler needs. They are reset at every start
+     * tag, hasId and NaN coordinates telling which ones it did not have.
+     */
+    private boolean hasId;
+    private long id;
+    private double lon;
+    private double lat;
+    private String k;
+    private String type;
+    private String role;
+
+    /**
+     * Create a scanner that feeds the OSM XML read from {@code in} to {@code handler}.
+     * @param in The input to read. It is not closed by the scanner.
+     * @param handler The handler to call for every element.
+     */
+    public OsmXmlScanner(InputStream in, GraphBuildingHandler handler) {
+        this.in = in;
+        this.handler = handler;
+    }
+
+    /**
+     * Reads the whole input, calling the handler for every element.
+     * @throws IOException If the input cannot be read or is not well formed, including when
+     *                     it ends before every element has, as a truncated file does.
+     */
+    public void scan() throws IOException {
+        int c;
+        while ((c = read()) >= 0) {
+            if (c != '<') {
+                continue;
+            }
+            c = read();
+            if (c == '?' || c == '!') {
+                skipMarkup(c);
+            } else if (c == '/') {
+                GraphBuildingHandler.Element e = readElementName(read());
+                if (last != '>') {
+                    skipTo('>');
+                }
+                depth -= 1;
+                handler.end(e);
+            } else {
+                startElement(c);
+            }
+        }
+        if (depth > 0) {
+            throw new IOException("Unexpected end of input inside " + depth + " elements");
+        }
+    }
+
+    /** Reads a start tag whose first name byte is c, then calls the handler. */
+    private void startElement(int c) throws IOException {
+        GraphBuildingHandler.Element e = readElementName(c);
+        hasId = false;
+        lon = Double.NaN;
+        lat = Double.NaN;
+        k = null;
+        tagValueLength = -1;
+        type = null;
+        role = null;
+        c = last;
+        boolean empty = false;
+        while (true) {
+            while (isSpace(c)) {
+                c = read();
+            }
+            if (c == '>') {
+                break;
+            } else if (c == '/') {
+                empty = true;
+                skipTo('>');
+                break;
+            } else if (c < 0) {
+                throw new IOException("Unexpected end of input inside a tag");
+            }
+            readAttributeName(c);
+            readAttributeValue(e);
+            c = read();
+        }
+
+        /* An element without an attribute the handler needs is skipped rather than given the
+         * value of the element before it. The tags and nds inside a skipped node, way or
+         * relation are then ignored too, as the one before has ended. */
+        switch (e) {
+            case NODE:
+                if (hasId && !Double.isNaN(lon) && !Double.isNaN(lat)) {
+                    handler.node(id, lon, lat);
+                }
+                break;
+            case WAY:
+                if (hasId) {
+                    handler.way(id);
+                }
+                break;
+            case ND:
+                if (hasId) {
+                    handler.nd(id);
+                }
+                break;
+            case TAG:
+                if (k != null && tagValueLength >= 0) {
+                    handler.tag(k, new String(tagValue, 0, tagValueLength,
+                            StandardCharsets.UTF_8));
+                }
+                break;
+            case RELATION:
+                if (hasId) {
+                    handler.relation(id);
+                }
+                break;
+            case MEMBER:
+                if (hasId) {
+                    handler.member(type, id, role);
+                }
+                break;
+            default:
+                break;
+        }
+        if (empty) {
+            handler.end(e);
+        } else {
+            depth += 1;
+        }
+    }
+
+    /** Reads an element name starting with c and returns the element it names. */
+    private GraphBuildingHandler.Element readElementName(int c) throws IOException {
+        nameLength = 0;
+        while (c >= 0 && !isSpace(c) && c != '>' && c != '/') {
+            appendName(c);
+            c = read();
+        }
+        last = c;
+        if (nameIs(NODE)) {
+            return GraphBuildingHandler.Element.NODE;
+        } else if (nameIs(WAY)) {
+            return GraphBuildingHandler.Element.WAY;
+        } else if (nameIs(ND)) {
+            return GraphBuildingHandler.Element.ND;
+        } else if (nameIs(TAG)) {
+            return GraphBuildingHandler.Element.TAG;
+        } else if (nameIs(RELATION)) {
+            return GraphBuildingHandler.Element.RELATION;
+        } else if (nameIs(MEMBER)) {
+            return GraphBuildingHandler.Element.MEMBER;
+        }
+        return GraphBuildingHandler.Element.OTHER;
+    }
+
+    /** Reads an attribute name starting with c up to and including the '='. */
+    private void readAttributeName(int c) throws IOException {
+        nameLength = 0;
+        while (c >= 0 && c != '=' && !isSpace(c)) {
+            appendName(c);
+            c = read();
+        }
+        while (c != '=') {
+            if (c < 0) {
+                throw new IOException("Unexpected end of input inside a tag");
+            }
+            c = read();
+        }
+    }
+
+    /** Reads the quoted value of the attribute just named, keeping it if e needs it. */
+    private void readAttributeValue(GraphBuildingHandler.Element e) throws IOException {
+        int quote = read();
+        while (isSpace(quote)) {
+            quote = read();
+        }
+        if (quote != '"' && quote != '\'') {
+            throw new IOException("Attribute value is not quoted");
+        }
+        valueLength = 0;
+        int c = read();
+        while (c != quote) {
+            if (c < 0) {
+                throw new IOException("Unexpected end of input inside an attribute value");
+            } else if (c == '&') {
+                readReference();
+            } else {
+                appendValue(c);
+            }
+            c = read();
+        }
+
+        switch (e) {
+            case NODE:
+                if (nameIs(ID)) {
+                    id = parseLong();
+                    hasId = true;
+                } else if (nameIs(LON)) {
+                    lon = parseDouble();
+                } else if (nameIs(LAT)) {
+                    lat = parseDouble();
+                }
+                break;
+            case WAY:
+            case RELATION:
+                if (nameIs(ID)) {
+                    id = parseLong();
+                    hasId = true;
+                }
+                break;
+            case MEMBER:
+                if (nameIs(REF)) {
+                    id = parseLong();
+                    hasId = true;
+                } else if (nameIs(TYPE)) {
+                    type = valueAmong(MEMBER_TYPES, MEMBER_TYPE_BYTES);
+                } else if (nameIs(ROLE)) {
+                    role = valueAmong(MEMBER_ROLES, MEMBER_ROLE_BYTES);
+                }
+                break;
+            case ND:
+                if (nameIs(REF)) {
+                    id = parseLong();
+                    hasId = true;
+                }
+                break;
+            case TAG:
+                if (nameIs(K)) {
+                    k = usedTagKey();
+                } else if (nameIs(V)) {
+                    if (tagValue.length < valueLength) {
+                        tagValue = Arrays.copyOf(tagValue, value.length);
+                    }
+                    System.arraycopy(value, 0, tagValue, 0, valueLength);
+                    tagValueLength = valueLength;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /** Returns the tag key in the value buffer if the handler uses it, null otherwise. */
+    private String usedTagKey() {
+        for (int i = 0; i < USED_TAG_KEYS.length; i++) {
+            if (valueIs(USED_TAG_KEYS[i])) {
+                return GraphBuildingHandler.USED_TAG_KEYS[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the one of names whose bytes are in the value buffer, or OTHER if none of them
+     * is.
+     */
+    private String valueAmong(String[] names, byte[][] nameBytes) {
+        for (int i = 0; i < names.length; i++) {
+            if (valueIs(nameBytes[i])) {
+                return names[i];
+            }
+        }
+        return OTHER;
+    }
+
+    /** Decodes a character reference whose '&' was just read into the value buffer. */
+    private void readReference() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c = read();
+        while (c != ';') {
+            if (c < 0 || sb.length() > 10) {
+                throw new IOException("Malformed character reference");
+            }
+            sb.append((char) c);
+            c = read();
+        }
+        String ref = sb.toString();
+        int codePoint;
+        switch (ref) {
+            case "amp":
+                codePoint = '&';
+                break;
+            case "lt":
+                codePoint = '<';
+                break;
+            case "gt":
+                codePoint = '>';
+                break;
+            case "quot":
+                codePoint = '"';
+                break;
+            case "apos":
+                codePoint = '\'';
+                break;
+            default:
+                try {
+                    if (ref.startsWith("#x")) {
+                        codePoint = Integer.parseInt(ref.substring(2), 16);
+                    } else if (ref.startsWith("#")) {
+                        codePoint = Integer.parseInt(ref.substring(1));
+                    } else {
+                        throw new IOException("Unknown entity &" + ref + ";");
+                    }
+                } catch (NumberFormatException ex) {
+                    throw new IOException("Malformed character reference &" + ref + ";");
+                }
+        }
+        byte[] utf8 = new String(Character.toChars(codePoint)).getBytes(StandardCharsets.UTF_8);
+        for (byte b : utf8) {
+            appendValue(b);
+        }
+    }
+
+    /** Parses the value buffer as a decimal integer. */
+    private long parseLong() throws IOException {
+        int i = 0;
+        boolean negative = false;
+        if (valueLength > 0 && (value[0] == '-' || value[0] == '+')) {
+            negative = value[0] == '-';
+            i = 1;
+        }
+        if (i == valueLength) {
+            throw new IOException("Malformed integer");
+        }
+        long result = 0;
+        for (; i < valueLength; i++) {
+            int digit = value[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IOException("Malformed integer");
+            }
+            result = result * 10 + digit;
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * Parses the value buffer as a double. Plain decimals with at most 15 significant digits,
+     * which covers OSM coordinates, are parsed in place: both the digits and the power of ten
+     * are exact doubles, so one division gives the same correctly rounded result as
+     * Double.parseDouble. Anything else falls back to Double.parseDouble.
+     */
+    private double parseDouble() throws IOException {
+        int i = 0;
+        boolean negative = false;
+        if (valueLength > 0 && (value[0] == '-' || value[0] == '+')) {
+            negative = value[0] == '-';
+            i = 1;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        boolean sawDigit = false;
+        for (; i < valueLength; i++) {
+            int c = value[i];
+            if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else if (c >= '0' && c <= '9' && digits < 15
+                    && fractionDigits < POWERS_OF_TEN.length - 1) {
+                sawDigit = true;
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa > 0) {
+                    digits += 1;
+                }
+                if (fractionDigits >= 0) {
+                    fractionDigits += 1;
+                }
+            } else {
+                return slowParseDouble();
+            }
+        }
+        if (!sawDigit) {
+            return slowParseDouble();
+        }
+        double result = fractionDigits > 0
+                ? mantissa / POWERS_OF_TEN[fractionDigits] : (double) mantissa;
+        return negative ? -result : result;
+    }
+
+    private double slowParseDouble() throws IOException {
+        try {
+            return Double.parseDouble(new String(value, 0, valueLength,
+                    StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed number", e);
+        }
+    }
+
+    /** Skips a comment, declaration or processing instruction whose first byte was c. */
+    private void skipMarkup(int c) throws IOException {
+        int a = read();
+        int b = read();
+        if (c == '!' && a == '-' && b == '-') {
+            /* A comment ends at the first "-->". */
+            int x = read();
+            int y = read();
+            int z = read();
+            while (z >= 0 && !(x == '-' && y == '-' && z == '>')) {
+                x = y;
+                y = z;
+                z = read();
+            }
+        } else if (a != '>' && b != '>') {
+            skipTo('>');
+        }
+    }
+
+    private void skipTo(int target) throws IOException {
+        int c = read();
+        while (c != target && c >= 0) {
+            c = read();
+        }
+    }
+
+    private int read() throws IOException {
+        if (pos == limit) {
+            limit = in.read(buf, 0, buf.length);
+            pos = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buf[pos++] & 0xff;
+    }
+
+    private void appendName(int c) {
+        if (nameLength == name.length) {
+            name = Arrays.copyOf(name, name.length * 2);
+        }
+        name[nameLength++] = (byte) c;
+    }
+
+    private void appendValue(int c) {
+        if (valueLength == value.length) {
+            value = Arrays.copyOf(value, value.length * 2);
+        }
+        value[valueLength++] = (byte) c;
+    }
+
+    private boolean nameIs(byte[] expected) {
+        return equals(name, nameLength, expected);
+    }
+
+    private boolean valueIs(byte[] expected) {
+        return equals(value, valueLength, expected);
+    }
+
+    private static boolean equals(byte[] a, int length, byte[] expected) {
+        if (length != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (a[i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSpace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[][] bytes(String[] strings) {
+        byte[][] result = new byte[strings.length][];
+        for (int i = 0; i < strings.length; i++) {
+            result[i] = bytes(strings[i]);
+        }
+        return result;
+    }
+}
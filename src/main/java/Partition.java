@@ -0,0 +1,70 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits the vertices of a graph into cells of about the same size, the way a KdTree splits
+ * its points: the vertices are split at the median longitude, each half at its median
+ * latitude, and so on, {@code levels} times, which gives 2^levels cells.
+ *
+ * The split depends only on the graph, so every process that builds a partition of the same
+ * map file with the same number of levels assigns every vertex to the same cell. That lets
+ * shards build their own copy of the partition instead of receiving it.
+ *
+ * @author Beiqian Liu
+ */
+public class Partition {
+    private static final Comparator<GraphDB.Node> BY_LON = Comparator
+            .<GraphDB.Node>comparingDouble(n -> n.lon).thenComparingDouble(n -> n.lat)
+            .thenComparingLong(n -> n.id);
+    private static final Comparator<GraphDB.Node> BY_LAT = Comparator
+            .<GraphDB.Node>comparingDouble(n -> n.lat).thenComparingDouble(n -> n.lon)
+            .thenComparingLong(n -> n.id);
+
+    private final Map<Long, Integer> cells = new HashMap<>();
+    private final int size;
+
+    /**
+     * Partitions the vertices of g.
+     * @param g The graph to partition.
+     * @param levels How many times to split, at least 0.
+     */
+    public Partition(GraphDB g, int levels) {
+        if (levels < 0) {
+            throw new IllegalArgumentException("Cannot split " + levels + " times");
+        }
+        List<GraphDB.Node> vertices = new ArrayList<>();
+        for (long v : g.vertices()) {
+            vertices.add(g.node(v));
+        }
+        size = 1 << levels;
+        split(vertices, 0, levels, 0);
+    }
+
+    private void split(List<GraphDB.Node> vertices, int level, int levels, int cell) {
+        if (level == levels) {
+            for (GraphDB.Node n : vertices) {
+                cells.put(n.id, cell);
+            }
+            return;
+        }
+        vertices.sort(level % 2 == 0 ? BY_LON : BY_LAT);
+        int median = vertices.size() / 2;
+        split(new ArrayList<>(vertices.subList(0, median)), level + 1, levels, 2 * cell);
+        split(new ArrayList<>(vertices.subList(median, vertices.size())), level + 1, levels,
+                2 * cell + 1);
+    }
+
+    /** Returns the number of cells. */
+    public int size() {
+        return size;
+    }
+
+    /** Returns the cell of a vertex, or -1 if it is not a vertex of the graph. */
+    public int cell(long id) {
+        Integer cell = cells.get(id);
+        return cell == null ? -1 : cell;
+    }
+}
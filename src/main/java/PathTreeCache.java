@@ -0,0 +1,243 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of complete shortest-path trees for the origins routes start from most. Route
+ * requests are skewed: most start at a handful of landmarks, so once an origin has been asked
+ * for often enough Router grows the tree of cheapest paths from it to every vertex, and every
+ * later route from there is a walk up the tree's parent pointers instead of a search.
+ *
+ * Trees are keyed by the origin vertex and the profile, and held in primitive arrays sorted by
+ * vertex id, so a tree costs about 20 bytes per vertex it reaches; stats reports each one. An
+ * origin is only given a tree after ADMIT_AFTER misses, since a tree costs a search over the
+ * whole graph, and the tree is then grown on a background thread while lookups keep missing,
+ * so no request waits for it. The cache is safe to use from several request threads at once,
+ * and belongs to one version of a graph: GraphDB starts a new one whenever changes are
+ * applied.
+ *
+ * @author Beiqian Liu
+ */
+public class PathTreeCache {
+    /** Number of trees kept; the least recently used one is evicted first. */
+    private static final int CAPACITY = 16;
+    /** Misses an origin needs before its tree is grown. */
+    private static final int ADMIT_AFTER = 3;
+    /** Number of origins whose misses are counted. */
+    private static final int CANDIDATES = 1024;
+    /** Grows the trees of every cache, one at a time. */
+    private static final ExecutorService GROWER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "path-trees");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final int capacity;
+    private final Map<String, Tree> trees;
+    private final Map<String, Integer> missCounts;
+    /** The keys of the trees being grown, whose misses are not counted meanwhile. */
+    private final Set<String> growing = new HashSet<>();
+
+    /** Lookups answered from a cached tree. */
+    private final AtomicLong hits = new AtomicLong();
+    /** Lookups that found no tree. */
+    private final AtomicLong misses = new AtomicLong();
+    /** Trees grown, and the time spent growing them, in nanoseconds. */
+    private final AtomicLong built = new AtomicLong();
+    private final AtomicLong buildNanos = new AtomicLong();
+
+    public PathTreeCache() {
+        this(CAPACITY);
+    }
+
+    /**
+     * @param capacity The number of trees to keep; 0 keeps none, so every lookup misses.
+     */
+    public PathTreeCache(int capacity) {
+        this.capacity = capacity;
+        trees = new LinkedHashMap<String, Tree>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Tree> eldest) {
+                return size() > PathTreeCache.this.capacity;
+            }
+        };
+        missCounts = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > CANDIDATES;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached tree of an origin under a profile, or null on a miss. A miss that
+     * makes the origin hot starts growing its tree on g in the background, and lookups hit
+     * once it is grown.
+     */
+    public Tree tree(RoadGraph g, long origin, Profile profile) {
+        String key = key(origin, profile);
+        Tree tree;
+        synchronized (trees) {
+            tree = trees.get(key);
+        }
+        if (tree != null) {
+            hits.incrementAndGet();
+            tree.hits.incrementAndGet();
+            return tree;
+        }
+        misses.incrementAndGet();
+        if (capacity == 0) {
+            return null;
+        }
+        synchronized (missCounts) {
+            if (growing.contains(key) || missCounts.merge(key, 1, Integer::sum) < ADMIT_AFTER) {
+                return null;
+            }
+            missCounts.remove(key);
+            growing.add(key);
+        }
+        GROWER.execute(() -> grow(g, origin, profile, key));
+        return null;
+    }
+
+    /** Grows the tree of an origin and caches it, on the GROWER thread. */
+    private void grow(RoadGraph g, long origin, Profile profile, String key) {
+        try {
+            long start = System.nanoTime();
+            Tree grown = Router.pathTree(g, origin, profile);
+            buildNanos.addAndGet(System.nanoTime() - start);
+            built.incrementAndGet();
+            synchronized (trees) {
+                trees.put(key, grown);
+            }
+        } finally {
+            synchronized (missCounts) {
+                growing.remove(key);
+            }
+        }
+    }
+
+    private static String key(long origin, Profile profile) {
+        return profile.name() + ":" + origin;
+    }
+
+    /**
+     * Forgets every cached tree and every count of misses. A tree still growing is cached once
+     * it is grown.
+     */
+    public void clear() {
+        synchronized (trees) {
+            trees.clear();
+        }
+        synchronized (missCounts) {
+            missCounts.clear();
+        }
+    }
+
+    /**
+     * Returns the cache counters: "lookups", "hits" and "misses" as counts, "hit_rate" as the
+     * fraction of lookups answered from a tree, "built" and "average_build_millis" for the
+     * trees grown, "bytes" for the memory all cached trees hold, and "trees" with the
+     * "origin", "profile", "vertices", "bytes" and "hits" of each, most recently used last.
+     */
+    public Map<String, Object> stats() {
+        long h = hits.get();
+        long m = misses.get();
+        long lookups = h + m;
+        long b = built.get();
+        List<Map<String, Object>> perTree = new ArrayList<>();
+        long bytes = 0;
+        synchronized (trees) {
+            for (Tree tree : trees.values()) {
+                Map<String, Object> t = new HashMap<>();
+                t.put("origin", tree.origin);
+                t.put("profile", tree.profile.name().toLowerCase());
+                t.put("vertices", tree.size());
+                t.put("bytes", tree.bytes());
+                t.put("hits", tree.hits.get());
+                perTree.add(t);
+                bytes += tree.bytes();
+            }
+        }
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("lookups", lookups);
+        stats.put("hits", h);
+        stats.put("misses", m);
+        stats.put("hit_rate", lookups == 0 ? 0.0 : (double) h / lookups);
+        stats.put("built", b);
+        stats.put("average_build_millis", b == 0 ? 0.0 : buildNanos.get() / 1e6 / b);
+        stats.put("bytes", bytes);
+        stats.put("trees", perTree);
+        return stats;
+    }
+
+    /**
+     * The cheapest paths from one origin to every vertex it reaches, as three arrays indexed
+     * alike: the vertex ids in ascending order, the index of each vertex's parent on its path
+     * (-1 for the origin), and its cost from the origin.
+     */
+    public static class Tree {
+        /** Bytes per vertex of the arrays, and for the object and its array headers. */
+        private static final int BYTES_PER_VERTEX = 8 + 4 + 8;
+        private static final int OVERHEAD = 128;
+
+        private final long origin;
+        private final Profile profile;
+        private final long[] ids;
+        private final int[] parent;
+        private final double[] dist;
+        private final AtomicLong hits = new AtomicLong();
+
+        /** Takes the three arrays as described above, which it keeps. */
+        Tree(long origin, Profile profile, long[] ids, int[] parent, double[] dist) {
+            this.origin = origin;
+            this.profile = profile;
+            this.ids = ids;
+            this.parent = parent;
+            this.dist = dist;
+        }
+
+        private int index(long v) {
+            int i = Arrays.binarySearch(ids, v);
+            return i < 0 ? -1 : i;
+        }
+
+        /** Returns the vertices of the cheapest path from the origin to v, or null if none. */
+        public List<Long> pathTo(long v) {
+            int i = index(v);
+            if (i < 0) {
+                return null;
+            }
+            VertexPath path = new VertexPath();
+            for (; i >= 0; i = parent[i]) {
+                path.add(ids[i]);
+            }
+            path.reverse();
+            return path.asList();
+        }
+
+        /** Returns the cost of the cheapest path from the origin to v, or infinity if none. */
+        public double distTo(long v) {
+            int i = index(v);
+            return i < 0 ? Double.POSITIVE_INFINITY : dist[i];
+        }
+
+        /** Returns the number of vertices the tree reaches. */
+        public int size() {
+            return ids.length;
+        }
+
+        /** Returns the memory the tree holds, in bytes. */
+        public long bytes() {
+            return OVERHEAD + (long) BYTES_PER_VERTEX * ids.length;
+        }
+    }
+}
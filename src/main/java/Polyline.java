@@ -0,0 +1,154 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Route geometry for the client, simplified for the depth it is drawn at and encoded in
+ * Google's <a href="https://developers.google.com/maps/documentation/utilities/polylinealgorithm">
+ * encoded polyline</a> format. A route has a point for every OSM node along it, but at a
+ * shallow depth most of them are closer together than a pixel, so Douglas-Peucker drops every
+ * point within TOLERANCE pixels of the line through the points kept. The payload then grows
+ * with what can be seen at the depth rather than with the number of nodes.
+ *
+ * Coordinates are encoded with PRECISION units per degree, six decimal places as in OSRM's
+ * polyline6, since five would be several pixels at the deepest depth.
+ *
+ * @author Beiqian Liu
+ */
+public class Polyline {
+    /** How far in pixels a dropped point may be from the simplified line. */
+    static final double TOLERANCE = 0.5;
+    /** Units per degree of the encoded coordinates. */
+    static final double PRECISION = 1e6;
+
+    /**
+     * Returns the indices of the points of a line that Douglas-Peucker keeps at a depth of
+     * Rasterer's tiles, in order; the first and last are always kept.
+     */
+    static int[] simplify(double[] lons, double[] lats, int depth) {
+        return simplify(lons, lats, TOLERANCE * Rasterer.lonDPP(depth),
+            TOLERANCE * Rasterer.latDPP(depth));
+    }
+
+    /**
+     * Returns the indices of the points of a line that Douglas-Peucker keeps, in order.
+     * @param lonTolerance How far in longitude a dropped point may be from the simplified
+     *                     line, and latTolerance how far in latitude; the two are measured
+     *                     together, as pixels are.
+     */
+    static int[] simplify(double[] lons, double[] lats, double lonTolerance,
+                          double latTolerance) {
+        int n = lons.length;
+        if (n <= 2) {
+            int[] all = new int[n];
+            for (int i = 0; i < n; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+        double[] x = new double[n];
+        double[] y = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = lons[i] / lonTolerance;
+            y[i] = lats[i] / latTolerance;
+        }
+        boolean[] keep = new boolean[n];
+        keep[0] = true;
+        keep[n - 1] = true;
+        int kept = 2;
+        /* The stretches left to simplify, as pairs of the points kept at their ends. */
+        int[] stack = new int[2 * n];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = n - 1;
+        double[] fraction = new double[1];
+        while (top > 0) {
+            int hi = stack[--top];
+            int lo = stack[--top];
+            int farthest = -1;
+            double max = 1;
+            for (int i = lo + 1; i < hi; i++) {
+                double d = EdgeIndex.project(x[i], y[i], 1, x[lo], y[lo], x[hi], y[hi],
+                    fraction);
+                if (d > max) {
+                    farthest = i;
+                    max = d;
+                }
+            }
+            if (farthest >= 0) {
+                keep[farthest] = true;
+                kept += 1;
+                stack[top++] = lo;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = hi;
+            }
+        }
+        int[] indices = new int[kept];
+        for (int i = 0, k = 0; i < n; i++) {
+            if (keep[i]) {
+                indices[k++] = i;
+            }
+        }
+        return indices;
+    }
+
+    /** Returns the points of a line at the given indices as an encoded polyline. */
+    static String encode(double[] lons, double[] lats, int[] indices) {
+        return encode(lons, lats, indices, PRECISION);
+    }
+
+    /**
+     * Returns the points of a line at the given indices as an encoded polyline, with the given
+     * units per degree.
+     */
+    static String encode(double[] lons, double[] lats, int[] indices, double precision) {
+        StringBuilder sb = new StringBuilder(4 * indices.length);
+        long lastLat = 0;
+        long lastLon = 0;
+        for (int i : indices) {
+            long lat = Math.round(lats[i] * precision);
+            long lon = Math.round(lons[i] * precision);
+            encodeValue(lat - lastLat, sb);
+            encodeValue(lon - lastLon, sb);
+            lastLat = lat;
+            lastLon = lon;
+        }
+        return sb.toString();
+    }
+
+    /** Appends one signed value in five-bit chunks, least significant first. */
+    private static void encodeValue(long value, StringBuilder sb) {
+        long v = value < 0 ? ~(value << 1) : value << 1;
+        while (v >= 0x20) {
+            sb.append((char) ((0x20 | (v & 0x1f)) + 63));
+            v >>= 5;
+        }
+        sb.append((char) (v + 63));
+    }
+
+    /** Returns the points of an encoded polyline as {lon, lat}, with PRECISION. */
+    static List<double[]> decode(String polyline) {
+        List<double[]> points = new ArrayList<>();
+        long lat = 0;
+        long lon = 0;
+        int[] index = {0};
+        while (index[0] < polyline.length()) {
+            lat += decodeValue(polyline, index);
+            lon += decodeValue(polyline, index);
+            points.add(new double[]{lon / PRECISION, lat / PRECISION});
+        }
+        return points;
+    }
+
+    private static long decodeValue(String polyline, int[] index) {
+        long v = 0;
+        int shift = 0;
+        int chunk;
+        do {
+            chunk = polyline.charAt(index[0]++) - 63;
+            v |= (long) (chunk & 0x1f) << shift;
+            shift += 5;
+        } while (chunk >= 0x20);
+        return (v & 1) == 0 ? v >> 1 : ~(v >> 1);
+    }
+}
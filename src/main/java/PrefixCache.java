@@ -0,0 +1,112 @@
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small cache of recent autocomplete lookups on a PrefixIndex. Autocomplete asks for "b",
+ * "be", "ber", "berk" in quick succession, so for every cleaned prefix the cache remembers the
+ * run [lo, hi) of index keys that start with it. A longer prefix is answered by narrowing the
+ * run of the longest cached prefix of it, searching only inside that run instead of the whole
+ * index. The cache is safe to use from several request threads at once.
+ *
+ * @author Beiqian Liu
+ */
+public class PrefixCache {
+    /** Number of prefixes remembered; the least recently used one is evicted first. */
+    private static final int CAPACITY = 1024;
+
+    private final PrefixIndex index;
+    private final Map<String, int[]> ranges = new LinkedHashMap<String, int[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    /** Lookups whose exact prefix was cached. */
+    private final AtomicLong hits = new AtomicLong();
+    /** Lookups answered by narrowing the run of a shorter cached prefix. */
+    private final AtomicLong narrowed = new AtomicLong();
+    /** Lookups that had to search the whole index. */
+    private final AtomicLong misses = new AtomicLong();
+    /** Total time spent answering lookups, in nanoseconds. */
+    private final AtomicLong nanos = new AtomicLong();
+
+    public PrefixCache(PrefixIndex index) {
+        this.index = index;
+    }
+
+    /** Same as {@link PrefixIndex#withPrefix}, served from the cache where possible. */
+    public List<String> withPrefix(String prefix) {
+        long start = System.nanoTime();
+        int[] r = range(GraphDB.cleanString(prefix));
+        List<String> results = index.names(r[0], r[1]);
+        nanos.addAndGet(System.nanoTime() - start);
+        return results;
+    }
+
+    /** Same as {@link PrefixIndex#topK}, served from the cache where possible. */
+    public List<String> topK(String prefix, int k) {
+        long start = System.nanoTime();
+        int[] r = range(GraphDB.cleanString(prefix));
+        List<String> results = index.topK(r[0], r[1], k);
+        nanos.addAndGet(System.nanoTime() - start);
+        return results;
+    }
+
+    /** Forgets every cached prefix, e.g. after the index has been rebuilt. */
+    public void clear() {
+        synchronized (ranges) {
+            ranges.clear();
+        }
+    }
+
+    /**
+     * Returns the cache counters: "lookups", "hits", "narrowed" and "misses" as counts,
+     * "hit_rate" as the fraction of lookups that did not search the whole index, and
+     * "average_micros" as the mean time per lookup.
+     */
+    public Map<String, Object> stats() {
+        long h = hits.get();
+        long n = narrowed.get();
+        long m = misses.get();
+        long lookups = h + n + m;
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("lookups", lookups);
+        stats.put("hits", h);
+        stats.put("narrowed", n);
+        stats.put("misses", m);
+        stats.put("hit_rate", lookups == 0 ? 0.0 : (double) (h + n) / lookups);
+        stats.put("average_micros", lookups == 0 ? 0.0 : nanos.get() / 1000.0 / lookups);
+        return stats;
+    }
+
+    /** Returns the run of index keys starting with the cleaned prefix p, caching it. */
+    private int[] range(String p) {
+        for (int length = p.length(); length >= 0; length--) {
+            String shorter = p.substring(0, length);
+            int[] cached;
+            synchronized (ranges) {
+                cached = ranges.get(shorter);
+            }
+            if (cached != null && length == p.length()) {
+                hits.incrementAndGet();
+                return cached;
+            } else if (cached != null) {
+                narrowed.incrementAndGet();
+                return remember(p, index.range(p, cached[0], cached[1]));
+            }
+        }
+        misses.incrementAndGet();
+        return remember(p, index.range(p, 0, index.size()));
+    }
+
+    private int[] remember(String p, int[] r) {
+        synchronized (ranges) {
+            ranges.put(p, r);
+        }
+        return r;
+    }
+}
@@ -0,0 +1,431 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Autocomplete index over location names. Names are collected with {@link #add} while the
+ * graph is being parsed, then {@link #build} sorts their cleaned keys and packs them into
+ * primitive arrays: one shared char pool plus the start offset of every key. All keys that
+ * start with a given prefix form a contiguous run of the sorted order, so a prefix lookup is
+ * two binary searches followed by a copy of the matching names.
+ *
+ * Every name also carries a popularity score, the number of times it was added (i.e. the
+ * number of locations sharing it). A segment tree over the sorted order stores the best
+ * entry of every range, so {@link #topK} pulls the k best matches of a prefix without
+ * looking at the rest of the run.
+ *
+ * Since keys are sorted, walking them in order is a depth-first walk of the trie they would
+ * form, which {@link #fuzzy} uses to run a Levenshtein automaton over the index.
+ *
+ * @author Beiqian Liu
+ */
+public class PrefixIndex {
+    /** Names added before {@link #build} is called; dropped once the index is built. */
+    private List<String> pending = new ArrayList<>();
+    /** Cleaned keys of all names in sorted order, concatenated. */
+    private char[] keys = new char[0];
+    /** keyStart[i] is the offset of the i-th key in keys; keyStart[size] == keys.length. */
+    private int[] keyStart = new int[1];
+    /** The original name of each key, parallel to keyStart. */
+    private String[] names = new String[0];
+    /** Popularity of each name, parallel to names. */
+    private int[] scores = new int[0];
+    /**
+     * Segment tree over the sorted order: best[size + i] == i and every inner node holds the
+     * index of the better of its two children, so best[1] is the best entry overall.
+     */
+    private int[] best = new int[0];
+    /** Length of the longest key, which bounds the depth of a fuzzy walk. */
+    private int maxKeyLength = 0;
+
+    public void add(String name) {
+        pending.add(name);
+    }
+
+    /**
+     * Freezes every name added so far into the sorted primitive layout. Names that are equal
+     * are stored once and scored by how often they were added; different names with the same
+     * cleaned key are all kept.
+     */
+    public void build() {
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            counts.put(names[i], scores[i]);
+        }
+        for (String name : pending) {
+            counts.merge(name, 1, Integer::sum);
+        }
+        Entry[] entries = new Entry[counts.size()];
+        int totalLength = 0;
+        int n = 0;
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            entries[n] = new Entry(GraphDB.cleanString(e.getKey()), e.getKey(), e.getValue());
+            totalLength += entries[n].key.length();
+            n += 1;
+        }
+        Arrays.sort(entries);
+        pack(entries, totalLength);
+        pending = new ArrayList<>();
+    }
+
+    /**
+     * Returns a new index with the scores of some names changed, leaving this one untouched so
+     * that lookups running on it are not disturbed. A name whose score drops to zero or below
+     * is removed, and a name not in the index is added. Unchanged names are already in sorted
+     * order, so only the changed ones are sorted before the two runs are merged.
+     * @param changes How much to add to the score of each changed name.
+     */
+    public PrefixIndex withChanges(Map<String, Integer> changes) {
+        List<Entry> changed = new ArrayList<>();
+        Map<String, Integer> remaining = new HashMap<>(changes);
+        int n = names.length;
+        for (int i = 0; i < n; i++) {
+            Integer change = remaining.remove(names[i]);
+            if (change != null && scores[i] + change > 0) {
+                changed.add(new Entry(key(i), names[i], scores[i] + change));
+            }
+        }
+        for (Map.Entry<String, Integer> e : remaining.entrySet()) {
+            if (e.getValue() > 0) {
+                changed.add(new Entry(GraphDB.cleanString(e.getKey()), e.getKey(),
+                        e.getValue()));
+            }
+        }
+        Collections.sort(changed);
+
+        List<Entry> merged = new ArrayList<>(n + changed.size());
+        int totalLength = 0;
+        int c = 0;
+        for (int i = 0; i <= n; i++) {
+            Entry kept = null;
+            if (i < n && !changes.containsKey(names[i])) {
+                kept = new Entry(key(i), names[i], scores[i]);
+            }
+            while (c < changed.size() && (i == n || kept != null
+                    && changed.get(c).compareTo(kept) < 0)) {
+                totalLength += changed.get(c).key.length();
+                merged.add(changed.get(c++));
+            }
+            if (kept != null) {
+                totalLength += kept.key.length();
+                merged.add(kept);
+            }
+        }
+        PrefixIndex index = new PrefixIndex();
+        index.pack(merged.toArray(new Entry[0]), totalLength);
+        return index;
+    }
+
+    /** Packs sorted entries into the primitive arrays and builds the segment tree. */
+    private void pack(Entry[] entries, int totalLength) {
+        int n = entries.length;
+        keys = new char[totalLength];
+        keyStart = new int[n + 1];
+        names = new String[n];
+        scores = new int[n];
+        int offset = 0;
+        for (int i = 0; i < n; i++) {
+            String key = entries[i].key;
+            key.getChars(0, key.length(), keys, offset);
+            keyStart[i] = offset;
+            names[i] = entries[i].name;
+            scores[i] = entries[i].score;
+            offset += key.length();
+        }
+        keyStart[n] = offset;
+        maxKeyLength = 0;
+        for (int i = 0; i < n; i++) {
+            maxKeyLength = Math.max(maxKeyLength, keyStart[i + 1] - keyStart[i]);
+        }
+
+        best = new int[2 * n];
+        for (int i = 0; i < n; i++) {
+            best[n + i] = i;
+        }
+        for (int i = n - 1; i > 0; i--) {
+            best[i] = better(best[2 * i], best[2 * i + 1]);
+        }
+    }
+
+    /** Returns the cleaned key of the i-th name. */
+    private String key(int i) {
+        return new String(keys, keyStart[i], keyStart[i + 1] - keyStart[i]);
+    }
+
+    /** Returns the number of distinct names in the index. */
+    public int size() {
+        return names.length;
+    }
+
+    /** Return all the names whose cleaned form starts with the cleaned {@code prefix}. */
+    public List<String> withPrefix(String prefix) {
+        int[] r = range(GraphDB.cleanString(prefix), 0, names.length);
+        return names(r[0], r[1]);
+    }
+
+    /**
+     * Return at most k names whose cleaned form starts with the cleaned {@code prefix}, most
+     * popular first. Ties go to the shorter name. Runs in O(k log n) however many names match.
+     */
+    public List<String> topK(String prefix, int k) {
+        int[] r = range(GraphDB.cleanString(prefix), 0, names.length);
+        return topK(r[0], r[1], k);
+    }
+
+    /**
+     * Returns {lo, hi} such that the keys in [lo, hi) are exactly those starting with the
+     * already cleaned prefix p. Only [from, to) is searched, so the range of a shorter prefix
+     * of p can be narrowed instead of searching the whole index again.
+     */
+    int[] range(String p, int from, int to) {
+        int lo = lowerBound(p, from, to);
+        return new int[]{lo, upperBound(p, lo, to)};
+    }
+
+    /** Returns the names of the keys in [lo, hi), in sorted order. */
+    List<String> names(int lo, int hi) {
+        List<String> results = new ArrayList<>(hi - lo);
+        for (int i = lo; i < hi; i++) {
+            results.add(names[i]);
+        }
+        return results;
+    }
+
+    /** Returns at most k of the names in [lo, hi), most popular first. */
+    List<String> topK(int lo, int hi, int k) {
+        List<String> results = new ArrayList<>(Math.max(0, Math.min(k, hi - lo)));
+        if (k <= 0 || lo == hi) {
+            return results;
+        }
+        /* Each candidate is {lo, hi, index of the best entry in [lo, hi)}. */
+        PriorityQueue<int[]> candidates = new PriorityQueue<>(
+                (a, b) -> a[2] == b[2] ? 0 : (better(a[2], b[2]) == a[2] ? -1 : 1));
+        candidates.add(new int[]{lo, hi, bestIn(lo, hi)});
+        while (results.size() < k && !candidates.isEmpty()) {
+            int[] c = candidates.poll();
+            results.add(names[c[2]]);
+            if (c[0] < c[2]) {
+                candidates.add(new int[]{c[0], c[2], bestIn(c[0], c[2])});
+            }
+            if (c[2] + 1 < c[1]) {
+                candidates.add(new int[]{c[2] + 1, c[1], bestIn(c[2] + 1, c[1])});
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Return at most {@code limit} names whose cleaned form starts with something within
+     * {@code maxEdits} edits (insertions, deletions or substitutions) of the cleaned
+     * {@code query}, closest first and then most popular.
+     *
+     * Keys are visited in sorted order, keeping one row of the edit distance table per depth
+     * of the implicit trie. A key only computes the rows below the prefix it shares with the
+     * previous key, and as soon as every cell of a row exceeds maxEdits the whole subtree under
+     * that prefix is skipped with a binary search. The walk gives up once {@code budgetNanos}
+     * have passed and returns the best matches found so far.
+     */
+    public List<String> fuzzy(String query, int maxEdits, int limit, long budgetNanos) {
+        String q = GraphDB.cleanString(query);
+        int m = q.length();
+        long deadline = System.nanoTime() + budgetNanos;
+        int[][] rows = new int[maxKeyLength + 1][m + 1];
+        int[] rowMin = new int[maxKeyLength + 1];
+        for (int j = 0; j <= m; j++) {
+            rows[0][j] = j;
+        }
+        /* Each match is {distance, index}; the head of the queue is the worst match kept. */
+        PriorityQueue<int[]> kept = new PriorityQueue<>((a, b) -> compareMatches(b, a));
+        int valid = 0;
+        int prev = -1;
+        int visited = 0;
+        int i = 0;
+        while (i < names.length && limit > 0) {
+            visited += 1;
+            if ((visited & 0x3f) == 0 && System.nanoTime() > deadline) {
+                break;
+            }
+            int start = keyStart[i];
+            int length = keyStart[i + 1] - start;
+            int depth = Math.min(valid, commonPrefix(prev, i));
+            int distance = Integer.MAX_VALUE;
+            for (int d = 0; d <= depth; d++) {
+                distance = Math.min(distance, rows[d][m]);
+            }
+            while (depth < length && rowMin[depth] <= maxEdits) {
+                char c = keys[start + depth];
+                int[] above = rows[depth];
+                depth += 1;
+                int[] row = rows[depth];
+                row[0] = depth;
+                rowMin[depth] = depth;
+                for (int j = 1; j <= m; j++) {
+                    int substitute = above[j - 1] + (q.charAt(j - 1) == c ? 0 : 1);
+                    row[j] = Math.min(Math.min(above[j], row[j - 1]) + 1, substitute);
+                    rowMin[depth] = Math.min(rowMin[depth], row[j]);
+                }
+                distance = Math.min(distance, row[m]);
+            }
+            valid = depth;
+            prev = i;
+
+            if (distance <= maxEdits) {
+                int[] match = {distance, i};
+                if (kept.size() < limit) {
+                    kept.add(match);
+                } else if (compareMatches(match, kept.peek()) < 0) {
+                    kept.poll();
+                    kept.add(match);
+                }
+                i += 1;
+            } else if (rowMin[depth] > maxEdits) {
+                /* No key below this prefix can come within maxEdits either. */
+                i = skipPrefix(i, depth);
+            } else {
+                i += 1;
+            }
+        }
+
+        int[][] matches = kept.toArray(new int[kept.size()][]);
+        Arrays.sort(matches, this::compareMatches);
+        List<String> results = new ArrayList<>(matches.length);
+        for (int[] match : matches) {
+            results.add(names[match[1]]);
+        }
+        return results;
+    }
+
+    /** Orders fuzzy matches {distance, index} by distance, then by autocomplete rank. */
+    private int compareMatches(int[] a, int[] b) {
+        if (a[0] != b[0]) {
+            return a[0] - b[0];
+        }
+        if (a[1] == b[1]) {
+            return 0;
+        }
+        return better(a[1], b[1]) == a[1] ? -1 : 1;
+    }
+
+    /** Returns the length of the common prefix of keys a and b, or 0 if a is negative. */
+    private int commonPrefix(int a, int b) {
+        if (a < 0) {
+            return 0;
+        }
+        int startA = keyStart[a];
+        int startB = keyStart[b];
+        int n = Math.min(keyStart[a + 1] - startA, keyStart[b + 1] - startB);
+        int d = 0;
+        while (d < n && keys[startA + d] == keys[startB + d]) {
+            d += 1;
+        }
+        return d;
+    }
+
+    /** Returns the index of the first key after i whose first d chars differ from key i's. */
+    private int skipPrefix(int i, int d) {
+        int lo = i + 1;
+        int hi = names.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (commonPrefix(i, mid) >= d) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Returns the index of the best entry in the non-empty range [lo, hi). */
+    private int bestIn(int lo, int hi) {
+        int n = names.length;
+        int result = lo;
+        for (lo += n, hi += n; lo < hi; lo >>= 1, hi >>= 1) {
+            if ((lo & 1) == 1) {
+                result = better(result, best[lo++]);
+            }
+            if ((hi & 1) == 1) {
+                result = better(result, best[--hi]);
+            }
+        }
+        return result;
+    }
+
+    /** Returns whichever of entries i and j ranks higher in autocomplete results. */
+    private int better(int i, int j) {
+        if (scores[i] != scores[j]) {
+            return scores[i] > scores[j] ? i : j;
+        }
+        int lengthI = keyStart[i + 1] - keyStart[i];
+        int lengthJ = keyStart[j + 1] - keyStart[j];
+        if (lengthI != lengthJ) {
+            return lengthI < lengthJ ? i : j;
+        }
+        return i < j ? i : j;
+    }
+
+    /** Returns the index of the first key in [lo, hi) that is not less than {@code p}. */
+    private int lowerBound(String p, int lo, int hi) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (comparePrefix(mid, p) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Returns the index of the first key in [lo, hi) that sorts after all keys starting with p. */
+    private int upperBound(String p, int lo, int hi) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (comparePrefix(mid, p) <= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Compares key i against prefix p, treating every key that starts with p as equal to it.
+     * @return Negative if key i sorts before p, zero if it starts with p, positive otherwise.
+     */
+    private int comparePrefix(int i, String p) {
+        int start = keyStart[i];
+        int length = keyStart[i + 1] - start;
+        int n = Math.min(length, p.length());
+        for (int j = 0; j < n; j++) {
+            int diff = keys[start + j] - p.charAt(j);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length < p.length() ? -1 : 0;
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        private final String key;
+        private final String name;
+        private final int score;
+
+        Entry(String key, String name, int score) {
+            this.key = key;
+            this.name = name;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            int c = key.compareTo(o.key);
+            return c != 0 ? c : name.compareTo(o.name);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * The ways of travelling Router can find routes for. A profile gives every edge a cost per
+ * mile in each direction, from the edge's road class, speed and flags; the cost of an edge is
+ * its length times that pace. DISTANCE finds the shortest route in miles, as Router always
+ * has, and the others the quickest route in seconds.
+ *
+ * The paces are worked out once per edge when the graph is built, so a search under any
+ * profile only reads them. Each profile also has a smallest pace, which Router multiplies its
+ * lower bound on the distance by so that A* stays exact.
+ *
+ * @author Beiqian Liu
+ */
+public enum Profile {
+    /** The shortest route over every road, in either direction. */
+    DISTANCE(false) {
+        @Override
+        float speed(RoadClass roadClass, float speed) {
+            return 0;
+        }
+    },
+    /** The quickest route by car, at the speed limit, which obeys one-way streets and turns. */
+    CAR(true) {
+        @Override
+        float speed(RoadClass roadClass, float speed) {
+            if (!(speed > 0)) {
+                speed = roadClass.speed;
+            }
+            return Math.max(MIN_CAR_SPEED, Math.min(MAX_CAR_SPEED, speed));
+        }
+    },
+    /** The quickest route by bike, off motorways and trunk roads, obeying one-ways and turns. */
+    BIKE(true) {
+        @Override
+        float speed(RoadClass roadClass, float speed) {
+            switch (roadClass) {
+                case MOTORWAY:
+                case MOTORWAY_LINK:
+                case TRUNK:
+                case TRUNK_LINK:
+                    return 0;
+                default:
+                    return Math.min(BIKE_SPEED, CAR.speed(roadClass, speed));
+            }
+        }
+    },
+    /** The quickest route on foot, off motorways, in either direction of every street. */
+    WALK(false) {
+        @Override
+        float speed(RoadClass roadClass, float speed) {
+            switch (roadClass) {
+                case MOTORWAY:
+                case MOTORWAY_LINK:
+                    return 0;
+                default:
+                    return WALK_SPEED;
+            }
+        }
+    };
+
+    static final int COUNT = values().length;
+
+    private static final float SECONDS_PER_HOUR = 3600;
+    /** Speeds in miles per hour. A car's speed is its edge's, kept within these limits. */
+    private static final float MIN_CAR_SPEED = 5;
+    private static final float MAX_CAR_SPEED = 80;
+    private static final float BIKE_SPEED = 12;
+    private static final float WALK_SPEED = 3;
+
+    /**
+     * Whether the profile only travels a one-way edge in the direction it is stored in, and
+     * never makes a turn that TurnRestrictions forbid.
+     */
+    private final boolean obeysTraffic;
+
+    Profile(boolean obeysTraffic) {
+        this.obeysTraffic = obeysTraffic;
+    }
+
+    /** Returns whether the profile never makes a turn that TurnRestrictions forbid. */
+    boolean obeysTurnRestrictions() {
+        return obeysTraffic;
+    }
+
+    /**
+     * Returns the speed in miles per hour this profile travels an edge at, or 0 if it may not
+     * use the edge. DISTANCE does not measure time, and is never asked.
+     * @param roadClass The class of the edge's way.
+     * @param speed The speed of the edge, from its maxspeed tag or its class.
+     */
+    abstract float speed(RoadClass roadClass, float speed);
+
+    /**
+     * Returns the cost per mile of travelling an edge in one direction, or infinity if the
+     * profile may not travel it that way.
+     * @param roadClass The class of the edge's way.
+     * @param speed The speed of the edge in miles per hour.
+     * @param flags The edge's flags in EdgeTable.
+     * @param forward Whether the edge is travelled in the direction it is stored in.
+     */
+    float pace(RoadClass roadClass, float speed, int flags, boolean forward) {
+        if (!forward && obeysTraffic && (flags & EdgeTable.ONEWAY) != 0) {
+            return Float.POSITIVE_INFINITY;
+        }
+        if (this == DISTANCE) {
+            return 1;
+        }
+        float s = speed(roadClass, speed);
+        return s > 0 ? SECONDS_PER_HOUR / s : Float.POSITIVE_INFINITY;
+    }
+
+    /** Returns the smallest pace of any edge under this profile. */
+    float minPace() {
+        switch (this) {
+            case DISTANCE:
+                return 1;
+            case WALK:
+                return SECONDS_PER_HOUR / WALK_SPEED;
+            case BIKE:
+                return SECONDS_PER_HOUR / BIKE_SPEED;
+            default:
+                return SECONDS_PER_HOUR / MAX_CAR_SPEED;
+        }
+    }
+
+    /**
+     * Returns the profile with the given name, ignoring case, such as the profile parameter of
+     * a route request.
+     * @throws IllegalArgumentException If there is no such profile.
+     */
+    static Profile of(String name) {
+        for (Profile p : values()) {
+            if (p.name().equalsIgnoreCase(name)) {
+                return p;
+            }
+        }
+        throw new IllegalArgumentException("Unknown profile " + name);
+    }
+}
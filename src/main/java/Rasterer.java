@@ -12,7 +12,7 @@ public class Rasterer {
     private static final double ROOT_LRLON = MapServer.ROOT_LRLON, ROOT_ULLON = MapServer.ROOT_ULLON,
             ROOT_LRLAT = MapServer.ROOT_LRLAT, ROOT_ULLAT = MapServer.ROOT_ULLAT;
 
-    public Rasterer() {
+    static {
         double LonDPP = (ROOT_LRLON - ROOT_ULLON) / MapServer.TILE_SIZE;
         for (int i = 0; i < depthDPP.length; i++) {
             depthDPP[i] = LonDPP;
@@ -20,6 +20,21 @@ public class Rasterer {
         }
     }
 
+    /** Returns the deepest depth there are tiles for. */
+    static int maxDepth() {
+        return depthDPP.length - 1;
+    }
+
+    /** Returns the longitude a pixel of the tiles at a depth covers. */
+    static double lonDPP(int depth) {
+        return depthDPP[depth];
+    }
+
+    /** Returns the latitude a pixel of the tiles at a depth covers. */
+    static double latDPP(int depth) {
+        return depthDPP[depth] * (ROOT_ULLAT - ROOT_LRLAT) / (ROOT_LRLON - ROOT_ULLON);
+    }
+
     /**
      * Takes a user query and finds the grid of images that best matches the query. These
      * images will be combined into one big image (rastered) by the front end. <br>
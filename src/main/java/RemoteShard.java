@@ -0,0 +1,80 @@
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Type;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * A Shard served by a ShardServer in another process, reached over HTTP.
+ *
+ * @author Beiqian Liu
+ */
+public class RemoteShard implements Shard {
+    private static final int TIMEOUT_MILLIS = 30000;
+    private static final Type DISTANCES = new TypeToken<Map<Long, Double>>() { }.getType();
+
+    private final String baseUrl;
+    private final Gson gson = new GsonBuilder().serializeSpecialFloatingPointValues().create();
+
+    /** @param baseUrl Where the shard server listens, e.g. http://localhost:4568. */
+    public RemoteShard(String baseUrl) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1)
+            : baseUrl;
+    }
+
+    @Override
+    public int[] cells() {
+        return gson.fromJson(get("/shard/cells"), int[].class);
+    }
+
+    @Override
+    public Closest closest(double lon, double lat) {
+        return gson.fromJson(get("/shard/closest?lon=" + lon + "&lat=" + lat), Closest.class);
+    }
+
+    @Override
+    public Boundary boundary(int cell) {
+        return gson.fromJson(get("/shard/boundary?cell=" + cell), Boundary.class);
+    }
+
+    @Override
+    public Map<Long, Double> boundaryDistances(long v) {
+        return gson.fromJson(get("/shard/distances?id=" + v), DISTANCES);
+    }
+
+    @Override
+    public Path path(long from, long to) {
+        return gson.fromJson(get("/shard/path?from=" + from + "&to=" + to), Path.class);
+    }
+
+    /** Returns the body of a GET request to the shard. */
+    private String get(String request) {
+        try {
+            HttpURLConnection connection =
+                (HttpURLConnection) new URL(baseUrl + request).openConnection();
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + connection.getResponseCode());
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = connection.getInputStream()) {
+                byte[] buffer = new byte[8192];
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                    body.write(buffer, 0, n);
+                }
+            }
+            return new String(body.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Shard " + baseUrl + request + " failed", e);
+        }
+    }
+}
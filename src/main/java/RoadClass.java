@@ -0,0 +1,56 @@
+/**
+ * The kinds of highway the graph routes over, from the OSM
+ * <a href="http://wiki.openstreetmap.org/wiki/Key:highway">highway tag</a>. Only non-service
+ * roads are allowed; this prevents going on pedestrian streets as much as possible. Note that
+ * in Berkeley, many of the campus roads are tagged as motor vehicle roads, but in practice we
+ * walk all over them with such impunity that we forget cars can actually drive on them.
+ *
+ * Each class has the speed assumed for its roads when a way has no usable maxspeed tag.
+ *
+ * @author Beiqian Liu
+ */
+public enum RoadClass {
+    MOTORWAY("motorway", 65),
+    TRUNK("trunk", 55),
+    PRIMARY("primary", 45),
+    SECONDARY("secondary", 35),
+    TERTIARY("tertiary", 30),
+    UNCLASSIFIED("unclassified", 25),
+    RESIDENTIAL("residential", 25),
+    LIVING_STREET("living_street", 10),
+    MOTORWAY_LINK("motorway_link", 45),
+    TRUNK_LINK("trunk_link", 40),
+    PRIMARY_LINK("primary_link", 35),
+    SECONDARY_LINK("secondary_link", 30),
+    TERTIARY_LINK("tertiary_link", 25);
+
+    private static final RoadClass[] VALUES = values();
+
+    /** The value of the highway tag. */
+    final String tag;
+    /** The default speed in miles per hour. */
+    final float speed;
+
+    RoadClass(String tag, float speed) {
+        this.tag = tag;
+        this.speed = speed;
+    }
+
+    /**
+     * Returns the class for the value of a highway tag, or null if the graph does not route
+     * over that kind of highway.
+     */
+    static RoadClass of(String highway) {
+        for (RoadClass c : VALUES) {
+            if (c.tag.equals(highway)) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /** Returns the class with the given ordinal, as stored in an EdgeTable. */
+    static RoadClass of(int ordinal) {
+        return VALUES[ordinal];
+    }
+}
@@ -0,0 +1,111 @@
+import java.util.List;
+
+/**
+ * What Router needs to search a road network, however it is stored: GraphDB keeps its nodes
+ * on the heap, MappedGraph in a memory-mapped file.
+ *
+ * @author Beiqian Liu
+ */
+public interface RoadGraph {
+    /** Returns the ids of all vertices. */
+    Iterable<Long> vertices();
+
+    /** Returns the ids of the vertices adjacent to v. */
+    Iterable<Long> adjacent(long v);
+
+    /** Returns the id of the vertex closest to the given longitude and latitude. */
+    long closest(double lon, double lat);
+
+    /** Returns the longitude of a vertex. */
+    double lon(long v);
+
+    /** Returns the latitude of a vertex. */
+    double lat(long v);
+
+    /** Returns the great-circle distance between vertices v and w in miles. */
+    default double distance(long v, long w) {
+        return GraphDB.distance(lon(v), lat(v), lon(w), lat(w));
+    }
+
+    /**
+     * Returns the id of the vertex closest to the given longitude and latitude that the
+     * profile may travel to or from, or -1 if it may not use any edge of the graph.
+     */
+    long closest(double lon, double lat, Profile profile);
+
+    /**
+     * Returns the point closest to the given longitude and latitude on any edge the profile
+     * may travel, or null if it may not use any edge of the graph.
+     */
+    Snap snap(double lon, double lat, Profile profile);
+
+    /**
+     * Returns the closest point of every edge the profile may travel that passes within a
+     * radius of the given longitude and latitude, nearest first.
+     * @param radius The radius in miles.
+     */
+    List<Snap> snapsWithin(double lon, double lat, double radius, Profile profile);
+
+    /**
+     * Calls the visitor with every vertex adjacent to v, the length of the edge to it and its
+     * location. Graphs store edge lengths, so this saves a search from computing them.
+     */
+    default void forEachNeighbor(long v, NeighborVisitor visitor) {
+        forEachNeighbor(v, Profile.DISTANCE, visitor);
+    }
+
+    /**
+     * Calls the visitor with every vertex the profile may travel to from v, the edge to it,
+     * the cost of that edge under the profile and the vertex's location.
+     */
+    void forEachNeighbor(long v, Profile profile, NeighborVisitor visitor);
+
+    /**
+     * Calls the visitor with every vertex the profile may travel to v from, the edge from it
+     * as forEachNeighbor would give it at that vertex, the cost of that edge under the profile
+     * and the vertex's location. A search backwards from a destination follows these.
+     */
+    void forEachPredecessor(long v, Profile profile, NeighborVisitor visitor);
+
+    /** Returns a lower bound on the distance between any two vertices of the graph. */
+    Equirectangular lowerBound();
+
+    /**
+     * Returns the turns the graph forbids. They are only obeyed by profiles that say so, see
+     * Profile.obeysTurnRestrictions.
+     */
+    TurnRestrictions turnRestrictions();
+
+    /** Where a point snaps onto an edge, see snap. */
+    class Snap {
+        /** The edge, and the vertices it leaves and enters in the direction it is stored in. */
+        public int edge;
+        public long from;
+        public long to;
+        /** How far along the edge the point is, from 0 at from to 1 at to. */
+        public double fraction;
+        /** The point on the edge. */
+        public double lon;
+        public double lat;
+        /** The length of the edge in miles. */
+        public double length;
+        /**
+         * The cost per mile of travelling the edge towards to and towards from, under the
+         * profile the point was snapped for, or infinity if it may not travel it that way.
+         */
+        public double forwardPace;
+        public double backwardPace;
+        /** The distance in miles from the location snapped to the point on the edge. */
+        public double distance;
+    }
+
+    /** Receives the neighbors of a vertex, see forEachNeighbor. */
+    interface NeighborVisitor {
+        /**
+         * @param edge The edge as v stores it, like GraphDB.Node.edges: its id if it is
+         *             travelled in the direction it is stored in, the complement of its id if
+         *             not.
+         */
+        void visit(long w, int edge, double cost, double lon, double lat);
+    }
+}
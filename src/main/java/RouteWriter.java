@@ -0,0 +1,165 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the answer to a route request as JSON, straight to the response instead of through
+ * Gson, so that a long route never becomes a tree of maps and strings in memory. Next to the
+ * "routing_success", "directions_success" and "directions" the page has always read, the
+ * answer carries the route itself as "route", in a compact form:
+ * <ul>
+ *     <li>"precision": the units per degree of the coordinates.</li>
+ *     <li>"coordinates": lon, lat of every point from the start point, through the vertices,
+ *     to the end point, as integers of those units; the first point whole, every other one as
+ *     the difference from the point before.</li>
+ *     <li>"distances": the distance from the start to every point, in thousandths of a
+ *     mile.</li>
+ *     <li>"ways": the names of the ways the directions follow, each once.</li>
+ *     <li>"steps": a [direction, way, point] for every direction: its code as in
+ *     NavigationDirection, the index of its way in "ways", and the index of the point it
+ *     starts at.</li>
+ * </ul>
+ *
+ * @author Beiqian Liu
+ */
+public class RouteWriter {
+    /** Units per degree of the coordinates, as in Polyline. */
+    private static final long PRECISION = (long) Polyline.PRECISION;
+
+    private final Writer out;
+    /** Holds one number or line of directions at a time while it is written. */
+    private final StringBuilder buffer = new StringBuilder();
+
+    /** @param out Where to write; the caller buffers and flushes it. */
+    public RouteWriter(Writer out) {
+        this.out = out;
+    }
+
+    /** Writes the answer for a route found on g, and its directions. */
+    public void write(GraphDB g, Router.Route route,
+                      List<Router.NavigationDirection> directions) throws IOException {
+        out.write("{\"routing_success\":");
+        out.write(route.found() ? "true" : "false");
+        out.write(",\"directions_success\":");
+        out.write(directions.isEmpty() ? "false" : "true");
+        out.write(",\"directions\":\"");
+        for (int i = 0; i < directions.size(); i++) {
+            buffer.setLength(0);
+            Router.writeDirection(i + 1, directions.get(i), buffer);
+            writeEscaped(buffer);
+        }
+        out.write('"');
+        if (route.found()) {
+            out.write(",\"route\":");
+            writeRoute(g, route, directions);
+        }
+        out.write('}');
+    }
+
+    private void writeRoute(GraphDB g, Router.Route route,
+                            List<Router.NavigationDirection> directions) throws IOException {
+        out.write("{\"precision\":");
+        writeNumber(PRECISION);
+
+        out.write(",\"coordinates\":[");
+        VertexPath path = VertexPath.of(route.vertices);
+        long lastLon = 0;
+        long lastLat = 0;
+        int n = path.size() + 2;
+        for (int i = 0; i < n; i++) {
+            long lon = Math.round(lon(g, route, path, i) * PRECISION);
+            long lat = Math.round(lat(g, route, path, i) * PRECISION);
+            if (i > 0) {
+                out.write(',');
+            }
+            writeNumber(lon - lastLon);
+            out.write(',');
+            writeNumber(lat - lastLat);
+            lastLon = lon;
+            lastLat = lat;
+        }
+
+        out.write("],\"distances\":[0");
+        double distance = 0;
+        for (int i = 1; i < n; i++) {
+            distance += GraphDB.distance(lon(g, route, path, i - 1),
+                lat(g, route, path, i - 1), lon(g, route, path, i), lat(g, route, path, i));
+            out.write(',');
+            writeNumber(Math.round(distance * 1000));
+        }
+
+        Map<String, Integer> ways = new LinkedHashMap<>();
+        for (Router.NavigationDirection d : directions) {
+            ways.putIfAbsent(d.way, ways.size());
+        }
+        out.write("],\"ways\":[");
+        boolean first = true;
+        for (String way : ways.keySet()) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            out.write('"');
+            writeEscaped(way);
+            out.write('"');
+        }
+
+        /* Direction d starts at vertex d.start, which is point d.start + 1 after the start
+         * point; the first one starts at the start point itself. */
+        out.write("],\"steps\":[");
+        for (int i = 0; i < directions.size(); i++) {
+            Router.NavigationDirection d = directions.get(i);
+            out.write(i == 0 ? "[" : ",[");
+            writeNumber(d.direction);
+            out.write(',');
+            writeNumber(ways.get(d.way));
+            out.write(',');
+            writeNumber(i == 0 ? 0 : d.start + 1);
+            out.write(']');
+        }
+        out.write("]}");
+    }
+
+    /**
+     * Returns the longitude of point i of a route: its start point, a vertex of its path or
+     * its end point.
+     */
+    private static double lon(GraphDB g, Router.Route route, VertexPath path, int i) {
+        if (i == 0) {
+            return route.start.lon;
+        }
+        return i <= path.size() ? g.lon(path.get(i - 1)) : route.end.lon;
+    }
+
+    private static double lat(GraphDB g, Router.Route route, VertexPath path, int i) {
+        if (i == 0) {
+            return route.start.lat;
+        }
+        return i <= path.size() ? g.lat(path.get(i - 1)) : route.end.lat;
+    }
+
+    private void writeNumber(long n) throws IOException {
+        buffer.setLength(0);
+        buffer.append(n);
+        for (int i = 0; i < buffer.length(); i++) {
+            out.write(buffer.charAt(i));
+        }
+    }
+
+    /** Writes the characters of a JSON string, escaping those JSON does not allow as is. */
+    private void writeEscaped(CharSequence s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write(String.format("\\u%04x", (int) c));
+            } else {
+                out.write(c);
+            }
+        }
+    }
+}
@@ -20,58 +20,751 @@ public class Router {
      * @param stlat The latitude of the start location.
      * @param destlon The longitude of the destination location.
      * @param destlat The latitude of the destination location.
-     * @return A list of node id's in the order visited on the shortest path.
+     * @return A list of node id's in the order visited on the shortest path, or an empty
+     * list if the destination cannot be reached.
      */
     public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
                                           double destlon, double destlat) {
-        long stNode = g.closest(stlon, stlat);
-        long destNode = g.closest(destlon, destlat);
-        Map<Long, Long> edgeTo = new HashMap<>();
-        Map<Long, Double> distTo = new HashMap<>();
-        HashSet<Long> marked = new HashSet<>();
-        PriorityQueue<Long> pq = new PriorityQueue<>(g.getNodeComparator());
-
-        Map<Long, GraphDB.Node> nodes = g.getNodes();
-
-        for (Long id : nodes.keySet()) {
-            if (id == stNode) {
-                distTo.put(id, 0.0);
-            } else {
-                distTo.put(id, Double.POSITIVE_INFINITY);
+        return shortestPath(g, stlon, stlat, destlon, destlat, Profile.DISTANCE);
+    }
+
+    /**
+     * Return the cheapest path under a profile, such as the quickest by car, as described
+     * above. The path runs between the closest nodes the profile may use.
+     */
+    public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                          double destlon, double destlat, Profile profile) {
+        /* Search a snapshot, so that changes applied meanwhile cannot break the route. */
+        GraphDB snapshot = g.snapshot();
+        return shortestPath(snapshot, snapshot.getPathTreeCache(), stlon, stlat, destlon,
+            destlat, profile);
+    }
+
+    /**
+     * Return the shortest path on any road graph, such as a MappedGraph, as described above.
+     */
+    public static List<Long> shortestPath(RoadGraph g, double stlon, double stlat,
+                                          double destlon, double destlat) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, Profile.DISTANCE);
+    }
+
+    /**
+     * Return the cheapest path under a profile on any road graph, as described above.
+     */
+    public static List<Long> shortestPath(RoadGraph g, double stlon, double stlat,
+                                          double destlon, double destlat, Profile profile) {
+        return shortestPath(g, null, stlon, stlat, destlon, destlat, profile);
+    }
+
+    /**
+     * Return the cheapest path under a profile on any road graph, as described above, walking
+     * up a cached shortest-path tree when the start is a hot origin.
+     * @param cache The trees of the graph, or null to always search.
+     */
+    public static List<Long> shortestPath(RoadGraph g, PathTreeCache cache, double stlon,
+                                          double stlat, double destlon, double destlat,
+                                          Profile profile) {
+        long stNode = g.closest(stlon, stlat, profile);
+        long destNode = g.closest(destlon, destlat, profile);
+        if (stNode < 0 || destNode < 0) {
+            return new LinkedList<>();
+        }
+        /* A tree holds paths between vertices, which cannot follow turn restrictions. */
+        if (cache != null && !(profile.obeysTurnRestrictions()
+                && !g.turnRestrictions().isEmpty())) {
+            PathTreeCache.Tree tree = cache.tree(g, stNode, profile);
+            if (tree != null) {
+                List<Long> path = tree.pathTo(destNode);
+                return path == null ? new LinkedList<>() : path;
             }
         }
-        pq.add(stNode);
-        while (!pq.isEmpty()) {
-            long curr = pq.remove();
-            if (marked.contains(curr)) {
+        Search search = new Search(g, profile, g.lon(destNode), g.lat(destNode));
+        search.seed(stNode, stNode, 0);
+        search.exit(destNode, 0, NO_EDGE);
+        List<Long> path = search.run();
+        return path == null ? new LinkedList<>() : path;
+    }
+
+    /**
+     * Return the cheapest route under a profile between the points of the roads closest to a
+     * start and a destination location, rather than between the closest nodes. The route
+     * leaves the start point along its edge in whichever direction is cheaper, and reaches
+     * the destination point the same way, so that a click halfway along a long block does
+     * not detour by its end.
+     * @return The route, which has not been found if either point is on no road the profile
+     * may use or the destination cannot be reached.
+     */
+    public static Route route(GraphDB g, double stlon, double stlat, double destlon,
+                              double destlat, Profile profile) {
+        GraphDB snapshot = g.snapshot();
+        return route(snapshot, snapshot.getPathTreeCache(), stlon, stlat, destlon, destlat,
+            profile);
+    }
+
+    /**
+     * Return the cheapest route between two points on the roads of any road graph, as
+     * described above.
+     */
+    public static Route route(RoadGraph g, double stlon, double stlat, double destlon,
+                              double destlat, Profile profile) {
+        return route(g, null, stlon, stlat, destlon, destlat, profile);
+    }
+
+    /**
+     * Return the cheapest route between two points on the roads of any road graph, as
+     * described above, walking up cached shortest-path trees when the ends of the start's
+     * edge are hot origins.
+     * @param cache The trees of the graph, or null to always search.
+     */
+    public static Route route(RoadGraph g, PathTreeCache cache, double stlon, double stlat,
+                              double destlon, double destlat, Profile profile) {
+        Route route = new Route();
+        route.start = g.snap(stlon, stlat, profile);
+        route.end = g.snap(destlon, destlat, profile);
+        if (route.start == null || route.end == null) {
+            return route;
+        }
+        if (cache != null && !(profile.obeysTurnRestrictions()
+                && !g.turnRestrictions().isEmpty()) && cachedRoute(g, cache, profile, route)) {
+            return route;
+        }
+        /*
+         * The two points are joined to the graph only inside this search: as the costs of
+         * the states it starts from, and of finishing at either end of the destination's edge.
+         * The graph itself, which other searches share, is left alone.
+         */
+        RoadGraph.Snap st = route.start;
+        RoadGraph.Snap dest = route.end;
+        TurnRestrictions turns = profile.obeysTurnRestrictions() ? g.turnRestrictions()
+            : TurnRestrictions.NONE;
+        Search search = new Search(g, profile, dest.lon, dest.lat);
+        search.seed(turns.restrictsFrom(st.edge) ? turnState(st.edge) : st.to, st.to,
+            cost(1 - st.fraction, st.length, st.forwardPace));
+        search.seed(turns.restrictsFrom(st.edge) ? turnState(~st.edge) : st.from, st.from,
+            cost(st.fraction, st.length, st.backwardPace));
+        search.exit(dest.from, cost(dest.fraction, dest.length, dest.forwardPace), dest.edge);
+        search.exit(dest.to, cost(1 - dest.fraction, dest.length, dest.backwardPace),
+            ~dest.edge);
+        if (st.edge == dest.edge) {
+            /* Both points are on one edge, and the route may simply run along it. */
+            double along = dest.fraction - st.fraction;
+            search.seed(DEST, DEST, along >= 0 ? cost(along, st.length, st.forwardPace)
+                : cost(-along, st.length, st.backwardPace));
+        }
+        List<Long> path = search.run();
+        if (path != null) {
+            route.vertices = path;
+            route.cost = search.cost;
+        }
+        return route;
+    }
+
+    /** The most an alternative route may cost, as a multiple of the cheapest route. */
+    private static final double MAX_STRETCH = 1.25;
+    /** The most of the cheapest route's cost an alternative may share with earlier routes. */
+    private static final double MAX_SHARING = 0.8;
+    /**
+     * The part of the cheapest route's cost, either side of its via vertex, over which an
+     * alternative must be a shortest path, so that it makes no pointless detour.
+     */
+    private static final double LOCAL_OPTIMALITY = 0.25;
+    /** How many via vertices alternatives looks at for each route it is asked for. */
+    private static final int CANDIDATES_PER_ROUTE = 16;
+
+    /**
+     * Return up to k reasonable routes under a profile between the nodes closest to a start
+     * and a destination location, the cheapest first.
+     * @return The routes, which are none if the destination cannot be reached.
+     */
+    public static List<Alternative> alternatives(GraphDB g, double stlon, double stlat,
+                                                 double destlon, double destlat,
+                                                 Profile profile, int k) {
+        return alternatives((RoadGraph) g.snapshot(), stlon, stlat, destlon, destlat, profile,
+            k);
+    }
+
+    /**
+     * Return up to k reasonable routes under a profile on any road graph, as described above.
+     * The first is the route shortestPath finds. The others are found by the via-node method:
+     * one search grows a tree of cheapest paths out of the start and one grows a tree into the
+     * destination, and every vertex v both reach gives the route of the cheapest path to v and
+     * the cheapest path from v. Where the trees follow the same edges they form a plateau, and
+     * only the first vertex of each plateau is looked at, longest plateaus first, since a long
+     * plateau is a natural road to take. A route is kept if it costs at most MAX_STRETCH times
+     * the cheapest, shares at most MAX_SHARING of that cost with the routes kept before it,
+     * and is a shortest path around its via vertex.
+     *
+     * The trees stop at MAX_STRETCH times the cheapest cost, and at most CANDIDATES_PER_ROUTE
+     * via vertices are looked at per route, so the call costs a bounded multiple of a single
+     * search.
+     */
+    public static List<Alternative> alternatives(RoadGraph g, double stlon, double stlat,
+                                                 double destlon, double destlat,
+                                                 Profile profile, int k) {
+        List<Alternative> routes = new ArrayList<>();
+        long stNode = g.closest(stlon, stlat, profile);
+        long destNode = g.closest(destlon, destlat, profile);
+        if (stNode < 0 || destNode < 0 || k <= 0) {
+            return routes;
+        }
+        Search search = new Search(g, profile, g.lon(destNode), g.lat(destNode));
+        search.seed(stNode, stNode, 0);
+        search.exit(destNode, 0, NO_EDGE);
+        List<Long> best = search.run();
+        if (best == null) {
+            return routes;
+        }
+        double optimal = search.cost;
+        routes.add(new Alternative(best, optimal));
+        if (k == 1 || stNode == destNode) {
+            return routes;
+        }
+
+        double limit = MAX_STRETCH * optimal;
+        Tree forward = new Tree(g, profile, stNode, true, limit);
+        Tree backward = new Tree(g, profile, destNode, false, limit);
+        Map<Long, Double> score = new HashMap<>();
+        for (int i = 0; i < forward.size(); i++) {
+            long v = forward.id(i);
+            if (!forward.isSettled(v) || !backward.isSettled(v)
+                    || forward.dist(v) + backward.dist(v) > limit) {
                 continue;
             }
-            marked.add(curr);
-            if (curr == destNode) {
+            long parent = forward.parent(v);
+            if (parent != Tree.NO_VERTEX && backward.isSettled(parent)
+                    && backward.parent(parent) == v) {
+                continue;
+            }
+            long end = v;
+            for (long next = backward.parent(end);
+                 next != Tree.NO_VERTEX && forward.isSettled(next)
+                     && forward.parent(next) == end;
+                 next = backward.parent(end)) {
+                end = next;
+            }
+            double plateau = forward.dist(end) - forward.dist(v);
+            score.put(v, forward.dist(v) + backward.dist(v) - plateau);
+        }
+        List<Long> candidates = new ArrayList<>(score.keySet());
+        candidates.sort(Comparator.comparingDouble(score::get));
+
+        TurnRestrictions turns = profile.obeysTurnRestrictions() ? g.turnRestrictions()
+            : TurnRestrictions.NONE;
+        Set<Integer> used = new HashSet<>(edgesOf(g, profile, best));
+        int looked = 0;
+        for (long v : candidates) {
+            if (routes.size() == k || looked == CANDIDATES_PER_ROUTE * k) {
                 break;
             }
-            Iterable<Long> adj = g.adjacent(curr);
-            for (Long next : adj) {
-                double newDistTo = distTo.get(curr) + g.distance(curr, next);
-                if (newDistTo < distTo.get(next)) {
-                    nodes.get(next).priority = newDistTo + g.distance(next, destNode);
-                    pq.add(next);
-                    edgeTo.put(next, curr);
-                    distTo.put(next, newDistTo);
+            looked += 1;
+            /* The route through v, with the edges between its vertices and their costs. */
+            List<Long> path = new ArrayList<>();
+            List<Integer> edges = new ArrayList<>();
+            for (long w = v; w != stNode; w = forward.parent(w)) {
+                path.add(w);
+                edges.add(forward.parentEdge(w));
+            }
+            path.add(stNode);
+            Collections.reverse(path);
+            Collections.reverse(edges);
+            int via = path.size() - 1;
+            for (long w = v; w != destNode; ) {
+                edges.add(backward.parentEdge(w));
+                w = backward.parent(w);
+                path.add(w);
+            }
+            if (new HashSet<>(path).size() < path.size()) {
+                continue;
+            }
+            double[] costTo = new double[path.size()];
+            for (int i = 0; i < path.size(); i++) {
+                costTo[i] = i <= via ? forward.dist(path.get(i))
+                    : costTo[via] + backward.dist(v) - backward.dist(path.get(i));
+            }
+            boolean allowed = true;
+            double shared = 0;
+            for (int i = 0; i < edges.size(); i++) {
+                int edge = GraphDB.Node.edgeId(edges.get(i));
+                if (i > 0 && turns.forbids(GraphDB.Node.edgeId(edges.get(i - 1)), edge)) {
+                    allowed = false;
+                }
+                if (used.contains(edge)) {
+                    shared += costTo[i + 1] - costTo[i];
+                }
+            }
+            if (!allowed || shared > MAX_SHARING * optimal
+                    || !locallyOptimal(g, profile, path, costTo, via, optimal)) {
+                continue;
+            }
+            routes.add(new Alternative(path, costTo[path.size() - 1]));
+            for (int edge : edges) {
+                used.add(GraphDB.Node.edgeId(edge));
+            }
+        }
+        return routes;
+    }
+
+    /**
+     * Returns whether a path is a shortest path over up to LOCAL_OPTIMALITY times the optimal
+     * cost either side of its via vertex, by searching between the farthest vertices that
+     * close.
+     * @param costTo The cost of the path up to each of its vertices.
+     */
+    private static boolean locallyOptimal(RoadGraph g, Profile profile, List<Long> path,
+                                          double[] costTo, int via, double optimal) {
+        double reach = LOCAL_OPTIMALITY * optimal;
+        int from = via;
+        while (from > 0 && costTo[via] - costTo[from - 1] <= reach) {
+            from -= 1;
+        }
+        int to = via;
+        while (to < path.size() - 1 && costTo[to + 1] - costTo[via] <= reach) {
+            to += 1;
+        }
+        if (from == to) {
+            return true;
+        }
+        Search search = new Search(g, profile, g.lon(path.get(to)), g.lat(path.get(to)));
+        search.seed(path.get(from), path.get(from), 0);
+        search.exit(path.get(to), 0, NO_EDGE);
+        search.run();
+        return search.cost >= costTo[to] - costTo[from] - 1e-9;
+    }
+
+    /** Returns the tree of cheapest paths from an origin to every vertex, for PathTreeCache. */
+    static PathTreeCache.Tree pathTree(RoadGraph g, long origin, Profile profile) {
+        return new Tree(g, profile, origin, true, Double.POSITIVE_INFINITY)
+            .toPathTree(origin, profile);
+    }
+
+    /** Returns the ids of the cheapest edges between the vertices of a path. */
+    private static List<Integer> edgesOf(RoadGraph g, Profile profile, List<Long> path) {
+        List<Integer> edges = new ArrayList<>();
+        for (int i = 1; i < path.size(); i++) {
+            long next = path.get(i);
+            double[] best = {Double.POSITIVE_INFINITY, -1};
+            g.forEachNeighbor(path.get(i - 1), profile, (w, edge, cost, lon, lat) -> {
+                if (w == next && cost < best[0]) {
+                    best[0] = cost;
+                    best[1] = GraphDB.Node.edgeId(edge);
+                }
+            });
+            edges.add((int) best[1]);
+        }
+        return edges;
+    }
+
+    /**
+     * A tree of cheapest paths out of a root, or into it, found by Dijkstra's algorithm up to
+     * a cost limit. Only the settled vertices' costs are final. Like Search, it gives every
+     * vertex it reaches a dense index and keeps what it knows about it in primitive arrays.
+     */
+    private static class Tree implements RoadGraph.NeighborVisitor {
+        private static final int MIN_CAPACITY = 64;
+        /** What parent returns for the root and for vertices the tree does not reach. */
+        static final long NO_VERTEX = Long.MIN_VALUE;
+
+        private final LongIntMap indexOf = new LongIntMap();
+        private long[] ids = new long[MIN_CAPACITY];
+        private double[] dist = new double[MIN_CAPACITY];
+        /** The index of the next vertex towards the root, and the edge to or from it. */
+        private int[] parent = new int[MIN_CAPACITY];
+        private int[] parentEdge = new int[MIN_CAPACITY];
+        private boolean[] settled = new boolean[MIN_CAPACITY];
+        private int count;
+        private final IndexedHeap pq = new IndexedHeap();
+        /** The vertex being settled and its cost, for visit. */
+        private int curr;
+        private double currDist;
+
+        /**
+         * @param forward Whether the paths lead out of the root, rather than into it.
+         */
+        Tree(RoadGraph g, Profile profile, long root, boolean forward, double limit) {
+            int r = index(root);
+            dist[r] = 0;
+            pq.push(r, 0);
+            while (!pq.isEmpty() && pq.peekPriority() <= limit) {
+                curr = pq.pop();
+                settled[curr] = true;
+                currDist = dist[curr];
+                if (forward) {
+                    g.forEachNeighbor(ids[curr], profile, this);
+                } else {
+                    g.forEachPredecessor(ids[curr], profile, this);
+                }
+            }
+        }
+
+        @Override
+        public void visit(long next, int edge, double cost, double lon, double lat) {
+            int i = index(next);
+            double newDist = currDist + cost;
+            if (!settled[i] && newDist < dist[i]) {
+                dist[i] = newDist;
+                parent[i] = curr;
+                parentEdge[i] = edge;
+                pq.push(i, newDist);
+            }
+        }
+
+        private int index(long v) {
+            int i = indexOf.get(v);
+            if (i != LongIntMap.MISSING) {
+                return i;
+            }
+            if (count == ids.length) {
+                int capacity = 2 * count;
+                ids = Arrays.copyOf(ids, capacity);
+                dist = Arrays.copyOf(dist, capacity);
+                parent = Arrays.copyOf(parent, capacity);
+                parentEdge = Arrays.copyOf(parentEdge, capacity);
+                settled = Arrays.copyOf(settled, capacity);
+            }
+            i = count++;
+            ids[i] = v;
+            dist[i] = Double.POSITIVE_INFINITY;
+            parent[i] = -1;
+            indexOf.put(v, i);
+            return i;
+        }
+
+        /** Returns the number of vertices the tree has reached, settled or not. */
+        int size() {
+            return count;
+        }
+
+        /** Returns the vertex at an index below size. */
+        long id(int i) {
+            return ids[i];
+        }
+
+        boolean isSettled(long v) {
+            int i = indexOf.get(v);
+            return i != LongIntMap.MISSING && settled[i];
+        }
+
+        /** Returns the cost of v, or infinity if the tree has not reached it. */
+        double dist(long v) {
+            int i = indexOf.get(v);
+            return i == LongIntMap.MISSING ? Double.POSITIVE_INFINITY : dist[i];
+        }
+
+        /** Returns the next vertex from v towards the root, or NO_VERTEX if there is none. */
+        long parent(long v) {
+            int i = indexOf.get(v);
+            return i == LongIntMap.MISSING || parent[i] < 0 ? NO_VERTEX : ids[parent[i]];
+        }
+
+        /** Returns the edge between v and its parent, as forEachNeighbor gives it. */
+        int parentEdge(long v) {
+            return parentEdge[indexOf.get(v)];
+        }
+
+        /**
+         * Returns the settled vertices as a PathTreeCache.Tree of an origin: their ids in
+         * ascending order, with the parent and cost of each at the same position.
+         */
+        PathTreeCache.Tree toPathTree(long origin, Profile profile) {
+            long[] sorted = new long[count];
+            int n = 0;
+            for (int i = 0; i < count; i++) {
+                if (settled[i]) {
+                    sorted[n++] = ids[i];
+                }
+            }
+            sorted = Arrays.copyOf(sorted, n);
+            Arrays.sort(sorted);
+            int[] parents = new int[n];
+            double[] costs = new double[n];
+            for (int k = 0; k < n; k++) {
+                int i = indexOf.get(sorted[k]);
+                costs[k] = dist[i];
+                parents[k] = parent[i] < 0 ? -1 : Arrays.binarySearch(sorted, ids[parent[i]]);
+            }
+            return new PathTreeCache.Tree(origin, profile, sorted, parents, costs);
+        }
+    }
+
+    /** One of the routes alternatives finds: its vertices and its cost under the profile. */
+    public static class Alternative {
+        public final List<Long> vertices;
+        public final double cost;
+
+        Alternative(List<Long> vertices, double cost) {
+            this.vertices = vertices;
+            this.cost = cost;
+        }
+    }
+
+    /**
+     * Finds a route between snapped points from the cached trees of both ends of the start's
+     * edge, as the cheapest of leaving by either end and arriving by either end of the
+     * destination's edge. Returns false, leaving the route alone, if either tree is missing.
+     */
+    private static boolean cachedRoute(RoadGraph g, PathTreeCache cache, Profile profile,
+                                       Route route) {
+        RoadGraph.Snap st = route.start;
+        RoadGraph.Snap dest = route.end;
+        long[] origins = {st.to, st.from};
+        double[] leave = {cost(1 - st.fraction, st.length, st.forwardPace),
+            cost(st.fraction, st.length, st.backwardPace)};
+        long[] targets = {dest.from, dest.to};
+        double[] arrive = {cost(dest.fraction, dest.length, dest.forwardPace),
+            cost(1 - dest.fraction, dest.length, dest.backwardPace)};
+        PathTreeCache.Tree[] trees = new PathTreeCache.Tree[2];
+        for (int i = 0; i < 2; i++) {
+            if (leave[i] < Double.POSITIVE_INFINITY) {
+                trees[i] = cache.tree(g, origins[i], profile);
+                if (trees[i] == null) {
+                    return false;
+                }
+            }
+        }
+        if (st.edge == dest.edge) {
+            double along = dest.fraction - st.fraction;
+            route.cost = along >= 0 ? cost(along, st.length, st.forwardPace)
+                : cost(-along, st.length, st.backwardPace);
+        }
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < 2 && trees[i] != null; j++) {
+                double cost = leave[i] + trees[i].distTo(targets[j]) + arrive[j];
+                if (cost < route.cost) {
+                    route.cost = cost;
+                    route.vertices = trees[i].pathTo(targets[j]);
                 }
             }
         }
+        return true;
+    }
+
+    /**
+     * Returns the cost of travelling part of an edge at a pace. Travelling none of it is free
+     * even where the pace is infinite, since the point is then the vertex itself.
+     */
+    private static double cost(double fraction, double length, double pace) {
+        return fraction == 0 ? 0 : fraction * length * pace;
+    }
+
+    /** The state every search finishes in, reached from the exits of its destination. */
+    private static final long DEST = Long.MIN_VALUE;
+    /** The edge entry of an exit that follows no edge, so forbids no turn. */
+    private static final int NO_EDGE = Integer.MIN_VALUE;
+
+    /**
+     * One A* search from a few seed states to a destination. Edge costs are stored per
+     * profile, and the heuristic is a cheap lower bound on the distance to the target point
+     * times the smallest cost per mile of the profile.
+     *
+     * A search state is usually just a vertex. Arriving along an edge that some turn is
+     * forbidden from makes a state of its own, keyed by turnState, so that the turns out of
+     * it can be checked; vertex ids are positive, as in OSM, and turn states negative. The
+     * destination is one more state, DEST, which the exits lead to.
+     *
+     * Each state gets a dense index the first time the search reaches it, and everything the
+     * search knows about it is kept in primitive arrays at that index, with an IndexedHeap of
+     * indices as the queue. Relaxing an edge then allocates nothing, and the search visits the
+     * neighbors of a vertex itself rather than through a new lambda per vertex.
+     */
+    private static class Search implements RoadGraph.NeighborVisitor {
+        private static final int MIN_CAPACITY = 64;
+        /** The index of a state with no parent, which is a seed. */
+        private static final int NO_PARENT = -1;
+
+        private final RoadGraph g;
+        private final Profile profile;
+        private final TurnRestrictions turns;
+        private final Equirectangular bound;
+        private final double minPace;
+        private final double targetLon;
+        private final double targetLat;
+        /** The index of every state reached, and the state and vertex at each index. */
+        private final LongIntMap indexOf = new LongIntMap();
+        private long[] states = new long[MIN_CAPACITY];
+        private long[] vertexOf = new long[MIN_CAPACITY];
+        /** The cost of the cheapest path found to each state, and the state before it. */
+        private double[] distTo = new double[MIN_CAPACITY];
+        private int[] edgeTo = new int[MIN_CAPACITY];
+        private boolean[] marked = new boolean[MIN_CAPACITY];
+        private int count;
+        private final IndexedHeap pq = new IndexedHeap();
+        /** The vertices the search may finish at, their costs and the edges exits turn onto. */
+        private long[] exitVertex = new long[2];
+        private double[] exitCost = new double[2];
+        private int[] exitEdge = new int[2];
+        private int exits;
+        /** The state being expanded, its cost and the edge it arrived by or -1, for visit. */
+        private int curr;
+        private double currDistTo;
+        private int arrivedBy;
+        /** The cost of the path run found. */
+        private double cost = Double.POSITIVE_INFINITY;
+
+        Search(RoadGraph g, Profile profile, double targetLon, double targetLat) {
+            this.g = g;
+            this.profile = profile;
+            this.turns = profile.obeysTurnRestrictions() ? g.turnRestrictions()
+                : TurnRestrictions.NONE;
+            this.bound = g.lowerBound();
+            this.minPace = profile.minPace();
+            this.targetLon = targetLon;
+            this.targetLat = targetLat;
+        }
+
+        /** Starts the search at a state, at a cost; an infinite cost is ignored. */
+        void seed(long state, long vertex, double cost) {
+            int i = index(state, vertex);
+            if (cost < distTo[i]) {
+                edgeTo[i] = NO_PARENT;
+                distTo[i] = cost;
+                pq.push(i, cost + heuristic(vertex));
+            }
+        }
 
-        List<Long> path = new LinkedList<>();
-        long pointer = destNode;
-        path.add(pointer);
-        while (pointer != stNode) {
-            pointer = edgeTo.get(pointer);
-            path.add(0, pointer);
+        /**
+         * Lets the search finish at a vertex, at a cost, by turning onto an edge entry or
+         * NO_EDGE; an infinite cost is ignored.
+         */
+        void exit(long vertex, double cost, int edge) {
+            if (!(cost < Double.POSITIVE_INFINITY)) {
+                return;
+            }
+            for (int k = 0; k < exits; k++) {
+                if (exitVertex[k] == vertex) {
+                    if (cost < exitCost[k]) {
+                        exitCost[k] = cost;
+                        exitEdge[k] = edge;
+                    }
+                    return;
+                }
+            }
+            if (exits == exitVertex.length) {
+                exitVertex = Arrays.copyOf(exitVertex, 2 * exits);
+                exitCost = Arrays.copyOf(exitCost, 2 * exits);
+                exitEdge = Arrays.copyOf(exitEdge, 2 * exits);
+            }
+            exitVertex[exits] = vertex;
+            exitCost[exits] = cost;
+            exitEdge[exits] = edge;
+            exits++;
+        }
+
+        private double heuristic(long vertex) {
+            return vertex == DEST ? 0
+                : minPace * bound.distance(g.lon(vertex), g.lat(vertex), targetLon, targetLat);
+        }
+
+        /** Returns the index of a state, giving it the next one if the search has not got one. */
+        private int index(long state, long vertex) {
+            int i = indexOf.get(state);
+            if (i != LongIntMap.MISSING) {
+                return i;
+            }
+            if (count == states.length) {
+                int capacity = 2 * count;
+                states = Arrays.copyOf(states, capacity);
+                vertexOf = Arrays.copyOf(vertexOf, capacity);
+                distTo = Arrays.copyOf(distTo, capacity);
+                edgeTo = Arrays.copyOf(edgeTo, capacity);
+                marked = Arrays.copyOf(marked, capacity);
+            }
+            i = count++;
+            states[i] = state;
+            vertexOf[i] = vertex;
+            distTo[i] = Double.POSITIVE_INFINITY;
+            edgeTo[i] = NO_PARENT;
+            indexOf.put(state, i);
+            return i;
+        }
+
+        /**
+         * Returns the vertices of the cheapest path from a seed to DEST, or null if there is
+         * none.
+         */
+        List<Long> run() {
+            while (!pq.isEmpty()) {
+                curr = pq.pop();
+                marked[curr] = true;
+                long state = states[curr];
+                if (state == DEST) {
+                    cost = distTo[curr];
+                    return path(curr);
+                }
+                currDistTo = distTo[curr];
+                arrivedBy = state < 0 ? (int) ((-state - 1) / 2) : -1;
+                long vertex = vertexOf[curr];
+                for (int k = 0; k < exits; k++) {
+                    if (exitVertex[k] == vertex) {
+                        int edge = exitEdge[k];
+                        if (edge == NO_EDGE || arrivedBy < 0
+                                || !turns.forbids(arrivedBy, GraphDB.Node.edgeId(edge))) {
+                            relax(DEST, DEST, currDistTo + exitCost[k], 0);
+                        }
+                    }
+                }
+                g.forEachNeighbor(vertex, profile, this);
+            }
+            return null;
+        }
+
+        /** Relaxes the edge from the state being expanded to a neighbor; see run. */
+        @Override
+        public void visit(long next, int edge, double cost, double lon, double lat) {
+            int edgeId = GraphDB.Node.edgeId(edge);
+            if (arrivedBy >= 0 && turns.forbids(arrivedBy, edgeId)) {
+                return;
+            }
+            long state = turns.restrictsFrom(edgeId) ? turnState(edge) : next;
+            relax(state, next, currDistTo + cost,
+                minPace * bound.distance(lon, lat, targetLon, targetLat));
+        }
+
+        private void relax(long state, long vertex, double newDistTo, double heuristic) {
+            int i = index(state, vertex);
+            if (!marked[i] && newDistTo < distTo[i]) {
+                distTo[i] = newDistTo;
+                edgeTo[i] = curr;
+                pq.push(i, newDistTo + heuristic);
+            }
+        }
+
+        /** Returns the vertices of the path to DEST, following edgeTo back to a seed. */
+        private List<Long> path(int dest) {
+            VertexPath path = new VertexPath();
+            for (int i = dest; i != NO_PARENT; i = edgeTo[i]) {
+                if (states[i] != DEST) {
+                    path.add(vertexOf[i]);
+                }
+            }
+            path.reverse();
+            return path.asList();
         }
-        return path;
     }
 
+    /**
+     * A route between two points snapped onto roads, see route. The vertices run from one end
+     * of the start's edge to one end of the destination's, and are empty if the route only
+     * runs along the edge both points are on.
+     */
+    public static class Route {
+        public RoadGraph.Snap start;
+        public RoadGraph.Snap end;
+        public List<Long> vertices = new LinkedList<>();
+        /** The cost of the route under its profile, or infinity if it has not been found. */
+        public double cost = Double.POSITIVE_INFINITY;
+
+        public boolean found() {
+            return cost < Double.POSITIVE_INFINITY;
+        }
+    }
+
+    /**
+     * Returns the search state of arriving along an edge, given as GraphDB.Node.edges stores
+     * it, at the end the edge is travelled towards: -2 * id - 1 forward, -2 * id - 2 backward.
+     */
+    private static long turnState(int edge) {
+        return edge >= 0 ? -2L * edge - 1 : -2L * ~edge - 2;
+    }
 
     /**
      * Create the list of directions corresponding to a route on the graph.
@@ -82,7 +775,15 @@ public class Router {
      * route.
      */
     public static List<NavigationDirection> routeDirections(GraphDB g, List<Long> route) {
-        List<NavigationDirection> navDirections = new LinkedList<>();
+        return routeDirections(g, VertexPath.of(route));
+    }
+
+    /**
+     * Create the list of directions corresponding to a route, as described above, in one pass
+     * over the route that looks every vertex up once.
+     */
+    public static List<NavigationDirection> routeDirections(GraphDB g, VertexPath route) {
+        List<NavigationDirection> navDirections = new ArrayList<>();
         String currWayName;
         String prevWayName = "";
         double currBearing;
@@ -90,25 +791,27 @@ public class Router {
         double dist = 0;
         NavigationDirection navDirection = new NavigationDirection();
 
+        GraphDB.Node curr = route.isEmpty() ? null : g.node(route.get(0));
         for (int i = 0; i < route.size() - 1; i++) {
-            long curr = route.get(i);
-            long next = route.get(i + 1);
-            currWayName = g.getWayName(curr, next);
-            currBearing = g.bearing(curr, next);
+            GraphDB.Node next = g.node(route.get(i + 1));
+            currWayName = g.getWayName(curr, next.id);
+            currBearing = GraphDB.bearing(curr.lon, curr.lat, next.lon, next.lat);
+            double length = GraphDB.distance(curr, next);
 
             if (currWayName.equals(prevWayName)) {
-                dist += g.distance(curr, next);
+                dist += length;
             } else if (i == 0) {
                 navDirection.direction = 0;
                 navDirection.way = currWayName;
-                dist += g.distance(curr, next);
+                dist += length;
             } else {
                 navDirection.distance = dist;
-                NavigationDirection newNavDirection = copy(navDirection);
-                navDirections.add(newNavDirection);
+                navDirections.add(navDirection);
 
-                dist = g.distance(curr, next);
+                navDirection = new NavigationDirection();
+                dist = length;
                 navDirection.way = currWayName;
+                navDirection.start = i;
 
                 double relativeBearing = currBearing - prevBearing;
                 if (relativeBearing > 180) {
@@ -139,17 +842,29 @@ public class Router {
             }
             prevWayName = currWayName;
             prevBearing = currBearing;
+            curr = next;
         }
 
         return navDirections;
     }
 
-    private static NavigationDirection copy(NavigationDirection navDirection) {
-        NavigationDirection newNavDirection = new NavigationDirection();
-        newNavDirection.direction = navDirection.direction;
-        newNavDirection.way = navDirection.way;
-        newNavDirection.distance = navDirection.distance;
-        return newNavDirection;
+    /**
+     * Appends numbered directions to out as HTML lines, "1. Start on ... miles. <br>", without
+     * formatting strings.
+     */
+    public static void writeDirections(List<NavigationDirection> directions, StringBuilder out) {
+        int step = 1;
+        for (NavigationDirection d : directions) {
+            writeDirection(step, d, out);
+            step += 1;
+        }
+    }
+
+    /** Appends one line of writeDirections, for the direction numbered step. */
+    static void writeDirection(int step, NavigationDirection d, StringBuilder out) {
+        out.append(step).append(". ");
+        d.appendTo(out);
+        out.append(" <br>");
     }
 
     /**
@@ -195,6 +910,8 @@ public class Router {
         String way;
         /** The distance along this way I represent. */
         double distance;
+        /** The index in the route of the vertex I start at. */
+        int start;
 
         /**
          * Create a default, anonymous NavigationDirection.
@@ -210,6 +927,39 @@ public class Router {
                     DIRECTIONS[direction], way, distance);
         }
 
+        /** Appends the same text as toString to out, without formatting a string. */
+        public void appendTo(StringBuilder out) {
+            out.append(DIRECTIONS[direction]).append(" on ").append(way)
+                .append(" and continue for ");
+            appendMiles(distance, out);
+            out.append(" miles.");
+        }
+
+        /**
+         * Appends a non-negative distance with three decimals like %.3f, which rounds the
+         * shortest decimal form of the double half up. Only a distance a hair from halfway
+         * between thousandths needs that form worked out.
+         */
+        private static void appendMiles(double distance, StringBuilder out) {
+            double scaled = distance * 1000;
+            double floor = Math.floor(scaled);
+            if (!(scaled < Long.MAX_VALUE) || Math.abs(scaled - floor - 0.5) < 1e-6) {
+                out.append(java.math.BigDecimal.valueOf(distance)
+                    .setScale(3, java.math.RoundingMode.HALF_UP).toPlainString());
+                return;
+            }
+            long thousandths = (long) floor + (scaled - floor > 0.5 ? 1 : 0);
+            out.append(thousandths / 1000).append('.');
+            long fraction = thousandths % 1000;
+            if (fraction < 100) {
+                out.append('0');
+            }
+            if (fraction < 10) {
+                out.append('0');
+            }
+            out.append(fraction);
+        }
+
         /**
          * Takes the string representation of a navigation direction and converts it into
          * a Navigation Direction object.
@@ -0,0 +1,67 @@
+import java.util.Map;
+
+/**
+ * The part of a partitioned graph one server holds: some of the cells of a Partition. A
+ * ShardCoordinator answers routes across all cells by asking the shards for distances within
+ * their cells, so that no single process has to hold the whole graph.
+ *
+ * Shards may run in the coordinator's process, see CellShard, or in other processes, see
+ * ShardServer and RemoteShard. The classes below are what they exchange, and are sent as Json.
+ *
+ * @author Beiqian Liu
+ */
+public interface Shard {
+    /** Returns the cells this shard holds. */
+    int[] cells();
+
+    /**
+     * Returns the vertex of this shard's cells closest to a point, or null if the shard has no
+     * vertices.
+     */
+    Closest closest(double lon, double lat);
+
+    /** Returns the boundary of one of this shard's cells and the distances across it. */
+    Boundary boundary(int cell);
+
+    /**
+     * Returns the distances within its cell from a vertex to each boundary vertex of the cell
+     * it can reach, by id.
+     */
+    Map<Long, Double> boundaryDistances(long v);
+
+    /**
+     * Returns the shortest path between two vertices of the same cell that does not leave the
+     * cell. The path is empty, and its length infinite, if there is none.
+     */
+    Path path(long from, long to);
+
+    /** A vertex found by closest. */
+    class Closest {
+        long id;
+        int cell;
+        /** Distance from the point, in miles. */
+        double distance;
+    }
+
+    /**
+     * The boundary of a cell, the vertices with an edge to another cell. table[i][j] is the
+     * length of the shortest path within the cell from ids[i] to ids[j], or infinity. The
+     * edges that leave the cell run from cutFrom[k], inside it, to cutTo[k], outside of it.
+     */
+    class Boundary {
+        int cell;
+        long[] ids;
+        double[][] table;
+        long[] cutFrom;
+        long[] cutTo;
+        double[] cutLength;
+    }
+
+    /** A path with the location of each of its vertices, and its length in miles. */
+    class Path {
+        long[] ids = new long[0];
+        double[] lons = new double[0];
+        double[] lats = new double[0];
+        double length = Double.POSITIVE_INFINITY;
+    }
+}
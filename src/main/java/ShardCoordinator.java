@@ -0,0 +1,239 @@
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import static spark.Spark.get;
+import static spark.Spark.port;
+
+/**
+ * Answers routes over a graph partitioned across shards, holding only the boundary of every
+ * cell. Within a cell, the shortest path between two boundary vertices is looked up once in
+ * the distance table of the cell, so the coordinator's overlay graph has an edge for every
+ * pair of boundary vertices of a cell plus the edges that cross from one cell to another.
+ *
+ * A route leaves its start's cell through some boundary vertex and enters its destination's
+ * cell through another, so it is found by a search over the overlay that starts with the
+ * distances from the start to its cell's boundary and ends with the distances from the
+ * destination's cell's boundary to the destination. A route within a single cell is also
+ * asked of the cell's shard directly, in case it never leaves the cell. Finally the overlay
+ * edges of the route are expanded into paths by the shards that hold them.
+ *
+ * Run several ShardServers and a coordinator to try it on one machine, e.g.
+ * <pre>
+ * java ShardServer data/berkeley-2018.osm.xml 2 4568 0 1
+ * java ShardServer data/berkeley-2018.osm.xml 2 4569 2 3
+ * java ShardCoordinator 4567 http://localhost:4568 http://localhost:4569
+ * curl -G localhost:4567/route -d start_lon=-122.26 -d start_lat=37.87 \
+ *     -d end_lon=-122.24 -d end_lat=37.85
+ * </pre>
+ *
+ * @author Beiqian Liu
+ */
+public class ShardCoordinator {
+    private final List<Shard> shards;
+    private final Map<Integer, Shard> owners = new HashMap<>();
+    /** The cell of every boundary vertex. */
+    private final Map<Long, Integer> cellOf = new HashMap<>();
+    /** The overlay graph: the edges from every boundary vertex, by id. */
+    private final Map<Long, List<OverlayEdge>> overlay = new HashMap<>();
+
+    /**
+     * Builds the overlay graph from the boundaries of every cell of the shards.
+     * @param shards The shards, which must hold disjoint cells of the same partition.
+     */
+    public ShardCoordinator(List<Shard> shards) {
+        this.shards = new ArrayList<>(shards);
+        for (Shard shard : shards) {
+            for (int cell : shard.cells()) {
+                if (owners.put(cell, shard) != null) {
+                    throw new IllegalArgumentException("Cell " + cell + " is in two shards");
+                }
+                Shard.Boundary b = shard.boundary(cell);
+                for (int i = 0; i < b.ids.length; i++) {
+                    cellOf.put(b.ids[i], cell);
+                    List<OverlayEdge> edges = overlay.computeIfAbsent(b.ids[i],
+                        k -> new ArrayList<>());
+                    for (int j = 0; j < b.ids.length; j++) {
+                        if (i != j && b.table[i][j] < Double.POSITIVE_INFINITY) {
+                            edges.add(new OverlayEdge(b.ids[j], b.table[i][j]));
+                        }
+                    }
+                }
+                for (int k = 0; k < b.cutFrom.length; k++) {
+                    overlay.get(b.cutFrom[k]).add(new OverlayEdge(b.cutTo[k], b.cutLength[k]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the shortest route between the vertices closest to two points, as Router
+     * would find it on the whole graph.
+     * @return The route, which is empty if there is none.
+     */
+    public Shard.Path route(double stlon, double stlat, double destlon, double destlat) {
+        Shard.Closest start = closest(stlon, stlat);
+        Shard.Closest dest = closest(destlon, destlat);
+        if (start == null || dest == null) {
+            return new Shard.Path();
+        }
+        Shard startShard = owners.get(start.cell);
+        Shard destShard = owners.get(dest.cell);
+
+        Shard.Path best = start.cell == dest.cell
+            ? startShard.path(start.id, dest.id) : new Shard.Path();
+        Map<Long, Double> toDest = destShard.boundaryDistances(dest.id);
+
+        /* Dijkstra's algorithm over the overlay, seeded with the distances to the boundary. */
+        Map<Long, Double> distTo = new HashMap<>(startShard.boundaryDistances(start.id));
+        Map<Long, Long> edgeTo = new HashMap<>();
+        Set<Long> marked = new HashSet<>();
+        PriorityQueue<SearchNode> pq = new PriorityQueue<>();
+        for (Map.Entry<Long, Double> e : distTo.entrySet()) {
+            pq.add(new SearchNode(e.getKey(), e.getValue()));
+        }
+        double bestLength = best.length;
+        long exit = 0;
+        boolean viaOverlay = false;
+        while (!pq.isEmpty() && pq.peek().distance < bestLength) {
+            SearchNode curr = pq.remove();
+            if (!marked.add(curr.id)) {
+                continue;
+            }
+            Double last = toDest.get(curr.id);
+            if (last != null && curr.distance + last < bestLength) {
+                bestLength = curr.distance + last;
+                exit = curr.id;
+                viaOverlay = true;
+            }
+            for (OverlayEdge edge : overlay.getOrDefault(curr.id, new ArrayList<>())) {
+                double newDistTo = curr.distance + edge.length;
+                if (newDistTo < distTo.getOrDefault(edge.to, Double.POSITIVE_INFINITY)) {
+                    distTo.put(edge.to, newDistTo);
+                    edgeTo.put(edge.to, curr.id);
+                    pq.add(new SearchNode(edge.to, newDistTo));
+                }
+            }
+        }
+        if (!viaOverlay) {
+            return best;
+        }
+
+        /* Expand the overlay route into the paths it stands for. */
+        List<Long> boundaryRoute = new ArrayList<>();
+        for (Long v = exit; v != null; v = edgeTo.get(v)) {
+            boundaryRoute.add(0, v);
+        }
+        List<Shard.Path> pieces = new ArrayList<>();
+        pieces.add(startShard.path(start.id, boundaryRoute.get(0)));
+        for (int i = 0; i + 1 < boundaryRoute.size(); i++) {
+            long v = boundaryRoute.get(i);
+            long w = boundaryRoute.get(i + 1);
+            int cell = cellOf.get(v);
+            if (cell == cellOf.get(w)) {
+                pieces.add(owners.get(cell).path(v, w));
+            } else {
+                /* An edge between cells; the path to its far end is just that vertex. */
+                pieces.add(owners.get(cellOf.get(w)).path(w, w));
+            }
+        }
+        pieces.add(destShard.path(exit, dest.id));
+        return join(pieces, bestLength);
+    }
+
+    /** Asks every shard for its closest vertex and returns the closest of those. */
+    private Shard.Closest closest(double lon, double lat) {
+        Shard.Closest best = null;
+        for (Shard shard : shards) {
+            Shard.Closest c = shard.closest(lon, lat);
+            if (c != null && (best == null || c.distance < best.distance)) {
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Concatenates paths. A path that starts where the one before it ends does not repeat
+     * that vertex.
+     */
+    private static Shard.Path join(List<Shard.Path> pieces, double length) {
+        int size = 0;
+        for (Shard.Path piece : pieces) {
+            size += piece.ids.length;
+        }
+        Shard.Path path = new Shard.Path();
+        path.ids = new long[size];
+        path.lons = new double[size];
+        path.lats = new double[size];
+        int n = 0;
+        for (Shard.Path piece : pieces) {
+            for (int i = 0; i < piece.ids.length; i++) {
+                if (i == 0 && n > 0 && path.ids[n - 1] == piece.ids[0]) {
+                    continue;
+                }
+                path.ids[n] = piece.ids[i];
+                path.lons[n] = piece.lons[i];
+                path.lats[n] = piece.lats[i];
+                n++;
+            }
+        }
+        path.ids = Arrays.copyOf(path.ids, n);
+        path.lons = Arrays.copyOf(path.lons, n);
+        path.lats = Arrays.copyOf(path.lats, n);
+        path.length = length;
+        return path;
+    }
+
+    private static class OverlayEdge {
+        private final long to;
+        private final double length;
+
+        OverlayEdge(long to, double length) {
+            this.to = to;
+            this.length = length;
+        }
+    }
+
+    private static class SearchNode implements Comparable<SearchNode> {
+        private final long id;
+        private final double distance;
+
+        SearchNode(long id, double distance) {
+            this.id = id;
+            this.distance = distance;
+        }
+
+        @Override
+        public int compareTo(SearchNode o) {
+            return Double.compare(distance, o.distance);
+        }
+    }
+
+    /**
+     * Serves routes over the shards at the given URLs.
+     * @param args The port to listen on, followed by the base URL of every shard.
+     */
+    public static void main(String[] args) {
+        List<Shard> shards = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            shards.add(new RemoteShard(args[i]));
+        }
+        ShardCoordinator coordinator = new ShardCoordinator(shards);
+        Gson gson = new GsonBuilder().serializeSpecialFloatingPointValues().create();
+        port(Integer.parseInt(args[0]));
+        get("/route", (req, res) -> gson.toJson(coordinator.route(
+                Double.parseDouble(req.queryParams("start_lon")),
+                Double.parseDouble(req.queryParams("start_lat")),
+                Double.parseDouble(req.queryParams("end_lon")),
+                Double.parseDouble(req.queryParams("end_lat")))));
+    }
+}
@@ -0,0 +1,60 @@
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import static spark.Spark.get;
+import static spark.Spark.port;
+
+/**
+ * Serves some cells of a partitioned graph to a ShardCoordinator over HTTP, one endpoint for
+ * each method of Shard. See ShardCoordinator for how to run them together.
+ *
+ * @author Beiqian Liu
+ */
+public class ShardServer {
+    private ShardServer() {
+    }
+
+    /**
+     * Builds the graph, keeps the given cells of its partition and serves them.
+     * @param args The map file, the number of levels to partition it into, the port to listen
+     *             on, and the cells to serve.
+     */
+    public static void main(String[] args) {
+        if (args.length < 4) {
+            System.err.println("Usage: ShardServer <map file> <levels> <port> <cell>...");
+            System.exit(1);
+        }
+        int[] cells = new int[args.length - 3];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = Integer.parseInt(args[i + 3]);
+        }
+        Shard shard = build(args[0], Integer.parseInt(args[1]), cells);
+
+        Gson gson = new GsonBuilder().serializeSpecialFloatingPointValues().create();
+        port(Integer.parseInt(args[2]));
+        get("/shard/cells", (req, res) -> gson.toJson(shard.cells()));
+        get("/shard/closest", (req, res) -> gson.toJson(shard.closest(
+                Double.parseDouble(req.queryParams("lon")),
+                Double.parseDouble(req.queryParams("lat")))));
+        get("/shard/boundary", (req, res) -> gson.toJson(
+                shard.boundary(Integer.parseInt(req.queryParams("cell")))));
+        get("/shard/distances", (req, res) -> gson.toJson(
+                shard.boundaryDistances(Long.parseLong(req.queryParams("id")))));
+        get("/shard/path", (req, res) -> gson.toJson(shard.path(
+                Long.parseLong(req.queryParams("from")), Long.parseLong(req.queryParams("to")))));
+    }
+
+    /**
+     * Builds the shard for some cells of a map file. The graph of the whole file is only
+     * needed while the cells are copied out of it.
+     */
+    static Shard build(String dbPath, int levels, int... cells) {
+        GraphDB g = new GraphDB(dbPath, GraphDB.Parser.SCANNER);
+        CellShard shard = new CellShard(g, new Partition(g, levels), cells);
+        /* Compute the distance tables now, rather than when the coordinator asks for them. */
+        for (int cell : cells) {
+            shard.boundary(cell);
+        }
+        return shard;
+    }
+}
@@ -0,0 +1,122 @@
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * The turns a graph forbids, from OSM
+ * <a href="http://wiki.openstreetmap.org/wiki/Relation:restriction">restriction relations</a>
+ * such as no_left_turn or only_straight_on. A relation names the way a turn comes from, the
+ * node it turns at and the way it goes to; the graph resolves it to the edges at that node,
+ * so that a search only ever asks whether one edge may be followed by another.
+ *
+ * Both tables are sorted and searched in place: the edges some turn is forbidden from, and
+ * every forbidden pair of edges packed into a long as (from, to). They are read through
+ * buffers, so the same code serves a GraphDB's arrays and a MappedGraph's file, and a graph
+ * without restrictions pays for two empty buffers.
+ *
+ * @author Beiqian Liu
+ */
+public class TurnRestrictions {
+    static final TurnRestrictions NONE = new TurnRestrictions(new int[0], new long[0]);
+
+    /** The edges some turn is forbidden from, ascending. */
+    private final IntBuffer froms;
+    /** The forbidden turns as from edge << 32 | to edge, ascending. */
+    private final LongBuffer turns;
+
+    TurnRestrictions(IntBuffer froms, LongBuffer turns) {
+        this.froms = froms;
+        this.turns = turns;
+    }
+
+    private TurnRestrictions(int[] froms, long[] turns) {
+        this(IntBuffer.wrap(froms), LongBuffer.wrap(turns));
+    }
+
+    /** Returns the number of forbidden turns. */
+    public int size() {
+        return turns.limit();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /** Returns whether any turn from the edge is forbidden. */
+    boolean restrictsFrom(int edge) {
+        int lo = 0;
+        int hi = froms.limit() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int e = froms.get(mid);
+            if (e < edge) {
+                lo = mid + 1;
+            } else if (e > edge) {
+                hi = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns whether turning from one edge onto another, at their shared node, is forbidden. */
+    boolean forbids(int from, int to) {
+        long turn = pack(from, to);
+        int lo = 0;
+        int hi = turns.limit() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long t = turns.get(mid);
+            if (t < turn) {
+                lo = mid + 1;
+            } else if (t > turn) {
+                hi = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Writes the edges turns are forbidden from, see MappedGraph. */
+    void writeFroms(IntBuffer out) {
+        out.put(froms.duplicate());
+    }
+
+    /** Writes the forbidden turns, see MappedGraph. */
+    void writeTurns(LongBuffer out) {
+        out.put(turns.duplicate());
+    }
+
+    int fromCount() {
+        return froms.limit();
+    }
+
+    private static long pack(int from, int to) {
+        return (long) from << 32 | to;
+    }
+
+    /** Collects forbidden turns in any order, then sorts them into TurnRestrictions. */
+    static class Builder {
+        private long[] turns = new long[16];
+        private int size;
+
+        void forbid(int from, int to) {
+            if (size == turns.length) {
+                turns = Arrays.copyOf(turns, 2 * size);
+            }
+            turns[size++] = pack(from, to);
+        }
+
+        TurnRestrictions build() {
+            if (size == 0) {
+                return NONE;
+            }
+            long[] sorted = Arrays.stream(turns, 0, size).sorted().distinct().toArray();
+            int[] froms = Arrays.stream(sorted).mapToInt(t -> (int) (t >>> 32)).distinct()
+                .toArray();
+            return new TurnRestrictions(froms, sorted);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A path as the ids of its vertices in a growable long array. Router builds paths backwards
+ * from the destination by appending and reverses them once, instead of inserting at the front
+ * of a LinkedList, and directions walk them by index without boxing an id. asList lends the
+ * path to code that takes a List of ids, without copying it.
+ *
+ * @author Beiqian Liu
+ */
+public class VertexPath {
+    private long[] ids;
+    private int size;
+
+    public VertexPath() {
+        this(16);
+    }
+
+    public VertexPath(int capacity) {
+        ids = new long[Math.max(1, capacity)];
+    }
+
+    /** Returns the path of the ids in a list, which is the list's own path if it has one. */
+    public static VertexPath of(List<Long> list) {
+        if (list instanceof ListView) {
+            return ((ListView) list).path;
+        }
+        VertexPath path = new VertexPath(list.size());
+        for (long v : list) {
+            path.add(v);
+        }
+        return path;
+    }
+
+    public void add(long v) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, 2 * size);
+        }
+        ids[size++] = v;
+    }
+
+    public long get(int i) {
+        if (i >= size) {
+            throw new IndexOutOfBoundsException("Index " + i + " of a path of " + size);
+        }
+        return ids[i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /** Reverses the path in place, e.g. once it has been built from its end. */
+    public void reverse() {
+        for (int i = 0, j = size - 1; i < j; i++, j--) {
+            long t = ids[i];
+            ids[i] = ids[j];
+            ids[j] = t;
+        }
+    }
+
+    public long[] toArray() {
+        return Arrays.copyOf(ids, size);
+    }
+
+    /** Returns a read-only list view of the path, which boxes each id only as it is read. */
+    public List<Long> asList() {
+        return new ListView(this);
+    }
+
+    private static class ListView extends AbstractList<Long> implements RandomAccess {
+        private final VertexPath path;
+
+        ListView(VertexPath path) {
+            this.path = path;
+        }
+
+        @Override
+        public Long get(int index) {
+            return path.get(index);
+        }
+
+        @Override
+        public int size() {
+            return path.size;
+        }
+    }
+}
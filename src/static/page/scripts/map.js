@@ -58,6 +58,8 @@ $(function() {
     const route_server = host + '/route';
     const clear_route = host + '/clear_route';
     const search = host + '/search';
+    const autocomplete_limit = 10;
+    const location_limit = 20;
 
     /* ════════════════════════════ ೋღ HELPERS ღೋ ══════════════════════════ */
     /* Compute lat and lon by window size */
@@ -325,14 +327,18 @@ $(function() {
 
     /* Make search bar do autocomplete things */
     $('#tags').autocomplete({
-          source: search,
+          source: function (request, response) {
+              $.getJSON(search, { term: request.term, limit: autocomplete_limit }, response);
+          },
           minLength: 2,
           select: function (event, ui) {
               $.get({
                   async: true,
                   url: search,
                   dataType: 'json',
-                  data: { term: ui.item.value, full: true},
+                  data: { term: ui.item.value, full: true, limit: location_limit,
+                          ullon: params.ullon, ullat: params.ullat,
+                          lrlon: real_lrlon(), lrlat: real_lrlat() },
                   success: function(data) {
                       removeMarkers();
                       for (var i = 0; i < data.length; i++) {
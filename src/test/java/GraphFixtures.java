@@ -0,0 +1,47 @@
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * What the routing tests share: building a small graph from OSM XML written out in the test,
+ * mapping a graph the way the server does, and pricing the routes they find.
+ */
+final class GraphFixtures {
+    private GraphFixtures() {
+    }
+
+    /** Writes OSM XML to a new file called name in folder, and builds a graph from it. */
+    static GraphDB graph(TemporaryFolder folder, String name, String xml) throws IOException {
+        File file = folder.newFile(name + ".osm.xml");
+        Files.write(file.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+        return new GraphDB(file.getPath());
+    }
+
+    /** Writes g to a new graph file called name in folder, and maps it. */
+    static MappedGraph mapped(TemporaryFolder folder, String name, GraphDB g)
+            throws IOException {
+        File file = folder.newFile(name + ".graph");
+        MappedGraph.write(g, file);
+        return MappedGraph.open(file);
+    }
+
+    /** Returns the cost of a route under a profile, or infinity if it may not take the route. */
+    static double cost(GraphDB g, List<Long> route, Profile profile) {
+        double cost = 0;
+        for (int i = 1; i < route.size(); i++) {
+            long next = route.get(i);
+            double[] step = {Double.POSITIVE_INFINITY};
+            g.forEachNeighbor(route.get(i - 1), profile, (w, edge, c, lon, lat) -> {
+                if (w == next) {
+                    step[0] = Math.min(step[0], c);
+                }
+            });
+            cost += step[0];
+        }
+        return cost;
+    }
+}
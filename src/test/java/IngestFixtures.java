@@ -0,0 +1,393 @@
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.SAXParserFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * What the tests of reading OSM data share: comparing the graphs two ways of reading build, and
+ * writing map files in the formats that have no writer of their own, OSM PBF and LZ4.
+ */
+final class IngestFixtures {
+    private IngestFixtures() {
+    }
+
+    /** Asserts that two graphs have the same vertices, edges, coordinates and names. */
+    static void assertSameGraph(GraphDB expected, GraphDB actual) {
+        Set<Long> vertices = new HashSet<>();
+        for (long v : expected.vertices()) {
+            vertices.add(v);
+        }
+        Set<Long> actualVertices = new HashSet<>();
+        for (long v : actual.vertices()) {
+            actualVertices.add(v);
+        }
+        assertEquals(vertices, actualVertices);
+        for (long v : vertices) {
+            assertEquals(expected.lon(v), actual.lon(v), 0.0);
+            assertEquals(expected.lat(v), actual.lat(v), 0.0);
+            List<Long> adjacent = toList(expected.adjacent(v));
+            assertEquals(adjacent, toList(actual.adjacent(v)));
+            for (long w : adjacent) {
+                assertEquals(expected.getWayName(v, w), actual.getWayName(v, w));
+                for (long u : adjacent) {
+                    assertEquals(expected.turnRestrictions().forbids(expected.edge(u, v),
+                            expected.edge(v, w)), actual.turnRestrictions().forbids(
+                            actual.edge(u, v), actual.edge(v, w)));
+                }
+            }
+        }
+        assertEquals(expected.turnRestrictions().size(), actual.turnRestrictions().size());
+        assertEquals(expected.getLocations().keySet(), actual.getLocations().keySet());
+        assertEquals(expected.getPrefixIndex().withPrefix(""),
+                actual.getPrefixIndex().withPrefix(""));
+    }
+
+    static List<Long> toList(Iterable<Long> it) {
+        List<Long> list = new ArrayList<>();
+        for (long x : it) {
+            list.add(x);
+        }
+        return list;
+    }
+
+    /**
+     * Converts an OSM XML file into a minimal OSM PBF file, with at most blockSize nodes,
+     * ways or relations per block, writing nodes either as DenseNodes or one Node message
+     * each.
+     */
+    static void writePbf(String xmlPath, File out, int blockSize, boolean dense)
+            throws Exception {
+        List<Element> nodes = new ArrayList<>();
+        List<Element> ways = new ArrayList<>();
+        List<Element> relations = new ArrayList<>();
+        SAXParserFactory.newInstance().newSAXParser().parse(new File(xmlPath),
+                new DefaultHandler() {
+                private Element current;
+
+                @Override
+                public void startElement(String uri, String localName, String qName,
+                                         Attributes a) {
+                    if (qName.equals("node")) {
+                        current = new Element(Long.parseLong(a.getValue("id")));
+                        current.lat = Double.parseDouble(a.getValue("lat"));
+                        current.lon = Double.parseDouble(a.getValue("lon"));
+                        nodes.add(current);
+                    } else if (qName.equals("way")) {
+                        current = new Element(Long.parseLong(a.getValue("id")));
+                        ways.add(current);
+                    } else if (qName.equals("nd")) {
+                        current.nds.add(Long.parseLong(a.getValue("ref")));
+                    } else if (qName.equals("tag") && current != null) {
+                        current.tags.add(a.getValue("k"));
+                        current.tags.add(a.getValue("v"));
+                    } else if (qName.equals("relation")) {
+                        current = new Element(Long.parseLong(a.getValue("id")));
+                        relations.add(current);
+                    } else if (qName.equals("member")) {
+                        current.members.add(new String[]{a.getValue("type"),
+                            a.getValue("ref"), a.getValue("role")});
+                    }
+                }
+            });
+
+        try (DataOutputStream file = new DataOutputStream(new FileOutputStream(out))) {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            writeString(header, 4, "OsmSchema-V0.6");
+            writeString(header, 4, "DenseNodes");
+            writeBlob(file, "OSMHeader", header.toByteArray());
+
+            for (int i = 0; i < nodes.size(); i += blockSize) {
+                List<Element> chunk = nodes.subList(i, Math.min(nodes.size(), i + blockSize));
+                Map<String, Integer> strings = new HashMap<>();
+                List<String> table = new ArrayList<>();
+                ByteArrayOutputStream group = new ByteArrayOutputStream();
+                if (dense) {
+                    ByteArrayOutputStream ids = new ByteArrayOutputStream();
+                    ByteArrayOutputStream lats = new ByteArrayOutputStream();
+                    ByteArrayOutputStream lons = new ByteArrayOutputStream();
+                    ByteArrayOutputStream keysVals = new ByteArrayOutputStream();
+                    long[] last = new long[3];
+                    for (Element n : chunk) {
+                        long[] values = {n.id, Math.round(n.lat * 1e7), Math.round(n.lon * 1e7)};
+                        writeVarint(ids, zigzag(values[0] - last[0]));
+                        writeVarint(lats, zigzag(values[1] - last[1]));
+                        writeVarint(lons, zigzag(values[2] - last[2]));
+                        last = values;
+                        for (String tag : n.tags) {
+                            writeVarint(keysVals, index(tag, strings, table));
+                        }
+                        writeVarint(keysVals, 0);
+                    }
+                    ByteArrayOutputStream denseNodes = new ByteArrayOutputStream();
+                    writeBytes(denseNodes, 1, ids.toByteArray());
+                    writeBytes(denseNodes, 8, lats.toByteArray());
+                    writeBytes(denseNodes, 9, lons.toByteArray());
+                    writeBytes(denseNodes, 10, keysVals.toByteArray());
+                    writeBytes(group, 2, denseNodes.toByteArray());
+                } else {
+                    for (Element n : chunk) {
+                        ByteArrayOutputStream node = new ByteArrayOutputStream();
+                        writeVarint(node, 1 << 3);
+                        writeVarint(node, zigzag(n.id));
+                        writeTags(node, n.tags, strings, table);
+                        writeVarint(node, 8 << 3);
+                        writeVarint(node, zigzag(Math.round(n.lat * 1e7)));
+                        writeVarint(node, 9 << 3);
+                        writeVarint(node, zigzag(Math.round(n.lon * 1e7)));
+                        writeBytes(group, 1, node.toByteArray());
+                    }
+                }
+                writeBlock(file, table, group.toByteArray());
+            }
+
+            for (int i = 0; i < ways.size(); i += blockSize) {
+                Map<String, Integer> strings = new HashMap<>();
+                List<String> table = new ArrayList<>();
+                ByteArrayOutputStream group = new ByteArrayOutputStream();
+                for (Element w : ways.subList(i, Math.min(ways.size(), i + blockSize))) {
+                    ByteArrayOutputStream way = new ByteArrayOutputStream();
+                    writeVarint(way, 1 << 3);
+                    writeVarint(way, w.id);
+                    writeTags(way, w.tags, strings, table);
+                    ByteArrayOutputStream refs = new ByteArrayOutputStream();
+                    long last = 0;
+                    for (long ref : w.nds) {
+                        writeVarint(refs, zigzag(ref - last));
+                        last = ref;
+                    }
+                    writeBytes(way, 8, refs.toByteArray());
+                    writeBytes(group, 3, way.toByteArray());
+                }
+                writeBlock(file, table, group.toByteArray());
+            }
+
+            List<String> memberTypes = Arrays.asList("node", "way", "relation");
+            for (int i = 0; i < relations.size(); i += blockSize) {
+                Map<String, Integer> strings = new HashMap<>();
+                List<String> table = new ArrayList<>();
+                ByteArrayOutputStream group = new ByteArrayOutputStream();
+                for (Element r : relations.subList(i, Math.min(relations.size(),
+                        i + blockSize))) {
+                    ByteArrayOutputStream relation = new ByteArrayOutputStream();
+                    writeVarint(relation, 1 << 3);
+                    writeVarint(relation, r.id);
+                    writeTags(relation, r.tags, strings, table);
+                    ByteArrayOutputStream roles = new ByteArrayOutputStream();
+                    ByteArrayOutputStream ids = new ByteArrayOutputStream();
+                    ByteArrayOutputStream types = new ByteArrayOutputStream();
+                    long last = 0;
+                    for (String[] member : r.members) {
+                        writeVarint(roles, index(member[2], strings, table));
+                        long ref = Long.parseLong(member[1]);
+                        writeVarint(ids, zigzag(ref - last));
+                        last = ref;
+                        writeVarint(types, memberTypes.indexOf(member[0]));
+                    }
+                    writeBytes(relation, 8, roles.toByteArray());
+                    writeBytes(relation, 9, ids.toByteArray());
+                    writeBytes(relation, 10, types.toByteArray());
+                    writeBytes(group, 4, relation.toByteArray());
+                }
+                writeBlock(file, table, group.toByteArray());
+            }
+        }
+    }
+
+    /**
+     * A node, way or relation read from OSM XML, with its tags as a list of keys each followed
+     * by its value. Only a node has coordinates, only a way nds and only a relation members,
+     * each member as {type, ref, role}.
+     */
+    private static class Element {
+        final long id;
+        double lat;
+        double lon;
+        final List<String> tags = new ArrayList<>();
+        final List<Long> nds = new ArrayList<>();
+        final List<String[]> members = new ArrayList<>();
+
+        Element(long id) {
+            this.id = id;
+        }
+    }
+
+    private static void writeBlock(DataOutputStream file, List<String> table, byte[] group)
+            throws IOException {
+        ByteArrayOutputStream stringTable = new ByteArrayOutputStream();
+        writeString(stringTable, 1, "");
+        for (String s : table) {
+            writeString(stringTable, 1, s);
+        }
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        writeBytes(block, 1, stringTable.toByteArray());
+        writeBytes(block, 2, group);
+        writeBlob(file, "OSMData", block.toByteArray());
+    }
+
+    private static void writeBlob(DataOutputStream file, String type, byte[] raw)
+            throws IOException {
+        Deflater deflater = new Deflater();
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream zlib = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        while (!deflater.finished()) {
+            zlib.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        ByteArrayOutputStream blob = new ByteArrayOutputStream();
+        writeVarint(blob, 2 << 3);
+        writeVarint(blob, raw.length);
+        writeBytes(blob, 3, zlib.toByteArray());
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        writeString(header, 1, type);
+        writeVarint(header, 3 << 3);
+        writeVarint(header, blob.size());
+        file.writeInt(header.size());
+        header.writeTo(file);
+        blob.writeTo(file);
+    }
+
+    private static void writeTags(ByteArrayOutputStream out, List<String> tags,
+                                  Map<String, Integer> strings, List<String> table)
+            throws IOException {
+        ByteArrayOutputStream keys = new ByteArrayOutputStream();
+        ByteArrayOutputStream vals = new ByteArrayOutputStream();
+        for (int t = 0; t < tags.size(); t += 2) {
+            writeVarint(keys, index(tags.get(t), strings, table));
+            writeVarint(vals, index(tags.get(t + 1), strings, table));
+        }
+        writeBytes(out, 2, keys.toByteArray());
+        writeBytes(out, 3, vals.toByteArray());
+    }
+
+    private static int index(String s, Map<String, Integer> strings, List<String> table) {
+        if (!strings.containsKey(s)) {
+            table.add(s);
+            strings.put(s, table.size());
+        }
+        return strings.get(s);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, int field, String s)
+            throws IOException {
+        writeBytes(out, field, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, int field, byte[] bytes)
+            throws IOException {
+        writeVarint(out, field << 3 | 2);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    /**
+     * Compresses data into one LZ4 frame of linked blocks, each holding blockSize bytes of
+     * input, so that matches reach back into earlier blocks. Uses a simple greedy match
+     * finder; every fourth block is stored uncompressed.
+     */
+    static byte[] lz4Frame(byte[] data, int blockSize) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeIntLE(out, Lz4FrameInputStream.MAGIC);
+        out.write(0x40);
+        out.write(0x40);
+        out.write(0);
+        int[] table = new int[1 << 12];
+        Arrays.fill(table, -1);
+        for (int start = 0, block = 0; start < data.length; start += blockSize, block++) {
+            int end = Math.min(data.length, start + blockSize);
+            if (block % 4 == 3) {
+                writeIntLE(out, (end - start) | 0x80000000);
+                out.write(data, start, end - start);
+                continue;
+            }
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            int anchor = start;
+            int i = start;
+            while (i + 12 <= end) {
+                int hash = ((data[i] & 0xff) | (data[i + 1] & 0xff) << 8
+                    | (data[i + 2] & 0xff) << 16 | (data[i + 3] & 0xff) << 24) * -1640531535
+                    >>> 20;
+                int candidate = table[hash];
+                table[hash] = i;
+                if (candidate < 0 || i - candidate > 65535 || data[candidate] != data[i]
+                        || data[candidate + 1] != data[i + 1]
+                        || data[candidate + 2] != data[i + 2]
+                        || data[candidate + 3] != data[i + 3]) {
+                    i++;
+                    continue;
+                }
+                int length = 4;
+                while (i + length < end - 5 && data[candidate + length] == data[i + length]) {
+                    length++;
+                }
+                writeSequence(compressed, data, anchor, i - anchor, i - candidate, length);
+                i += length;
+                anchor = i;
+            }
+            writeSequence(compressed, data, anchor, end - anchor, 0, 0);
+            writeIntLE(out, compressed.size());
+            out.write(compressed.toByteArray(), 0, compressed.size());
+        }
+        writeIntLE(out, 0);
+        return out.toByteArray();
+    }
+
+    private static void writeSequence(ByteArrayOutputStream out, byte[] data, int from,
+                                      int literals, int offset, int match) {
+        int matchCode = match == 0 ? 0 : match - 4;
+        out.write(Math.min(literals, 15) << 4 | Math.min(matchCode, 15));
+        writeLength(out, literals);
+        out.write(data, from, literals);
+        if (match > 0) {
+            out.write(offset & 0xff);
+            out.write(offset >>> 8);
+            writeLength(out, matchCode);
+        }
+    }
+
+    private static void writeLength(ByteArrayOutputStream out, int length) {
+        if (length >= 15) {
+            length -= 15;
+            for (; length >= 255; length -= 255) {
+                out.write(255);
+            }
+            out.write(length);
+        }
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int value) {
+        for (int i = 0; i < 4; i++) {
+            out.write(value >>> (8 * i));
+        }
+    }
+}
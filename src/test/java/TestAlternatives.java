@@ -0,0 +1,62 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the alternative routes Router finds by the via-node and plateau method, on GraphDB
+ * and MappedGraph alike.
+ */
+public class TestAlternatives {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAlternatives() throws Exception {
+        /* Four roads from 1 to 4 over 2, 3, 6 and 5, each longer than the one before. */
+        String xml = "<osm version=\"0.6\">\n"
+                + "  <node id=\"1\" lat=\"37.5\" lon=\"-122.25\"/>\n"
+                + "  <node id=\"2\" lat=\"37.501\" lon=\"-122.245\"/>\n"
+                + "  <node id=\"3\" lat=\"37.4988\" lon=\"-122.245\"/>\n"
+                + "  <node id=\"4\" lat=\"37.5\" lon=\"-122.24\"/>\n"
+                + "  <node id=\"5\" lat=\"37.505\" lon=\"-122.245\"/>\n"
+                + "  <node id=\"6\" lat=\"37.4985\" lon=\"-122.245\"/>\n"
+                + "  <way id=\"10\"><nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"4\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>\n"
+                + "  <way id=\"11\"><nd ref=\"1\"/><nd ref=\"3\"/><nd ref=\"4\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>\n"
+                + "  <way id=\"12\"><nd ref=\"1\"/><nd ref=\"5\"/><nd ref=\"4\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>\n"
+                + "  <way id=\"13\"><nd ref=\"1\"/><nd ref=\"6\"/><nd ref=\"4\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/>"
+                + "<tag k=\"oneway\" v=\"yes\"/></way>\n"
+                + "</osm>\n";
+        GraphDB g = GraphFixtures.graph(folder, "alternatives", xml);
+        MappedGraph mapped = GraphFixtures.mapped(folder, "alternatives", g);
+        for (RoadGraph graph : new RoadGraph[]{g, mapped}) {
+            List<Router.Alternative> routes = Router.alternatives(graph, -122.25, 37.5,
+                    -122.24, 37.5, Profile.CAR, 4);
+            /* The road over 5 is too long to be an alternative. */
+            assertEquals(3, routes.size());
+            assertEquals(Arrays.asList(1L, 2L, 4L), routes.get(0).vertices);
+            assertEquals(Arrays.asList(1L, 3L, 4L), routes.get(1).vertices);
+            assertEquals(Arrays.asList(1L, 6L, 4L), routes.get(2).vertices);
+            for (Router.Alternative route : routes) {
+                assertEquals(GraphFixtures.cost(g, route.vertices, Profile.CAR), route.cost,
+                        1e-6);
+            }
+            assertEquals(2, Router.alternatives(graph, -122.25, 37.5, -122.24, 37.5,
+                    Profile.CAR, 2).size());
+            /* The road over 6 is one-way, so there is one alternative fewer on the way back. */
+            routes = Router.alternatives(graph, -122.24, 37.5, -122.25, 37.5, Profile.CAR, 4);
+            assertEquals(2, routes.size());
+            assertEquals(Arrays.asList(4L, 3L, 1L), routes.get(1).vertices);
+            assertEquals(Router.shortestPath(graph, -122.24, 37.5, -122.25, 37.5, Profile.CAR),
+                    routes.get(0).vertices);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks what both parsers build through BuildPipeline: which nodes and ways the two passes keep,
+ * the attributes of edges, and turn restrictions.
+ */
+public class TestBuildPipeline {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testTwoPass() throws Exception {
+        String xml = "<osm version=\"0.6\">\n"
+                + "  <node id=\"1\" lat=\"37.5\" lon=\"-122.25\"/>\n"
+                + "  <node id=\"2\" lat=\"37.5001\" lon=\"-122.25\">\n"
+                + "    <tag k=\"name\" v=\"Bus Stop\"/>\n"
+                + "  </node>\n"
+                + "  <node id=\"3\" lat=\"37.5002\" lon=\"-122.25\"/>\n"
+                + "  <node id=\"4\" lat=\"37.6\" lon=\"-122.3\"/>\n"
+                + "  <node id=\"5\" lat=\"37.6001\" lon=\"-122.3\"/>\n"
+                + "  <node id=\"6\" lat=\"37.6\" lon=\"-122.3001\"/>\n"
+                + "  <node id=\"7\" lat=\"37.7\" lon=\"-122.4\">\n"
+                + "    <tag k=\"name\" v=\"Cafe\"/>\n"
+                + "  </node>\n"
+                + "  <way id=\"20\">\n"
+                + "    <nd ref=\"4\"/><nd ref=\"5\"/><nd ref=\"6\"/><nd ref=\"4\"/>\n"
+                + "    <tag k=\"building\" v=\"yes\"/>\n"
+                + "  </way>\n"
+                + "  <way id=\"21\">\n"
+                + "    <nd ref=\"1\"/><nd ref=\"2\"/>\n"
+                + "    <tag k=\"highway\" v=\"footway\"/>\n"
+                + "    <tag k=\"name\" v=\"Path\"/>\n"
+                + "  </way>\n"
+                + "  <way id=\"22\">\n"
+                + "    <nd ref=\"9\"/><nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/>\n"
+                + "    <tag k=\"highway\" v=\"residential\"/>\n"
+                + "    <tag k=\"name\" v=\"Main Street\"/>\n"
+                + "  </way>\n"
+                + "</osm>\n";
+        File file = folder.newFile("two-pass.osm.xml");
+        Files.write(file.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+        for (GraphDB.Parser parser : GraphDB.Parser.values()) {
+            GraphDB g = new GraphDB(file.getPath(), parser);
+            assertEquals(new HashSet<>(Arrays.asList(1L, 2L, 3L)), g.getNodes().keySet());
+            assertEquals("Main Street", g.getWayName(1, 2));
+            assertEquals(Arrays.asList(2L), IngestFixtures.toList(g.adjacent(1)));
+            assertEquals(new HashSet<>(Arrays.asList("bus stop", "cafe")),
+                    g.getLocations().keySet());
+            GraphDB.Node cafe = g.nearestLocations("Cafe", 0, 0, 1).get(0);
+            assertEquals(7, cafe.id);
+            assertEquals(-122.4, cafe.lon, 0.0);
+        }
+    }
+
+    @Test
+    public void testEdgeAttributes() throws Exception {
+        String xml = "<osm version=\"0.6\">\n"
+                + "  <node id=\"1\" lat=\"37.5\" lon=\"-122.25\"/>\n"
+                + "  <node id=\"2\" lat=\"37.5001\" lon=\"-122.25\"/>\n"
+                + "  <node id=\"3\" lat=\"37.5002\" lon=\"-122.25\"/>\n"
+                + "  <node id=\"4\" lat=\"37.5002\" lon=\"-122.2501\"/>\n"
+                + "  <way id=\"20\">\n"
+                + "    <tag k=\"highway\" v=\"primary\"/>\n"
+                + "    <tag k=\"maxspeed\" v=\"25 mph\"/>\n"
+                + "    <nd ref=\"1\"/><nd ref=\"2\"/>\n"
+                + "    <tag k=\"name\" v=\"Oxford Street\"/>\n"
+                + "    <nd ref=\"3\"/>\n"
+                + "  </way>\n"
+                + "  <way id=\"21\">\n"
+                + "    <nd ref=\"3\"/><nd ref=\"4\"/>\n"
+                + "    <tag k=\"highway\" v=\"residential\"/>\n"
+                + "    <tag k=\"oneway\" v=\"-1\"/>\n"
+                + "  </way>\n"
+                + "  <way id=\"22\">\n"
+                + "    <nd ref=\"1\"/><nd ref=\"4\"/>\n"
+                + "    <tag k=\"highway\" v=\"footway\"/>\n"
+                + "  </way>\n"
+                + "  <relation id=\"30\">\n"
+                + "    <member type=\"way\" ref=\"21\" role=\"\"/>\n"
+                + "    <tag k=\"name\" v=\"Bus Route\"/>\n"
+                + "  </relation>\n"
+                + "</osm>\n";
+        File file = folder.newFile("edges.osm.xml");
+        Files.write(file.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+        for (GraphDB.Parser parser : GraphDB.Parser.values()) {
+            GraphDB g = new GraphDB(file.getPath(), parser);
+            EdgeTable edges = g.getEdges();
+            assertEquals(3, edges.size());
+            assertEquals(Arrays.asList(2L), IngestFixtures.toList(g.adjacent(1)));
+
+            int oxford = g.edge(2, 3);
+            assertEquals(oxford, g.edge(3, 2));
+            assertEquals("Oxford Street", g.getWayName(3, 2));
+            assertEquals(RoadClass.PRIMARY, edges.roadClass(oxford));
+            assertEquals(25, edges.speed(oxford), 1e-6);
+            assertFalse(edges.hasFlag(oxford, EdgeTable.ONEWAY));
+
+            int residential = g.edge(4, 3);
+            assertEquals("unknown road", g.getWayName(3, 4));
+            assertEquals(RoadClass.RESIDENTIAL, edges.roadClass(residential));
+            assertEquals(RoadClass.RESIDENTIAL.speed, edges.speed(residential), 0);
+            assertTrue(edges.hasFlag(residential, EdgeTable.ONEWAY));
+            int[] entries = g.getNodes().get(4L).edges;
+            assertEquals(residential, entries[0]);
+            assertEquals(~residential, g.getNodes().get(3L).edges[1]);
+        }
+    }
+
+    @Test
+    public void testTurnRestrictions() throws Exception {
+        String xml = "<?xml version='1.0' encoding='UTF-8'?>\n"
+                + "<osm version=\"0.6\">\n"
+                + "  <node id=\"1\" lat=\"37.499\" lon=\"-122.25\"/>\n"
+                + "  <node id=\"2\" lat=\"37.5\" lon=\"-122.25\"/>\n"
+                + "  <node id=\"3\" lat=\"37.5\" lon=\"-122.251\"/>\n"
+                + "  <node id=\"4\" lat=\"37.5\" lon=\"-122.24\"/>\n"
+                + "  <node id=\"5\" lat=\"37.5005\" lon=\"-122.2505\"/>\n"
+                + "  <way id=\"10\"><nd ref=\"1\"/><nd ref=\"2\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>\n"
+                + "  <way id=\"11\"><nd ref=\"2\"/><nd ref=\"3\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>\n"
+                + "  <way id=\"12\"><nd ref=\"2\"/><nd ref=\"4\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>\n"
+                + "  <way id=\"13\"><nd ref=\"2\"/><nd ref=\"5\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>\n"
+                + "  <way id=\"14\"><nd ref=\"5\"/><nd ref=\"3\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>\n"
+                + "  <relation id=\"20\">\n"
+                + "    <member type=\"way\" ref=\"10\" role=\"from\"/>\n"
+                + "    <member type=\"node\" ref=\"2\" role=\"via\"/>\n"
+                + "    <member type=\"way\" ref=\"11\" role=\"to\"/>\n"
+                + "    <tag k=\"type\" v=\"restriction\"/>\n"
+                + "    <tag k=\"restriction\" v=\"no_left_turn\"/>\n"
+                + "  </relation>\n"
+                + "  <relation id=\"21\">\n"
+                + "    <member type=\"way\" ref=\"12\" role=\"from\"/>\n"
+                + "    <member type=\"node\" ref=\"2\" role=\"via\"/>\n"
+                + "    <member type=\"way\" ref=\"11\" role=\"to\"/>\n"
+                + "    <tag k=\"type\" v=\"restriction\"/>\n"
+                + "    <tag k=\"restriction\" v=\"only_straight_on\"/>\n"
+                + "  </relation>\n"
+                + "</osm>\n";
+        File file = folder.newFile("restrictions.osm.xml");
+        Files.write(file.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+        GraphDB g = new GraphDB(file.getPath());
+        File pbf = folder.newFile("restrictions.osm.pbf");
+        IngestFixtures.writePbf(file.getPath(), pbf, 2, true);
+        IngestFixtures.assertSameGraph(g, new GraphDB(file.getPath(), GraphDB.Parser.SCANNER));
+        IngestFixtures.assertSameGraph(g, new GraphDB(pbf.getPath()));
+
+        TurnRestrictions turns = g.turnRestrictions();
+        /* The left turn, plus every turn but straight on from way 12. */
+        assertEquals(4, turns.size());
+        assertTrue(turns.forbids(g.edge(1, 2), g.edge(2, 3)));
+        assertFalse(turns.forbids(g.edge(1, 2), g.edge(2, 5)));
+        assertTrue(turns.forbids(g.edge(4, 2), g.edge(2, 1)));
+        assertTrue(turns.forbids(g.edge(4, 2), g.edge(2, 4)));
+        assertFalse(turns.forbids(g.edge(4, 2), g.edge(2, 3)));
+
+        File graphFile = folder.newFile("restrictions.graph");
+        MappedGraph.write(g, graphFile);
+        MappedGraph mapped = MappedGraph.open(graphFile);
+        for (RoadGraph graph : new RoadGraph[]{g, mapped}) {
+            assertEquals(Arrays.asList(1L, 2L, 3L), Router.shortestPath(graph, -122.25, 37.499,
+                    -122.251, 37.5, Profile.DISTANCE));
+            assertEquals(Arrays.asList(1L, 2L, 3L), Router.shortestPath(graph, -122.25, 37.499,
+                    -122.251, 37.5, Profile.WALK));
+            assertEquals(Arrays.asList(1L, 2L, 5L, 3L), Router.shortestPath(graph, -122.25,
+                    37.499, -122.251, 37.5, Profile.CAR));
+            /* Coming from the east, only straight on is allowed, so turn round beyond. */
+            assertEquals(Arrays.asList(4L, 2L, 3L, 2L, 1L), Router.shortestPath(graph, -122.24,
+                    37.5, -122.25, 37.499, Profile.CAR));
+        }
+    }
+
+    @Test
+    public void testParseSpeed() {
+        assertEquals(25, GraphBuildingHandler.parseSpeed("25 mph"), 1e-6);
+        assertEquals(30, GraphBuildingHandler.parseSpeed("30mph"), 1e-6);
+        assertEquals(31.07, GraphBuildingHandler.parseSpeed("50"), 0.01);
+        assertEquals(31.07, GraphBuildingHandler.parseSpeed("50 km/h;30"), 0.01);
+        assertTrue(Float.isNaN(GraphBuildingHandler.parseSpeed("walk")));
+        assertTrue(Float.isNaN(GraphBuildingHandler.parseSpeed("US:urban")));
+        assertTrue(Float.isNaN(GraphBuildingHandler.parseSpeed(null)));
+    }
+
+    @Test
+    public void testLongHashSet() {
+        LongHashSet set = new LongHashSet();
+        Set<Long> expected = new HashSet<>();
+        Random random = new Random(0);
+        for (int i = 0; i < 20000; i++) {
+            long v = i % 3 == 0 ? random.nextInt(1000) - 500 : random.nextLong();
+            assertEquals(expected.add(v), set.add(v));
+        }
+        assertEquals(expected.size(), set.size());
+        for (long v = -600; v < 600; v++) {
+            assertEquals(expected.contains(v), set.contains(v));
+        }
+        for (long v : expected) {
+            assertTrue(set.contains(v));
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that compressed map files build the same graph as plain ones, and that corrupt or failing
+ * input is an error rather than a short read.
+ */
+public class TestCompression {
+    private static final String OSM_DB_PATH_SMALL = "data/berkeley-2018-small.osm.xml";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testGzip() throws Exception {
+        File gz = folder.newFile("small.osm.xml.gz");
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(gz))) {
+            Files.copy(new File(OSM_DB_PATH_SMALL).toPath(), out);
+        }
+        IngestFixtures.assertSameGraph(new GraphDB(OSM_DB_PATH_SMALL),
+                new GraphDB(gz.getPath(), GraphDB.Parser.SCANNER));
+    }
+
+    @Test
+    public void testLz4() throws Exception {
+        byte[] xml = Files.readAllBytes(new File(OSM_DB_PATH_SMALL).toPath());
+        File lz4 = folder.newFile("small.osm.xml.lz4");
+        Files.write(lz4.toPath(), IngestFixtures.lz4Frame(xml, 4096));
+        IngestFixtures.assertSameGraph(new GraphDB(OSM_DB_PATH_SMALL), new GraphDB(lz4.getPath()));
+
+        File pbf = folder.newFile("small.osm.pbf");
+        IngestFixtures.writePbf(OSM_DB_PATH_SMALL, pbf, 64, true);
+        File pbfLz4 = folder.newFile("small.osm.pbf.lz4");
+        Files.write(pbfLz4.toPath(),
+                IngestFixtures.lz4Frame(Files.readAllBytes(pbf.toPath()), 1000));
+        IngestFixtures.assertSameGraph(new GraphDB(OSM_DB_PATH_SMALL),
+                new GraphDB(pbfLz4.getPath()));
+    }
+
+    @Test
+    public void testLz4RoundTrip() throws Exception {
+        byte[] data = new byte[200000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 1000 == 0 ? i / 1000 : i / 3 % 50);
+        }
+        byte[] frame = IngestFixtures.lz4Frame(data, 3000);
+        assertTrue(frame.length < data.length / 4);
+        try (InputStream in = CompressedInput.open(
+                new BufferedInputStream(new ByteArrayInputStream(frame)))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[777];
+            for (int n; (n = in.read(buffer)) >= 0; ) {
+                out.write(buffer, 0, n);
+            }
+            assertArrayEquals(data, out.toByteArray());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testLz4Truncated() throws Exception {
+        byte[] frame = IngestFixtures.lz4Frame(
+                Files.readAllBytes(new File(OSM_DB_PATH_SMALL).toPath()), 4096);
+        byte[] truncated = Arrays.copyOf(frame, frame.length / 2);
+        try (InputStream in = CompressedInput.open(
+                new BufferedInputStream(new ByteArrayInputStream(truncated)))) {
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) >= 0) {
+                continue;
+            }
+        }
+    }
+
+    @Test
+    public void testAsyncInputFailure() throws Exception {
+        /* A source that breaks with an unchecked exception, as a decompressor may on a
+         * malformed frame, fails the read rather than leaving it waiting forever. */
+        InputStream broken = new InputStream() {
+            private int left = 10000;
+
+            @Override
+            public int read() {
+                if (left-- == 0) {
+                    throw new ArrayIndexOutOfBoundsException("bad frame");
+                }
+                return 'x';
+            }
+        };
+        try (InputStream in = new CompressedInput.AsyncInputStream(broken, 1024, 2)) {
+            byte[] buffer = new byte[100];
+            int read = 0;
+            try {
+                for (int n; (n = in.read(buffer)) >= 0; ) {
+                    read += n;
+                }
+                fail("Expected an IOException");
+            } catch (IOException e) {
+                assertTrue(e.getCause() instanceof ArrayIndexOutOfBoundsException);
+            }
+            assertEquals(9216, read);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that change files and reloads replace the graph in use as a whole, leaving snapshots
+ * taken before as they were.
+ */
+public class TestGraphChanges {
+    private static final String OSM_DB_PATH_TINY = "data/tiny-clean.osm.xml";
+    private static final String OSM_DB_PATH_SMALL = "data/berkeley-2018-small.osm.xml";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testApplyChanges() throws Exception {
+        String xml = "<osm version=\"0.6\">\n"
+                + "  <node id=\"1\" lat=\"37.5\" lon=\"-122.25\"/>\n"
+                + "  <node id=\"2\" lat=\"37.501\" lon=\"-122.25\"/>\n"
+                + "  <node id=\"3\" lat=\"37.502\" lon=\"-122.25\"/>\n"
+                + "  <node id=\"4\" lat=\"37.502\" lon=\"-122.251\"/>\n"
+                + "  <node id=\"5\" lat=\"37.5\" lon=\"-122.251\">\n"
+                + "    <tag k=\"name\" v=\"Top Dog\"/>\n"
+                + "  </node>\n"
+                + "  <node id=\"6\" lat=\"37.501\" lon=\"-122.251\">\n"
+                + "    <tag k=\"name\" v=\"Cafe Strada\"/>\n"
+                + "  </node>\n"
+                + "  <way id=\"20\">\n"
+                + "    <nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/>\n"
+                + "    <tag k=\"highway\" v=\"residential\"/>\n"
+                + "    <tag k=\"name\" v=\"Oxford Street\"/>\n"
+                + "  </way>\n"
+                + "  <way id=\"21\">\n"
+                + "    <nd ref=\"3\"/><nd ref=\"4\"/>\n"
+                + "    <tag k=\"highway\" v=\"residential\"/>\n"
+                + "  </way>\n"
+                + "</osm>\n";
+        String osc = "<osmChange version=\"0.6\">\n"
+                + "  <create>\n"
+                + "    <node id=\"7\" lat=\"37.505\" lon=\"-122.251\"/>\n"
+                + "  </create>\n"
+                + "  <modify>\n"
+                + "    <node id=\"2\" lat=\"37.5011\" lon=\"-122.25\">\n"
+                + "      <tag k=\"name\" v=\"Oxford Stop\"/>\n"
+                + "    </node>\n"
+                + "    <way id=\"20\">\n"
+                + "      <nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/>\n"
+                + "      <tag k=\"highway\" v=\"residential\"/>\n"
+                + "      <tag k=\"name\" v=\"Oxford Street\"/>\n"
+                + "      <tag k=\"oneway\" v=\"yes\"/>\n"
+                + "    </way>\n"
+                + "  </modify>\n"
+                + "  <create>\n"
+                + "    <way id=\"22\">\n"
+                + "      <nd ref=\"4\"/><nd ref=\"7\"/>\n"
+                + "      <tag k=\"highway\" v=\"primary\"/>\n"
+                + "      <tag k=\"name\" v=\"Bancroft Way\"/>\n"
+                + "    </way>\n"
+                + "  </create>\n"
+                + "  <delete>\n"
+                + "    <way id=\"21\"/>\n"
+                + "    <node id=\"5\"/>\n"
+                + "  </delete>\n"
+                + "</osmChange>\n";
+        File file = folder.newFile("before.osm.xml");
+        Files.write(file.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+        GraphDB g = new GraphDB(file.getPath());
+        GraphDB before = g.snapshot();
+        PathTreeCache trees = g.getPathTreeCache();
+
+        assertEquals(6, g.applyChanges(
+                new ByteArrayInputStream(osc.getBytes(StandardCharsets.UTF_8))));
+        assertEquals(new HashSet<>(Arrays.asList(1L, 2L, 3L, 4L, 7L)),
+                new HashSet<>(IngestFixtures.toList(g.vertices())));
+        assertEquals(Arrays.asList(2L), IngestFixtures.toList(g.adjacent(3)));
+        assertEquals(Arrays.asList(7L), IngestFixtures.toList(g.adjacent(4)));
+        assertEquals("Bancroft Way", g.getWayName(7, 4));
+        assertEquals(RoadClass.PRIMARY, g.getEdges().roadClass(g.edge(4, 7)));
+        assertTrue(g.getEdges().hasFlag(g.edge(2, 3), EdgeTable.ONEWAY));
+        assertEquals("Oxford Street", g.getWayName(2, 3));
+        assertEquals(37.5011, g.lat(2), 0);
+        for (long v : g.vertices()) {
+            g.forEachNeighbor(v, (w, edge, length, lon, lat) -> {
+                assertEquals(g.distance(v, w), length, 0);
+                assertEquals(g.lon(w), lon, 0);
+            });
+        }
+        assertEquals(7, g.closest(-122.251, 37.505));
+
+        Map<String, List<GraphDB.Node>> locations = g.getLocations();
+        assertFalse(locations.containsKey("top dog"));
+        assertTrue(locations.containsKey("cafe strada"));
+        List<GraphDB.Node> stop = locations.get("oxford stop");
+        assertEquals(1, stop.size());
+        assertEquals(2, stop.get(0).id);
+        assertTrue(g.getPrefixIndex().withPrefix("top").isEmpty());
+        assertEquals(Arrays.asList("Oxford Stop"), g.getPrefixIndex().withPrefix("ox"));
+
+        /* The snapshot taken before still sees the graph as it was built. */
+        assertEquals(new HashSet<>(Arrays.asList(1L, 2L, 3L, 4L)),
+                new HashSet<>(IngestFixtures.toList(before.vertices())));
+        assertEquals(Arrays.asList(2L, 4L), IngestFixtures.toList(before.adjacent(3)));
+        assertEquals(37.501, before.lat(2), 0);
+        assertEquals(4, before.closest(-122.251, 37.505));
+        /* Paths may have changed, so the live graph's trees are new and the snapshot's not. */
+        assertNotSame(trees, g.getPathTreeCache());
+        assertSame(trees, before.getPathTreeCache());
+
+        /* The deleted way is no longer snapped to, though the snapshot still has it. */
+        RoadGraph.Snap snap = g.snap(-122.2504, 37.5021, Profile.DISTANCE);
+        assertEquals(g.edge(2, 3), snap.edge);
+        assertEquals(-122.25, snap.lon, 1e-9);
+        assertEquals(37.502, snap.lat, 1e-9);
+        snap = before.snap(-122.2504, 37.5021, Profile.DISTANCE);
+        assertEquals(before.edge(3, 4), snap.edge);
+        assertEquals(-122.2504, snap.lon, 1e-9);
+        assertEquals(37.502, snap.lat, 1e-9);
+        assertEquals(7, g.snap(-122.2509, 37.506, Profile.DISTANCE).to);
+        List<Integer> near = new ArrayList<>();
+        for (RoadGraph.Snap s : g.snapsWithin(-122.2504, 37.5021, 0.1, Profile.DISTANCE)) {
+            near.add(s.edge);
+        }
+        assertEquals(Arrays.asList(g.edge(2, 3), g.edge(4, 7), g.edge(1, 2)), near);
+        assertEquals(before.edge(3, 4),
+                before.snapsWithin(-122.2504, 37.5021, 0.1, Profile.DISTANCE).get(0).edge);
+        assertFalse(before.getEdges().hasFlag(before.edge(2, 3), EdgeTable.ONEWAY));
+    }
+
+    @Test
+    public void testNegativeIdsRejected() throws Exception {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        GraphDB before = g.snapshot();
+        String[] changes = {
+            "<create><node id=\"-1\" lat=\"37.5\" lon=\"-122.25\"/></create>",
+            "<create><way id=\"-2\"><nd ref=\"1\"/><nd ref=\"2\"/>"
+                + "<tag k=\"highway\" v=\"primary\"/></way></create>",
+            "<modify><way id=\"2\"><nd ref=\"1\"/><nd ref=\"-1\"/>"
+                + "<tag k=\"highway\" v=\"primary\"/></way></modify>",
+        };
+        for (String change : changes) {
+            String osc = "<osmChange version=\"0.6\">" + change + "</osmChange>";
+            try {
+                g.applyChanges(new ByteArrayInputStream(osc.getBytes(StandardCharsets.UTF_8)));
+                fail("Applied " + change);
+            } catch (IOException e) {
+                assertTrue(e.getCause().getMessage().startsWith("Negative id"));
+            }
+            IngestFixtures.assertSameGraph(before, g);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSnapshotIsReadOnly() throws Exception {
+        new GraphDB(OSM_DB_PATH_TINY).snapshot().applyChanges(new ByteArrayInputStream(
+                "<osmChange version=\"0.6\"/>".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        GraphDB small = new GraphDB(OSM_DB_PATH_SMALL);
+        GraphReloader reloader = new GraphReloader(small, OSM_DB_PATH_SMALL,
+                GraphDB.Parser.SCANNER);
+        assertTrue(reloader.reload("data/missing.osm.xml"));
+        awaitReload(reloader);
+        assertTrue(small == reloader.get());
+        assertTrue(((String) reloader.status().get("last_error")).contains("missing"));
+
+        assertTrue(reloader.reload(OSM_DB_PATH_TINY));
+        awaitReload(reloader);
+        assertFalse(small == reloader.get());
+        IngestFixtures.assertSameGraph(new GraphDB(OSM_DB_PATH_TINY), reloader.get());
+        assertEquals(OSM_DB_PATH_TINY, reloader.status().get("path"));
+        assertEquals(1, reloader.status().get("reloads"));
+
+        /* A truncated file is an error, not a graph of whatever was read before it ended. */
+        byte[] tiny = Files.readAllBytes(new File(OSM_DB_PATH_TINY).toPath());
+        File truncated = folder.newFile("truncated.osm.xml");
+        Files.write(truncated.toPath(), Arrays.copyOf(tiny, tiny.length / 2));
+        GraphDB served = reloader.get();
+        for (GraphDB.Parser parser : GraphDB.Parser.values()) {
+            reloader = new GraphReloader(served, OSM_DB_PATH_TINY, parser);
+            assertTrue(reloader.reload(truncated.getPath()));
+            awaitReload(reloader);
+            assertTrue(served == reloader.get());
+            assertTrue(reloader.status().get("last_error") != null);
+        }
+        /* The error is the parser's, not one from stopping the build half way. */
+        reloader = new GraphReloader(served, OSM_DB_PATH_TINY, GraphDB.Parser.SCANNER);
+        assertTrue(reloader.reload(truncated.getPath()));
+        awaitReload(reloader);
+        assertTrue(((String) reloader.status().get("last_error")).contains("Unexpected end"));
+
+        /* Changes applied before a reload from the same file are applied again after it. */
+        String xml = "<osm version=\"0.6\">\n"
+                + "  <node id=\"1\" lat=\"37.5\" lon=\"-122.25\"/>\n"
+                + "  <node id=\"2\" lat=\"37.501\" lon=\"-122.25\"/>\n"
+                + "  <way id=\"20\"><nd ref=\"1\"/><nd ref=\"2\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>\n"
+                + "</osm>\n";
+        String osc = "<osmChange version=\"0.6\">\n"
+                + "  <create>\n"
+                + "    <node id=\"3\" lat=\"37.502\" lon=\"-122.25\"/>\n"
+                + "    <way id=\"21\"><nd ref=\"2\"/><nd ref=\"3\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>\n"
+                + "  </create>\n"
+                + "</osmChange>\n";
+        File file = folder.newFile("reloaded.osm.xml");
+        Files.write(file.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+        reloader = new GraphReloader(new GraphDB(file.getPath()), file.getPath(),
+                GraphDB.Parser.SCANNER);
+        assertEquals(2, reloader.applyChanges(osc.getBytes(StandardCharsets.UTF_8)));
+        served = reloader.get();
+        assertTrue(reloader.reload(null));
+        awaitReload(reloader);
+        assertFalse(served == reloader.get());
+        assertEquals(1, reloader.status().get("changes"));
+        assertEquals(new HashSet<>(Arrays.asList(1L, 2L, 3L)),
+                new HashSet<>(IngestFixtures.toList(reloader.get().vertices())));
+        assertEquals(Arrays.asList(1L, 3L), IngestFixtures.toList(reloader.get().adjacent(2)));
+    }
+
+    private static void awaitReload(GraphReloader reloader) throws InterruptedException {
+        for (int i = 0; i < 600 && reloader.isReloading(); i++) {
+            Thread.sleep(50);
+        }
+        assertFalse(reloader.isReloading());
+    }
+}
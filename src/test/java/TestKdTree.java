@@ -0,0 +1,90 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares k-nearest-neighbor queries on the KdTree against a brute force scan.
+ */
+public class TestKdTree {
+    private static final int NUM_POINTS = 2000;
+    private static final int NUM_QUERIES = 200;
+
+    @Test
+    public void testNearestK() {
+        Random random = new Random(61);
+        KdTree tree = new KdTree();
+        List<GraphDB.Node> points = new ArrayList<>();
+        for (int i = 0; i < NUM_POINTS; i++) {
+            GraphDB.Node n = new GraphDB.Node(i, randomLon(random), randomLat(random));
+            points.add(n);
+            tree.insert(n);
+        }
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            double lon = randomLon(random);
+            double lat = randomLat(random);
+            int k = 1 + random.nextInt(20);
+            points.sort(Comparator.comparingDouble(n -> GraphDB.distance(lon, lat, n.lon, n.lat)));
+            List<GraphDB.Node> actual = tree.nearest(lon, lat, k);
+            assertEquals(k, actual.size());
+            for (int j = 0; j < k; j++) {
+                assertEquals(points.get(j).id, actual.get(j).id);
+            }
+        }
+    }
+
+    @Test
+    public void testBuild() {
+        Random random = new Random(62);
+        List<GraphDB.Node> points = new ArrayList<>();
+        for (int i = 0; i < 10 * NUM_POINTS; i++) {
+            /* Rounding leaves many points sharing a coordinate, to test the median ties. */
+            double lon = Math.round(randomLon(random) * 2000) / 2000.0;
+            double lat = Math.round(randomLat(random) * 2000) / 2000.0;
+            points.add(new GraphDB.Node(i, lon, lat));
+        }
+        KdTree tree = new KdTree();
+        tree.build(points);
+        assertEquals(points.size(), tree.size());
+        for (int i = 0; i < NUM_QUERIES / 10; i++) {
+            double lon = randomLon(random);
+            double lat = randomLat(random);
+            int k = 1 + random.nextInt(20);
+            points.sort(Comparator.comparingDouble(n -> GraphDB.distance(lon, lat, n.lon, n.lat)));
+            List<GraphDB.Node> actual = tree.nearest(lon, lat, k);
+            assertEquals(k, actual.size());
+            for (int j = 0; j < k; j++) {
+                assertEquals(GraphDB.distance(lon, lat, points.get(j).lon, points.get(j).lat),
+                        GraphDB.distance(lon, lat, actual.get(j).lon, actual.get(j).lat), 0);
+            }
+            GraphDB.Node goal = new GraphDB.Node(lon, lat);
+            GraphDB.Node nearest = tree.nearest(tree.root, goal, tree.root).point;
+            assertEquals(GraphDB.distance(points.get(0), goal),
+                    GraphDB.distance(nearest, goal), 0);
+        }
+    }
+
+    @Test
+    public void testNearestKOnSmallTree() {
+        KdTree tree = new KdTree();
+        assertEquals(0, tree.nearest(0, 0, 3).size());
+        tree.insert(new GraphDB.Node(1, 0.1, 38.1));
+        tree.insert(new GraphDB.Node(2, 0.2, 38.2));
+        assertEquals(2, tree.nearest(0, 0, 3).size());
+        assertEquals(2L, tree.nearest(0.3, 38.3, 1).get(0).id);
+    }
+
+    private static double randomLon(Random random) {
+        return MapServer.ROOT_ULLON + random.nextDouble() * (MapServer.ROOT_LRLON
+                - MapServer.ROOT_ULLON);
+    }
+
+    private static double randomLat(Random random) {
+        return MapServer.ROOT_LRLAT + random.nextDouble() * (MapServer.ROOT_ULLAT
+                - MapServer.ROOT_LRLAT);
+    }
+}
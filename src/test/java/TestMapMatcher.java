@@ -0,0 +1,102 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that MapMatcher puts a noisy GPS trace onto the road it was recorded on, joins the
+ * matches up into a route, and matches the same whether the trace is streamed or not.
+ */
+public class TestMapMatcher {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMapMatching() throws Exception {
+        /*
+         * A road from 1 to 3 over 2, a parallel one 25 m north joined to it at the ends, and
+         * one from 6 to 7 joined to neither.
+         */
+        String xml = "<osm version=\"0.6\">\n"
+                + "  <node id=\"1\" lat=\"37.5\" lon=\"-122.25\"/>\n"
+                + "  <node id=\"2\" lat=\"37.5\" lon=\"-122.245\"/>\n"
+                + "  <node id=\"3\" lat=\"37.5\" lon=\"-122.24\"/>\n"
+                + "  <node id=\"4\" lat=\"37.500225\" lon=\"-122.25\"/>\n"
+                + "  <node id=\"5\" lat=\"37.500225\" lon=\"-122.24\"/>\n"
+                + "  <node id=\"6\" lat=\"37.51\" lon=\"-122.25\"/>\n"
+                + "  <node id=\"7\" lat=\"37.51\" lon=\"-122.24\"/>\n"
+                + "  <way id=\"10\"><nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>\n"
+                + "  <way id=\"11\"><nd ref=\"1\"/><nd ref=\"4\"/><nd ref=\"5\"/>"
+                + "<nd ref=\"3\"/><tag k=\"highway\" v=\"residential\"/></way>\n"
+                + "  <way id=\"12\"><nd ref=\"6\"/><nd ref=\"7\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>\n"
+                + "</osm>\n";
+        GraphDB g = GraphFixtures.graph(folder, "matching", xml);
+        MappedGraph mapped = GraphFixtures.mapped(folder, "matching", g);
+
+        /* A noisy trace along the first road, with one point nearer the second. */
+        Random random = new Random(4);
+        List<double[]> trace = new ArrayList<>();
+        for (double lon = -122.2497; lon < -122.2403; lon += 0.0003) {
+            trace.add(new double[]{lon + random.nextGaussian() * 0.00003,
+                37.5 + random.nextGaussian() * 0.00003});
+        }
+        trace.get(trace.size() / 2)[1] = 37.5002;
+        assertEquals(g.edge(4, 5),
+                g.snap(trace.get(trace.size() / 2)[0], 37.5002, Profile.CAR).edge);
+
+        for (RoadGraph graph : new RoadGraph[]{g, mapped}) {
+            List<MapMatcher.Match> matches = MapMatcher.match(graph, Profile.CAR, trace);
+            assertEquals(trace.size(), matches.size());
+            double distance = 0;
+            List<Long> vertices = new ArrayList<>();
+            for (int i = 0; i < matches.size(); i++) {
+                MapMatcher.Match m = matches.get(i);
+                assertEquals(i, m.point);
+                assertTrue(m.snap.edge == g.edge(1, 2) || m.snap.edge == g.edge(2, 3));
+                assertEquals(i > 0, m.connected);
+                distance += m.distance;
+                vertices.addAll(m.vertices);
+            }
+            /* The matches join up into the road between the first and the last. */
+            RoadGraph.Snap first = matches.get(0).snap;
+            RoadGraph.Snap last = matches.get(matches.size() - 1).snap;
+            assertEquals(GraphDB.distance(first.lon, first.lat, last.lon, last.lat), distance,
+                    1e-9);
+            assertEquals(Arrays.asList(2L), vertices);
+
+            /* Streaming hands out the same matches, most of them before the trace ends. */
+            List<MapMatcher.Match> streamed = new ArrayList<>();
+            MapMatcher matcher = new MapMatcher(graph, Profile.CAR, streamed::add);
+            for (double[] point : trace) {
+                matcher.add(point[0], point[1]);
+            }
+            assertTrue(streamed.size() > trace.size() / 2);
+            matcher.finish();
+            assertEquals(matches.size(), streamed.size());
+            for (int i = 0; i < matches.size(); i++) {
+                assertEquals(matches.get(i).snap.edge, streamed.get(i).snap.edge);
+                assertEquals(matches.get(i).snap.fraction, streamed.get(i).snap.fraction, 0);
+                assertEquals(matches.get(i).vertices, streamed.get(i).vertices);
+            }
+        }
+
+        /* A jump onto a road no route reaches starts a new match. */
+        List<double[]> jump = Arrays.asList(new double[]{-122.2497, 37.5},
+                new double[]{-122.2494, 37.5}, new double[]{-122.245, 37.51});
+        List<MapMatcher.Match> matches = MapMatcher.match(g, Profile.CAR, jump);
+        assertEquals(3, matches.size());
+        assertTrue(matches.get(1).connected);
+        assertFalse(matches.get(2).connected);
+        assertEquals(0, matches.get(2).distance, 0);
+    }
+}
@@ -0,0 +1,68 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that a MappedGraph written from a GraphDB answers every query the same way the GraphDB
+ * does.
+ */
+public class TestMappedGraph {
+    private static final String OSM_DB_PATH_SMALL = "data/berkeley-2018-small.osm.xml";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMappedGraph() throws Exception {
+        GraphDB g = new GraphDB(OSM_DB_PATH_SMALL);
+        File file = folder.newFile("small.graph");
+        MappedGraph.write(g, file);
+        MappedGraph mapped = MappedGraph.open(file);
+
+        Set<Long> vertices = new HashSet<>(IngestFixtures.toList(g.vertices()));
+        assertEquals(vertices, new HashSet<>(IngestFixtures.toList(mapped.vertices())));
+        assertEquals(vertices.size(), mapped.size());
+        for (long v : vertices) {
+            assertEquals(g.lon(v), mapped.lon(v), 0);
+            assertEquals(g.lat(v), mapped.lat(v), 0);
+            assertEquals(IngestFixtures.toList(g.adjacent(v)),
+                    IngestFixtures.toList(mapped.adjacent(v)));
+            for (long w : g.adjacent(v)) {
+                int edge = g.edge(v, w);
+                assertEquals(edge, mapped.edge(v, w));
+                assertEquals(g.getWayName(v, w), mapped.getWayName(v, w));
+                assertEquals(g.getEdges().roadClass(edge), mapped.roadClass(edge));
+                assertEquals(g.getEdges().speed(edge), mapped.speed(edge), 0);
+                assertEquals(g.getEdges().hasFlag(edge, EdgeTable.ONEWAY),
+                        mapped.hasFlag(edge, EdgeTable.ONEWAY));
+            }
+        }
+
+        Random random = new Random(0);
+        for (int i = 0; i < 200; i++) {
+            double lon = -122.27 + random.nextDouble() * 0.03;
+            double lat = 37.86 + random.nextDouble() * 0.03;
+            long expected = g.closest(lon, lat);
+            long actual = mapped.closest(lon, lat);
+            assertEquals(GraphDB.distance(g.lon(expected), g.lat(expected), lon, lat),
+                    GraphDB.distance(mapped.lon(actual), mapped.lat(actual), lon, lat), 0);
+        }
+        long[] ids = vertices.stream().mapToLong(Long::longValue).sorted().toArray();
+        for (int i = 0; i < 20; i++) {
+            long st = ids[random.nextInt(ids.length)];
+            long dest = ids[random.nextInt(ids.length)];
+            for (Profile profile : Profile.values()) {
+                assertEquals(Router.shortestPath(g, g.lon(st), g.lat(st), g.lon(dest),
+                        g.lat(dest), profile), Router.shortestPath(mapped, g.lon(st),
+                        g.lat(st), g.lon(dest), g.lat(dest), profile));
+            }
+        }
+    }
+}
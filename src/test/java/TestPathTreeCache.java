@@ -0,0 +1,66 @@
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that routes from the shortest-path trees PathTreeCache keeps for hot origins cost the
+ * same as searched ones, and that the cache keeps and accounts for only what it admits.
+ */
+public class TestPathTreeCache {
+    private static final String OSM_DB_PATH_SMALL = "data/berkeley-2018-small.osm.xml";
+
+    @Test
+    public void testPathTreeCache() throws InterruptedException {
+        GraphDB g = new GraphDB(OSM_DB_PATH_SMALL);
+        PathTreeCache cache = new PathTreeCache(1);
+        Random random = new Random(3);
+        for (Profile profile : new Profile[]{Profile.DISTANCE, Profile.WALK}) {
+            double stlon = -122.27 + random.nextDouble() * 0.03;
+            double stlat = 37.86 + random.nextDouble() * 0.03;
+            long origin = g.closest(stlon, stlat, profile);
+            /* The third miss starts growing the tree, and lookups walk it once it is grown. */
+            for (int i = 0; i < 3; i++) {
+                assertNull(cache.tree(g, origin, profile));
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while (cache.tree(g, origin, profile) == null) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(5);
+            }
+            for (int i = 0; i < 20; i++) {
+                double destlon = -122.27 + random.nextDouble() * 0.03;
+                double destlat = 37.86 + random.nextDouble() * 0.03;
+                List<Long> expected = Router.shortestPath((RoadGraph) g, stlon, stlat, destlon,
+                        destlat, profile);
+                List<Long> actual = Router.shortestPath(g, cache, stlon, stlat, destlon,
+                        destlat, profile);
+                assertEquals(GraphFixtures.cost(g, expected, profile),
+                        GraphFixtures.cost(g, actual, profile), 1e-9);
+                Router.Route route = Router.route(g, stlon, stlat, destlon, destlat, profile);
+                Router.Route fromCache = Router.route(g, cache, stlon, stlat, destlon, destlat,
+                        profile);
+                assertEquals(route.cost, fromCache.cost, 1e-9);
+            }
+        }
+
+        /* Only the last hot origin is kept, and its memory is accounted for. */
+        Map<String, Object> stats = cache.stats();
+        List<?> trees = (List<?>) stats.get("trees");
+        assertEquals(1, trees.size());
+        Map<?, ?> tree = (Map<?, ?>) trees.get(0);
+        assertEquals("walk", tree.get("profile"));
+        assertEquals(stats.get("bytes"), tree.get("bytes"));
+        assertTrue((long) stats.get("bytes") > 20L * (int) tree.get("vertices"));
+        long lookups = (long) stats.get("lookups");
+        assertEquals((double) (long) stats.get("hits") / lookups, (double) stats.get("hit_rate"),
+                1e-12);
+
+        assertNull(new PathTreeCache(0).tree(g, g.closest(-122.26, 37.87), Profile.DISTANCE));
+    }
+}
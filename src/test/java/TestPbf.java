@@ -0,0 +1,32 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+
+/**
+ * Checks that OSM PBF files build exactly the same graph as the OSM XML they were written from,
+ * with nodes stored either way PBF allows.
+ */
+public class TestPbf {
+    private static final String OSM_DB_PATH_TINY = "data/tiny-clean.osm.xml";
+    private static final String OSM_DB_PATH_SMALL = "data/berkeley-2018-small.osm.xml";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPbfDenseNodes() throws Exception {
+        File pbf = folder.newFile("small-dense.osm.pbf");
+        IngestFixtures.writePbf(OSM_DB_PATH_SMALL, pbf, 16, true);
+        IngestFixtures.assertSameGraph(new GraphDB(OSM_DB_PATH_SMALL), new GraphDB(pbf.getPath()));
+    }
+
+    @Test
+    public void testPbfPlainNodes() throws Exception {
+        File pbf = folder.newFile("tiny.osm.pbf");
+        IngestFixtures.writePbf(OSM_DB_PATH_TINY, pbf, 3, false);
+        IngestFixtures.assertSameGraph(new GraphDB(OSM_DB_PATH_TINY), new GraphDB(pbf.getPath()));
+    }
+}
@@ -0,0 +1,152 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the autocomplete index, both on hand-made names and on the names parsed from
+ * the small Berkeley extract.
+ */
+public class TestPrefixIndex {
+    private static final String OSM_DB_PATH_SMALL = "data/berkeley-2018-small.osm.xml";
+    private static GraphDB graphSmall;
+    private static boolean initialized = false;
+    private PrefixIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        index = new PrefixIndex();
+        for (String name : Arrays.asList("Top Dog", "Toss Noodle Bar", "St. Mary's College",
+                "St Marys Church", "Top Dog", "Berkeley Bowl", "Berkeley Bowl West",
+                "Berkeley Bowl West", "Berkeley Bowl West", "Caf\u00e9 Strada")) {
+            index.add(name);
+        }
+        index.build();
+        if (initialized) {
+            return;
+        }
+        graphSmall = new GraphDB(OSM_DB_PATH_SMALL);
+        initialized = true;
+    }
+
+    @Test
+    public void testDuplicatesStoredOnce() {
+        assertEquals(7, index.size());
+    }
+
+    @Test
+    public void testWithPrefix() {
+        assertEquals(Arrays.asList("Top Dog", "Toss Noodle Bar"), index.withPrefix("to"));
+        assertEquals(Arrays.asList("Berkeley Bowl", "Berkeley Bowl West"),
+                index.withPrefix("BERKELEY"));
+        assertEquals(Arrays.asList("Top Dog"), index.withPrefix("top"));
+        assertTrue(index.withPrefix("tx").isEmpty());
+        assertTrue(index.withPrefix("berkeley bowl west side").isEmpty());
+    }
+
+    @Test
+    public void testPrefixIsCleaned() {
+        assertEquals(new HashSet<>(Arrays.asList("St. Mary's College", "St Marys Church")),
+                new HashSet<>(index.withPrefix("st. marys")));
+    }
+
+    @Test
+    public void testEmptyPrefixMatchesAll() {
+        assertEquals(7, index.withPrefix("").size());
+    }
+
+    @Test
+    public void testTopK() {
+        assertEquals(Arrays.asList("Berkeley Bowl West", "Top Dog", "Caf\u00e9 Strada"),
+                index.topK("", 3));
+        assertEquals(Arrays.asList("Top Dog", "Toss Noodle Bar"), index.topK("to", 5));
+        assertEquals(Arrays.asList("St Marys Church"), index.topK("st", 1));
+        assertTrue(index.topK("top", 0).isEmpty());
+        assertTrue(index.topK("tx", 3).isEmpty());
+    }
+
+    @Test
+    public void testTopKReturnsEveryMatchOnce() {
+        List<String> all = index.topK("", 100);
+        assertEquals(7, all.size());
+        assertEquals(new HashSet<>(index.withPrefix("")), new HashSet<>(all));
+    }
+
+    @Test
+    public void testCleanString() {
+        assertEquals("st marys", GraphDB.cleanString("St. Mary's"));
+        assertEquals("cafe strada", GraphDB.cleanString("Caf\u00e9  Strada"));
+        assertEquals("a b", GraphDB.cleanString("- A - B"));
+        assertEquals("a b", GraphDB.cleanString(" A B (2) "));
+        assertEquals("oxford street", GraphDB.cleanString("Oxford Street "));
+        assertEquals(Arrays.asList("Caf\u00e9 Strada"), index.withPrefix("cafe s"));
+    }
+
+    @Test
+    public void testFuzzy() {
+        assertEquals(Arrays.asList("Berkeley Bowl West", "Berkeley Bowl"),
+                index.fuzzy("berkly bowl", 2, 5, Long.MAX_VALUE));
+        assertEquals(Arrays.asList("Top Dog"), index.fuzzy("tpo dog", 2, 5, Long.MAX_VALUE));
+        assertEquals(Arrays.asList("St Marys Church", "St. Mary's College"),
+                index.fuzzy("st mary's", 0, 5, Long.MAX_VALUE));
+        assertTrue(index.fuzzy("zzzzzz", 2, 5, Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void testFuzzyRanksCloserMatchesFirst() {
+        assertEquals(Arrays.asList("Top Dog"), index.fuzzy("top do", 1, 1, Long.MAX_VALUE));
+        assertEquals(2, index.fuzzy("tos", 1, 5, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void testCacheNarrowsKeystrokes() {
+        PrefixCache cache = new PrefixCache(index);
+        for (String prefix : Arrays.asList("b", "be", "berkeley bowl", "berkeley bowl w", "x")) {
+            assertEquals(index.withPrefix(prefix), cache.withPrefix(prefix));
+        }
+        assertEquals(index.topK("Berkeley", 1), cache.topK("berkeley", 1));
+        assertEquals(index.withPrefix("to"), cache.withPrefix("to"));
+        assertEquals(index.withPrefix("to"), cache.withPrefix("TO"));
+        Map<String, Object> stats = cache.stats();
+        assertEquals(8L, stats.get("lookups"));
+        assertEquals(1L, stats.get("hits"));
+        assertEquals(4L, stats.get("narrowed"));
+        assertEquals(3L, stats.get("misses"));
+    }
+
+    @Test
+    public void testWithChanges() {
+        Map<String, Integer> changes = new HashMap<>();
+        changes.put("Top Dog", -2);
+        changes.put("Toss Noodle Bar", 3);
+        changes.put("Tolman Hall", 1);
+        changes.put("St Marys Church", -1);
+        PrefixIndex changed = index.withChanges(changes);
+        assertEquals(Arrays.asList("Tolman Hall", "Toss Noodle Bar"), changed.withPrefix("to"));
+        assertEquals(Arrays.asList("St. Mary's College"), changed.withPrefix("st"));
+        assertEquals(Arrays.asList("Toss Noodle Bar", "Berkeley Bowl West"), changed.topK("", 2));
+        assertEquals(6, changed.size());
+        assertEquals(Arrays.asList("Top Dog", "Toss Noodle Bar"), index.withPrefix("to"));
+    }
+
+    @Test
+    public void testSmallGraphLocationsAreCleaned() {
+        assertTrue(graphSmall.getLocations().containsKey("the wright institute"));
+    }
+
+    @Test
+    public void testSmallGraphNames() {
+        List<String> results = graphSmall.getPrefixIndex().withPrefix("the w");
+        assertTrue(results.contains("The Wright Institute"));
+        for (String name : results) {
+            assertTrue(GraphDB.cleanString(name).startsWith("the w"));
+        }
+    }
+}
@@ -0,0 +1,52 @@
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that each Profile prices edges as documented, and that the routes it finds are never
+ * beaten by another on its own cost.
+ */
+public class TestProfiles {
+    private static final String OSM_DB_PATH_SMALL = "data/berkeley-2018-small.osm.xml";
+
+    @Test
+    public void testProfiles() {
+        assertEquals(Float.POSITIVE_INFINITY,
+                Profile.CAR.pace(RoadClass.RESIDENTIAL, 25, EdgeTable.ONEWAY, false), 0);
+        assertEquals(144, Profile.CAR.pace(RoadClass.RESIDENTIAL, 25, EdgeTable.ONEWAY, true),
+                1e-4);
+        assertEquals(1200, Profile.WALK.pace(RoadClass.PRIMARY, 45, EdgeTable.ONEWAY, false),
+                1e-4);
+        assertEquals(Float.POSITIVE_INFINITY, Profile.BIKE.pace(RoadClass.MOTORWAY, 65, 0, true),
+                0);
+        assertEquals(Profile.BIKE, Profile.of("bike"));
+
+        GraphDB g = new GraphDB(OSM_DB_PATH_SMALL);
+        Random random = new Random(1);
+        for (int i = 0; i < 50; i++) {
+            double stlon = -122.27 + random.nextDouble() * 0.03;
+            double stlat = 37.86 + random.nextDouble() * 0.03;
+            double destlon = -122.27 + random.nextDouble() * 0.03;
+            double destlat = 37.86 + random.nextDouble() * 0.03;
+            List<Long> shortest = Router.shortestPath(g, stlon, stlat, destlon, destlat);
+            for (Profile profile : Profile.values()) {
+                List<Long> route = Router.shortestPath(g, stlon, stlat, destlon, destlat,
+                        profile);
+                double cost = GraphFixtures.cost(g, route, profile);
+                assertTrue(cost < Double.POSITIVE_INFINITY);
+                if (shortest.isEmpty() || route.isEmpty() || !route.get(0).equals(shortest.get(0))
+                        || !route.get(route.size() - 1).equals(shortest.get(shortest.size() - 1))) {
+                    continue;
+                }
+                /* Neither route is beaten by the other on what it was chosen for. */
+                assertTrue(cost <= GraphFixtures.cost(g, shortest, profile) + 1e-9);
+                assertTrue(GraphFixtures.cost(g, route, Profile.DISTANCE)
+                        >= GraphFixtures.cost(g, shortest, Profile.DISTANCE) - 1e-9);
+            }
+        }
+    }
+}
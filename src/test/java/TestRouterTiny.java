@@ -1,10 +1,21 @@
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Created by hug, 4/9/2018. Basic tests for A* on the tiny graph.
@@ -63,4 +74,216 @@ public class TestRouterTiny {
         expected.add(55L);
         assertEquals(expected, actual);
     }
+
+    @Test
+    public void testLowerBound() {
+        Random random = new Random(0);
+        for (double maxAbsLat : new double[]{0, 38.6, 60, 80}) {
+            Equirectangular bound = Equirectangular.forLatitudes(maxAbsLat);
+            for (int i = 0; i < 10000; i++) {
+                double span = i % 2 == 0 ? 0.5 : 20;
+                double lonV = random.nextDouble() * 360 - 180;
+                double latV = (2 * random.nextDouble() - 1) * maxAbsLat;
+                double lonW = lonV + (2 * random.nextDouble() - 1) * span;
+                double latW = Math.max(-maxAbsLat, Math.min(maxAbsLat,
+                        latV + (2 * random.nextDouble() - 1) * span));
+                double exact = GraphDB.distance(lonV, latV, lonW, latW);
+                double estimate = bound.distance(lonV, latV, lonW, latW);
+                assertTrue(estimate <= exact);
+                if (span < 1 && maxAbsLat < 45) {
+                    assertTrue(estimate >= 0.75 * exact);
+                }
+            }
+        }
+        assertEquals(38.6, graphTiny.lowerBound().maxAbsLat(), 0);
+    }
+
+    @Test
+    public void testDirectionsText() {
+        List<Long> route = Router.shortestPath(graphTiny, 0.4, 38.1, 0.4, 38.6);
+        assertEquals(route, VertexPath.of(route).asList());
+        List<Router.NavigationDirection> directions = Router.routeDirections(graphTiny, route);
+        assertEquals(directions, Router.routeDirections(graphTiny, new LinkedList<>(route)));
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < directions.size(); i++) {
+            expected.append(String.format("%d. %s <br>", i + 1, directions.get(i)));
+        }
+        StringBuilder actual = new StringBuilder();
+        Router.writeDirections(directions, actual);
+        assertEquals(expected.toString(), actual.toString());
+
+        /* Distances halfway between thousandths round half up, as %.3f does. */
+        Router.NavigationDirection d = new Router.NavigationDirection();
+        for (double distance : new double[]{0, 0.0005, 1.0005, 13.1975, 2.5, 1234.56789}) {
+            d.distance = distance;
+            StringBuilder text = new StringBuilder();
+            d.appendTo(text);
+            assertEquals(d.toString(), text.toString());
+        }
+    }
+
+    @Test
+    public void testRouteGeometry() {
+        /* The example from the description of the encoded polyline format. */
+        double[] lons = {-120.2, -120.95, -126.453};
+        double[] lats = {38.5, 40.7, 43.252};
+        assertEquals("_p~iF~ps|U_ulLnnqC_mqNvxq`@",
+                Polyline.encode(lons, lats, new int[]{0, 1, 2}, 1e5));
+
+        /* A wiggly line of a thousand points a few meters apart. */
+        Random random = new Random(49);
+        int n = 1000;
+        lons = new double[n];
+        lats = new double[n];
+        for (int i = 1; i < n; i++) {
+            lons[i] = lons[i - 1] + random.nextDouble() * 4e-5;
+            lats[i] = lats[i - 1] + (random.nextDouble() - 0.5) * 4e-5;
+        }
+        int[] all = new int[n];
+        for (int i = 0; i < n; i++) {
+            all[i] = i;
+        }
+        List<double[]> decoded = Polyline.decode(Polyline.encode(lons, lats, all));
+        assertEquals(n, decoded.size());
+        for (int i = 0; i < n; i++) {
+            assertEquals(lons[i], decoded.get(i)[0], 1e-6);
+            assertEquals(lats[i], decoded.get(i)[1], 1e-6);
+        }
+
+        /* Shallower depths keep fewer points, all of them within the tolerance. */
+        int previous = n;
+        for (int depth = Rasterer.maxDepth(); depth >= 0; depth--) {
+            int[] kept = Polyline.simplify(lons, lats, depth);
+            assertEquals(0, kept[0]);
+            assertEquals(n - 1, kept[kept.length - 1]);
+            assertTrue(kept.length <= previous);
+            previous = kept.length;
+            double lonTolerance = Polyline.TOLERANCE * Rasterer.lonDPP(depth);
+            double latTolerance = Polyline.TOLERANCE * Rasterer.latDPP(depth);
+            double[] fraction = new double[1];
+            for (int k = 0; k + 1 < kept.length; k++) {
+                int lo = kept[k];
+                int hi = kept[k + 1];
+                for (int i = lo + 1; i < hi; i++) {
+                    double d = EdgeIndex.project(lons[i] / lonTolerance, lats[i] / latTolerance,
+                            1, lons[lo] / lonTolerance, lats[lo] / latTolerance,
+                            lons[hi] / lonTolerance, lats[hi] / latTolerance, fraction);
+                    assertTrue(d <= 1 + 1e-9);
+                }
+            }
+        }
+        assertTrue(previous < 10);
+        assertEquals(2, Polyline.simplify(new double[]{0, 1e-9, 2e-9},
+                new double[]{0, 0, 0}, 0).length);
+    }
+
+    @Test
+    public void testRouteResponse() throws Exception {
+        Router.Route route = Router.route(graphTiny, 0.4, 38.1, 0.4, 38.6, Profile.DISTANCE);
+        List<Router.NavigationDirection> directions =
+                Router.routeDirections(graphTiny, route.vertices);
+        StringWriter out = new StringWriter();
+        new RouteWriter(out).write(graphTiny, route, directions);
+        JsonObject json = new JsonParser().parse(out.toString()).getAsJsonObject();
+        assertTrue(json.get("routing_success").getAsBoolean());
+        assertTrue(json.get("directions_success").getAsBoolean());
+        StringBuilder text = new StringBuilder();
+        Router.writeDirections(directions, text);
+        assertEquals(text.toString(), json.get("directions").getAsString());
+
+        /* The coordinates add up to the points, and the distances to the route's length. */
+        List<double[]> points = new ArrayList<>();
+        points.add(new double[]{route.start.lon, route.start.lat});
+        for (long v : route.vertices) {
+            points.add(new double[]{graphTiny.lon(v), graphTiny.lat(v)});
+        }
+        points.add(new double[]{route.end.lon, route.end.lat});
+        JsonObject compact = json.getAsJsonObject("route");
+        double precision = compact.get("precision").getAsDouble();
+        JsonArray coordinates = compact.getAsJsonArray("coordinates");
+        JsonArray distances = compact.getAsJsonArray("distances");
+        assertEquals(2 * points.size(), coordinates.size());
+        assertEquals(points.size(), distances.size());
+        long lon = 0;
+        long lat = 0;
+        double length = 0;
+        for (int i = 0; i < points.size(); i++) {
+            lon += coordinates.get(2 * i).getAsLong();
+            lat += coordinates.get(2 * i + 1).getAsLong();
+            assertEquals(points.get(i)[0], lon / precision, 1 / precision);
+            assertEquals(points.get(i)[1], lat / precision, 1 / precision);
+            if (i > 0) {
+                length += GraphDB.distance(points.get(i - 1)[0], points.get(i - 1)[1],
+                        points.get(i)[0], points.get(i)[1]);
+            }
+            assertEquals(Math.round(length * 1000), distances.get(i).getAsLong());
+        }
+
+        /* Every step names its direction's way and the point the direction starts at. */
+        JsonArray ways = compact.getAsJsonArray("ways");
+        JsonArray steps = compact.getAsJsonArray("steps");
+        assertEquals(directions.size(), steps.size());
+        for (int i = 0; i < steps.size(); i++) {
+            JsonArray step = steps.get(i).getAsJsonArray();
+            Router.NavigationDirection d = directions.get(i);
+            assertEquals(d.direction, step.get(0).getAsInt());
+            assertEquals(d.way, ways.get(step.get(1).getAsInt()).getAsString());
+            assertEquals(i == 0 ? 0 : d.start + 1, step.get(2).getAsInt());
+            assertEquals(d.way, graphTiny.getWayName(route.vertices.get(d.start),
+                    route.vertices.get(d.start + 1)));
+        }
+
+        /* Way names are escaped, and a route not found has no compact form. */
+        Router.NavigationDirection odd = new Router.NavigationDirection();
+        odd.way = "The \"Quoted\" \\ Way\u0001";
+        out = new StringWriter();
+        new RouteWriter(out).write(graphTiny, new Router.Route(), Arrays.asList(odd));
+        json = new JsonParser().parse(out.toString()).getAsJsonObject();
+        assertFalse(json.get("routing_success").getAsBoolean());
+        assertEquals("1. Go straight on " + odd.way + " and continue for 0.000 miles. <br>",
+                json.get("directions").getAsString());
+        assertFalse(json.has("route"));
+    }
+
+    @Test
+    public void testSearchStructures() {
+        /* The heap pops indices by their lowest priority, however often they were lowered. */
+        Random random = new Random(0);
+        IndexedHeap heap = new IndexedHeap();
+        double[] best = new double[500];
+        Arrays.fill(best, Double.POSITIVE_INFINITY);
+        for (int k = 0; k < 5000; k++) {
+            int i = random.nextInt(best.length);
+            double priority = random.nextDouble();
+            heap.push(i, priority);
+            best[i] = Math.min(best[i], priority);
+        }
+        double last = Double.NEGATIVE_INFINITY;
+        int popped = 0;
+        while (!heap.isEmpty()) {
+            double priority = heap.peekPriority();
+            int i = heap.pop();
+            assertEquals(best[i], priority, 0);
+            assertTrue(priority >= last);
+            last = priority;
+            popped++;
+        }
+        assertEquals(best.length, popped);
+
+        /* The map keeps the last value of every key, including 0 and negative keys. */
+        LongIntMap map = new LongIntMap();
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int k = 0; k < 20000; k++) {
+            long key = k % 3 == 0 ? random.nextInt(1000) - 500 : random.nextLong();
+            map.put(key, k);
+            expected.put(key, k);
+        }
+        assertEquals(expected.size(), map.size());
+        for (long key = -600; key < 600; key++) {
+            assertEquals((int) expected.getOrDefault(key, LongIntMap.MISSING), map.get(key));
+        }
+        for (Map.Entry<Long, Integer> e : expected.entrySet()) {
+            assertEquals((int) e.getValue(), map.get(e.getKey()));
+        }
+    }
 }
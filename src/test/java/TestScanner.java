@@ -0,0 +1,91 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that OsmXmlScanner builds exactly the same graph as the SAX parser.
+ */
+public class TestScanner {
+    private static final String OSM_DB_PATH_TINY = "data/tiny-clean.osm.xml";
+    private static final String OSM_DB_PATH_SMALL = "data/berkeley-2018-small.osm.xml";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testScannerTiny() {
+        IngestFixtures.assertSameGraph(new GraphDB(OSM_DB_PATH_TINY),
+                new GraphDB(OSM_DB_PATH_TINY, GraphDB.Parser.SCANNER));
+    }
+
+    @Test
+    public void testScannerSmall() {
+        IngestFixtures.assertSameGraph(new GraphDB(OSM_DB_PATH_SMALL),
+                new GraphDB(OSM_DB_PATH_SMALL, GraphDB.Parser.SCANNER));
+    }
+
+    @Test
+    public void testScannerSyntax() throws Exception {
+        String xml = "<?xml version='1.0' encoding='UTF-8'?>\n"
+                + "<!-- a comment with <node id=\"99\"/> inside -->\n"
+                + "<osm version=\"0.6\">\n"
+                + "  <node id='1' lat='37.5' lon=\"-122.25\"/>\n"
+                + "  <node id=\"2\" lat=\"37.50001\" lon=\"-1.2225e2\">\n"
+                + "    <tag k=\"name\" v=\"Ben &amp; Jerry&#39;s &lt;&#x263A;&gt;\"/>\n"
+                + "    <tag k=\"amenity\" v=\"ice_cream\"/>\n"
+                + "  </node>\n"
+                + "  <node id=\"3\" lat=\"37.5\" lon=\"-122.2501\" />\n"
+                + "  <way id=\"10\">\n"
+                + "    <nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/>\n"
+                + "    <tag v=\"Caf\u00e9 Lane\" k=\"name\"/>\n"
+                + "    <tag k=\"highway\" v=\"residential\"/>\n"
+                + "  </way>\n"
+                + "</osm>\n";
+        File file = folder.newFile("syntax.osm.xml");
+        Files.write(file.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+        GraphDB sax = new GraphDB(file.getPath());
+        GraphDB scanner = new GraphDB(file.getPath(), GraphDB.Parser.SCANNER);
+        IngestFixtures.assertSameGraph(sax, scanner);
+        assertEquals(3, TestGraphBuilding.countIterableItems(scanner.vertices()));
+        assertEquals(-122.25, scanner.lon(2), 0.0);
+        assertEquals("Ben & Jerry's <\u263A>", scanner.getPrefixIndex().withPrefix("ben").get(0));
+        assertEquals("Caf\u00e9 Lane", scanner.getWayName(1, 2));
+    }
+
+    @Test
+    public void testScannerMissingAttributes() throws Exception {
+        String xml = "<osm version=\"0.6\">\n"
+                + "  <node id=\"1\" lat=\"37.5\" lon=\"-122.25\"/>\n"
+                + "  <node id=\"2\" lon=\"-122.2501\"/>\n"
+                + "  <node lat=\"37.5002\" lon=\"-122.2502\"/>\n"
+                + "  <node id=\"3\" lat=\"37.5003\" lon=\"-122.2503\"/>\n"
+                + "  <way id=\"10\">\n"
+                + "    <nd ref=\"1\"/><nd/><nd ref=\"2\"/><nd ref=\"3\"/>\n"
+                + "    <tag k=\"highway\" v=\"residential\"/>\n"
+                + "    <tag k=\"name\" v=\"Main Street\"/>\n"
+                + "  </way>\n"
+                + "  <way>\n"
+                + "    <nd ref=\"3\"/><nd ref=\"1\"/>\n"
+                + "    <tag k=\"highway\" v=\"primary\"/>\n"
+                + "    <tag k=\"name\" v=\"Ghost Road\"/>\n"
+                + "  </way>\n"
+                + "</osm>\n";
+        File file = folder.newFile("missing.osm.xml");
+        Files.write(file.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+        GraphDB g = new GraphDB(file.getPath(), GraphDB.Parser.SCANNER);
+        /* The node without a lat and the one without an id are skipped, not given the values
+         * of the node before, and so are the nd without a ref and the way without an id. */
+        assertEquals(new HashSet<>(Arrays.asList(1L, 3L)), g.getNodes().keySet());
+        assertEquals(37.5003, g.lat(3), 0.0);
+        assertEquals(Arrays.asList(3L), IngestFixtures.toList(g.adjacent(1)));
+        assertEquals("Main Street", g.getWayName(1, 3));
+    }
+}
@@ -0,0 +1,173 @@
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that routes answered by a ShardCoordinator over the cells of a partitioned graph are
+ * as short as the routes Router finds on the whole graph.
+ */
+public class TestSharding {
+    private static final String OSM_DB_PATH_SMALL = "data/berkeley-2018-small.osm.xml";
+    private static final int NUM_ROUTES = 200;
+    private static GraphDB graphSmall;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphSmall = new GraphDB(OSM_DB_PATH_SMALL);
+        initialized = true;
+    }
+
+    @Test
+    public void testPartition() {
+        Partition partition = new Partition(graphSmall, 3);
+        assertEquals(8, partition.size());
+        int[] sizes = new int[partition.size()];
+        int vertices = 0;
+        for (long v : graphSmall.vertices()) {
+            sizes[partition.cell(v)] += 1;
+            vertices += 1;
+        }
+        for (int size : sizes) {
+            assertTrue(Math.abs(size - vertices / 8.0) <= 1);
+        }
+        assertEquals(-1, partition.cell(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void testRoutesMatchRouter() {
+        for (int levels = 0; levels <= 3; levels++) {
+            Partition partition = new Partition(graphSmall, levels);
+            List<Shard> shards = new ArrayList<>();
+            for (int cell = 0; cell < partition.size(); cell += 2) {
+                int[] cells = cell + 1 < partition.size() ? new int[]{cell, cell + 1}
+                    : new int[]{cell};
+                shards.add(new JsonShard(new CellShard(graphSmall, partition, cells)));
+            }
+            checkRoutes(new ShardCoordinator(shards), new Random(levels));
+        }
+    }
+
+    private void checkRoutes(ShardCoordinator coordinator, Random random) {
+        double[] bounds = bounds();
+        for (int i = 0; i < NUM_ROUTES; i++) {
+            double stlon = bounds[0] + random.nextDouble() * (bounds[1] - bounds[0]);
+            double stlat = bounds[2] + random.nextDouble() * (bounds[3] - bounds[2]);
+            double destlon = bounds[0] + random.nextDouble() * (bounds[1] - bounds[0]);
+            double destlat = bounds[2] + random.nextDouble() * (bounds[3] - bounds[2]);
+            Shard.Path sharded = coordinator.route(stlon, stlat, destlon, destlat);
+
+            List<Long> expected = Router.shortestPath(graphSmall, stlon, stlat, destlon,
+                    destlat);
+            if (expected.isEmpty()) {
+                assertEquals(0, sharded.ids.length);
+                continue;
+            }
+            assertEquals(length(expected), sharded.length, 1e-9);
+            assertEquals((long) expected.get(0), sharded.ids[0]);
+            assertEquals((long) expected.get(expected.size() - 1),
+                    sharded.ids[sharded.ids.length - 1]);
+            double length = 0;
+            Set<Long> seen = new HashSet<>();
+            for (int j = 0; j < sharded.ids.length; j++) {
+                assertTrue(seen.add(sharded.ids[j]));
+                assertEquals(graphSmall.lon(sharded.ids[j]), sharded.lons[j], 0);
+                assertEquals(graphSmall.lat(sharded.ids[j]), sharded.lats[j], 0);
+                if (j > 0) {
+                    assertTrue(toList(graphSmall.adjacent(sharded.ids[j - 1]))
+                            .contains(sharded.ids[j]));
+                    length += graphSmall.distance(sharded.ids[j - 1], sharded.ids[j]);
+                }
+            }
+            assertEquals(sharded.length, length, 1e-9);
+        }
+    }
+
+    private static double[] bounds() {
+        double[] bounds = {Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE,
+            -Double.MAX_VALUE};
+        for (long v : graphSmall.vertices()) {
+            bounds[0] = Math.min(bounds[0], graphSmall.lon(v));
+            bounds[1] = Math.max(bounds[1], graphSmall.lon(v));
+            bounds[2] = Math.min(bounds[2], graphSmall.lat(v));
+            bounds[3] = Math.max(bounds[3], graphSmall.lat(v));
+        }
+        return bounds;
+    }
+
+    private static double length(List<Long> path) {
+        double length = 0;
+        for (int i = 1; i < path.size(); i++) {
+            length += graphSmall.distance(path.get(i - 1), path.get(i));
+        }
+        return length;
+    }
+
+    private static List<Long> toList(Iterable<Long> it) {
+        List<Long> list = new ArrayList<>();
+        it.forEach(list::add);
+        return list;
+    }
+
+    /**
+     * Passes every answer of a shard through Json, as a RemoteShard would receive it, without
+     * starting a server.
+     */
+    private static class JsonShard implements Shard {
+        private final Shard shard;
+        private final Gson gson = new GsonBuilder().serializeSpecialFloatingPointValues()
+            .create();
+
+        JsonShard(Shard shard) {
+            this.shard = shard;
+        }
+
+        private <T> T roundTrip(Object o, java.lang.reflect.Type type) {
+            return gson.fromJson(gson.toJson(o), type);
+        }
+
+        @Override
+        public int[] cells() {
+            return roundTrip(shard.cells(), int[].class);
+        }
+
+        @Override
+        public Closest closest(double lon, double lat) {
+            return roundTrip(shard.closest(lon, lat), Closest.class);
+        }
+
+        @Override
+        public Boundary boundary(int cell) {
+            Boundary b = roundTrip(shard.boundary(cell), Boundary.class);
+            assertArrayEquals(shard.boundary(cell).ids, b.ids);
+            return b;
+        }
+
+        @Override
+        public Map<Long, Double> boundaryDistances(long v) {
+            return roundTrip(shard.boundaryDistances(v),
+                    new TypeToken<Map<Long, Double>>() { }.getType());
+        }
+
+        @Override
+        public Path path(long from, long to) {
+            return roundTrip(shard.path(from, to), Path.class);
+        }
+    }
+}
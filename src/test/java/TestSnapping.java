@@ -0,0 +1,110 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that route endpoints snap to the nearest point on the nearest road their profile may
+ * use, the same way on GraphDB and MappedGraph, and that routes start and end there.
+ */
+public class TestSnapping {
+    private static final String OSM_DB_PATH_SMALL = "data/berkeley-2018-small.osm.xml";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSnapping() throws Exception {
+        GraphDB g = new GraphDB(OSM_DB_PATH_SMALL);
+        MappedGraph mapped = GraphFixtures.mapped(folder, "snap", g);
+
+        Random random = new Random(2);
+        for (int i = 0; i < 200; i++) {
+            double lon = -122.27 + random.nextDouble() * 0.03;
+            double lat = 37.86 + random.nextDouble() * 0.03;
+            for (Profile profile : Profile.values()) {
+                /* The index finds the same edge as looking at every edge would. */
+                double best = Double.POSITIVE_INFINITY;
+                double cos = Math.cos(Math.toRadians(lat));
+                double[] fraction = new double[1];
+                for (long v : g.vertices()) {
+                    for (long w : g.adjacent(v)) {
+                        int edge = g.edge(v, w);
+                        if (g.getEdges().pace(profile, edge) == Float.POSITIVE_INFINITY
+                                && g.getEdges().pace(profile, ~edge)
+                                == Float.POSITIVE_INFINITY) {
+                            continue;
+                        }
+                        best = Math.min(best, EdgeIndex.project(lon, lat, cos, g.lon(v),
+                                g.lat(v), g.lon(w), g.lat(w), fraction));
+                    }
+                }
+                RoadGraph.Snap snap = g.snap(lon, lat, profile);
+                assertEquals(best, EdgeIndex.project(lon, lat, cos, snap.lon, snap.lat,
+                        snap.lon, snap.lat, fraction), 1e-15);
+                RoadGraph.Snap other = mapped.snap(lon, lat, profile);
+                assertEquals(snap.edge, other.edge);
+                assertEquals(snap.fraction, other.fraction, 0);
+                assertEquals(snap.length, other.length, 1e-12);
+            }
+
+            double destlon = -122.27 + random.nextDouble() * 0.03;
+            double destlat = 37.86 + random.nextDouble() * 0.03;
+            for (Profile profile : Profile.values()) {
+                Router.Route route = Router.route((RoadGraph) g, lon, lat, destlon, destlat,
+                        profile);
+                Router.Route other = Router.route(mapped, lon, lat, destlon, destlat, profile);
+                assertEquals(route.vertices, other.vertices);
+                assertEquals(route.cost, other.cost, 1e-6);
+                if (!route.found() || route.vertices.isEmpty()) {
+                    continue;
+                }
+                /* The cost is that of the part edges at either end and the vertices between. */
+                List<Long> vertices = route.vertices;
+                assertEquals(part(route.start, vertices.get(0), true)
+                        + GraphFixtures.cost(g, vertices, profile)
+                        + part(route.end, vertices.get(vertices.size() - 1), false),
+                        route.cost, 1e-6);
+            }
+        }
+
+        /* Points along one long block are routed along it, not by its nearer end. */
+        String xml = "<osm version=\"0.6\">\n"
+                + "  <node id=\"1\" lat=\"37.5\" lon=\"-122.25\"/>\n"
+                + "  <node id=\"2\" lat=\"37.5\" lon=\"-122.24\"/>\n"
+                + "  <node id=\"3\" lat=\"37.501\" lon=\"-122.25\"/>\n"
+                + "  <way id=\"10\"><nd ref=\"1\"/><nd ref=\"2\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>\n"
+                + "  <way id=\"11\"><nd ref=\"1\"/><nd ref=\"3\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>\n"
+                + "</osm>\n";
+        GraphDB b = GraphFixtures.graph(folder, "block", xml);
+        Router.Route route = Router.route(b, -122.246, 37.5001, -122.244, 37.4999,
+                Profile.DISTANCE);
+        assertTrue(route.found());
+        assertTrue(route.vertices.isEmpty());
+        assertEquals(GraphDB.distance(-122.246, 37.5, -122.244, 37.5), route.cost, 1e-9);
+        route = Router.route(b, -122.244, 37.5001, -122.246, 37.4999, Profile.CAR);
+        assertTrue(route.vertices.isEmpty());
+        route = Router.route(b, -122.246, 37.5001, -122.2501, 37.5008, Profile.DISTANCE);
+        assertEquals(Arrays.asList(1L), route.vertices);
+        assertEquals(GraphDB.distance(-122.246, 37.5, -122.25, 37.5)
+                + GraphDB.distance(-122.25, 37.5, -122.25, 37.5008), route.cost, 1e-9);
+        assertEquals(Arrays.asList(1L, 3L), Router.shortestPath(b, -122.246, 37.5001,
+                -122.2501, 37.5008));
+    }
+
+    /** Returns the cost of travelling from a snapped point to a vertex of its edge, or back. */
+    private static double part(RoadGraph.Snap snap, long vertex, boolean leaving) {
+        boolean towardsTo = vertex == snap.to;
+        double fraction = towardsTo ? 1 - snap.fraction : snap.fraction;
+        double pace = towardsTo == leaving ? snap.forwardPace : snap.backwardPace;
+        return fraction == 0 ? 0 : fraction * snap.length * pace;
+    }
+}